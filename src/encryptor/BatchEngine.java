@@ -0,0 +1,496 @@
+package encryptor;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class executes a batch of file jobs in parallel.
+ * <p>
+ * Files are grouped by the {@linkplain Device devices} they are read from and
+ * written to. Each group is executed by its own workers, no more than the
+ * devices allow, so every device is kept busy without being thrashed. Within a
+ * group, the files are executed in the order given by the
+ * {@linkplain BatchScheduler}.
+ * <p>
+ * A batch is cancelled by interrupting the thread that executes it. The
+ * workers of all groups are interrupted at once, and the engine waits for
+ * them to clean up no longer than <tt>encryptor.cancelMillis</tt>
+ * milliseconds, one second by default. Workers stop between buffers, and
+ * blocking reads and writes of file channels are interrupted as well. Workers
+ * that do not stop in time are abandoned and counted by the
+ * {@linkplain Metrics metrics}, but they keep running their tasks until they
+ * stop, so callers that release anything the tasks use, such as a password,
+ * must first {@linkplain #awaitStopped() wait for them}.
+ *
+ * @author Mario Bobic
+ */
+public class BatchEngine {
+
+	/** Time in milliseconds that workers are given to stop when cancelled */
+	private static final long CANCEL_MILLIS = Math.max(0, Long.getLong("encryptor.cancelMillis", 1000));
+
+	/** Number of files per worker that are taken from an iterator ahead of the workers */
+	private static final int QUEUED_PER_WORKER = 2;
+	/** Number of files taken from an iterator that are parked while their groups are busy */
+	private static final int MAX_PARKED = 4096;
+	/** Number of directories whose devices are remembered while taking files from an iterator */
+	private static final int MAX_DIRECTORIES = 4096;
+
+	/** Creates the worker threads, which never keep the virtual machine running */
+	static final ThreadFactory WORKERS = (task) -> {
+		Thread thread = new Thread(task, "Batch worker");
+		thread.setDaemon(true);
+		return thread;
+	};
+
+	/** Pools of cancelled batches whose workers did not stop in time */
+	private final List<ExecutorService> abandoned = new ArrayList<>();
+
+	/**
+	 * Groups the specified <tt>files</tt> by their devices, schedules them by
+	 * their size and executes the <tt>task</tt> for each one of them. This
+	 * method blocks until all files are done. If the calling thread is
+	 * interrupted, all workers are interrupted and files that have not yet
+	 * started are discarded.
+	 *
+	 * @param files files to be processed
+	 * @param sizer function that returns the size of a file
+	 * @param task task to be executed for each file
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public void execute(List<File> files, ToLongFunction<File> sizer, Consumer<File> task) throws InterruptedException {
+		/* Obtain the sizes only once, they may be expensive to get. */
+		long[] sizes = new long[files.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = sizer.applyAsLong(files.get(i));
+		}
+		execute(files, sizes, (file, size) -> task.accept(file));
+	}
+
+	/**
+	 * Groups the specified <tt>files</tt> by their devices, schedules them by
+	 * their already known <tt>sizes</tt> and executes the <tt>task</tt> for
+	 * each one of them, which is given the known size of its file so the file
+	 * is not asked for it again. This method blocks until all files are done.
+	 * If the calling thread is interrupted, all workers are interrupted and
+	 * files that have not yet started are discarded.
+	 *
+	 * @param files files to be processed
+	 * @param sizes sizes of the files, in the same order
+	 * @param task task to be executed for each file and its size
+	 * @throws IllegalArgumentException if the number of files and sizes differ
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public void execute(List<File> files, long[] sizes, ObjLongConsumer<File> task) throws InterruptedException {
+		if (files.size() != sizes.length) {
+			throw new IllegalArgumentException("Expected " + files.size() + " sizes, got " + sizes.length);
+		}
+
+		Map<File, Long> sizeMap = new IdentityHashMap<>(sizes.length);
+		for (int i = 0; i < sizes.length; i++) {
+			sizeMap.put(files.get(i), sizes[i]);
+		}
+		ToLongFunction<File> cachedSizer = sizeMap::get;
+
+		Map<List<Device>, List<File>> groups = groupByDevices(files);
+
+		List<ExecutorService> pools = new ArrayList<>(groups.size());
+		try {
+			for (Map.Entry<List<Device>, List<File>> group : groups.entrySet()) {
+				List<Device> devices = group.getKey();
+				List<File> jobs = group.getValue();
+
+				int parallelism = Integer.MAX_VALUE;
+				for (Device device : devices) {
+					parallelism = Math.min(parallelism, device.getConcurrency());
+				}
+				parallelism = Math.min(parallelism, jobs.size());
+
+				List<File> scheduled = BatchScheduler.schedule(jobs, cachedSizer, parallelism);
+
+				Metrics.GLOBAL.scheduled(BatchScheduler.makespan(scheduled, cachedSizer, parallelism),
+						BatchScheduler.makespan(jobs, cachedSizer, parallelism));
+
+				ExecutorService pool = Executors.newFixedThreadPool(parallelism, WORKERS);
+				pools.add(pool);
+				for (File file : scheduled) {
+					pool.execute(() -> run(devices, file, (f) -> task.accept(f, cachedSizer.applyAsLong(f))));
+				}
+				pool.shutdown();
+			}
+
+			for (ExecutorService pool : pools) {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+		} finally {
+			/* Interrupt the workers of all groups at once, then let them clean up. */
+			for (ExecutorService pool : pools) {
+				pool.shutdownNow();
+			}
+			if (!awaitWorkers(pools)) {
+				abandon(pools);
+			}
+		}
+	}
+
+	/**
+	 * Executes the <tt>task</tt> for each of the specified <tt>files</tt>,
+	 * which are taken from the iterator only as the workers are ready for
+	 * them, so a batch of any number of files runs in constant memory. The
+	 * files are grouped by their devices like those of a list, but they are
+	 * run in the order they are given, as they can not be scheduled by their
+	 * sizes without seeing all of them first. No more than {@value
+	 * #QUEUED_PER_WORKER} files per worker of each group are queued for its
+	 * workers. Files of a group whose queue is full are parked until one of
+	 * its workers is done, so a slow device does not keep the files of the
+	 * other devices from being taken, and files are taken no further ahead
+	 * than {@value #MAX_PARKED} parked files across all groups.
+	 * This method blocks until all files are done. If the calling thread is
+	 * interrupted, all workers are interrupted and the remaining files are
+	 * not taken.
+	 *
+	 * @param files iterator of the files to be processed
+	 * @param task task to be executed for each file
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public void execute(Iterator<File> files, Consumer<File> task) throws InterruptedException {
+		/* Only the most recent directories are remembered, a batch may have millions. */
+		Map<File, Device> directoryDevices = new LinkedHashMap<File, Device>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<File, Device> eldest) {
+				return size() > MAX_DIRECTORIES;
+			}
+		};
+		Map<List<Device>, FileGroup> groups = new LinkedHashMap<>();
+		List<ExecutorService> pools = new ArrayList<>();
+		Dispatcher dispatcher = new Dispatcher(task);
+
+		try {
+			while (files.hasNext()) {
+				File file = files.next();
+				List<Device> devices = devicesOf(file, directoryDevices);
+
+				FileGroup group = groups.get(devices);
+				if (group == null) {
+					int parallelism = Integer.MAX_VALUE;
+					for (Device device : devices) {
+						parallelism = Math.min(parallelism, device.getConcurrency());
+					}
+					group = new FileGroup(devices, Executors.newFixedThreadPool(parallelism, WORKERS),
+							parallelism * QUEUED_PER_WORKER);
+					groups.put(devices, group);
+					pools.add(group.pool);
+				}
+
+				dispatcher.dispatch(group, file);
+			}
+
+			/* Parked files are queued by the workers, the pools take no more after shutdown. */
+			dispatcher.awaitParked();
+			for (ExecutorService pool : pools) {
+				pool.shutdown();
+			}
+			for (ExecutorService pool : pools) {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+		} finally {
+			/* Interrupt the workers of all groups at once, then let them clean up. */
+			dispatcher.discardParked(groups.values());
+			for (ExecutorService pool : pools) {
+				pool.shutdownNow();
+			}
+			if (!awaitWorkers(pools)) {
+				abandon(pools);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the workers abandoned by the cancelled batches of this
+	 * engine have stopped, however long it takes. The interrupted status of
+	 * the current thread is preserved.
+	 */
+	public void awaitStopped() {
+		boolean interrupted = false;
+		for (ExecutorService pool : takeAbandoned()) {
+			while (true) {
+				try {
+					pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Remembers the specified <tt>pools</tt> whose workers did not stop in
+	 * time, so they can be {@linkplain #awaitStopped() waited for}.
+	 *
+	 * @param pools pools with abandoned workers
+	 */
+	private synchronized void abandon(List<ExecutorService> pools) {
+		abandoned.addAll(pools);
+	}
+
+	/**
+	 * Returns and forgets the pools with abandoned workers.
+	 *
+	 * @return the pools with abandoned workers
+	 */
+	private synchronized List<ExecutorService> takeAbandoned() {
+		List<ExecutorService> pools = new ArrayList<>(abandoned);
+		abandoned.clear();
+		return pools;
+	}
+
+	/**
+	 * Waits until the workers of the specified <tt>pools</tt> have stopped,
+	 * but no longer than {@link #CANCEL_MILLIS}. Workers that do not stop in
+	 * time are abandoned and counted by the {@linkplain Metrics#GLOBAL
+	 * metrics}. The interrupted status of the current thread is preserved.
+	 *
+	 * @param pools pools that have been shut down
+	 * @return true if all workers have stopped, false if any were abandoned
+	 */
+	static boolean awaitWorkers(List<ExecutorService> pools) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CANCEL_MILLIS);
+		boolean interrupted = Thread.interrupted();
+		try {
+			for (ExecutorService pool : pools) {
+				if (!pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+					Metrics.GLOBAL.workersAbandoned();
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			interrupted = true;
+			Metrics.GLOBAL.workersAbandoned();
+			return false;
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Groups the specified <tt>files</tt> by the devices they are on.
+	 *
+	 * @param files files to be grouped
+	 * @return files grouped by their devices
+	 */
+	private Map<List<Device>, List<File>> groupByDevices(List<File> files) {
+		Map<File, Device> directoryDevices = new LinkedHashMap<>();
+		Map<List<Device>, List<File>> groups = new LinkedHashMap<>();
+
+		for (File file : files) {
+			groups.computeIfAbsent(devicesOf(file, directoryDevices), (k) -> new ArrayList<>()).add(file);
+		}
+
+		return groups;
+	}
+
+	/**
+	 * Returns the devices of the specified <tt>file</tt>. Output files are
+	 * written next to their source files, so this is the device of the file's
+	 * directory.
+	 *
+	 * @param file file to be processed
+	 * @param directoryDevices devices of the directories seen so far
+	 * @return the devices of the file
+	 */
+	private static List<Device> devicesOf(File file, Map<File, Device> directoryDevices) {
+		File directory = file.getAbsoluteFile().getParentFile();
+		return Collections.singletonList(directoryDevices.computeIfAbsent(directory, (dir) -> Device.of(dir.toPath())));
+	}
+
+	/**
+	 * Acquires the specified <tt>devices</tt>, executes the <tt>task</tt> for
+	 * the specified <tt>file</tt> and releases the devices.
+	 *
+	 * @param devices devices sorted by their ids
+	 * @param file file to be processed
+	 * @param task task to be executed
+	 */
+	private static void run(List<Device> devices, File file, Consumer<File> task) {
+		FlightEvents.Event event = FlightEvents.BATCH_TASK.begin();
+		int acquired = 0;
+		try {
+			long start = System.nanoTime();
+			for (Device device : devices) {
+				device.acquire();
+				acquired++;
+			}
+			long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			task.accept(file);
+			if (event != null) {
+				event.commit(file.toString(), devices.toString(), waitMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (int i = 0; i < acquired; i++) {
+				devices.get(i).release();
+			}
+		}
+	}
+
+	/**
+	 * Files taken from an iterator that share the same devices, with the
+	 * workers that execute them.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class FileGroup {
+		/** Devices of the files, sorted by their ids */
+		private final List<Device> devices;
+		/** Workers of the group */
+		private final ExecutorService pool;
+		/** Number of files that may be queued for the workers at once */
+		private final int capacity;
+		/** Files waiting until the queue of the workers has room */
+		private final Deque<File> parked = new ArrayDeque<>();
+		/** Number of files queued for the workers or being executed */
+		private int queued;
+
+		/**
+		 * Constructs a group with the specified arguments.
+		 *
+		 * @param devices devices of the files, sorted by their ids
+		 * @param pool workers of the group
+		 * @param capacity number of files that may be queued at once
+		 */
+		FileGroup(List<Device> devices, ExecutorService pool, int capacity) {
+			this.devices = devices;
+			this.pool = pool;
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * Queues files taken from an iterator for the workers of their groups,
+	 * or parks them while the queue of their group is full. A worker that is
+	 * done queues the next parked file of its group in its place.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Dispatcher {
+		/** Task to be executed for each file */
+		private final Consumer<File> task;
+		/** Number of files parked across all groups */
+		private int parked;
+
+		/**
+		 * Constructs a dispatcher of the specified <tt>task</tt>.
+		 *
+		 * @param task task to be executed for each file
+		 */
+		Dispatcher(Consumer<File> task) {
+			this.task = task;
+		}
+
+		/**
+		 * Queues the <tt>file</tt> for the workers of its <tt>group</tt>, or
+		 * parks it if their queue is full. Blocks while {@value #MAX_PARKED}
+		 * files are parked.
+		 *
+		 * @param group group of the file
+		 * @param file file to be processed
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		synchronized void dispatch(FileGroup group, File file) throws InterruptedException {
+			while (parked >= MAX_PARKED) {
+				wait();
+			}
+			if (group.queued < group.capacity) {
+				group.queued++;
+				queue(group, file);
+			} else {
+				group.parked.add(file);
+				parked++;
+			}
+		}
+
+		/**
+		 * Queues the next parked file of the <tt>group</tt> in place of a
+		 * file that is done, if there is one.
+		 *
+		 * @param group group of the file that is done
+		 */
+		synchronized void done(FileGroup group) {
+			File next = group.parked.poll();
+			if (next == null) {
+				group.queued--;
+				return;
+			}
+			parked--;
+			notifyAll();
+			queue(group, next);
+		}
+
+		/**
+		 * Blocks until no file is parked.
+		 *
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		synchronized void awaitParked() throws InterruptedException {
+			while (parked > 0) {
+				wait();
+			}
+		}
+
+		/**
+		 * Discards the parked files of the specified <tt>groups</tt>, which
+		 * are not queued anymore.
+		 *
+		 * @param groups groups of the batch
+		 */
+		synchronized void discardParked(Iterable<FileGroup> groups) {
+			for (FileGroup group : groups) {
+				group.parked.clear();
+			}
+			parked = 0;
+			notifyAll();
+		}
+
+		/**
+		 * Queues the <tt>file</tt> for the workers of its <tt>group</tt>.
+		 *
+		 * @param group group of the file
+		 * @param file file to be processed
+		 */
+		private void queue(FileGroup group, File file) {
+			group.pool.execute(() -> {
+				try {
+					run(group.devices, file, task);
+				} finally {
+					done(group);
+				}
+			});
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package encryptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class contains methods for ordering the jobs of a batch by their size.
+ * <p>
+ * Small jobs are scheduled shortest-first so the user gets feedback as soon as
+ * possible. When running with more than one worker, the few largest jobs are
+ * moved to the front of the schedule so they do not start last and leave a
+ * long tail where only one worker is busy. At least one worker is always left
+ * for the small jobs.
+ *
+ * @author Mario Bobic
+ */
+public class BatchScheduler {
+
+	/** Fixed cost of a single job (opening, closing, creating a file) in bytes */
+	private static final long JOB_OVERHEAD = 64 * 1024;
+
+	/**
+	 * Returns a new list with the specified <tt>jobs</tt> ordered for execution
+	 * on the specified number of <tt>workers</tt>. Sizes of the jobs are
+	 * obtained by the <tt>sizer</tt> function exactly once per job.
+	 *
+	 * @param <T> type of the jobs
+	 * @param jobs jobs to be scheduled
+	 * @param sizer function that returns the size of a job
+	 * @param workers number of workers that will execute the jobs
+	 * @return a new list of scheduled jobs
+	 * @throws IllegalArgumentException if <tt>workers</tt> is less than 1
+	 */
+	public static <T> List<T> schedule(List<T> jobs, ToLongFunction<? super T> sizer, int workers) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("Number of workers must be positive: " + workers);
+		}
+
+		int n = jobs.size();
+		long[] sizes = new long[n];
+		Integer[] ascending = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			sizes[i] = sizer.applyAsLong(jobs.get(i));
+			ascending[i] = i;
+		}
+		Arrays.sort(ascending, Comparator.comparingLong(i -> sizes[i]));
+
+		/* Try each number of leading large jobs and keep the shortest makespan.
+		 * Fewer large jobs in front win ties since they give faster feedback. */
+		int maxLarge = Math.min(workers - 1, n);
+		int bestLarge = 0;
+		long bestMakespan = Long.MAX_VALUE;
+		for (int large = 0; large <= maxLarge; large++) {
+			long makespan = makespan(order(ascending, large), sizes, workers);
+			if (makespan < bestMakespan) {
+				bestMakespan = makespan;
+				bestLarge = large;
+			}
+		}
+
+		List<T> scheduled = new ArrayList<>(n);
+		for (int i : order(ascending, bestLarge)) {
+			scheduled.add(jobs.get(i));
+		}
+		return scheduled;
+	}
+
+	/**
+	 * Returns the makespan of the specified <tt>jobs</tt> when executed in the
+	 * given order on the specified number of <tt>workers</tt>. Each free worker
+	 * takes the next job from the list. The makespan is expressed in bytes
+	 * processed by the busiest worker, including a fixed overhead per job.
+	 *
+	 * @param <T> type of the jobs
+	 * @param jobs jobs in order of execution
+	 * @param sizer function that returns the size of a job
+	 * @param workers number of workers that will execute the jobs
+	 * @return the makespan of the specified jobs, in bytes
+	 */
+	public static <T> long makespan(List<T> jobs, ToLongFunction<? super T> sizer, int workers) {
+		int n = jobs.size();
+		long[] sizes = new long[n];
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			sizes[i] = sizer.applyAsLong(jobs.get(i));
+			order[i] = i;
+		}
+		return makespan(order, sizes, workers);
+	}
+
+	/**
+	 * Returns the order of job indexes where the <tt>large</tt> largest jobs
+	 * come first, largest first, followed by all other jobs, smallest first.
+	 *
+	 * @param ascending job indexes sorted by size, smallest first
+	 * @param large number of the largest jobs to be moved to the front
+	 * @return the order of job indexes
+	 */
+	private static int[] order(Integer[] ascending, int large) {
+		int n = ascending.length;
+		int[] order = new int[n];
+		for (int i = 0; i < large; i++) {
+			order[i] = ascending[n - 1 - i];
+		}
+		for (int i = large; i < n; i++) {
+			order[i] = ascending[i - large];
+		}
+		return order;
+	}
+
+	/**
+	 * Simulates the execution of jobs in the specified <tt>order</tt> and
+	 * returns the finishing time of the busiest worker.
+	 *
+	 * @param order job indexes in order of execution
+	 * @param sizes sizes of the jobs
+	 * @param workers number of workers that will execute the jobs
+	 * @return the makespan of the jobs, in bytes
+	 */
+	private static long makespan(int[] order, long[] sizes, int workers) {
+		PriorityQueue<Long> finishTimes = new PriorityQueue<>(workers);
+		for (int i = 0; i < workers; i++) {
+			finishTimes.add(0L);
+		}
+
+		long makespan = 0L;
+		for (int i : order) {
+			long finish = finishTimes.poll() + sizes[i] + JOB_OVERHEAD;
+			finishTimes.add(finish);
+			makespan = Math.max(makespan, finish);
+		}
+		return makespan;
+	}
+
+}
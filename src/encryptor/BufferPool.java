@@ -0,0 +1,268 @@
+package encryptor;
+
+import java.io.InterruptedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static encryptor.ConstantsAndMethods.STD_PARALLELISM;
+
+/**
+ * A process-wide pool of direct byte buffers, called slabs, shared by all
+ * crypto workers.
+ * <p>
+ * Slabs are borrowed in {@linkplain Lease leases} and returned when the lease
+ * is closed. No more than a fixed number of slabs can be borrowed at the same
+ * time; borrowers wait until enough slabs are returned, so memory use does not
+ * depend on the number of files processed at once. Returned slabs are kept
+ * for the next borrowers, so no more slabs than can be borrowed at the same
+ * time are ever allocated.
+ * <p>
+ * Leases that are garbage collected without being closed are reported on the
+ * standard error and their slabs are returned to the pool. Setting the
+ * <tt>encryptor.leakDetection</tt> system property additionally reports where
+ * each leaked lease was borrowed.
+ *
+ * @author Mario Bobic
+ */
+public class BufferPool {
+
+	/** Size of a single slab */
+	public static final int SLAB_SIZE = 1024 * 1024;
+	/** Alignment of the slabs' memory addresses, if supported by the runtime */
+	public static final int ALIGNMENT = 4096;
+
+	/** The pool shared by all crypto workers */
+	public static final BufferPool GLOBAL =
+			new BufferPool(Integer.getInteger("encryptor.bufferPoolSlabs", 8 * STD_PARALLELISM));
+
+	/** Interval of reclaiming leaked slabs while waiting for slabs */
+	private static final long RECLAIM_INTERVAL_MILLIS = 100;
+	/** Indicates if the borrowing sites of leases should be recorded */
+	private static final boolean RECORD_LEAKS = Boolean.getBoolean("encryptor.leakDetection");
+
+	/** Maximum number of slabs borrowed at the same time */
+	private final int maxSlabs;
+	/** Permits for borrowing slabs */
+	private final Semaphore permits;
+	/** Returned slabs available to all threads */
+	private final ConcurrentLinkedDeque<ByteBuffer> shared = new ConcurrentLinkedDeque<>();
+
+	/** Queue of leases that were garbage collected */
+	private final ReferenceQueue<Lease> collected = new ReferenceQueue<>();
+	/** Trackers of leases that are not yet closed, keeping them reachable */
+	private final Set<Tracker> open = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	/**
+	 * Constructs an instance of {@code BufferPool} that lends no more than the
+	 * specified number of slabs at the same time.
+	 *
+	 * @param maxSlabs maximum number of slabs borrowed at the same time
+	 * @throws IllegalArgumentException if <tt>maxSlabs</tt> is less than 2
+	 */
+	public BufferPool(int maxSlabs) {
+		if (maxSlabs < 2) {
+			throw new IllegalArgumentException("Pool must hold at least 2 slabs: " + maxSlabs);
+		}
+		this.maxSlabs = maxSlabs;
+		this.permits = new Semaphore(maxSlabs, true);
+	}
+
+	/**
+	 * Borrows the specified number of slabs, waiting until they are available.
+	 * All slabs are borrowed at once so that borrowers can not deadlock each
+	 * other. The returned lease must be closed to return the slabs.
+	 *
+	 * @param count number of slabs to be borrowed
+	 * @return a lease of the slabs
+	 * @throws IllegalArgumentException if <tt>count</tt> is greater than the
+	 *         maximum number of slabs
+	 * @throws InterruptedIOException if the current thread is interrupted while waiting
+	 */
+	public Lease borrow(int count) throws InterruptedIOException {
+		if (count > maxSlabs) {
+			throw new IllegalArgumentException("Can not borrow " + count + " of " + maxSlabs + " slabs.");
+		}
+		try {
+			/* Keep reclaiming while waiting, the missing slabs may have leaked. */
+			reclaimLeaked();
+			while (!permits.tryAcquire(count, RECLAIM_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+				reclaimLeaked();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for buffers.");
+		}
+
+		ByteBuffer[] slabs = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			slabs[i] = take();
+		}
+		return new Lease(slabs);
+	}
+
+	/**
+	 * Returns the maximum number of slabs that can be borrowed at the same time.
+	 *
+	 * @return the maximum number of slabs
+	 */
+	public int capacity() {
+		return maxSlabs;
+	}
+
+	/**
+	 * Returns the number of slabs that can currently be borrowed without waiting.
+	 *
+	 * @return the number of available slabs
+	 */
+	public int available() {
+		return permits.availablePermits();
+	}
+
+	/**
+	 * Takes a returned slab, or allocates a new one. The most recently
+	 * returned slab is taken first, as it is the most likely to be cached.
+	 *
+	 * @return a cleared slab
+	 */
+	private ByteBuffer take() {
+		ByteBuffer slab = shared.poll();
+		if (slab == null) {
+			slab = allocate();
+		}
+		slab.clear();
+		return slab;
+	}
+
+	/**
+	 * Returns the specified <tt>slabs</tt> to this pool.
+	 *
+	 * @param slabs slabs to be returned
+	 */
+	private void give(ByteBuffer[] slabs) {
+		for (ByteBuffer slab : slabs) {
+			shared.push(slab);
+		}
+		permits.release(slabs.length);
+	}
+
+	/**
+	 * Returns slabs of all leases that were garbage collected without being
+	 * closed to this pool, and reports them.
+	 */
+	private void reclaimLeaked() {
+		Reference<? extends Lease> ref;
+		while ((ref = collected.poll()) != null) {
+			Tracker tracker = (Tracker) ref;
+			if (open.remove(tracker)) {
+				System.err.println("Buffer lease of " + tracker.slabs.length + " slabs was not closed.");
+				if (tracker.site != null) {
+					tracker.site.printStackTrace();
+				}
+				for (ByteBuffer slab : tracker.slabs) {
+					shared.push(slab);
+				}
+				permits.release(tracker.slabs.length);
+			}
+		}
+	}
+
+	/**
+	 * Allocates a new slab, aligned to {@link #ALIGNMENT} if the runtime
+	 * supports aligned buffers.
+	 *
+	 * @return a new slab
+	 */
+	private static ByteBuffer allocate() {
+		try {
+			return DirectIO.allocateAligned(SLAB_SIZE, ALIGNMENT);
+		} catch (UnsupportedOperationException e) {
+			return ByteBuffer.allocateDirect(SLAB_SIZE);
+		}
+	}
+
+	/**
+	 * Slabs borrowed from the pool. The slabs must not be used after the lease
+	 * is closed.
+	 *
+	 * @author Mario Bobic
+	 */
+	public class Lease implements AutoCloseable {
+
+		/** Tracker of this lease, null once closed */
+		private Tracker tracker;
+
+		/**
+		 * Constructs an instance of {@code Lease} with the specified slabs.
+		 *
+		 * @param slabs borrowed slabs
+		 */
+		private Lease(ByteBuffer[] slabs) {
+			tracker = new Tracker(this, slabs);
+			open.add(tracker);
+		}
+
+		/**
+		 * Returns the slab at the specified <tt>index</tt>.
+		 *
+		 * @param index index of the slab
+		 * @return the slab at the specified index
+		 * @throws IllegalStateException if this lease is closed
+		 */
+		public ByteBuffer get(int index) {
+			if (tracker == null) {
+				throw new IllegalStateException("Lease is closed.");
+			}
+			return tracker.slabs[index];
+		}
+
+		/**
+		 * Returns the slabs of this lease to the pool. Closing more than once
+		 * has no effect.
+		 */
+		@Override
+		public void close() {
+			if (tracker != null && open.remove(tracker)) {
+				tracker.clear();
+				give(tracker.slabs);
+			}
+			tracker = null;
+		}
+
+	}
+
+	/**
+	 * Tracks a lease and holds its slabs, so they can be returned if the lease
+	 * is garbage collected without being closed.
+	 *
+	 * @author Mario Bobic
+	 */
+	private class Tracker extends PhantomReference<Lease> {
+
+		/** Slabs of the tracked lease */
+		private final ByteBuffer[] slabs;
+		/** Site where the lease was borrowed, null if not recorded */
+		private final Throwable site;
+
+		/**
+		 * Constructs an instance of {@code Tracker} for the specified lease.
+		 *
+		 * @param lease lease to be tracked
+		 * @param slabs slabs of the lease
+		 */
+		private Tracker(Lease lease, ByteBuffer[] slabs) {
+			super(lease, collected);
+			this.slabs = slabs;
+			this.site = RECORD_LEAKS ? new Throwable("Lease borrowed here") : null;
+		}
+
+	}
+
+}
@@ -0,0 +1,73 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@linkplain Sink} that writes a channel of a file or a stream. A file is
+ * written under a temporary name and renamed to its target when the sink is
+ * closed.
+ *
+ * @author Mario Bobic
+ */
+class ChannelSink implements Sink {
+
+	/** Channel to be written */
+	private final WritableByteChannel channel;
+	/** Name of the sink */
+	private final String name;
+	/** Temporary file written by the channel, null for streams */
+	private final File temp;
+	/** File the temporary file is renamed to, null for streams */
+	private final File target;
+
+	/**
+	 * Constructs a sink that writes the specified <tt>channel</tt>.
+	 *
+	 * @param channel channel to be written
+	 * @param name name of the sink
+	 * @param temp temporary file written by the channel, null if none
+	 * @param target file the temporary file is renamed to when closed, null if none
+	 */
+	ChannelSink(WritableByteChannel channel, String name, File temp, File target) {
+		this.channel = channel;
+		this.name = name;
+		this.temp = temp;
+		this.target = target;
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		if (temp != null) {
+			DurableOutput.move(temp.toPath(), target.toPath());
+		}
+	}
+
+	@Override
+	public void abort() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// The output is abandoned
+		}
+		if (temp != null) {
+			temp.delete();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+}
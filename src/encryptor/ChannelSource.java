@@ -0,0 +1,49 @@
+package encryptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A {@linkplain Source} that reads a channel of a file, an array or a stream.
+ *
+ * @author Mario Bobic
+ */
+class ChannelSource implements Source {
+
+	/** Channel to be read */
+	private final ReadableByteChannel channel;
+	/** Name of the source */
+	private final String name;
+
+	/**
+	 * Constructs a source that reads the specified <tt>channel</tt>.
+	 *
+	 * @param channel channel to be read
+	 * @param name name of the source
+	 */
+	ChannelSource(ReadableByteChannel channel, String name) {
+		this.channel = channel;
+		this.name = name;
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		int len = 0;
+		while (len == 0 && buffer.hasRemaining()) {
+			len = channel.read(buffer);
+		}
+		return len;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,28 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Signals that the decrypted data of a file does not match the checksum in
+ * its {@linkplain Manifest manifest}. The encrypted file has been damaged, or
+ * replaced after the manifest was written.
+ *
+ * @author Mario Bobic
+ */
+public class ChecksumMismatchException extends IOException {
+
+	/** Serialization version */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructs an instance of {@code ChecksumMismatchException} for the
+	 * specified encrypted <tt>file</tt>.
+	 *
+	 * @param file the encrypted file
+	 */
+	public ChecksumMismatchException(File file) {
+		super("Checksum of " + file + " does not match its manifest.");
+	}
+
+}
@@ -0,0 +1,90 @@
+package encryptor;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+
+/**
+ * Cipher modes that files can be encrypted with. The id of the mode is stored
+ * in the {@linkplain CryptoHeader header} of each file, so the file is always
+ * decrypted with the mode it was encrypted with, regardless of the mode that
+ * is currently preferred on this machine.
+ * <p>
+ * Both modes are unauthenticated, like the format has always been. AES/GCM is
+ * deliberately not offered: the standard providers buffer the whole
+ * ciphertext of a decryption until it is finished, which does not work for
+ * files larger than the heap.
+ *
+ * @author Mario Bobic
+ */
+public enum CipherMode {
+
+	/** AES in cipher block chaining mode, the mode of all older files */
+	AES_CBC(1, "AES/CBC/PKCS5Padding"),
+	/** AES in counter mode, without padding */
+	AES_CTR(2, "AES/CTR/NoPadding");
+
+	/** Id of the mode, as stored in file headers */
+	private final int id;
+	/** Transformation passed to the cipher factory */
+	private final String transformation;
+
+	/**
+	 * Constructs a cipher mode with the specified arguments.
+	 *
+	 * @param id id of the mode, as stored in file headers
+	 * @param transformation transformation passed to the cipher factory
+	 */
+	private CipherMode(int id, String transformation) {
+		this.id = id;
+		this.transformation = transformation;
+	}
+
+	/**
+	 * Returns the cipher mode with the specified <tt>id</tt>.
+	 *
+	 * @param id id of the mode
+	 * @return the cipher mode with the specified id
+	 * @throws IllegalArgumentException if there is no mode with the specified id
+	 */
+	public static CipherMode of(int id) {
+		for (CipherMode mode : values()) {
+			if (mode.id == id) {
+				return mode;
+			}
+		}
+		throw new IllegalArgumentException("Unsupported cipher mode: " + id);
+	}
+
+	/**
+	 * Returns the id of this mode, as stored in file headers.
+	 *
+	 * @return the id of this mode
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the transformation passed to the cipher factory.
+	 *
+	 * @return the transformation of this mode
+	 */
+	public String getTransformation() {
+		return transformation;
+	}
+
+	/**
+	 * Returns a new cipher of this mode from the specified <tt>provider</tt>,
+	 * or from the most preferred provider if it is null.
+	 *
+	 * @param provider provider of the cipher, may be null
+	 * @return a new cipher of this mode
+	 * @throws GeneralSecurityException if the provider does not offer this mode
+	 */
+	Cipher newCipher(Provider provider) throws GeneralSecurityException {
+		return provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+	}
+
+}
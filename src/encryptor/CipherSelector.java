@@ -0,0 +1,216 @@
+package encryptor;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.prefs.Preferences;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Selects the {@linkplain CipherMode cipher mode} for new files and the
+ * security provider for each mode, by measuring how fast every installed
+ * provider runs every mode on this machine.
+ * <p>
+ * The speed of the same mode varies a lot between providers and processors,
+ * mostly with whether the provider uses the AES instructions of the processor.
+ * The benchmark is run once per machine and Java version, and its results are
+ * remembered in the user preferences. They are loaded, or the benchmark is
+ * run, when a mode or a cipher is first needed, unless the warm-up has
+ * already done it, so every tool encrypts with the chosen mode. The mode can
+ * be forced with the <tt>encryptor.cipherMode</tt> system
+ * property, i.e. <tt>-Dencryptor.cipherMode=AES_CTR</tt>.
+ *
+ * @author Mario Bobic
+ */
+public class CipherSelector {
+
+	/** Size of the buffer encrypted in a single round of the benchmark */
+	private static final int BENCHMARK_SIZE = 256 * 1024;
+	/** Number of rounds measured for each provider and mode */
+	private static final int BENCHMARK_ROUNDS = 16;
+
+	/** Preference key of the preferred mode */
+	private static final String MODE_PREFERENCE = "cipher.mode";
+	/** Preference key prefix of the provider of each mode */
+	private static final String PROVIDER_PREFERENCE = "cipher.provider.";
+	/** Preference key of the Java version the benchmark was run on */
+	private static final String VERSION_PREFERENCE = "cipher.javaVersion";
+
+	/** Mode used for new files */
+	private static volatile CipherMode preferredMode = CipherMode.AES_CBC;
+	/** Fastest provider of each mode, no entry for the most preferred provider */
+	private static final Map<CipherMode, Provider> PROVIDERS = new EnumMap<>(CipherMode.class);
+	/** Indicates if the benchmark results are known */
+	private static volatile boolean calibrated;
+
+	/**
+	 * Returns the mode used for encrypting new files, calibrating first if
+	 * that has not been done yet.
+	 *
+	 * @return the mode used for new files
+	 */
+	public static CipherMode getPreferredMode() {
+		if (!calibrated) {
+			calibrate();
+		}
+		return preferredMode;
+	}
+
+	/**
+	 * Returns a new cipher of the specified <tt>mode</tt> from the fastest
+	 * provider of that mode on this machine, calibrating first if that has
+	 * not been done yet.
+	 *
+	 * @param mode mode of the cipher
+	 * @return a new cipher of the specified mode
+	 * @throws GeneralSecurityException if the mode is not available
+	 */
+	public static Cipher newCipher(CipherMode mode) throws GeneralSecurityException {
+		if (!calibrated) {
+			calibrate();
+		}
+		Provider provider;
+		synchronized (PROVIDERS) {
+			provider = PROVIDERS.get(mode);
+		}
+		return mode.newCipher(provider);
+	}
+
+	/**
+	 * Selects the mode and the providers, loading them from the user
+	 * preferences or running the benchmark if it has not been run on this
+	 * machine and Java version yet. Calibrating more than once has no effect.
+	 */
+	public static synchronized void calibrate() {
+		if (calibrated) {
+			return;
+		}
+
+		Preferences prefs = Preferences.userNodeForPackage(CipherSelector.class);
+		String javaVersion = System.getProperty("java.version");
+		if (!javaVersion.equals(prefs.get(VERSION_PREFERENCE, null))) {
+			benchmark(prefs);
+			prefs.put(VERSION_PREFERENCE, javaVersion);
+		}
+
+		CipherMode fastest = CipherMode.AES_CBC;
+		try {
+			fastest = CipherMode.valueOf(prefs.get(MODE_PREFERENCE, fastest.name()));
+		} catch (IllegalArgumentException e) {
+			// Stored by a newer version, keep the default
+		}
+		for (CipherMode mode : CipherMode.values()) {
+			Provider provider = Security.getProvider(prefs.get(PROVIDER_PREFERENCE + mode.name(), ""));
+			if (provider != null) {
+				synchronized (PROVIDERS) {
+					PROVIDERS.put(mode, provider);
+				}
+			}
+		}
+
+		CipherMode forced = forcedMode();
+		preferredMode = forced != null ? forced : fastest;
+		calibrated = true;
+	}
+
+	/**
+	 * Measures every mode from every provider that offers it and stores the
+	 * fastest provider of each mode, and the fastest mode, in the specified
+	 * <tt>prefs</tt>.
+	 *
+	 * @param prefs preferences where the results are stored
+	 */
+	private static void benchmark(Preferences prefs) {
+		ByteBuffer input = ByteBuffer.allocateDirect(BENCHMARK_SIZE);
+		ByteBuffer output = ByteBuffer.allocateDirect(BENCHMARK_SIZE + 2 * Crypto.BLOCK_SIZE);
+		SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+		IvParameterSpec iv = new IvParameterSpec(new byte[Crypto.BLOCK_SIZE]);
+
+		CipherMode fastestMode = null;
+		long fastestModeNanos = Long.MAX_VALUE;
+
+		for (CipherMode mode : CipherMode.values()) {
+			Provider fastestProvider = null;
+			long fastestNanos = Long.MAX_VALUE;
+
+			for (Provider provider : Security.getProviders()) {
+				long nanos;
+				try {
+					Cipher cipher = mode.newCipher(provider);
+					cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+					nanos = time(cipher, input, output);
+				} catch (GeneralSecurityException | RuntimeException e) {
+					continue; // not offered by this provider
+				}
+				if (nanos < fastestNanos) {
+					fastestNanos = nanos;
+					fastestProvider = provider;
+				}
+			}
+
+			if (fastestProvider != null) {
+				prefs.put(PROVIDER_PREFERENCE + mode.name(), fastestProvider.getName());
+				if (fastestNanos < fastestModeNanos) {
+					fastestModeNanos = fastestNanos;
+					fastestMode = mode;
+				}
+			}
+		}
+
+		if (fastestMode != null) {
+			prefs.put(MODE_PREFERENCE, fastestMode.name());
+		}
+	}
+
+	/**
+	 * Returns the shortest time in which the specified <tt>cipher</tt>
+	 * encrypts the <tt>input</tt> buffer, out of {@link #BENCHMARK_ROUNDS}
+	 * rounds that follow as many unmeasured rounds.
+	 *
+	 * @param cipher cipher to be measured
+	 * @param input input buffer
+	 * @param output output buffer
+	 * @return the shortest time in nanoseconds
+	 * @throws GeneralSecurityException if the cipher fails
+	 */
+	private static long time(Cipher cipher, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 2 * BENCHMARK_ROUNDS; i++) {
+			input.clear();
+			output.clear();
+			long start = System.nanoTime();
+			cipher.update(input, output);
+			long nanos = System.nanoTime() - start;
+			if (i >= BENCHMARK_ROUNDS) {
+				best = Math.min(best, nanos);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the mode forced by the <tt>encryptor.cipherMode</tt> system
+	 * property, or null if none is forced.
+	 *
+	 * @return the forced mode, or null
+	 */
+	private static CipherMode forcedMode() {
+		String name = System.getProperty("encryptor.cipherMode");
+		if (name == null) {
+			return null;
+		}
+		try {
+			return CipherMode.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown cipher mode: " + name);
+			return null;
+		}
+	}
+
+}
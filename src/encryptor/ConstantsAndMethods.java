@@ -22,6 +22,9 @@ public abstract class ConstantsAndMethods {
 	/** Standard size for the loading byte buffer array */
 	public static final int STD_LOADER_SIZE = 4096;
 	
+	/** Standard number of files processed in parallel */
+	public static final int STD_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+	
 	/**
 	 * Converts the number of bytes to a human readable byte count with binary
 	 * prefixes.
@@ -1,23 +1,23 @@
 package encryptor;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.spec.AlgorithmParameterSpec;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
 
+import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.DatatypeConverter;
 
-import static encryptor.ConstantsAndMethods.STD_LOADER_SIZE;
+import static encryptor.ConstantsAndMethods.generatePasswordHash;
 
 /**
  * This class provides the functionality of a cryptographic cipher for
@@ -27,6 +27,15 @@ import static encryptor.ConstantsAndMethods.STD_LOADER_SIZE;
  * file into a destination file ({@link #execute(File, File)}.<br>
  * It also offers two methods to manually encrypt or decrypt bytes
  * ({@link #update(byte[], int, int)} and {@link #doFinal()}).
+ * <p>
+ * A crypto constructed with a password derives its key with the specified
+ * {@linkplain KeyDerivation} and a random initialization vector for each
+ * file, and writes both into a {@linkplain CryptoHeader} in front of the
+ * ciphertext, along with the {@linkplain CipherMode cipher mode} selected
+ * for this machine by the {@linkplain CipherSelector}. When decrypting, the
+ * header is read back from the beginning of the input. Files without a
+ * header were encrypted by older versions, and are decrypted with the legacy
+ * key taken from the password hash.
  *
  * @author Mario Bobic
  */
@@ -37,12 +46,34 @@ public class Crypto {
 	/** Decryption mode. */
 	public static final boolean DECRYPT = false;
 	
+	/** Size of a cipher block in bytes. */
+	static final int BLOCK_SIZE = 16;
+	
 	/** Minimal length of the hash. Hash is trimmed to this length. */
 	private static final int HASH_LEN = 32;
 	
+	/** Source of initialization vectors. */
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
 	/** Hash to be used while encrypting or decrypting. */
 	private String hash;
 	
+	/** Password of this crypto, null if constructed with a hash. */
+	private char[] password;
+	/** Key derivation used for encrypting, null if constructed with a hash. */
+	private KeyDerivation keyDerivation;
+	/** Encryption or decryption mode. */
+	private boolean mode;
+	/** Indicates if the cipher has been initialized for the current file. */
+	private boolean started;
+	
+	/** Digest of the plaintext of the current file, null if not computed. */
+	private Manifest.Digest digest;
+	/** Known size of the next source file, -1 if it must be asked for. */
+	private long sourceSize = -1;
+	
+	/** Cipher mode of the current file. */
+	private CipherMode cipherMode;
 	/** Cipher used by this crypto. */
 	Cipher cipher;
 	
@@ -59,33 +90,122 @@ public class Crypto {
 		}
 		
 		this.hash = hash.substring(0, HASH_LEN); // must be 16 bytes for SecretKeySpec
-		initialize(mode);
+		this.mode = mode;
+		byte[] legacyKey = DatatypeConverter.parseHexBinary(this.hash);
+		initialize(CipherMode.AES_CBC, legacyKey, legacyKey.clone());
+		started = true;
+	}
+	
+	/**
+	 * Constructs an instance of {@code Crypto} that derives its key from the
+	 * specified <tt>password</tt>. The password array is not copied, so it must
+	 * not be cleared while this crypto is in use.
+	 *
+	 * @param password password to be used while encrypting or decrypting
+	 * @param keyDerivation parameters used for deriving the key when
+	 *        encrypting, ignored when decrypting
+	 * @param mode encryption or decryption mode, i.e. Crypto.ENCRYPT
+	 * @throws NullPointerException if encrypting without key derivation parameters
+	 */
+	public Crypto(char[] password, KeyDerivation keyDerivation, boolean mode) {
+		if (mode == ENCRYPT && keyDerivation == null) {
+			throw new NullPointerException("Key derivation parameters must be given for encryption.");
+		}
+		
+		this.password = password;
+		this.keyDerivation = keyDerivation;
+		this.mode = mode;
 	}
 	
 	/**
 	 * Initializes this Crypto by instantiating a cipher in encryption or
-	 * decryption mode.
-	 * <p>
-	 * To use the encryption mode, the <tt>encrypt</tt> value must be
-	 * <tt>true</tt>.<br>
-	 * To use the decryption mode, the <tt>encrypt</tt> value must be
-	 * <tt>false</tt>.
+	 * decryption mode, as specified when this crypto was constructed.
 	 * 
-	 * @param encrypt specified encryption or decryption
+	 * @param cipherMode mode of the cipher
+	 * @param key key of the cipher
+	 * @param iv initialization vector of the cipher
 	 */
-	private void initialize(boolean encrypt) {
+	private void initialize(CipherMode cipherMode, byte[] key, byte[] iv) {
 		try {
-			SecretKeySpec keySpec = new SecretKeySpec(DatatypeConverter.parseHexBinary(hash), "AES");
-			AlgorithmParameterSpec paramSpec = new IvParameterSpec(DatatypeConverter.parseHexBinary(hash));
+			SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+			IvParameterSpec paramSpec = new IvParameterSpec(iv);
 			
 			/* Create a cipher and start encrypting/decrypting. */
-			cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, keySpec, paramSpec);
+			if (cipher == null || cipherMode != this.cipherMode) {
+				cipher = CipherSelector.newCipher(cipherMode);
+				this.cipherMode = cipherMode;
+			}
+			cipher.init(mode == ENCRYPT ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, keySpec, paramSpec);
 		} catch (GeneralSecurityException e) {
 			throw new InternalError("Could not initialize.", e);
+		} finally {
+			Arrays.fill(key, (byte) 0);
 		}
 	}
 	
+	/**
+	 * Initializes the cipher for a new file, if this crypto was constructed
+	 * with a password. When encrypting, a new initialization vector is
+	 * generated and the header is put into the <tt>output</tt> buffer. When
+	 * decrypting, the header is taken from the beginning of the <tt>input</tt>
+	 * buffer, which must hold the whole header if there is one.
+	 * <p>
+	 * This method is called by the first {@link #update(ByteBuffer, ByteBuffer)}
+	 * or {@link #doFinal(ByteBuffer)} of each file.
+	 * 
+	 * @param input the input buffer with the beginning of the file
+	 * @param output the output buffer
+	 * @throws IOException if the header of the input is damaged
+	 */
+	private void start(ByteBuffer input, ByteBuffer output) throws IOException {
+		if (started) {
+			return;
+		}
+		
+		if (mode == ENCRYPT) {
+			byte[] iv = new byte[BLOCK_SIZE];
+			RANDOM.nextBytes(iv);
+			CipherMode preferred = CipherSelector.getPreferredMode();
+			byte[] key = keyDerivation.deriveKey(password);
+			CryptoHeader.of(preferred, 0, keyDerivation, iv, key).write(output);
+			initialize(preferred, key, iv);
+		} else {
+			CryptoHeader header = CryptoHeader.read(input);
+			if (header != null) {
+				if (header.isInPlace()) {
+					throw new IOException("File was encrypted in place and must be decrypted as a whole.");
+				}
+				if (header.isSparse()) {
+					throw new IOException("File is sparse and must be decrypted as a whole.");
+				}
+				byte[] key = header.getKeyDerivation().deriveKey(password);
+				if (!header.matches(key)) {
+					Arrays.fill(key, (byte) 0);
+					throw new WrongPasswordException();
+				}
+				initialize(header.getMode(), key, header.getIv());
+			} else {
+				/* Encrypted by an older version, before headers were written. */
+				byte[] legacyKey = legacyKey(password);
+				initialize(CipherMode.AES_CBC, legacyKey, legacyKey.clone());
+			}
+		}
+		started = true;
+	}
+	
+	/**
+	 * Returns the key of files encrypted by older versions, before headers
+	 * were written, which is taken from the password hash. The key is also
+	 * the initialization vector of such files.
+	 * 
+	 * @param password password of the files
+	 * @return the legacy key
+	 */
+	static byte[] legacyKey(char[] password) {
+		String legacyHash = generatePasswordHash(new String(password)).substring(0, HASH_LEN);
+		return DatatypeConverter.parseHexBinary(legacyHash);
+	}
+	
 	/**
 	 * <b>Encrypts</b> or <b>decrypts</b> the file specified by the
 	 * <tt>sourcefile</tt> and generates a file specified by the
@@ -103,23 +223,129 @@ public class Crypto {
 	 * @throws IOException if any other I/O error occurs
 	 */
 	public void execute(File sourcefile, File destfile) throws IOException {
-		try (
-				InputStream in = new BufferedInputStream(new FileInputStream(sourcefile));
-				OutputStream out = new BufferedOutputStream(new FileOutputStream(destfile));
-		) {
-			int len;
-			byte[] bytes = new byte[STD_LOADER_SIZE];
-			while ((len = in.read(bytes)) != -1) {
-				// Update until the very end
-				byte[] processedBytes = update(bytes, 0, len);
-				out.write(processedBytes);
+		execute(sourcefile, destfile, (len) -> {});
+	}
+	
+	/**
+	 * <b>Encrypts</b> or <b>decrypts</b> the file specified by the
+	 * <tt>sourcefile</tt> and generates a file specified by the
+	 * <tt>destfile</tt>, reporting the number of bytes read from the source
+	 * file to the <tt>progress</tt> consumer after every read.
+	 * <p>
+	 * If {@linkplain DirectIO direct I/O} is enabled and supported for both
+	 * files, the page cache is bypassed. Otherwise the {@linkplain CryptoEngine
+	 * engine} is chosen by the {@linkplain EngineSelector} according to the
+	 * size of the source file. Files that were {@linkplain InPlaceCrypto
+	 * encrypted in place} are decrypted by positional reads. If
+	 * {@linkplain SparseCrypto sparse} encryption is enabled, only the extents
+	 * of data are encrypted, and files encrypted that way are decrypted with
+	 * holes in place of the zeros. The operation stops with an
+	 * {@linkplain InterruptedIOException} if the current thread is interrupted.
+	 * 
+	 * @param sourcefile file to be encrypted or decrypted
+	 * @param destfile file to be created
+	 * @param progress consumer of the number of bytes read
+	 * @throws FileNotFoundException if the file does not exist, is a directory
+	 *         rather than a regular file, or for some other reason cannot be
+	 *         opened for reading
+	 * @throws IOException if any other I/O error occurs
+	 */
+	public void execute(File sourcefile, File destfile, LongConsumer progress) throws IOException {
+		FlightEvents.Event event = FlightEvents.FILE.begin();
+		long size = sourceSize != -1 ? sourceSize : sourcefile.length();
+		sourceSize = -1;
+		CryptoEngine engine = process(sourcefile, destfile, size, progress);
+		Metrics.GLOBAL.fileProcessed(engine);
+		if (event != null) {
+			event.commit(sourcefile.toString(), size, engine.name(), modeName());
+		}
+	}
+	
+	/**
+	 * Encrypts or decrypts the <tt>sourcefile</tt> into the <tt>destfile</tt>
+	 * as described in {@link #execute(File, File, LongConsumer)}.
+	 * 
+	 * @param sourcefile file to be encrypted or decrypted
+	 * @param destfile file to be created
+	 * @param size size of the source file
+	 * @param progress consumer of the number of bytes read
+	 * @return the engine that processed the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private CryptoEngine process(File sourcefile, File destfile, long size, LongConsumer progress) throws IOException {
+		/* A file torn by a crash during an in-place operation is restored before it is read. */
+		if (password != null && InPlaceCrypto.recover(sourcefile, password)) {
+			size = sourcefile.length();
+		}
+		if (mode == DECRYPT && password != null && InPlaceCrypto.isEncryptedInPlace(sourcefile)) {
+			InPlaceCrypto.decryptCopy(sourcefile, destfile, password, digest, progress);
+			return CryptoEngine.IN_PLACE;
+		}
+		if (password != null && (mode == ENCRYPT ? SparseCrypto.isEnabled() : SparseCrypto.isSparse(sourcefile))) {
+			if (mode == ENCRYPT) {
+				SparseCrypto.encrypt(sourcefile, destfile, password, keyDerivation, digest, progress);
+			} else {
+				SparseCrypto.decrypt(sourcefile, destfile, password, digest, progress);
 			}
-			// Do the final touch
-			byte[] processedBytes = doFinal();
-			out.write(processedBytes);
+			return CryptoEngine.SPARSE;
 		}
+		
+		CryptoEngine engine = CryptoEngine.DIRECT;
+		if (!engine.isAvailable() || !engine.execute(this, sourcefile, destfile, progress)) {
+			engine = EngineSelector.select(size);
+			engine.execute(this, sourcefile, destfile, progress);
+		}
+		return engine;
 	}
 	
+	/**
+	 * Returns the name of the mode of this crypto, as shown in flight
+	 * recorder events.
+	 * 
+	 * @return <tt>encrypt</tt> or <tt>decrypt</tt>
+	 */
+	private String modeName() {
+		return mode == ENCRYPT ? "encrypt" : "decrypt";
+	}
+
+	/**
+	 * <b>Encrypts</b> or <b>decrypts</b> the bytes of the <tt>source</tt> into
+	 * the <tt>sink</tt>, reporting the number of bytes read from the source to
+	 * the <tt>progress</tt> consumer after every read. The bytes are streamed
+	 * through pooled buffers on the calling thread.
+	 * <p>
+	 * The source is closed when it has been read, and the sink is closed if
+	 * the operation succeeds or {@linkplain Sink#abort() aborted} if it
+	 * fails. Files encrypted in place or sparsely can not be decrypted from a
+	 * source, as they are not read sequentially. The operation stops with an
+	 * {@linkplain InterruptedIOException} if the current thread is
+	 * interrupted.
+	 *
+	 * @param source source to be encrypted or decrypted
+	 * @param sink sink of the result
+	 * @param progress consumer of the number of bytes read
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void execute(Source source, Sink sink, LongConsumer progress) throws IOException {
+		FlightEvents.Event event = FlightEvents.FILE.begin();
+		long[] bytes = {0};
+		LongConsumer counted = event == null ? progress : (len) -> {
+			bytes[0] += len;
+			progress.accept(len);
+		};
+		try (Source in = source) {
+			CryptoEngine.stream(this, in, sink, counted);
+		} catch (IOException | RuntimeException e) {
+			sink.abort();
+			throw e;
+		}
+		sink.close();
+		Metrics.GLOBAL.fileProcessed(CryptoEngine.SINK);
+		if (event != null) {
+			event.commit(source.getName(), bytes[0], CryptoEngine.SINK.name(), modeName());
+		}
+	}
+
 	/**
 	 * Continues a multiple-part encryption or decryption operation (depending
 	 * on how this crypto was initialized), processing another data part.
@@ -152,5 +378,107 @@ public class Crypto {
 			throw new InternalError(e);
 		}
 	}
+	
+	/**
+	 * Continues a multiple-part encryption or decryption operation, processing
+	 * all remaining bytes of the <tt>input</tt> buffer and storing the result
+	 * in the <tt>output</tt> buffer.
+	 * 
+	 * @param input the input buffer
+	 * @param output the output buffer, with enough room for the result
+	 * @throws IOException if the header of the input is damaged
+	 */
+	public void update(ByteBuffer input, ByteBuffer output) throws IOException {
+		start(input, output);
+		int inputStart = input.position();
+		int outputStart = output.position();
+		try {
+			cipher.update(input, output);
+		} catch (GeneralSecurityException e) {
+			throw new InternalError(e);
+		}
+		digest(input, inputStart, output, outputStart);
+	}
+	
+	/**
+	 * Finishes a multiple-part encryption or decryption operation, storing the
+	 * result in the <tt>output</tt> buffer. A crypto constructed with a
+	 * password starts over with a new file afterwards.
+	 * 
+	 * @param output the output buffer, with enough room for the result
+	 * @throws IOException if the header or the data of the input is damaged
+	 */
+	public void doFinal(ByteBuffer output) throws IOException {
+		doFinal(ByteBuffer.allocate(0), output);
+	}
+	
+	/**
+	 * Finishes a multiple-part encryption or decryption operation, processing
+	 * all remaining bytes of the <tt>input</tt> buffer and storing the result
+	 * in the <tt>output</tt> buffer. A whole file can be processed by this
+	 * method alone. A crypto constructed with a password starts over with a
+	 * new file afterwards.
+	 * 
+	 * @param input the input buffer
+	 * @param output the output buffer, with enough room for the result
+	 * @throws IOException if the header or the data of the input is damaged
+	 */
+	public void doFinal(ByteBuffer input, ByteBuffer output) throws IOException {
+		start(input, output);
+		int inputStart = input.position();
+		int outputStart = output.position();
+		try {
+			cipher.doFinal(input, output);
+			digest(input, inputStart, output, outputStart);
+		} catch (BadPaddingException | IllegalBlockSizeException e) {
+			throw new IOException("Data is damaged and can not be decrypted.", e);
+		} catch (GeneralSecurityException e) {
+			throw new InternalError(e);
+		} finally {
+			started = password == null;
+		}
+	}
+
+	/**
+	 * Sets the digest that the plaintext passing through this crypto is fed
+	 * to, until the digest is set again. The plaintext is the input when
+	 * encrypting and the output when decrypting.
+	 * 
+	 * @param digest digest of the plaintext, null if not computed
+	 */
+	public void setDigest(Manifest.Digest digest) {
+		this.digest = digest;
+	}
+	
+	/**
+	 * Sets the size of the next source file, as already known from its
+	 * attributes, so the engine is chosen without asking the file for its
+	 * size again. The size applies to the next executed file only.
+	 * 
+	 * @param size size of the next source file
+	 */
+	public void setSourceSize(long size) {
+		this.sourceSize = size;
+	}
+	
+	/**
+	 * Feeds the plaintext just processed to the digest, if one is set. The
+	 * plaintext is between the start and the position of the input when
+	 * encrypting, or of the output when decrypting.
+	 * 
+	 * @param input the input buffer
+	 * @param inputStart position of the input before processing
+	 * @param output the output buffer
+	 * @param outputStart position of the output before processing
+	 */
+	private void digest(ByteBuffer input, int inputStart, ByteBuffer output, int outputStart) {
+		if (digest == null) {
+			return;
+		}
+		ByteBuffer plaintext = mode == ENCRYPT ? input.duplicate() : output.duplicate();
+		plaintext.limit(plaintext.position());
+		plaintext.position(mode == ENCRYPT ? inputStart : outputStart);
+		digest.update(plaintext);
+	}
 
 }
@@ -0,0 +1,445 @@
+package encryptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.LongConsumer;
+
+/**
+ * Strategies of moving the bytes of a file through a {@linkplain Crypto}.
+ * <p>
+ * Small files are read whole into the heap and processed by a single cipher
+ * call, medium files are streamed through pooled buffers, and large files are
+ * read ahead on a separate thread while the previous buffer is processed. The
+ * {@linkplain EngineSelector} picks the engine for each file by its size.
+ *
+ * @author Mario Bobic
+ */
+public enum CryptoEngine {
+
+	/** Reads the whole file into the heap and processes it at once */
+	HEAP {
+		@Override
+		boolean execute(Crypto crypto, File sourcefile, File destfile, LongConsumer progress) throws IOException {
+			checkInterrupted(sourcefile);
+			byte[] data = Files.readAllBytes(sourcefile.toPath());
+			Throttle.GLOBAL.acquire(data.length);
+			Metrics.GLOBAL.read(data.length);
+
+			ByteBuffer output = ByteBuffer.allocate(data.length + CryptoHeader.MAX_LENGTH + 2 * Crypto.BLOCK_SIZE);
+			crypto.doFinal(ByteBuffer.wrap(data), output);
+			try (FileChannel out = new FileOutputStream(destfile).getChannel()) {
+				write(out, output);
+			}
+			if (data.length > 0) {
+				progress.accept(data.length);
+			}
+			return true;
+		}
+	},
+
+	/** Streams the file through pooled buffers on the calling thread */
+	STREAM {
+		@Override
+		boolean execute(Crypto crypto, File sourcefile, File destfile, LongConsumer progress) throws IOException {
+			try (
+					Source in = Source.of(sourcefile);
+					Sink out = new ChannelSink(new FileOutputStream(destfile).getChannel(), destfile.toString(), null, null);
+			) {
+				stream(crypto, in, out, progress);
+			}
+			return true;
+		}
+	},
+
+	/** Reads the file ahead on a separate thread while processing it */
+	PIPELINED {
+		@Override
+		boolean execute(Crypto crypto, File sourcefile, File destfile, LongConsumer progress) throws IOException {
+			try (
+					BufferPool.Lease lease = BufferPool.GLOBAL.borrow(3);
+					FileChannel in = new FileInputStream(sourcefile).getChannel();
+					FileChannel out = new FileOutputStream(destfile).getChannel();
+			) {
+				ReadAhead reader = new ReadAhead(in, lease.get(0), lease.get(1), sourcefile);
+				ByteBuffer outBuffer = lease.get(2);
+				FlightEvents.ChunkTimer timer = FlightEvents.chunks(sourcefile);
+				reader.start();
+				try {
+					ByteBuffer inBuffer;
+					/* The read phase is the time spent waiting for the reader. */
+					timer.begin();
+					while ((inBuffer = reader.next()) != null) {
+						int len = inBuffer.remaining();
+						timer.end(FlightEvents.READ, len);
+						Throttle.GLOBAL.acquire(len);
+						Metrics.GLOBAL.read(len);
+
+						timer.begin();
+						crypto.update(inBuffer, outBuffer);
+						timer.end(FlightEvents.CIPHER, len);
+						reader.recycle(inBuffer);
+						timer.begin();
+						int written = outBuffer.position();
+						write(out, outBuffer);
+						timer.end(FlightEvents.WRITE, written);
+						progress.accept(len);
+						timer.next();
+						timer.begin();
+					}
+					timer.end(FlightEvents.READ, 0);
+					crypto.doFinal(outBuffer);
+					write(out, outBuffer);
+				} finally {
+					/* The slabs must not be returned while the reader may still use them. */
+					reader.stopReading();
+				}
+			}
+			return true;
+		}
+
+		@Override
+		boolean isAvailable() {
+			return BufferPool.GLOBAL.capacity() >= 3;
+		}
+	},
+
+	/** Bypasses the page cache, see {@linkplain DirectIO} */
+	DIRECT {
+		@Override
+		boolean execute(Crypto crypto, File sourcefile, File destfile, LongConsumer progress) throws IOException {
+			return DirectIO.execute(crypto, sourcefile, destfile, progress);
+		}
+
+		@Override
+		boolean isAvailable() {
+			return DirectIO.isSupported() && DirectIO.isEnabled();
+		}
+	},
+
+	/** Marks files processed by the {@linkplain InPlaceCrypto}, in place or into a copy, never selected */
+	IN_PLACE {
+		@Override
+		boolean execute(Crypto crypto, File sourcefile, File destfile, LongConsumer progress) {
+			return false;
+		}
+
+		@Override
+		boolean isAvailable() {
+			return false;
+		}
+	},
+
+	/** Marks files processed by the {@linkplain SparseCrypto}, never selected */
+	SPARSE {
+		@Override
+		boolean execute(Crypto crypto, File sourcefile, File destfile, LongConsumer progress) {
+			return false;
+		}
+
+		@Override
+		boolean isAvailable() {
+			return false;
+		}
+	},
+
+	/** Marks {@linkplain Source sources} streamed into {@linkplain Sink sinks}, never selected for files */
+	SINK {
+		@Override
+		boolean execute(Crypto crypto, File sourcefile, File destfile, LongConsumer progress) {
+			return false;
+		}
+
+		@Override
+		boolean isAvailable() {
+			return false;
+		}
+	};
+
+	/** Number of bytes read into a slab, leaving room in the output slab for the header and the padding */
+	static final int READ_SIZE = BufferPool.SLAB_SIZE - 2 * Crypto.BLOCK_SIZE - CryptoHeader.MAX_LENGTH;
+	/** Number of slabs borrowed while streaming from a source to a sink */
+	static final int STREAM_SLABS = 2;
+
+	/**
+	 * Encrypts or decrypts the <tt>sourcefile</tt> into the <tt>destfile</tt>
+	 * with the specified <tt>crypto</tt>, reporting the number of bytes read
+	 * to the <tt>progress</tt> consumer.
+	 *
+	 * @param crypto crypto used for encrypting or decrypting
+	 * @param sourcefile file to be encrypted or decrypted
+	 * @param destfile file to be created
+	 * @param progress consumer of the number of bytes read
+	 * @return true if the file has been processed, false if this engine can
+	 *         not process these files and another one should be used
+	 * @throws IOException if an I/O error occurs
+	 */
+	abstract boolean execute(Crypto crypto, File sourcefile, File destfile, LongConsumer progress) throws IOException;
+
+	/**
+	 * Returns true if this engine can be used with the current settings.
+	 *
+	 * @return true if this engine can be used
+	 */
+	boolean isAvailable() {
+		return true;
+	}
+
+	/**
+	 * Streams the <tt>source</tt> through the specified <tt>crypto</tt> into
+	 * the <tt>sink</tt> with pooled buffers on the calling thread, reporting
+	 * the number of bytes read to the <tt>progress</tt> consumer. Neither the
+	 * source nor the sink is closed.
+	 * <p>
+	 * A pipe or a socket may return only a few bytes per read, while the
+	 * header of an encrypted file must be whole in the first update, so the
+	 * first read is topped up to the {@linkplain CryptoHeader#MAX_LENGTH
+	 * longest header} or the end of the source.
+	 *
+	 * @param crypto crypto used for encrypting or decrypting
+	 * @param source source to be encrypted or decrypted
+	 * @param sink sink of the result
+	 * @param progress consumer of the number of bytes read
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void stream(Crypto crypto, Source source, Sink sink, LongConsumer progress) throws IOException {
+		try (BufferPool.Lease lease = BufferPool.GLOBAL.borrow(STREAM_SLABS)) {
+			ByteBuffer inBuffer = lease.get(0);
+			ByteBuffer outBuffer = lease.get(1);
+			inBuffer.limit(READ_SIZE);
+			FlightEvents.ChunkTimer timer = FlightEvents.chunks(source.getName());
+
+			int len;
+			boolean first = true;
+			timer.begin();
+			while ((len = source.read(inBuffer)) != -1) {
+				if (first) {
+					len = fill(source, inBuffer, len, CryptoHeader.MAX_LENGTH);
+					first = false;
+				}
+				timer.end(FlightEvents.READ, len);
+				checkInterrupted(source.getName());
+				Throttle.GLOBAL.acquire(len);
+				Metrics.GLOBAL.read(len);
+
+				// Update until the very end
+				inBuffer.flip();
+				timer.begin();
+				crypto.update(inBuffer, outBuffer);
+				timer.end(FlightEvents.CIPHER, len);
+				inBuffer.clear();
+				inBuffer.limit(READ_SIZE);
+				timer.begin();
+				int written = outBuffer.position();
+				write(sink, outBuffer);
+				timer.end(FlightEvents.WRITE, written);
+				progress.accept(len);
+				timer.next();
+				timer.begin();
+			}
+			timer.end(FlightEvents.READ, 0);
+			// Do the final touch
+			crypto.doFinal(outBuffer);
+			write(sink, outBuffer);
+		}
+	}
+
+	/**
+	 * Keeps reading the <tt>source</tt> into the <tt>buffer</tt>, which
+	 * already holds the <tt>len</tt> bytes of a read, until the buffer holds
+	 * at least <tt>min</tt> bytes or the end of the source is reached.
+	 *
+	 * @param source source to be read
+	 * @param buffer buffer to be read into
+	 * @param len number of bytes already read
+	 * @param min number of bytes the buffer should hold
+	 * @return the total number of bytes read
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static int fill(Source source, ByteBuffer buffer, int len, int min) throws IOException {
+		int read;
+		while (buffer.position() < min && (read = source.read(buffer)) != -1) {
+			len += read;
+		}
+		return len;
+	}
+
+	/**
+	 * Throws an {@linkplain InterruptedIOException} if the current thread is
+	 * interrupted.
+	 *
+	 * @param sourcefile file or source being processed
+	 * @throws InterruptedIOException if the current thread is interrupted
+	 */
+	private static void checkInterrupted(Object sourcefile) throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Interrupted while processing " + sourcefile);
+		}
+	}
+
+	/**
+	 * Writes all bytes from the specified <tt>buffer</tt> to the
+	 * <tt>channel</tt> and clears the buffer.
+	 *
+	 * @param channel channel to be written to
+	 * @param buffer buffer to be written, ready for putting
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		int len = buffer.remaining();
+		Throttle.GLOBAL.acquire(len);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		Metrics.GLOBAL.written(len);
+		buffer.clear();
+	}
+
+	/**
+	 * Writes all bytes from the specified <tt>buffer</tt> to the
+	 * <tt>sink</tt> and clears the buffer.
+	 *
+	 * @param sink sink to be written to
+	 * @param buffer buffer to be written, ready for putting
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void write(Sink sink, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		int len = buffer.remaining();
+		Throttle.GLOBAL.acquire(len);
+		sink.write(buffer);
+		Metrics.GLOBAL.written(len);
+		buffer.clear();
+	}
+
+	/**
+	 * A thread that fills two slabs in turns from a channel, so the next slab
+	 * is read while the previous one is being processed.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class ReadAhead extends Thread {
+
+		/** Marks the end of the file in the queue of filled slabs */
+		private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+		/** Channel to be read from */
+		private final FileChannel in;
+		/** Slabs ready to be filled */
+		private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(2);
+		/** Filled slabs, followed by {@link #END} */
+		private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(3);
+		/** File being read */
+		private final File sourcefile;
+		/** Error that stopped the reading, null if none */
+		private volatile IOException error;
+
+		/**
+		 * Constructs an instance of {@code ReadAhead} with the specified arguments.
+		 *
+		 * @param in channel to be read from
+		 * @param first first slab to be filled
+		 * @param second second slab to be filled
+		 * @param sourcefile file being read
+		 */
+		private ReadAhead(FileChannel in, ByteBuffer first, ByteBuffer second, File sourcefile) {
+			super("Read-ahead " + sourcefile.getName());
+			setDaemon(true);
+			this.in = in;
+			this.sourcefile = sourcefile;
+			empty.add(first);
+			empty.add(second);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					ByteBuffer slab = empty.take();
+					slab.clear();
+					slab.limit(READ_SIZE);
+					int len = 0;
+					while (slab.hasRemaining() && len != -1) {
+						len = in.read(slab);
+					}
+					slab.flip();
+					if (slab.hasRemaining()) {
+						filled.put(slab);
+					}
+					if (len == -1) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				// Stopped by the processing thread
+			} finally {
+				filled.offer(END);
+			}
+		}
+
+		/**
+		 * Returns the next filled slab, waiting until it is read, or null at
+		 * the end of the file.
+		 *
+		 * @return the next filled slab, or null at the end of the file
+		 * @throws IOException if reading failed or the current thread is interrupted
+		 */
+		private ByteBuffer next() throws IOException {
+			ByteBuffer slab;
+			try {
+				slab = filled.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while processing " + sourcefile);
+			}
+			checkInterrupted(sourcefile);
+			if (slab == END) {
+				if (error != null) {
+					throw error;
+				}
+				return null;
+			}
+			return slab;
+		}
+
+		/**
+		 * Hands a processed slab back to this thread to be filled again.
+		 *
+		 * @param slab processed slab
+		 */
+		private void recycle(ByteBuffer slab) {
+			empty.add(slab);
+		}
+
+		/**
+		 * Stops this thread and waits until it is no longer using the slabs,
+		 * preserving the interrupted status of the current thread.
+		 */
+		private void stopReading() {
+			interrupt();
+			boolean interrupted = false;
+			while (isAlive()) {
+				try {
+					join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+}
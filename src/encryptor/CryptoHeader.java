@@ -0,0 +1,243 @@
+package encryptor;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The header written at the beginning of every encrypted file. It holds
+ * everything needed to decrypt the file, except the password.
+ * <p>
+ * The header starts with the {@linkplain #MAGIC magic bytes} followed by the
+ * format version, the cipher mode, the flags, the key derivation parameters,
+ * the initialization vector and a check value of the key:
+ * <pre>
+ * magic       4 bytes
+ * version     1 byte
+ * mode        1 byte   cipher mode
+ * flags       1 byte   i.e. {@link #IN_PLACE} or {@link #SPARSE}
+ * algorithm   1 byte   key derivation algorithm
+ * iterations  4 bytes  key derivation iterations
+ * salt        1 byte length, followed by the salt
+ * iv          1 byte length, followed by the initialization vector
+ * check       8 bytes  first bytes of the SHA-256 of the key
+ * </pre>
+ * The check value lets a wrong password be reported before anything is
+ * decrypted. It reveals nothing that trying the password would not.
+ * <p>
+ * Only headers of the current version are read, a
+ * different layout must come with a new version.
+ * <p>
+ * Files encrypted before headers were introduced start directly with the
+ * ciphertext and are recognized by the missing magic bytes.
+ *
+ * @author Mario Bobic
+ */
+public class CryptoHeader {
+
+	/** Magic bytes at the beginning of every file with a header */
+	private static final byte[] MAGIC = {'F', 'E', 'N', 'C'};
+	/** Version of the format */
+	private static final int VERSION = 1;
+	/** Length of the check value of the key */
+	private static final int CHECK_LENGTH = 8;
+	/** Maximum length of a header in bytes */
+	public static final int MAX_LENGTH = MAGIC.length + 1 + 1 + 1 + 1 + 4 + 1 + 255 + 1 + 255 + CHECK_LENGTH;
+
+	/** Flag of files encrypted in place, see {@linkplain InPlaceCrypto} */
+	public static final int IN_PLACE = 1;
+	/** Flag of files stored as extents of data, see {@linkplain SparseCrypto} */
+	public static final int SPARSE = 2;
+
+	/** Cipher mode of the file */
+	private final CipherMode mode;
+	/** Flags of the file */
+	private final int flags;
+	/** Key derivation parameters */
+	private final KeyDerivation keyDerivation;
+	/** Initialization vector of the cipher */
+	private final byte[] iv;
+	/** Check value of the key */
+	private final byte[] check;
+
+	/**
+	 * Constructs an instance of {@code CryptoHeader} with the specified arguments.
+	 *
+	 * @param mode cipher mode of the file
+	 * @param flags flags of the file
+	 * @param keyDerivation key derivation parameters
+	 * @param iv initialization vector of the cipher
+	 * @param check check value of the key
+	 */
+	private CryptoHeader(CipherMode mode, int flags, KeyDerivation keyDerivation, byte[] iv, byte[] check) {
+		this.mode = mode;
+		this.flags = flags;
+		this.keyDerivation = keyDerivation;
+		this.iv = iv.clone();
+		this.check = check;
+	}
+
+	/**
+	 * Returns a new header with the specified arguments.
+	 *
+	 * @param mode cipher mode of the file
+	 * @param flags flags of the file, i.e. {@link #IN_PLACE} or {@link #SPARSE}
+	 * @param keyDerivation key derivation parameters
+	 * @param iv initialization vector of the cipher
+	 * @param key the derived key, used only for computing its check value
+	 * @return a new header
+	 */
+	public static CryptoHeader of(CipherMode mode, int flags, KeyDerivation keyDerivation, byte[] iv, byte[] key) {
+		return new CryptoHeader(mode, flags, keyDerivation, iv, check(key));
+	}
+
+	/**
+	 * Reads a header from the beginning of the specified <tt>buffer</tt> and
+	 * advances its position past the header. If the buffer does not start with
+	 * a header, null is returned and the position is left unchanged.
+	 *
+	 * @param buffer buffer holding the beginning of a file
+	 * @return the header, or null if the buffer does not start with a header
+	 * @throws IOException if the header is damaged or of an unsupported version
+	 */
+	public static CryptoHeader read(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < MAGIC.length) {
+			return null;
+		}
+		int start = buffer.position();
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (buffer.get(start + i) != MAGIC[i]) {
+				return null;
+			}
+		}
+
+		try {
+			buffer.position(start + MAGIC.length);
+			int version = buffer.get() & 0xFF;
+			if (version != VERSION) {
+				throw new IOException("Unsupported file format version: " + version);
+			}
+
+			CipherMode mode = CipherMode.of(buffer.get() & 0xFF);
+			int flags = buffer.get() & 0xFF;
+			int algorithm = buffer.get() & 0xFF;
+			int iterations = buffer.getInt();
+			byte[] salt = new byte[buffer.get() & 0xFF];
+			buffer.get(salt);
+			byte[] iv = new byte[buffer.get() & 0xFF];
+			buffer.get(iv);
+			byte[] check = new byte[CHECK_LENGTH];
+			buffer.get(check);
+
+			return new CryptoHeader(mode, flags, new KeyDerivation(algorithm, salt, iterations), iv, check);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			buffer.position(start);
+			throw new IOException("Damaged file header.", e);
+		}
+	}
+
+	/**
+	 * Writes this header to the specified <tt>buffer</tt>.
+	 *
+	 * @param buffer buffer to be written to
+	 */
+	public void write(ByteBuffer buffer) {
+		byte[] salt = keyDerivation.getSalt();
+
+		buffer.put(MAGIC);
+		buffer.put((byte) VERSION);
+		buffer.put((byte) mode.getId());
+		buffer.put((byte) flags);
+		buffer.put((byte) keyDerivation.getAlgorithm());
+		buffer.putInt(keyDerivation.getIterations());
+		buffer.put((byte) salt.length).put(salt);
+		buffer.put((byte) iv.length).put(iv);
+		buffer.put(check);
+	}
+
+	/**
+	 * Returns this header encoded as it is written to files.
+	 *
+	 * @return this header encoded
+	 */
+	public byte[] toByteArray() {
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_LENGTH);
+		write(buffer);
+		return Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	/**
+	 * Returns true if the specified derived <tt>key</tt> matches the check
+	 * value of this header.
+	 *
+	 * @param key the derived key
+	 * @return true if the key may be the one the file was encrypted with
+	 */
+	public boolean matches(byte[] key) {
+		return MessageDigest.isEqual(check, check(key));
+	}
+
+	/**
+	 * Returns true if the file of this header was encrypted in place.
+	 *
+	 * @return true if the file was encrypted in place
+	 */
+	public boolean isInPlace() {
+		return (flags & IN_PLACE) != 0;
+	}
+
+	/**
+	 * Returns true if the file of this header is stored as extents of data.
+	 *
+	 * @return true if the file is sparse
+	 */
+	public boolean isSparse() {
+		return (flags & SPARSE) != 0;
+	}
+
+	/**
+	 * Returns the cipher mode of the file.
+	 *
+	 * @return the cipher mode of the file
+	 */
+	public CipherMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Returns the key derivation parameters.
+	 *
+	 * @return the key derivation parameters
+	 */
+	public KeyDerivation getKeyDerivation() {
+		return keyDerivation;
+	}
+
+	/**
+	 * Returns a copy of the initialization vector.
+	 *
+	 * @return a copy of the initialization vector
+	 */
+	public byte[] getIv() {
+		return iv.clone();
+	}
+
+	/**
+	 * Returns the check value of the specified <tt>key</tt>.
+	 *
+	 * @param key the derived key
+	 * @return the check value of the key
+	 */
+	private static byte[] check(byte[] key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key);
+			return Arrays.copyOf(digest, CHECK_LENGTH);
+		} catch (GeneralSecurityException e) {
+			throw new InternalError("Algorithm unavailable (SHA-256)", e);
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+package encryptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * A client of the local {@linkplain DecryptionService}. A client holds one
+ * connection, which is used by one request at a time.
+ * <p>
+ * The client is also a command line tool that decrypts the specified file
+ * to the standard output, or the specified range of it with the
+ * <tt>-range</tt> option, or prints the statistics of the service with the
+ * <tt>-stats</tt> option.
+ *
+ * @author Mario Bobic
+ */
+public class DecryptionClient implements AutoCloseable {
+
+	/** Socket of the connection */
+	private final Socket socket;
+	/** Input of the connection */
+	private final DataInputStream in;
+	/** Output of the connection */
+	private final DataOutputStream out;
+
+	/** Plaintext length of the file of the last read */
+	private long lastLength;
+
+	/**
+	 * Connects to the service listening on the specified <tt>port</tt> of the
+	 * loopback interface and presents the <tt>token</tt>.
+	 *
+	 * @param port port of the service
+	 * @param token token of the service
+	 * @throws IOException if the service can not be reached or rejects the token
+	 */
+	public DecryptionClient(int port, String token) throws IOException {
+		socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(token);
+			out.flush();
+			checkStatus();
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Connects to the service found through its service file.
+	 *
+	 * @return a client connected to the service
+	 * @throws IOException if no service is running or it can not be reached
+	 */
+	public static DecryptionClient connect() throws IOException {
+		File serviceFile = DecryptionService.serviceFile();
+		if (!serviceFile.exists()) {
+			throw new IOException("Decryption service is not running, " + serviceFile + " does not exist.");
+		}
+		String[] parts = new String(Files.readAllBytes(serviceFile.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+		if (parts.length != 2) {
+			throw new IOException("Service file " + serviceFile + " is damaged.");
+		}
+		return new DecryptionClient(Integer.parseInt(parts[0]), parts[1]);
+	}
+
+	/**
+	 * Decrypts a file or a range of it to the standard output, or prints the
+	 * statistics of the service, see the class description.
+	 *
+	 * @param args <tt>-stats</tt>, or optional <tt>-range position length</tt>
+	 *        followed by the file
+	 * @throws IOException if the service fails
+	 */
+	public static void main(String[] args) throws IOException {
+		try (DecryptionClient client = connect()) {
+			if (args.length == 1 && args[0].equals("-stats")) {
+				long[] stats = client.stats();
+				System.out.println("Hits: " + stats[0] + ", misses: " + stats[1] + ", cached: "
+						+ ConstantsAndMethods.humanReadableByteCount(stats[2]) + " of "
+						+ ConstantsAndMethods.humanReadableByteCount(stats[3]));
+			} else if (args.length == 4 && args[0].equals("-range")) {
+				byte[] b = new byte[Integer.parseInt(args[2])];
+				int n = client.readFully(new File(args[3]), Long.parseLong(args[1]), b, 0, b.length);
+				System.out.write(b, 0, Math.max(n, 0));
+				System.out.flush();
+			} else if (args.length == 1) {
+				client.decrypt(new File(args[0]), System.out);
+				System.out.flush();
+			} else {
+				System.err.println("Usage: DecryptionClient -stats | [-range position length] <file>");
+				System.exit(2);
+			}
+		}
+	}
+
+	/**
+	 * Reads up to <tt>len</tt> bytes of the plaintext of the specified
+	 * encrypted <tt>file</tt>, starting at the specified <tt>position</tt>.
+	 * Fewer bytes are read only at the end of the plaintext.
+	 *
+	 * @param file the encrypted file
+	 * @param position position in the plaintext
+	 * @param b array that receives the plaintext
+	 * @param off offset in the array
+	 * @param len maximum number of bytes, at most {@link DecryptionService#MAX_READ}
+	 * @return the number of bytes read, or -1 if the position is at or beyond
+	 *         the end of the plaintext
+	 * @throws IOException if the service fails or can not decrypt the file
+	 */
+	public synchronized int read(File file, long position, byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		out.writeByte(DecryptionService.READ);
+		out.writeUTF(file.getAbsolutePath());
+		out.writeLong(position);
+		out.writeInt(len);
+		out.flush();
+
+		checkStatus();
+		lastLength = in.readLong();
+		int n = in.readInt();
+		if (n > len) {
+			throw new IOException("Service returned more than requested.");
+		}
+		in.readFully(b, off, n);
+		return n == 0 && len > 0 ? -1 : n;
+	}
+
+	/**
+	 * Reads <tt>len</tt> bytes of the plaintext like
+	 * {@link #read(File, long, byte[], int, int)}, in as many requests as the
+	 * service needs.
+	 *
+	 * @param file the encrypted file
+	 * @param position position in the plaintext
+	 * @param b array that receives the plaintext
+	 * @param off offset in the array
+	 * @param len number of bytes
+	 * @return the number of bytes read, fewer only at the end of the plaintext
+	 * @throws IOException if the service fails or can not decrypt the file
+	 */
+	public int readFully(File file, long position, byte[] b, int off, int len) throws IOException {
+		int done = 0;
+		while (done < len) {
+			int n = read(file, position + done, b, off + done, Math.min(len - done, DecryptionService.MAX_READ));
+			if (n < 0) {
+				break;
+			}
+			done += n;
+		}
+		return done;
+	}
+
+	/**
+	 * Returns the length of the plaintext of the specified encrypted
+	 * <tt>file</tt>.
+	 *
+	 * @param file the encrypted file
+	 * @return the length of the plaintext
+	 * @throws IOException if the service fails or can not decrypt the file
+	 */
+	public synchronized long length(File file) throws IOException {
+		read(file, 0, new byte[0], 0, 0);
+		return lastLength;
+	}
+
+	/**
+	 * Writes the whole plaintext of the specified encrypted <tt>file</tt> to
+	 * the <tt>output</tt> stream.
+	 *
+	 * @param file the encrypted file
+	 * @param output stream that receives the plaintext
+	 * @throws IOException if the service fails or the output can not be written
+	 */
+	public void decrypt(File file, OutputStream output) throws IOException {
+		byte[] b = new byte[1024 * 1024];
+		long position = 0;
+		int n;
+		while ((n = read(file, position, b, 0, b.length)) > 0) {
+			output.write(b, 0, n);
+			position += n;
+		}
+	}
+
+	/**
+	 * Returns the statistics of the service: the numbers of chunks found and
+	 * not found in its cache, the number of bytes it takes and its capacity.
+	 *
+	 * @return hits, misses, cached bytes and capacity, in that order
+	 * @throws IOException if the service fails
+	 */
+	public synchronized long[] stats() throws IOException {
+		out.writeByte(DecryptionService.STATS);
+		out.flush();
+		checkStatus();
+		return new long[] {in.readLong(), in.readLong(), in.readLong(), in.readLong()};
+	}
+
+	/**
+	 * Closes the connection.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Reads the status of a reply and throws an exception with the message
+	 * of the service if the request failed.
+	 *
+	 * @throws IOException if the request failed
+	 */
+	private void checkStatus() throws IOException {
+		int status = in.read();
+		if (status == -1) {
+			throw new EOFException("Decryption service closed the connection.");
+		}
+		if (status != DecryptionService.OK) {
+			throw new IOException(in.readUTF());
+		}
+	}
+
+}
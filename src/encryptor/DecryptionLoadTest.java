@@ -0,0 +1,189 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static encryptor.ConstantsAndMethods.humanReadableByteCount;
+
+/**
+ * A load test of the {@linkplain DecryptionService}. Each of the threads
+ * opens its own {@linkplain DecryptionClient} and reads random ranges of the
+ * specified encrypted files for the given number of seconds. The throughput,
+ * the latency percentiles of the reads and the hit rate of the chunk cache
+ * during the test are printed at the end.
+ * <p>
+ * The options are <tt>-threads</tt>, 4 by default, <tt>-seconds</tt>, 10 by
+ * default, and <tt>-read</tt>, the number of bytes of each read, 64 KiB by
+ * default.
+ *
+ * @author Mario Bobic
+ */
+public class DecryptionLoadTest {
+
+	/**
+	 * Runs the load test, see the class description.
+	 *
+	 * @param args options followed by the encrypted files
+	 * @throws IOException if the service can not be reached
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int threads = 4;
+		int seconds = 10;
+		int readSize = 64 * 1024;
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-seconds") && i + 1 < args.length) {
+				seconds = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-read") && i + 1 < args.length) {
+				readSize = Integer.parseInt(args[++i]);
+			} else {
+				Verifier.collect(new File(args[i]), files);
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("Usage: DecryptionLoadTest [-threads n] [-seconds n] [-read bytes] <files or directories>");
+			System.exit(2);
+		}
+
+		long[] lengths = new long[files.size()];
+		long[] before;
+		try (DecryptionClient client = DecryptionClient.connect()) {
+			for (int i = 0; i < lengths.length; i++) {
+				lengths[i] = client.length(files.get(i));
+			}
+			before = client.stats();
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(files, lengths, readSize, deadline);
+			workers[i].start();
+		}
+
+		long bytes = 0;
+		int count = 0;
+		long[][] latencies = new long[threads][];
+		for (int i = 0; i < threads; i++) {
+			workers[i].join();
+			if (workers[i].error != null) {
+				System.err.println("Worker failed: " + workers[i].error);
+			}
+			bytes += workers[i].bytes;
+			latencies[i] = Arrays.copyOf(workers[i].latencies, workers[i].count);
+			count += workers[i].count;
+		}
+
+		long[] all = new long[count];
+		int pos = 0;
+		for (long[] l : latencies) {
+			System.arraycopy(l, 0, all, pos, l.length);
+			pos += l.length;
+		}
+		Arrays.sort(all);
+
+		long[] after;
+		try (DecryptionClient client = DecryptionClient.connect()) {
+			after = client.stats();
+		}
+		long hits = after[0] - before[0];
+		long misses = after[1] - before[1];
+
+		System.out.println(count + " reads of " + humanReadableByteCount(readSize) + " by " + threads + " threads in "
+				+ seconds + " s: " + count / seconds + " reads/s, " + humanReadableByteCount(bytes / seconds) + "/s");
+		System.out.println("Latency p50 " + micros(all, 0.50) + " us, p90 " + micros(all, 0.90) + " us, p99 "
+				+ micros(all, 0.99) + " us, max " + micros(all, 1.0) + " us");
+		System.out.println("Cache hit rate " + (hits + misses > 0 ? 100 * hits / (hits + misses) : 0) + "% ("
+				+ hits + " hits, " + misses + " misses), " + humanReadableByteCount(after[2]) + " cached");
+	}
+
+	/**
+	 * Returns the specified percentile of the sorted <tt>latencies</tt> in
+	 * microseconds.
+	 *
+	 * @param latencies sorted latencies in nanoseconds
+	 * @param percentile the percentile, between 0 and 1
+	 * @return the latency at the percentile in microseconds
+	 */
+	private static long micros(long[] latencies, double percentile) {
+		if (latencies.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(latencies.length - 1, Math.ceil(percentile * latencies.length) - 1);
+		return TimeUnit.NANOSECONDS.toMicros(latencies[Math.max(0, index)]);
+	}
+
+	/**
+	 * A thread that reads random ranges through its own client until the
+	 * deadline.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Worker extends Thread {
+		/** Files to be read */
+		private final List<File> files;
+		/** Plaintext lengths of the files */
+		private final long[] lengths;
+		/** Number of bytes of each read */
+		private final int readSize;
+		/** Time in nanoseconds when reading stops */
+		private final long deadline;
+
+		/** Latencies of the reads in nanoseconds */
+		long[] latencies = new long[1024];
+		/** Number of reads */
+		int count;
+		/** Number of bytes read */
+		long bytes;
+		/** Error that stopped the thread, null if none */
+		volatile IOException error;
+
+		/**
+		 * Constructs a worker with the specified arguments.
+		 *
+		 * @param files files to be read
+		 * @param lengths plaintext lengths of the files
+		 * @param readSize number of bytes of each read
+		 * @param deadline time in nanoseconds when reading stops
+		 */
+		Worker(List<File> files, long[] lengths, int readSize, long deadline) {
+			super("Load test");
+			this.files = files;
+			this.lengths = lengths;
+			this.readSize = readSize;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			byte[] b = new byte[readSize];
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			try (DecryptionClient client = DecryptionClient.connect()) {
+				while (System.nanoTime() < deadline) {
+					int i = random.nextInt(files.size());
+					long position = lengths[i] > readSize ? random.nextLong(lengths[i] - readSize) : 0;
+					long start = System.nanoTime();
+					int n = client.read(files.get(i), position, b, 0, b.length);
+					long latency = System.nanoTime() - start;
+
+					if (count == latencies.length) {
+						latencies = Arrays.copyOf(latencies, 2 * count);
+					}
+					latencies[count++] = latency;
+					bytes += Math.max(n, 0);
+				}
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,534 @@
+package encryptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.DatatypeConverter;
+
+import static encryptor.ConstantsAndMethods.humanReadableByteCount;
+
+/**
+ * A long-running local service that decrypts files for other processes, so
+ * they do not have to start a virtual machine, derive the key and decrypt a
+ * file from its beginning for every read.
+ * <p>
+ * The service is started from the command line, asks for the password once
+ * and listens on a port of the loopback interface, given by the
+ * <tt>-port</tt> option or chosen by the system. The port and a random token
+ * are written to the file {@value #SERVICE_FILE_NAME} in the home directory,
+ * or to the file given by the <tt>encryptor.serviceFile</tt> system property,
+ * readable only by its owner. Clients must present the token, so the service
+ * decrypts only for the user that started it. The
+ * {@linkplain DecryptionClient} finds the service through this file.
+ * <p>
+ * A {@linkplain PlaintextReader} is kept for each recently used file, with
+ * its key already derived, and the decrypted plaintext is cached in chunks
+ * of {@value #CHUNK_SIZE} bytes. The cache is bounded by the
+ * <tt>-cache</tt> option in MiB, 256 MiB by default, counting the chunks and
+ * an estimate of the memory of their entries, and the least recently used
+ * chunks are evicted first. Changed files are detected by their length and
+ * modification time.
+ * <p>
+ * Requests are binary and may be repeated on a connection after the token:
+ * <pre>
+ * token   UTF string, sent once after connecting
+ * READ    1 byte op, UTF path, 8 bytes position, 4 bytes length
+ *         replies OK, 8 bytes length of the plaintext, 4 bytes count, count bytes
+ * STATS   1 byte op
+ *         replies OK, 8 bytes each of hits, misses, cached bytes and cache capacity
+ * </pre>
+ * A failed request is answered by ERROR and a UTF message.
+ * <p>
+ * Unix domain sockets would keep the service off the network stack entirely,
+ * but they are not available before Java 16.
+ *
+ * @author Mario Bobic
+ */
+public class DecryptionService {
+
+	/** Name of the service file in the home directory */
+	public static final String SERVICE_FILE_NAME = ".file-encryptor-service";
+	/** Size of the cached chunks of plaintext */
+	public static final int CHUNK_SIZE = 256 * 1024;
+	/** Maximum number of bytes returned by a single read */
+	public static final int MAX_READ = 16 * 1024 * 1024;
+
+	/** Op of a read request */
+	static final int READ = 1;
+	/** Op of a statistics request */
+	static final int STATS = 2;
+	/** Status of a successful reply */
+	static final int OK = 0;
+	/** Status of a failed reply */
+	static final int ERROR = 1;
+
+	/** Default capacity of the chunk cache in bytes */
+	private static final long DEFAULT_CACHE_BYTES = 256L * 1024 * 1024;
+	/** Estimated memory of a cache entry, besides its chunk */
+	private static final int ENTRY_OVERHEAD = 160;
+	/** Maximum number of readers kept */
+	private static final int MAX_READERS = 256;
+
+	/** Password of the files */
+	private final char[] password;
+	/** Socket accepting the connections */
+	private final ServerSocket server;
+	/** Token that clients must present */
+	private final String token;
+	/** File that the port and the token are written to */
+	private final File serviceFile;
+	/** Cache of decrypted chunks */
+	private final ChunkCache cache;
+	/** Threads serving the connections */
+	private final ExecutorService connections = Executors.newCachedThreadPool((task) -> {
+		Thread thread = new Thread(task, "Decryption connection");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/** Readers of recently used files, by their paths */
+	private final Map<String, PlaintextReader> readers = new LinkedHashMap<String, PlaintextReader>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PlaintextReader> eldest) {
+			return size() > MAX_READERS;
+		}
+	};
+
+	/**
+	 * Constructs a service listening on the specified <tt>port</tt> of the
+	 * loopback interface. The password array is not copied, so it must not
+	 * be cleared while the service is running.
+	 *
+	 * @param port port to listen on, 0 for any free port
+	 * @param cacheBytes capacity of the chunk cache in bytes
+	 * @param password password of the files
+	 * @throws IOException if the socket can not be opened
+	 */
+	public DecryptionService(int port, long cacheBytes, char[] password) throws IOException {
+		this.password = password;
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.cache = new ChunkCache(cacheBytes);
+		this.serviceFile = serviceFile();
+
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		this.token = DatatypeConverter.printHexBinary(random);
+	}
+
+	/**
+	 * Starts the service, see the class description.
+	 *
+	 * @param args optional <tt>-port</tt> and <tt>-cache</tt> options
+	 * @throws IOException if the service can not be started
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = 0;
+		long cacheBytes = DEFAULT_CACHE_BYTES;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cache") && i + 1 < args.length) {
+				cacheBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+			} else {
+				System.err.println("Usage: DecryptionService [-port port] [-cache MiB]");
+				System.exit(2);
+			}
+		}
+
+		char[] password = Verifier.readPassword();
+		DecryptionService service = new DecryptionService(port, cacheBytes, password);
+		Runtime.getRuntime().addShutdownHook(new Thread(service::stop));
+		service.run();
+	}
+
+	/**
+	 * Returns the file that the port and the token of the service are
+	 * written to.
+	 *
+	 * @return the service file
+	 */
+	static File serviceFile() {
+		String path = System.getProperty("encryptor.serviceFile");
+		return path != null ? new File(path) : new File(System.getProperty("user.home"), SERVICE_FILE_NAME);
+	}
+
+	/**
+	 * Returns the port the service listens on.
+	 *
+	 * @return the port of the service
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Writes the service file and serves connections until the service is
+	 * {@linkplain #stop() stopped}.
+	 *
+	 * @throws IOException if the service file can not be written
+	 */
+	public void run() throws IOException {
+		writeServiceFile();
+		System.out.println("Decryption service listening on " + server.getLocalSocketAddress()
+				+ ", cache " + humanReadableByteCount(cache.capacity));
+		try {
+			while (true) {
+				Socket socket = server.accept();
+				connections.execute(() -> serve(socket));
+			}
+		} catch (SocketException e) {
+			// stopped
+		} finally {
+			connections.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stops the service and removes the service file.
+	 */
+	public void stop() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		serviceFile.delete();
+	}
+
+	/**
+	 * Writes the port and the token to the service file, readable only by
+	 * its owner where the file system supports it.
+	 *
+	 * @throws IOException if the file can not be written
+	 */
+	private void writeServiceFile() throws IOException {
+		Path temp = DurableOutput.tempFile(serviceFile).toPath();
+		Files.deleteIfExists(temp);
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			writer.write(getPort() + " " + token + "\n");
+		}
+		DurableOutput.move(temp, serviceFile.toPath());
+	}
+
+	/**
+	 * Serves the requests of a connection until the client closes it.
+	 *
+	 * @param socket socket of the connection
+	 */
+	private void serve(Socket socket) {
+		try (
+				Socket s = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		) {
+			s.setTcpNoDelay(true);
+			byte[] presented = in.readUTF().getBytes(StandardCharsets.UTF_8);
+			if (!MessageDigest.isEqual(presented, token.getBytes(StandardCharsets.UTF_8))) {
+				out.writeByte(ERROR);
+				out.writeUTF("Invalid token.");
+				return;
+			}
+			out.writeByte(OK);
+			out.flush();
+
+			while (true) {
+				int op;
+				try {
+					op = in.readUnsignedByte();
+				} catch (EOFException e) {
+					return;
+				}
+				if (op == READ) {
+					read(in, out);
+				} else if (op == STATS) {
+					out.writeByte(OK);
+					out.writeLong(cache.hits.get());
+					out.writeLong(cache.misses.get());
+					out.writeLong(cache.size());
+					out.writeLong(cache.capacity);
+				} else {
+					out.writeByte(ERROR);
+					out.writeUTF("Unknown request: " + op);
+					return;
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			/* The client went away. */
+		}
+	}
+
+	/**
+	 * Serves a read request.
+	 *
+	 * @param in input of the connection, positioned after the op
+	 * @param out output of the connection
+	 * @throws IOException if the connection fails
+	 */
+	private void read(DataInputStream in, DataOutputStream out) throws IOException {
+		String path = in.readUTF();
+		long position = in.readLong();
+		int len = in.readInt();
+
+		byte[] data;
+		long length;
+		try {
+			if (position < 0 || len < 0 || len > MAX_READ) {
+				throw new IOException("Invalid range: " + position + ", " + len);
+			}
+			PlaintextReader reader = reader(new File(path));
+			length = reader.length();
+			data = read(reader, position, (int) Math.max(0, Math.min(len, length - position)));
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			out.writeByte(ERROR);
+			out.writeUTF(e instanceof WrongPasswordException ? "Wrong password for file " + path
+					: e instanceof NoSuchFileException ? "File does not exist: " + path
+					: String.valueOf(e.getMessage()));
+			return;
+		}
+
+		out.writeByte(OK);
+		out.writeLong(length);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	/**
+	 * Returns the reader of the specified <tt>file</tt>, opening it if there
+	 * is none or the file has changed.
+	 *
+	 * @param file the encrypted file
+	 * @return the reader of the file
+	 * @throws IOException if the file can not be opened
+	 */
+	private PlaintextReader reader(File file) throws IOException {
+		String path = file.getAbsolutePath();
+		PlaintextReader reader;
+		synchronized (readers) {
+			reader = readers.get(path);
+		}
+		if (reader == null || !reader.isCurrent()) {
+			/* Opened without holding the lock, deriving a key may take a while. */
+			reader = PlaintextReader.open(file.getAbsoluteFile(), password);
+			synchronized (readers) {
+				readers.put(path, reader);
+			}
+		}
+		return reader;
+	}
+
+	/**
+	 * Reads <tt>len</tt> bytes of plaintext at the specified <tt>position</tt>
+	 * through the chunk cache.
+	 *
+	 * @param reader reader of the file
+	 * @param position position in the plaintext
+	 * @param len number of bytes, not beyond the end of the plaintext
+	 * @return the plaintext
+	 * @throws IOException if the file can not be read
+	 */
+	private byte[] read(PlaintextReader reader, long position, int len) throws IOException {
+		byte[] data = new byte[len];
+		String version = reader.version();
+		int done = 0;
+		while (done < len) {
+			long index = (position + done) / CHUNK_SIZE;
+			byte[] chunk = cache.get(version, index);
+			if (chunk == null) {
+				chunk = readChunk(reader, index);
+				cache.put(version, index, chunk);
+			}
+			int offset = (int) (position + done - index * CHUNK_SIZE);
+			int n = Math.min(len - done, chunk.length - offset);
+			if (n <= 0) {
+				throw new EOFException("File " + reader.getFile() + " is shorter than its plaintext length.");
+			}
+			System.arraycopy(chunk, offset, data, done, n);
+			done += n;
+		}
+		return data;
+	}
+
+	/**
+	 * Decrypts the chunk with the specified <tt>index</tt>.
+	 *
+	 * @param reader reader of the file
+	 * @param index index of the chunk
+	 * @return the chunk, shorter than {@link #CHUNK_SIZE} only at the end of the plaintext
+	 * @throws IOException if the file can not be read
+	 */
+	private static byte[] readChunk(PlaintextReader reader, long index) throws IOException {
+		long start = index * CHUNK_SIZE;
+		byte[] chunk = new byte[(int) Math.max(0, Math.min(CHUNK_SIZE, reader.length() - start))];
+		int done = 0;
+		while (done < chunk.length) {
+			int n = reader.read(start + done, chunk, done, chunk.length - done);
+			if (n <= 0) {
+				break;
+			}
+			done += n;
+		}
+		return done == chunk.length ? chunk : Arrays.copyOf(chunk, done);
+	}
+
+	/**
+	 * A cache of decrypted chunks, bounded by the memory they take and
+	 * evicting the least recently used chunks first.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class ChunkCache {
+
+		/** Maximum number of bytes taken by the cache */
+		private final long capacity;
+		/** Chunks in the order of their use */
+		private final LinkedHashMap<Key, byte[]> chunks = new LinkedHashMap<>(1024, 0.75f, true);
+		/** Number of bytes taken by the cache */
+		private long size;
+		/** Number of chunks found in the cache */
+		private final AtomicLong hits = new AtomicLong();
+		/** Number of chunks not found in the cache */
+		private final AtomicLong misses = new AtomicLong();
+
+		/**
+		 * Constructs a cache with the specified <tt>capacity</tt>.
+		 *
+		 * @param capacity maximum number of bytes taken by the cache
+		 */
+		private ChunkCache(long capacity) {
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Returns the chunk with the specified <tt>index</tt> of the file
+		 * <tt>version</tt>, or null if it is not cached.
+		 *
+		 * @param version version of the file
+		 * @param index index of the chunk
+		 * @return the chunk, or null
+		 */
+		private synchronized byte[] get(String version, long index) {
+			byte[] chunk = chunks.get(new Key(version, index));
+			(chunk != null ? hits : misses).incrementAndGet();
+			return chunk;
+		}
+
+		/**
+		 * Caches the chunk with the specified <tt>index</tt> of the file
+		 * <tt>version</tt>, evicting the least recently used chunks if the
+		 * cache is full.
+		 *
+		 * @param version version of the file
+		 * @param index index of the chunk
+		 * @param chunk the chunk
+		 */
+		private synchronized void put(String version, long index, byte[] chunk) {
+			long cost = cost(version, chunk);
+			if (cost > capacity) {
+				return;
+			}
+			Key key = new Key(version, index);
+			byte[] previous = chunks.put(key, chunk);
+			size += cost - (previous != null ? cost(version, previous) : 0);
+
+			Iterator<Map.Entry<Key, byte[]>> eldest = chunks.entrySet().iterator();
+			while (size > capacity) {
+				Map.Entry<Key, byte[]> entry = eldest.next();
+				size -= cost(entry.getKey().version, entry.getValue());
+				eldest.remove();
+			}
+		}
+
+		/**
+		 * Returns the number of bytes taken by the cache.
+		 *
+		 * @return the size of the cache
+		 */
+		private synchronized long size() {
+			return size;
+		}
+
+		/**
+		 * Returns the estimated memory taken by a cached chunk.
+		 *
+		 * @param version version of the file of the chunk
+		 * @param chunk the chunk
+		 * @return the memory of the chunk and its entry
+		 */
+		private static long cost(String version, byte[] chunk) {
+			return chunk.length + ENTRY_OVERHEAD + 2L * version.length();
+		}
+
+		/**
+		 * The key of a cached chunk.
+		 *
+		 * @author Mario Bobic
+		 */
+		private static class Key {
+			/** Version of the file of the chunk */
+			final String version;
+			/** Index of the chunk */
+			final long index;
+
+			/**
+			 * Constructs a key with the specified arguments.
+			 *
+			 * @param version version of the file of the chunk
+			 * @param index index of the chunk
+			 */
+			Key(String version, long index) {
+				this.version = version;
+				this.index = index;
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				if (!(obj instanceof Key)) {
+					return false;
+				}
+				Key other = (Key) obj;
+				return index == other.index && version.equals(other.version);
+			}
+
+			@Override
+			public int hashCode() {
+				return Objects.hash(version, index);
+			}
+		}
+
+	}
+
+}
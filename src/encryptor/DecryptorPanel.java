@@ -5,8 +5,13 @@ import java.awt.event.*;
 import javax.swing.*;
 
 import java.io.*;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
 import static encryptor.EncryptorDecryptor.*;
 import static encryptor.ConstantsAndMethods.*;
@@ -22,13 +27,10 @@ public class DecryptorPanel extends JPanel {
 	private static final long serialVersionUID = 1L;
 
 	/** List model where chosen files are stored */
-	private DefaultListModel<File> listModel = new DefaultListModel<>();
+	private FileListModel listModel = new FileListModel();
 	/** Visual representation of a list model, showing chosen files */
 	private JList<File> filesList = new JList<>(listModel);
 	
-	/** A simple file chooser */
-	private JFileChooser chooser = FileEncryptorFrame.chooser;
-	
 	/** A checkbox for optional encrypted files deletion. */
 	private JCheckBox deleteFilesBox;
 	/** A checkbox for optional file name decryption */
@@ -57,33 +59,18 @@ public class DecryptorPanel extends JPanel {
 	/** The initial progress bar foreground color */
 	private Color initialProgressBarColor = progressBar.getForeground();
 	
-	/** Hash of entered password, used for decrypting files */
-	private String passwordHash;
+	/** A working thread that reads the attributes of chosen files */
+	private FileScanner scanner;
+	/** The working thread of the current decryption, null if none was started */
+	private DecryptWorker worker;
+	
+	/** The entered password, used for decrypting files */
+	private char[] password;
 	
 	/** A listener which calls the function to delete the selected files */
 	private ActionListener removeListener = (e) -> {
-		List<File> selected = filesList.getSelectedValuesList();
-		for (File file : selected) {
-			listModel.removeElement(file);
-		}
-		
-		List<File> remaining = Collections.list(listModel.elements());
-		if (remaining.size() == 0) {
-			removeBtn.setEnabled(false);
-			totalFiles = 0;
-			totalSize = 0L;
-			totalFilesTf.setText("0");
-			totalSizeTf.setText("0 B");
-		} else {
-			totalFiles = remaining.size();
-			totalSize = 0L;
-			for (File file : remaining) {
-				totalSize += file.length();
-			}
-			
-			totalFilesTf.setText(Integer.toString(totalFiles));
-			totalSizeTf.setText(humanReadableByteCount(totalSize));
-		}
+		listModel.removeAll(filesList.getSelectedIndices());
+		updateTotals();
 	};
 	
 	/**
@@ -104,6 +91,7 @@ public class DecryptorPanel extends JPanel {
 		/* Style the central panel and add the files list to it. */
 		center.setBorder(BorderFactory.createTitledBorder("Encrypted files"));
 		center.add(new JScrollPane(filesList));
+		filesList.setPrototypeCellValue(FileListModel.PROTOTYPE_FILE);
 
 		/* Add a check box panel and add check boxes to it. */
 		JPanel checkBoxPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
@@ -184,7 +172,9 @@ public class DecryptorPanel extends JPanel {
 		lowerBtns.add(cancelBtn, BorderLayout.LINE_END);
 		
 		cancelBtn.addActionListener((e) -> {
-			
+			if (worker != null) {
+				worker.cancel();
+			}
 		});
 	}
 	
@@ -212,12 +202,7 @@ public class DecryptorPanel extends JPanel {
 		cancelBtn.setEnabled(true);
 		
 		/* Execute the task on a working thread and listen for progress change. */
-		DecryptWorker worker = new DecryptWorker();
-		
-		cancelBtn.addActionListener((e) -> {
-			worker.cancel();
-		});
-
+		worker = new DecryptWorker();
 		worker.addPropertyChangeListener((evt) -> {
 			if ("progress".equals(evt.getPropertyName())) {
 				Integer progress = (Integer) evt.getNewValue();
@@ -233,6 +218,7 @@ public class DecryptorPanel extends JPanel {
 	 */
 	private void loadFiles() {
 		/* File chooser settings */
+		JFileChooser chooser = FileEncryptorFrame.getChooser();
 		chooser.setDialogTitle("Load files for decryption");
 		chooser.setMultiSelectionEnabled(true);
 		
@@ -243,28 +229,39 @@ public class DecryptorPanel extends JPanel {
 		if (retVal == JFileChooser.APPROVE_OPTION) {
 			/* Get selected files and clear the previously selected. */
 			File[] files = chooser.getSelectedFiles();
-			listModel.clear();
-
-			/* Set the total size initially to 0 */
-			totalSize = 0L;
-
-			/* Add newly selected files to the list model. */
-			for (File file : files) {
-				listModel.addElement(file);
-				totalSize += file.length();
+			if (scanner != null) {
+				scanner.cancel(true);
 			}
-			totalFiles = files.length;
+			listModel.clear();
+			updateTotals();
 			
-			/* Enable the remove button. */
-			removeBtn.setEnabled(true);
-
-			/* Set the total number of files text field. */
-			totalFilesTf.setText(Integer.toString(totalFiles));
-			/* Set the total size text field to a human readable size. */
-			totalSizeTf.setText(humanReadableByteCount(totalSize));
+			/* Add newly selected files to the list model as their attributes
+			 * are read in background. Wait for all of them before starting. */
+			decryptBtn.setEnabled(false);
+			scanner = new FileScanner(files, listModel, this::updateTotals, () -> {
+				decryptBtn.setEnabled(true);
+			});
+			scanner.execute();
 		}
 	}
 	
+	/**
+	 * Updates the total number and the total size of chosen files, and their
+	 * text fields, from the list model.
+	 */
+	private void updateTotals() {
+		totalFiles = listModel.getSize();
+		totalSize = listModel.getTotalSize();
+		
+		/* Enable the remove button only if there is something to remove. */
+		removeBtn.setEnabled(totalFiles > 0);
+
+		/* Set the total number of files text field. */
+		totalFilesTf.setText(Integer.toString(totalFiles));
+		/* Set the total size text field to a human readable size. */
+		totalSizeTf.setText(humanReadableByteCount(totalSize));
+	}
+	
 	/**
 	 * A working thread for decrypting a list of files chosen by the user.
 	 *
@@ -273,10 +270,17 @@ public class DecryptorPanel extends JPanel {
 	private class DecryptWorker extends SwingWorker<Void, Void> {
 		
 		/** Variable used for tracking the progress */
-		private long totalDecryptedSize;
+		private AtomicLong totalDecryptedSize = new AtomicLong();
 		
 		/** Indicates if the user must be prompted to overwrite existing files */
 		private boolean overwritePrompt = true;
+		
+		/** Durable output of the batch, null if not durable */
+		private DurableOutput output;
+		/** Checksum manifest of the batch, null if checksums are not computed */
+		private Manifest manifest;
+		/** Name indexes of the directories of the batch */
+		private final Map<File, NameIndex> nameIndexes = new HashMap<>();
 
 		/**
 		 * Prepares the chosen files and decrypts them in background.
@@ -284,7 +288,8 @@ public class DecryptorPanel extends JPanel {
 		@Override
 		protected Void doInBackground() throws Exception {
 			/* Load all files to a list. */
-			List<File> files = Collections.list(listModel.elements());
+			List<File> files = listModel.toList();
+			long[] sizes = listModel.toSizeArray();
 
 			/* Prompt the user to enter the password.
 			 * If the user hit cancel, cancel the decryption. */
@@ -294,30 +299,55 @@ public class DecryptorPanel extends JPanel {
 			}
 			
 			/* Prepare the progress bar variable */
-			totalDecryptedSize = 0L;
+			totalDecryptedSize.set(0L);
+			
+			boolean deleteFiles = deleteFilesBox.isSelected();
+			boolean decryptNames = decryptNamesBox.isSelected();
 
-			/* Decrypt all selected files. Make sure they exist. */
-			for (File file : files) {
-				if (!file.exists()) {
-					showInformation(DecryptorPanel.this, "File " + file + " no longer exists.\nContinuing...");
-					continue;
+			/* Decrypt all selected files in parallel. */
+			BatchEngine engine = new BatchEngine();
+			output = DurableOutput.isEnabled() ? new DurableOutput() : null;
+			manifest = new Manifest(null);
+			try {
+				engine.execute(files, sizes, (file, size) -> {
+					decryptFile(file, size, deleteFiles, decryptNames);
+				});
+			} finally {
+				/* Workers abandoned by a cancel still use the password, clean up only once they stop. */
+				engine.awaitStopped();
+				boolean interrupted = Thread.interrupted();
+				try {
+					/* Encrypted files are deleted until the output is closed, their names
+					 * are removed from the indexes meanwhile. */
+					if (output != null) {
+						output.close();
+					}
+					saveNameIndexes();
+					Arrays.fill(password, '\0');
+					KeyDerivation.clearCache();
+				} finally {
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+					if (isCancelled()) {
+						/* A cancelled task is done at once, enable the controls only now. */
+						SwingUtilities.invokeLater(this::enableControls);
+					}
 				}
-
-				decryptFile(file, passwordHash, deleteFilesBox.isSelected(), decryptNamesBox.isSelected());
 			}
 
 			return null;
 		}
 
 		/**
-		 * Decrypts the given {@code file} using the given {@code hash}.
+		 * Decrypts the given {@code file} using the entered password.
 		 * 
 		 * @param file file to be decrypted
-		 * @param hash hash to be used when decrypting this file
+		 * @param size size of the file, as read when it was chosen
 		 * @param deleteFile deletes the encrypted file after decrypting if true
 		 * @param decryptName decrypts the file name upon decrypting the file
 		 */
-		private void decryptFile(File file, String hash, boolean deleteFile, boolean decryptName) {
+		private void decryptFile(File file, long size, boolean deleteFile, boolean decryptName) {
 			/* Remove the extension of the encrypted file and create the output file. */
 			String fileName = file.getName().replace(FILE_EXTENSION, "");
 			String newFileName;
@@ -335,54 +365,164 @@ public class DecryptorPanel extends JPanel {
 			File outputFile = new File(file.getParentFile(), newFileName);
 			
 			/* Ask the user if he wants to overwrite the file. */
-			if (overwritePrompt && outputFile.exists()) {
-				boolean overwrite = showQuestion(DecryptorPanel.this,
-						"File " + outputFile + " already exists.\nOverwrite this file" + (totalFiles==1?"?":"and future files?"));
-				if (overwrite == true) {
-					overwritePrompt = false;
-				} else {
-					return;
+			synchronized (this) {
+				if (overwritePrompt && outputFile.exists()) {
+					boolean overwrite = showQuestion(DecryptorPanel.this,
+							"File " + outputFile + " already exists.\nOverwrite this file" + (totalFiles==1?"?":"and future files?"));
+					if (overwrite == true) {
+						overwritePrompt = false;
+					} else {
+						return;
+					}
 				}
 			}
 
-			/* Create the output stream and write decrypted bytes to it. */
-			try (
-					BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
-					BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
-			) {
-				
-				int len;
-				byte[] bytes = new byte[STD_LOADER_SIZE];
-				Crypto crypto = new Crypto(hash, Crypto.DECRYPT);
-				
-				while ((len = in.read(bytes)) > 0  && !isCancelled()) {
-					byte[] decryptedBytes = crypto.update(bytes, 0, len);
-					out.write(decryptedBytes);
-					
-					/* Update the progress bar. */
-					totalDecryptedSize += len;
-					setProgress((int) (100 * totalDecryptedSize / totalSize));
+			/* Decrypt the file and update the progress bar. */
+			LongConsumer progress = (len) -> {
+				long processed = totalDecryptedSize.addAndGet(len);
+				if (totalSize > 0) {
+					setProgress((int) Math.min(100, 100 * processed / totalSize));
+				}
+			};
+			/* Output is written to a temporary file and renamed when complete, so
+			 * a failed or cancelled file leaves nothing behind but the original. */
+			File tempFile = DurableOutput.tempFile(outputFile);
+			CompletableFuture<File> durable = null;
+			try {
+				/* Files encrypted in place that will be deleted are decrypted in place too. */
+				if (deleteFile && InPlaceCrypto.isEncryptedInPlace(file)) {
+					InPlaceCrypto.decrypt(file, outputFile, password, progress);
+				} else {
+					/* Data is checked against the manifest while it is decrypted, if there is one. */
+					Crypto crypto = new Crypto(password, null, Crypto.DECRYPT);
+					Manifest.Digest digest = manifest.expect(file);
+					crypto.setDigest(digest);
+					crypto.setSourceSize(size);
+					crypto.execute(file, tempFile, progress);
+					if (digest != null) {
+						digest.verify(file);
+					}
+					if (output != null) {
+						durable = output.commit(tempFile, outputFile);
+					} else {
+						DurableOutput.move(tempFile.toPath(), outputFile.toPath());
+					}
 				}
-				out.write(crypto.doFinal());
-				
 			} catch (Exception e) {
-				showError(DecryptorPanel.this, "An error occured while processing file " + file);
+				tempFile.delete();
+				/* Files were checked when chosen, check again only on failure. */
+				if (isCancelled()) {
+					return;
+				} else if (e instanceof WrongPasswordException) {
+					showError(DecryptorPanel.this, "Wrong password for file " + file);
+				} else if (e instanceof ChecksumMismatchException) {
+					showError(DecryptorPanel.this, "File " + file + " does not match its checksum manifest.");
+				} else if (!file.exists()) {
+					showInformation(DecryptorPanel.this, "File " + file + " no longer exists.\nContinuing...");
+				} else {
+					showError(DecryptorPanel.this, "An error occured while processing file " + file);
+				}
 				return;
 			}
-			
+
 			System.out.println("Total decrypted: " + totalDecryptedSize);
 			System.out.println("Total size: " + totalSize);
 			
-			if (deleteFile && !isCancelled()) {
-				file.delete();
+			if (durable != null) {
+				/* Delete the original only when the output survives a crash. */
+				durable.whenComplete((target, t) -> {
+					if (t != null) {
+						showError(DecryptorPanel.this, "An error occured while saving file " + outputFile);
+					} else if (deleteFile && !isCancelled()) {
+						delete(file);
+					}
+				});
+			} else if (deleteFile && !isCancelled()) {
+				delete(file);
 			}
 		}
 
 		/**
-		 * Simply re-enables every disabled GUI component.
+		 * Deletes the given decrypted {@code file} and removes it from the name
+		 * index of its directory, if its name is encrypted and the index maps
+		 * its original name to it. A file decrypted in place is already gone.
+		 * 
+		 * @param file encrypted file to be deleted
+		 */
+		private void delete(File file) {
+			file.delete();
+			if (!NameIndex.isEnabled() || file.exists()) {
+				return;
+			}
+
+			String original;
+			try {
+				original = decryptName(file.getName().replace(FILE_EXTENSION, ""));
+			} catch (IllegalArgumentException e) {
+				return;
+			}
+			NameIndex index = nameIndexOf(file.getAbsoluteFile().getParentFile());
+			if (index != null && file.getName().equals(index.lookup(original))) {
+				index.remove(original);
+			}
+		}
+
+		/**
+		 * Returns the name index of the specified <tt>directory</tt>, loading
+		 * it the first time, or null if it can not be loaded.
+		 * 
+		 * @param directory directory of the index
+		 * @return the name index of the directory, or null
+		 */
+		private synchronized NameIndex nameIndexOf(File directory) {
+			if (!nameIndexes.containsKey(directory)) {
+				NameIndex index = null;
+				try {
+					index = NameIndex.load(directory, password);
+				} catch (IOException e) {
+					System.err.println("Can not load the name index of " + directory + ": " + e.getMessage());
+				}
+				nameIndexes.put(directory, index);
+			}
+			return nameIndexes.get(directory);
+		}
+		
+		/**
+		 * Saves the name indexes changed by this batch, encrypted with new key
+		 * derivation parameters.
+		 */
+		private synchronized void saveNameIndexes() {
+			if (nameIndexes.isEmpty()) {
+				return;
+			}
+			KeyDerivation keyDerivation = KeyDerivation.newParameters();
+			for (NameIndex index : nameIndexes.values()) {
+				if (index == null) {
+					continue;
+				}
+				try {
+					index.save(password, keyDerivation);
+				} catch (IOException e) {
+					System.err.println("Can not save a name index: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Re-enables every disabled GUI component, unless the task was
+		 * cancelled and its workers may still be stopping.
 		 */
 		@Override
 		protected void done() {
+			if (!isCancelled()) {
+				enableControls();
+			}
+		}
+		
+		/**
+		 * Simply re-enables every disabled GUI component.
+		 */
+		private void enableControls() {
 			/* Re-enable GUI components. */
 			decryptBtn.setEnabled(true);
 			addBtn.setEnabled(true);
@@ -438,19 +578,20 @@ public class DecryptorPanel extends JPanel {
 			}
 			
 			/**
-			 * Returns the hash of the entered password. If no characters are
-			 * entered, or more formally if {@code password.length == 0}, a
+			 * Returns the entered password. If no characters are entered, or
+			 * more formally if {@code password.length == 0}, a
 			 * {@linkplain NullPointerException} is thrown.
 			 * 
-			 * @return hash of the entered password
+			 * @return the entered password
 			 * @throws NullPointerException if password.length == 0
 			 */
-			private String getPasswordHash() {
-				if (passwordField.getPassword().length == 0) {
+			private char[] getPassword() {
+				char[] password = passwordField.getPassword();
+				if (password.length == 0) {
 					throw new NullPointerException("Password not entered.");
 				}
 				
-				return generatePasswordHash(String.valueOf(passwordField.getPassword()));
+				return password;
 			}
 		}
 		
@@ -466,7 +607,7 @@ public class DecryptorPanel extends JPanel {
 						JOptionPane.PLAIN_MESSAGE
 				);
 				if (retVal == JOptionPane.OK_OPTION) {
-					passwordHash = passwordPanel.getPasswordHash();
+					password = passwordPanel.getPassword();
 					return true;
 				} else {
 					return false;
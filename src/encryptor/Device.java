@@ -0,0 +1,163 @@
+package encryptor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static encryptor.ConstantsAndMethods.STD_PARALLELISM;
+
+/**
+ * Represents a storage device, identified by its {@linkplain FileStore}, along
+ * with the number of files that may be processed on it at the same time.
+ * <p>
+ * Rotational disks get a budget of one file at a time so they are not
+ * thrashed by random I/O, while solid state disks get a budget of several
+ * files. The budgets can be changed with the <tt>encryptor.hddConcurrency</tt>
+ * and <tt>encryptor.ssdConcurrency</tt> system properties.
+ *
+ * @author Mario Bobic
+ */
+public class Device {
+
+	/** Concurrency budget of a rotational disk */
+	private static final int HDD_CONCURRENCY = Math.max(1, Integer.getInteger("encryptor.hddConcurrency", 1));
+	/** Concurrency budget of a solid state or an unknown disk */
+	private static final int SSD_CONCURRENCY = Math.max(1, Integer.getInteger("encryptor.ssdConcurrency", STD_PARALLELISM));
+
+	/** Counter used for assigning device ids */
+	private static final AtomicInteger NEXT_ID = new AtomicInteger();
+	/** Devices that have been seen so far, mapped by their file stores */
+	private static final Map<FileStore, Device> DEVICES = new ConcurrentHashMap<>();
+	/** Device used when the file store of a path can not be determined */
+	private static final Device UNKNOWN = new Device("unknown", false);
+
+	/** Id of this device, used to acquire multiple devices in the same order */
+	private final int id = NEXT_ID.getAndIncrement();
+	/** Name of this device */
+	private final String name;
+	/** Indicates if this device is a rotational disk */
+	private final boolean rotational;
+	/** Number of files that may be processed on this device at the same time */
+	private final int concurrency;
+	/** Permits for processing files on this device */
+	private final Semaphore permits;
+
+	/**
+	 * Constructs an instance of {@code Device} with the specified arguments.
+	 *
+	 * @param name name of this device
+	 * @param rotational true if this device is a rotational disk
+	 */
+	private Device(String name, boolean rotational) {
+		this.name = name;
+		this.rotational = rotational;
+		this.concurrency = rotational ? HDD_CONCURRENCY : SSD_CONCURRENCY;
+		this.permits = new Semaphore(concurrency, true);
+	}
+
+	/**
+	 * Returns the device that holds the specified <tt>path</tt>. The path must
+	 * exist. If the device can not be determined, an unknown device with the
+	 * budget of a solid state disk is returned.
+	 *
+	 * @param path path whose device is to be returned
+	 * @return the device that holds the specified path
+	 */
+	public static Device of(Path path) {
+		FileStore store;
+		try {
+			store = Files.getFileStore(path);
+		} catch (IOException e) {
+			return UNKNOWN;
+		}
+		return DEVICES.computeIfAbsent(store, (s) -> new Device(s.name(), isRotational(s)));
+	}
+
+	/**
+	 * Returns true if the specified <tt>store</tt> is known to be on a
+	 * rotational disk. This information is currently available only on Linux.
+	 *
+	 * @param store file store to be checked
+	 * @return true if the store is known to be on a rotational disk
+	 */
+	private static boolean isRotational(FileStore store) {
+		String name = store.name();
+		if (!name.startsWith("/dev/")) {
+			return false;
+		}
+
+		try {
+			/* Resolve links such as /dev/mapper/root and /dev/disk/by-uuid. */
+			String device = Paths.get(name).toRealPath().getFileName().toString();
+			Path block = Paths.get("/sys/class/block", device);
+			Path rotational = block.resolve("queue/rotational");
+			if (!Files.exists(rotational)) {
+				/* A partition, check the disk it is on. */
+				rotational = block.toRealPath().getParent().resolve("queue/rotational");
+			}
+			String value = new String(Files.readAllBytes(rotational), StandardCharsets.US_ASCII);
+			return value.trim().equals("1");
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Acquires a permit for processing a file on this device, blocking until
+	 * one is available.
+	 *
+	 * @throws InterruptedException if the current thread is interrupted
+	 */
+	public void acquire() throws InterruptedException {
+		permits.acquire();
+	}
+
+	/**
+	 * Releases a permit previously acquired with {@link #acquire()}.
+	 */
+	public void release() {
+		permits.release();
+	}
+
+	/**
+	 * Returns the id of this device. Devices must always be acquired in the
+	 * order of their ids to avoid deadlocks.
+	 *
+	 * @return the id of this device
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the number of files that may be processed on this device at the
+	 * same time.
+	 *
+	 * @return the concurrency budget of this device
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Returns true if this device is a rotational disk.
+	 *
+	 * @return true if this device is a rotational disk
+	 */
+	public boolean isRotational() {
+		return rotational;
+	}
+
+	@Override
+	public String toString() {
+		return name + (rotational ? " (HDD)" : "");
+	}
+
+}
@@ -0,0 +1,263 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+
+/**
+ * This class provides the encryption and decryption of files with direct I/O,
+ * bypassing the operating system's page cache. Bulk jobs done this way do not
+ * evict cached pages of other processes on the same host.
+ * <p>
+ * Direct I/O requires the <tt>ExtendedOpenOption.DIRECT</tt> open option,
+ * available since Java 10, and a file system that supports it. Where it is
+ * not available, {@link #execute(Crypto, File, File, LongConsumer)} returns
+ * false and the caller falls back to buffered I/O. Direct I/O is disabled by
+ * default and can be enabled with the <tt>encryptor.directIO</tt> system
+ * property or with {@link #setEnabled(boolean)}.
+ * <p>
+ * Aligned buffers are borrowed from the {@linkplain BufferPool}, so file
+ * systems with blocks larger than {@link BufferPool#ALIGNMENT} fall back to
+ * buffered I/O as well.
+ *
+ * @author Mario Bobic
+ */
+public class DirectIO {
+
+	/** Block size used when the file store does not report one */
+	private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	/** The direct open option, or null if unsupported by this Java runtime */
+	private static final OpenOption DIRECT = findDirectOption();
+
+	/** Indicates if direct I/O should be used when supported */
+	private static volatile boolean enabled = Boolean.getBoolean("encryptor.directIO");
+
+	/**
+	 * Returns true if this Java runtime supports direct I/O.
+	 *
+	 * @return true if this Java runtime supports direct I/O
+	 */
+	public static boolean isSupported() {
+		return DIRECT != null;
+	}
+
+	/**
+	 * Returns true if direct I/O should be used when supported.
+	 *
+	 * @return true if direct I/O is enabled
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables direct I/O.
+	 *
+	 * @param enabled true if direct I/O should be used when supported
+	 */
+	public static void setEnabled(boolean enabled) {
+		DirectIO.enabled = enabled;
+	}
+
+	/**
+	 * Encrypts or decrypts the <tt>sourcefile</tt> into the <tt>destfile</tt>
+	 * with the specified <tt>crypto</tt>, using direct I/O for both files.
+	 * Returns false if direct I/O is not supported for either of the files, in
+	 * which case the destination file may have been created but is left empty.
+	 *
+	 * @param crypto crypto used for encrypting or decrypting
+	 * @param sourcefile file to be encrypted or decrypted
+	 * @param destfile file to be created
+	 * @param progress consumer of the number of bytes read
+	 * @return true if the file has been processed, false if direct I/O is not
+	 *         supported for these files
+	 * @throws IOException if an I/O error occurs
+	 */
+	static boolean execute(Crypto crypto, File sourcefile, File destfile, LongConsumer progress) throws IOException {
+		if (DIRECT == null) {
+			return false;
+		}
+
+		Path source = sourcefile.toPath();
+		Path dest = destfile.toPath();
+		int blockSize = Math.max(blockSize(source), blockSize(dest.toAbsolutePath().getParent()));
+		if (blockSize > BufferPool.ALIGNMENT) {
+			return false;
+		}
+
+		try (BufferPool.Lease lease = BufferPool.GLOBAL.borrow(2)) {
+			FileChannel in = open(source, StandardOpenOption.READ, DIRECT);
+			if (in == null) {
+				return false;
+			}
+			FileChannel out = open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, DIRECT);
+			if (out == null) {
+				in.close();
+				return false;
+			}
+
+			/* Leave room in the output slab for the carried remainder, header and padding. */
+			int headerSize = (CryptoHeader.MAX_LENGTH + blockSize - 1) / blockSize * blockSize;
+			int readSize = BufferPool.SLAB_SIZE - 2 * blockSize - headerSize;
+			ByteBuffer inBuffer = lease.get(0);
+			ByteBuffer outBuffer = lease.get(1);
+			inBuffer.limit(readSize);
+
+			long position;
+			try (FileChannel input = in; FileChannel output = out) {
+				/* A read that is not a multiple of the block size ends at the end of file. */
+				boolean end = false;
+				while (!end && input.read(inBuffer) != -1) {
+					if (Thread.currentThread().isInterrupted()) {
+						throw new InterruptedIOException("Interrupted while processing " + sourcefile);
+					}
+					int len = inBuffer.position();
+					end = len % blockSize != 0;
+					Throttle.GLOBAL.acquire(len);
+					Metrics.GLOBAL.read(len);
+
+					inBuffer.flip();
+					crypto.update(inBuffer, outBuffer);
+					inBuffer.clear();
+					inBuffer.limit(readSize);
+					writeBlocks(output, outBuffer, blockSize);
+					progress.accept(len);
+				}
+				crypto.doFinal(outBuffer);
+				writeBlocks(output, outBuffer, blockSize);
+				position = output.position();
+			}
+
+			/* The remainder is smaller than a block and can not be written directly. */
+			outBuffer.flip();
+			if (outBuffer.hasRemaining()) {
+				try (FileChannel output = FileChannel.open(dest, StandardOpenOption.WRITE)) {
+					int len = outBuffer.remaining();
+					output.position(position);
+					while (outBuffer.hasRemaining()) {
+						output.write(outBuffer);
+					}
+					Metrics.GLOBAL.written(len);
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes all whole blocks from the specified <tt>buffer</tt> to the
+	 * <tt>channel</tt> and moves the remaining bytes to the beginning of the
+	 * buffer. The buffer is expected to be ready for putting, and is left
+	 * ready for putting.
+	 *
+	 * @param channel channel to be written to
+	 * @param buffer buffer to be written
+	 * @param blockSize size of a block
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void writeBlocks(FileChannel channel, ByteBuffer buffer, int blockSize) throws IOException {
+		buffer.flip();
+		int limit = buffer.limit();
+		int len = limit - limit % blockSize;
+		if (len > 0) {
+			Throttle.GLOBAL.acquire(len);
+			buffer.limit(len);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.limit(limit);
+			Metrics.GLOBAL.written(len);
+		}
+		buffer.compact();
+	}
+
+	/**
+	 * Opens the file specified by the <tt>path</tt> with the specified
+	 * <tt>options</tt>. Returns null if the file system refuses the options.
+	 *
+	 * @param path path of the file to be opened
+	 * @param options options specifying how the file is opened
+	 * @return the opened channel, or null if the options are not supported
+	 * @throws IOException if the file can not be opened even without the options
+	 */
+	private static FileChannel open(Path path, OpenOption... options) throws IOException {
+		try {
+			return FileChannel.open(path, options);
+		} catch (UnsupportedOperationException e) {
+			return null;
+		} catch (IOException e) {
+			/* Direct I/O is refused with a generic error, check if that was the cause. */
+			OpenOption[] buffered = new OpenOption[options.length - 1];
+			System.arraycopy(options, 0, buffered, 0, buffered.length);
+			FileChannel.open(path, buffered).close();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the block size of the file store that holds the specified
+	 * <tt>path</tt>. The file store is asked through reflection since the
+	 * method is available since Java 10.
+	 *
+	 * @param path path whose block size is to be returned
+	 * @return the block size of the file store
+	 */
+	private static int blockSize(Path path) {
+		try {
+			FileStore store = Files.getFileStore(path);
+			Method getBlockSize = FileStore.class.getMethod("getBlockSize");
+			return (int) (long) (Long) getBlockSize.invoke(store);
+		} catch (Exception e) {
+			return DEFAULT_BLOCK_SIZE;
+		}
+	}
+
+	/**
+	 * Allocates a direct byte buffer of the specified <tt>capacity</tt> whose
+	 * memory address is a multiple of the specified <tt>alignment</tt>.
+	 *
+	 * @param capacity capacity of the buffer
+	 * @param alignment alignment of the buffer, a power of two
+	 * @return an aligned direct byte buffer
+	 * @throws UnsupportedOperationException if aligned buffers are not supported
+	 */
+	static ByteBuffer allocateAligned(int capacity, int alignment) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(capacity + alignment);
+		try {
+			Method alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+			ByteBuffer aligned = (ByteBuffer) alignedSlice.invoke(buffer, alignment);
+			aligned.limit(capacity);
+			return aligned.slice();
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Aligned buffers are not supported.", e);
+		}
+	}
+
+	/**
+	 * Returns the <tt>ExtendedOpenOption.DIRECT</tt> open option if it is
+	 * supported by this Java runtime, or null otherwise.
+	 *
+	 * @return the direct open option, or null if unsupported
+	 */
+	private static OpenOption findDirectOption() {
+		try {
+			Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+			return (OpenOption) options.getField("DIRECT").get(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,337 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class makes the output files of a batch durable, so that a crash never
+ * leaves a partial output file under its final name.
+ * <p>
+ * Each output file is written to a {@linkplain #tempFile(File) temporary
+ * file} next to its target and then {@linkplain #commit(File, File)
+ * committed}. Committed files are gathered into groups of up to
+ * {@value #DEFAULT_GROUP_FILES} files, {@value #DEFAULT_GROUP_MILLIS} ms or
+ * the size set by the <tt>encryptor.syncGroupBytes</tt> system property,
+ * whichever comes first. A group is synchronized at once by a background
+ * thread: all its files are forced to the storage device together, renamed
+ * atomically to their targets, and every directory they were renamed in is
+ * forced once. The workers keep writing the next files meanwhile, so the
+ * throughput stays close to that of unsynchronized writes, while forcing a
+ * whole group costs little more than forcing a single file.
+ * <p>
+ * Durable output is disabled by default and can be enabled with the
+ * <tt>encryptor.durable</tt> system property or with
+ * {@link #setEnabled(boolean)}. The group limits can be changed with the
+ * <tt>encryptor.syncGroupFiles</tt>, <tt>encryptor.syncGroupBytes</tt> and
+ * <tt>encryptor.syncGroupMillis</tt> system properties.
+ *
+ * @author Mario Bobic
+ */
+public class DurableOutput {
+
+	/** Suffix of temporary files */
+	public static final String TEMP_SUFFIX = ".part";
+
+	/** Default maximum number of files in a group */
+	private static final int DEFAULT_GROUP_FILES = 64;
+	/** Default maximum number of milliseconds a committed file waits for its group */
+	private static final long DEFAULT_GROUP_MILLIS = 100;
+
+	/** Maximum number of files in a group */
+	private static final int GROUP_FILES = Math.max(1, Integer.getInteger("encryptor.syncGroupFiles", DEFAULT_GROUP_FILES));
+	/** Maximum number of bytes in a group */
+	private static final long GROUP_BYTES = Math.max(1, Long.getLong("encryptor.syncGroupBytes", 256 * 1024 * 1024));
+	/** Maximum number of milliseconds a committed file waits for its group */
+	private static final long GROUP_MILLIS = Math.max(0, Long.getLong("encryptor.syncGroupMillis", DEFAULT_GROUP_MILLIS));
+	/** Number of threads that force the files of a group */
+	private static final int SYNC_THREADS = 4;
+
+	/** Indicates if output files should be made durable */
+	private static volatile boolean enabled = Boolean.getBoolean("encryptor.durable");
+
+	/** Files committed to the group that is being gathered */
+	private List<Entry> group = new ArrayList<>();
+	/** Total size of the files in the group that is being gathered */
+	private long groupBytes;
+	/** Time in nanoseconds when the first file of the gathered group was committed */
+	private long groupStart;
+	/** Indicates if this output has been closed */
+	private boolean closed;
+
+	/** Threads that force the files of a group */
+	private final ExecutorService forcers = Executors.newFixedThreadPool(SYNC_THREADS, (r) -> {
+		Thread thread = new Thread(r, "Durable output forcer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/** Thread that synchronizes the groups */
+	private final Thread syncer = new Thread(this::syncGroups, "Durable output");
+
+	/**
+	 * Constructs a new durable output and starts its synchronizing thread.
+	 */
+	public DurableOutput() {
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	/**
+	 * Returns true if output files should be made durable.
+	 *
+	 * @return true if durable output is enabled
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables durable output.
+	 *
+	 * @param enabled true if output files should be made durable
+	 */
+	public static void setEnabled(boolean enabled) {
+		DurableOutput.enabled = enabled;
+	}
+
+	/**
+	 * Returns the temporary file that the specified <tt>target</tt> file is
+	 * written to before it is committed. The temporary file is hidden in the
+	 * directory of the target.
+	 *
+	 * @param target the output file
+	 * @return the temporary file of the target
+	 */
+	public static File tempFile(File target) {
+		return new File(target.getAbsoluteFile().getParentFile(), "." + target.getName() + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Commits the completely written <tt>temp</tt> file to be renamed to the
+	 * <tt>target</tt> file. The returned future is completed when the target
+	 * file is durable, or completed exceptionally if it can not be made
+	 * durable, in which case the temporary file is deleted. This method does
+	 * not wait for the file to be synchronized.
+	 *
+	 * @param temp the completely written temporary file
+	 * @param target the output file
+	 * @return future completed with the target when it is durable
+	 * @throws IllegalStateException if this output has been closed
+	 */
+	public CompletableFuture<File> commit(File temp, File target) {
+		Entry entry = new Entry(temp.toPath(), target.toPath());
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Durable output is closed.");
+			}
+			if (group.isEmpty()) {
+				groupStart = System.nanoTime();
+			}
+			group.add(entry);
+			groupBytes += temp.length();
+			if (group.size() >= GROUP_FILES || groupBytes >= GROUP_BYTES || group.size() == 1) {
+				notifyAll();
+			}
+		}
+		return entry.future;
+	}
+
+	/**
+	 * Synchronizes all committed files and stops the synchronizing thread.
+	 * This method blocks until every committed file is durable or has failed.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws InterruptedException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			syncer.join();
+		} finally {
+			forcers.shutdown();
+		}
+	}
+
+	/**
+	 * Gathers committed files into groups and synchronizes them, until this
+	 * output is closed and no committed file is left.
+	 */
+	private void syncGroups() {
+		while (true) {
+			List<Entry> entries;
+			synchronized (this) {
+				try {
+					while (group.isEmpty() && !closed) {
+						wait();
+					}
+					while (!closed && group.size() < GROUP_FILES && groupBytes < GROUP_BYTES) {
+						long remaining = GROUP_MILLIS - (System.nanoTime() - groupStart) / 1_000_000;
+						if (remaining <= 0) {
+							break;
+						}
+						wait(remaining);
+					}
+				} catch (InterruptedException e) {
+					/* Never interrupted by this class, synchronize what is left. */
+					closed = true;
+				}
+				if (group.isEmpty()) {
+					return;
+				}
+				entries = group;
+				group = new ArrayList<>();
+				groupBytes = 0;
+			}
+			sync(entries);
+		}
+	}
+
+	/**
+	 * Forces the temporary files of the specified <tt>entries</tt> to the
+	 * storage device in parallel, renames them to their targets, forces the
+	 * directories of the targets once each and completes the futures of the
+	 * entries.
+	 *
+	 * @param entries committed files of a group
+	 */
+	private void sync(List<Entry> entries) {
+		List<Future<?>> forces = new ArrayList<>(entries.size());
+		for (Entry entry : entries) {
+			forces.add(forcers.submit(() -> {
+				force(entry.temp, StandardOpenOption.WRITE);
+				return null;
+			}));
+		}
+
+		List<Entry> renamed = new ArrayList<>(entries.size());
+		Set<Path> directories = new LinkedHashSet<>();
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			try {
+				try {
+					forces.get(i).get();
+				} catch (ExecutionException e) {
+					throw e.getCause();
+				}
+				move(entry.temp, entry.target);
+				renamed.add(entry);
+				directories.add(entry.target.toAbsolutePath().getParent());
+			} catch (Throwable t) {
+				fail(entry, t);
+			}
+		}
+
+		for (Path directory : directories) {
+			forceDirectory(directory);
+		}
+
+		Metrics.GLOBAL.synced(renamed.size());
+		for (Entry entry : renamed) {
+			entry.future.complete(entry.target.toFile());
+		}
+	}
+
+	/**
+	 * Deletes the temporary file of the specified <tt>entry</tt> and
+	 * completes its future with the specified <tt>cause</tt>.
+	 *
+	 * @param entry entry that failed
+	 * @param cause cause of the failure
+	 */
+	private static void fail(Entry entry, Throwable cause) {
+		try {
+			Files.deleteIfExists(entry.temp);
+		} catch (IOException e) {
+			cause.addSuppressed(e);
+		}
+		entry.future.completeExceptionally(cause);
+	}
+
+	/**
+	 * Forces the contents and the metadata of the file or directory at the
+	 * specified <tt>path</tt> to the storage device.
+	 *
+	 * @param path path of the file or directory
+	 * @param option option the path is opened with
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void force(Path path, StandardOpenOption option) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, option)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Forces the entries of the specified <tt>directory</tt>, so files created,
+	 * renamed or deleted in it survive a crash.
+	 *
+	 * @param directory directory to be forced
+	 */
+	static void forceDirectory(Path directory) {
+		try {
+			force(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			/* Directories can not be opened on some platforms, renames are durable there anyway. */
+		}
+	}
+
+	/**
+	 * Renames the <tt>source</tt> to the <tt>target</tt> atomically, replacing
+	 * the target if it exists. File systems that can not rename atomically
+	 * fall back to a regular rename.
+	 *
+	 * @param source file to be renamed
+	 * @param target new name of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * A committed temporary file, its target and the future completed when
+	 * the target is durable.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Entry {
+		/** The temporary file */
+		final Path temp;
+		/** The output file */
+		final Path target;
+		/** Future completed when the target is durable */
+		final CompletableFuture<File> future = new CompletableFuture<>();
+
+		/**
+		 * Constructs an entry with the specified arguments.
+		 *
+		 * @param temp the temporary file
+		 * @param target the output file
+		 */
+		Entry(Path temp, Path target) {
+			this.temp = temp;
+			this.target = target;
+		}
+	}
+
+}
@@ -1,5 +1,7 @@
 package encryptor;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Base64;
 
 /**
@@ -11,6 +13,11 @@ public class EncryptorDecryptor {
 
 	/** A constant used for byte encryption and decryption process */
 	private static final int BYTE_ENCRYPTION_CONSTANT = 1;
+	
+	/** Mask of the highest bit of every byte in a long */
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	/** Multiplier that copies a byte into every byte of a long */
+	private static final long EVERY_BYTE = 0x0101010101010101L;
 
 	/**
 	 * Encrypts the first {@code len} bytes of the given array of bytes using
@@ -56,23 +63,51 @@ public class EncryptorDecryptor {
 		return decryptedBytes;
 	}
 	
+	/**
+	 * Decrypts the remaining bytes of the given {@code buffer} in place, as
+	 * {@link #decryptBytes(byte[], int, int)} would, using the given
+	 * {@code hash}. The position of the buffer is not changed.
+	 * <p>
+	 * Eight bytes are decrypted at a time by adding the negated shift to every
+	 * byte of a long, keeping the highest bit of each byte out of the addition
+	 * so that no carry spills into the next byte.
+	 * 
+	 * @param buffer buffer with the bytes to be decrypted
+	 * @param hash hash used for decryption
+	 */
+	public static void decryptBytes(ByteBuffer buffer, int hash) {
+		int shift = -(hash + BYTE_ENCRYPTION_CONSTANT) & 0xFF;
+		long shifts = shift * EVERY_BYTE;
+		ByteBuffer longs = buffer.duplicate().order(ByteOrder.nativeOrder());
+		
+		int i = buffer.position();
+		int end = buffer.limit();
+		for (; i <= end - Long.BYTES; i += Long.BYTES) {
+			long x = longs.getLong(i);
+			long sum = (x & ~HIGH_BITS) + (shifts & ~HIGH_BITS);
+			longs.putLong(i, sum ^ ((x ^ shifts) & HIGH_BITS));
+		}
+		for (; i < end; i++) {
+			buffer.put(i, (byte) (buffer.get(i) + shift));
+		}
+	}
+	
 	/**
 	 * Encrypts the given {@code name} and returns the encrypted name. The name
-	 * encryption method is done by the {@linkplain Base64} encoding scheme.
+	 * is encoded by the filesystem-safe {@linkplain NameCodec}.
 	 * 
 	 * @param name name to be encrypted
 	 * @return the encrypted name
 	 */
 	public static String encryptName(String name) {
-		byte[] originalBytes = name.getBytes();
-		byte[] encodedBytes = Base64.getEncoder().encode(originalBytes);
-		return new String(encodedBytes);
+		return NameCodec.encode(name);
 	}
 	
 	
 	/**
 	 * Decrypts the given {@code encryptedName} and returns the decrypted name.
-	 * The name decryption method is done by the {@linkplain Base64} decoding
+	 * The name is decoded by the {@linkplain NameCodec}, which also accepts
+	 * names encrypted by older versions in the standard {@linkplain Base64}
 	 * scheme.
 	 * 
 	 * @param encryptedName name to be decrypted
@@ -80,9 +115,7 @@ public class EncryptorDecryptor {
 	 * @throws IllegalArgumentException if {@code encryptedName} is not in valid Base64 scheme
 	 */
 	public static String decryptName(String encryptedName) {
-		byte[] encodedBytes = encryptedName.getBytes();
-		byte[] originalBytes = Base64.getDecoder().decode(encodedBytes);
-		return new String(originalBytes);
+		return NameCodec.decode(encryptedName);
 	}
 
 }
@@ -5,8 +5,13 @@ import java.awt.event.*;
 import javax.swing.*;
 
 import java.io.*;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
 import static encryptor.EncryptorDecryptor.*;
 import static encryptor.ConstantsAndMethods.*;
@@ -22,13 +27,10 @@ public class EncryptorPanel extends JPanel {
 	private static final long serialVersionUID = 1L;
 	
 	/** List model where chosen files are stored */
-	private DefaultListModel<File> listModel = new DefaultListModel<>();
+	private FileListModel listModel = new FileListModel();
 	/** Visual representation of a list model, showing chosen files */
 	private JList<File> filesList = new JList<>(listModel);
 	
-	/** A simple file chooser */
-	private JFileChooser chooser = FileEncryptorFrame.chooser;
-	
 	/** A checkbox for optional original files deletion. */
 	private JCheckBox deleteFilesBox;
 	/** A checkbox for optional file name encryption */
@@ -57,33 +59,18 @@ public class EncryptorPanel extends JPanel {
 	/** The initial progress bar foreground color */
 	private Color initialProgressBarColor = progressBar.getForeground();
 	
-	/** Hash of entered password, used for encrypting files */
-	private String passwordHash;
+	/** A working thread that reads the attributes of chosen files */
+	private FileScanner scanner;
+	/** The working thread of the current encryption, null if none was started */
+	private EncryptWorker worker;
+	
+	/** The entered password, used for encrypting files */
+	private char[] password;
 	
 	/** A listener which calls the function to delete the selected files */
 	private ActionListener removeListener = (e) -> {
-		List<File> selected = filesList.getSelectedValuesList();
-		for (File file : selected) {
-			listModel.removeElement(file);
-		}
-		
-		List<File> remaining = Collections.list(listModel.elements());
-		if (remaining.size() == 0) {
-			removeBtn.setEnabled(false);
-			totalFiles = 0;
-			totalSize = 0L;
-			totalFilesTf.setText("0");
-			totalSizeTf.setText("0 B");
-		} else {
-			totalFiles = remaining.size();
-			totalSize = 0L;
-			for (File file : remaining) {
-				totalSize += file.length();
-			}
-			
-			totalFilesTf.setText(Integer.toString(totalFiles));
-			totalSizeTf.setText(humanReadableByteCount(totalSize));
-		}
+		listModel.removeAll(filesList.getSelectedIndices());
+		updateTotals();
 	};
 
 	/**
@@ -104,6 +91,7 @@ public class EncryptorPanel extends JPanel {
 		/* Style the central panel and add the files list to it. */
 		center.setBorder(BorderFactory.createTitledBorder("Files"));
 		center.add(new JScrollPane(filesList));
+		filesList.setPrototypeCellValue(FileListModel.PROTOTYPE_FILE);
 
 		/* Add a check box panel and add check boxes to it. */
 		JPanel checkBoxPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
@@ -184,7 +172,9 @@ public class EncryptorPanel extends JPanel {
 		lowerBtns.add(cancelBtn, BorderLayout.LINE_END);
 		
 		cancelBtn.addActionListener((e) -> {
-			
+			if (worker != null) {
+				worker.cancel();
+			}
 		});
 	}
 	
@@ -212,12 +202,7 @@ public class EncryptorPanel extends JPanel {
 		cancelBtn.setEnabled(true);
 		
 		/* Execute the task on a working thread and listen for progress change. */
-		EncryptWorker worker = new EncryptWorker();
-		
-		cancelBtn.addActionListener((e) -> {
-			worker.cancel();
-		});
-
+		worker = new EncryptWorker();
 		worker.addPropertyChangeListener((evt) -> {
 			if ("progress".equals(evt.getPropertyName())) {
 				Integer progress = (Integer) evt.getNewValue();
@@ -233,6 +218,7 @@ public class EncryptorPanel extends JPanel {
 	 */
 	private void loadFiles() {
 		/* File chooser settings */
+		JFileChooser chooser = FileEncryptorFrame.getChooser();
 		chooser.setDialogTitle("Load files for encryption");
 		chooser.setMultiSelectionEnabled(true);
 		
@@ -243,28 +229,39 @@ public class EncryptorPanel extends JPanel {
 		if (retVal == JFileChooser.APPROVE_OPTION) {
 			/* Get selected files and clear the previously selected. */
 			File[] files = chooser.getSelectedFiles();
-			listModel.clear();
-
-			/* Set the total size initially to 0 */
-			totalSize = 0L;
-
-			/* Add newly selected files to the list model. */
-			for (File file : files) {
-				listModel.addElement(file);
-				totalSize += file.length();
+			if (scanner != null) {
+				scanner.cancel(true);
 			}
-			totalFiles = files.length;
+			listModel.clear();
+			updateTotals();
 			
-			/* Enable the remove button. */
-			removeBtn.setEnabled(true);
-
-			/* Set the total number of files text field. */
-			totalFilesTf.setText(Integer.toString(totalFiles));
-			/* Set the total size text field to a human readable size. */
-			totalSizeTf.setText(humanReadableByteCount(totalSize));
+			/* Add newly selected files to the list model as their attributes
+			 * are read in background. Wait for all of them before starting. */
+			encryptBtn.setEnabled(false);
+			scanner = new FileScanner(files, listModel, this::updateTotals, () -> {
+				encryptBtn.setEnabled(true);
+			});
+			scanner.execute();
 		}
 	}
 	
+	/**
+	 * Updates the total number and the total size of chosen files, and their
+	 * text fields, from the list model.
+	 */
+	private void updateTotals() {
+		totalFiles = listModel.getSize();
+		totalSize = listModel.getTotalSize();
+		
+		/* Enable the remove button only if there is something to remove. */
+		removeBtn.setEnabled(totalFiles > 0);
+
+		/* Set the total number of files text field. */
+		totalFilesTf.setText(Integer.toString(totalFiles));
+		/* Set the total size text field to a human readable size. */
+		totalSizeTf.setText(humanReadableByteCount(totalSize));
+	}
+	
 	/**
 	 * A working thread for encrypting a list of files chosen by the user.
 	 *
@@ -273,10 +270,17 @@ public class EncryptorPanel extends JPanel {
 	private class EncryptWorker extends SwingWorker<Void, Void> {
 		
 		/** Variable used for tracking the progress */
-		private long totalEncryptedSize;
+		private AtomicLong totalEncryptedSize = new AtomicLong();
 		
 		/** Indicates if the user must be prompted to overwrite existing files */
 		private boolean overwritePrompt = true;
+		
+		/** Durable output of the batch, null if not durable */
+		private DurableOutput output;
+		/** Checksum manifest of the batch */
+		private Manifest manifest;
+		/** Name indexes of the directories of the batch */
+		private final Map<File, NameIndex> nameIndexes = new HashMap<>();
 
 		/**
 		 * Prepares the chosen files and encrypts them in background.
@@ -284,7 +288,8 @@ public class EncryptorPanel extends JPanel {
 		@Override
 		protected Void doInBackground() throws Exception {
 			/* Load all files to a list. */
-			List<File> files = Collections.list(listModel.elements());
+			List<File> files = listModel.toList();
+			long[] sizes = listModel.toSizeArray();
 
 			/* Prompt the user to enter the password.
 			 * If the user hit cancel, cancel the encryption. */
@@ -294,82 +299,195 @@ public class EncryptorPanel extends JPanel {
 			}
 			
 			/* Prepare the progress bar variable */
-			totalEncryptedSize = 0L;
+			totalEncryptedSize.set(0L);
+			
+			boolean deleteFiles = deleteFilesBox.isSelected();
+			boolean encryptNames = encryptNamesBox.isSelected();
 
-			/* Encrypt all selected files. Make sure they exist. */
-			for (File file : files) {
-				if (!file.exists()) {
-					showInformation(EncryptorPanel.this, "File " + file + " no longer exists.\nContinuing...");
-					continue;
-				}
+			/* Derive the key once for the whole batch. */
+			KeyDerivation keyDerivation = KeyDerivation.newParameters();
 
-				encryptFile(file, passwordHash, deleteFilesBox.isSelected(), encryptNamesBox.isSelected());
+			/* Encrypt all selected files in parallel. */
+			BatchEngine engine = new BatchEngine();
+			output = DurableOutput.isEnabled() ? new DurableOutput() : null;
+			manifest = new Manifest(Manifest.getAlgorithm());
+			try {
+				engine.execute(files, sizes, (file, size) -> {
+					encryptFile(file, size, keyDerivation, deleteFiles, encryptNames);
+				});
+			} finally {
+				/* Workers abandoned by a cancel still use the password, clean up only once they stop. */
+				engine.awaitStopped();
+				boolean interrupted = Thread.interrupted();
+				try {
+					saveNameIndexes(keyDerivation);
+					Arrays.fill(password, '\0');
+					KeyDerivation.clearCache();
+					if (output != null) {
+						output.close();
+					}
+					manifest.write();
+				} finally {
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+					if (isCancelled()) {
+						/* A cancelled task is done at once, enable the controls only now. */
+						SwingUtilities.invokeLater(this::enableControls);
+					}
+				}
 			}
 
 			return null;
 		}
 
 		/**
-		 * Encrypts the given {@code file} using the given {@code hash}.
+		 * Encrypts the given {@code file} using the entered password.
 		 * 
 		 * @param file file to be encrypted
-		 * @param hash hash to be used when encrypting this file
+		 * @param size size of the file, as read when it was chosen
+		 * @param keyDerivation parameters used for deriving the key
 		 * @param deleteFile deletes the original file after encrypting if true
 		 * @param encryptName encrypts the file name upon encrypting the file
 		 */
-		private void encryptFile(File file, String hash, boolean deleteFile, boolean encryptName) {
+		private void encryptFile(File file, long size, KeyDerivation keyDerivation, boolean deleteFile, boolean encryptName) {
 			String newFileName = (encryptName ? encryptName(file.getName()) : file.getName()) + FILE_EXTENSION;
 			File outputFile = new File(file.getParentFile(), newFileName);
 			
 			/* Ask the user if he wants to overwrite the file. */
-			if (overwritePrompt && outputFile.exists()) {
-				boolean overwrite = showQuestion(EncryptorPanel.this,
-						"File " + outputFile + " already exists.\nOverwrite this file" + (totalFiles==1?"?":"and future files?"));
-				if (overwrite == true) {
-					overwritePrompt = false;
-				} else {
-					return;
+			synchronized (this) {
+				if (overwritePrompt && outputFile.exists()) {
+					boolean overwrite = showQuestion(EncryptorPanel.this,
+							"File " + outputFile + " already exists.\nOverwrite this file" + (totalFiles==1?"?":"and future files?"));
+					if (overwrite == true) {
+						overwritePrompt = false;
+					} else {
+						return;
+					}
 				}
 			}
 			
-			/* Prepare the streams. */
-			try (
-					BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
-					BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
-			) {
-
-				int len;
-				byte[] bytes = new byte[STD_LOADER_SIZE];
-				Crypto crypto = new Crypto(hash, Crypto.ENCRYPT);
-				
-				while ((len = in.read(bytes)) > 0 && !isCancelled()) {
-					byte[] encryptedBytes = crypto.update(bytes, 0, len);
-					out.write(encryptedBytes);
-					
-					/* Update the progress bar. */
-					totalEncryptedSize += len;
-					setProgress((int) (100 * totalEncryptedSize / totalSize));
+			/* Encrypt the file and update the progress bar. */
+			LongConsumer progress = (len) -> {
+				long processed = totalEncryptedSize.addAndGet(len);
+				if (totalSize > 0) {
+					setProgress((int) Math.min(100, 100 * processed / totalSize));
+				}
+			};
+			/* Output is written to a temporary file and renamed when complete, so
+			 * a failed or cancelled file leaves nothing behind but the original. */
+			File tempFile = DurableOutput.tempFile(outputFile);
+			CompletableFuture<File> durable = null;
+			try {
+				/* Files that will be deleted are encrypted in place, without a second copy. */
+				if (deleteFile && size >= InPlaceCrypto.MIN_SIZE) {
+					InPlaceCrypto.encrypt(file, outputFile, password, keyDerivation, progress);
+					manifest.put(outputFile, null);
+				} else {
+					Crypto crypto = new Crypto(password, keyDerivation, Crypto.ENCRYPT);
+					Manifest.Digest digest = manifest.newDigest();
+					crypto.setDigest(digest);
+					crypto.setSourceSize(size);
+					crypto.execute(file, tempFile, progress);
+					manifest.put(outputFile, digest);
+					if (output != null) {
+						durable = output.commit(tempFile, outputFile);
+					} else {
+						DurableOutput.move(tempFile.toPath(), outputFile.toPath());
+					}
 				}
-				out.write(crypto.doFinal());
-				
 			} catch (Exception e) {
-				showError(EncryptorPanel.this, "An error occured while processing file " + file);
+				tempFile.delete();
+				/* Files were checked when chosen, check again only on failure. */
+				if (isCancelled()) {
+					return;
+				} else if (e instanceof WrongPasswordException) {
+					showError(EncryptorPanel.this, "File " + file + " has an unfinished operation with a different password.");
+				} else if (!file.exists()) {
+					showInformation(EncryptorPanel.this, "File " + file + " no longer exists.\nContinuing...");
+				} else {
+					showError(EncryptorPanel.this, "An error occured while processing file " + file);
+				}
 				return;
 			}
 
 			System.out.println("Total encrypted: " + totalEncryptedSize);
 			System.out.println("Total size: " + totalSize);
 			
-			if (deleteFile && !isCancelled()) {
+			if (encryptName && NameIndex.isEnabled()) {
+				NameIndex index = nameIndexOf(file.getAbsoluteFile().getParentFile());
+				if (index != null) {
+					index.put(file.getName(), newFileName);
+				}
+			}
+			
+			if (durable != null) {
+				/* Delete the original only when the output survives a crash. */
+				durable.whenComplete((target, t) -> {
+					if (t != null) {
+						showError(EncryptorPanel.this, "An error occured while saving file " + outputFile);
+					} else if (deleteFile && !isCancelled()) {
+						file.delete();
+					}
+				});
+			} else if (deleteFile && !isCancelled()) {
 				file.delete();
 			}
 		}
 
 		/**
-		 * Simply re-enables every disabled GUI component.
+		 * Returns the name index of the specified <tt>directory</tt>, loading
+		 * it the first time, or null if it can not be loaded.
+		 * 
+		 * @param directory directory of the index
+		 * @return the name index of the directory, or null
+		 */
+		private synchronized NameIndex nameIndexOf(File directory) {
+			if (!nameIndexes.containsKey(directory)) {
+				NameIndex index = null;
+				try {
+					index = NameIndex.load(directory, password);
+				} catch (IOException e) {
+					System.err.println("Can not load the name index of " + directory + ": " + e.getMessage());
+				}
+				nameIndexes.put(directory, index);
+			}
+			return nameIndexes.get(directory);
+		}
+		
+		/**
+		 * Saves the name indexes changed by this batch.
+		 * 
+		 * @param keyDerivation parameters used for deriving the key
+		 */
+		private synchronized void saveNameIndexes(KeyDerivation keyDerivation) {
+			for (NameIndex index : nameIndexes.values()) {
+				if (index == null) {
+					continue;
+				}
+				try {
+					index.save(password, keyDerivation);
+				} catch (IOException e) {
+					System.err.println("Can not save a name index: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Re-enables every disabled GUI component, unless the task was
+		 * cancelled and its workers may still be stopping.
 		 */
 		@Override
 		protected void done() {
+			if (!isCancelled()) {
+				enableControls();
+			}
+		}
+		
+		/**
+		 * Simply re-enables every disabled GUI component.
+		 */
+		private void enableControls() {
 			/* Re-enable GUI components. */
 			encryptBtn.setEnabled(true);
 			addBtn.setEnabled(true);
@@ -433,28 +551,31 @@ public class EncryptorPanel extends JPanel {
 			}
 			
 			/**
-			 * Returns the code of the entered password. If no characters are
-			 * entered, or more formally if {@code password.length == 0}, a
+			 * Returns the entered password. If no characters are entered, or
+			 * more formally if {@code password.length == 0}, a
 			 * {@linkplain NullPointerException} is thrown. If the passwords in
 			 * both fields do not match, an
 			 * {@linkplain IllegalArgumentException} is thrown.
 			 * 
-			 * @return hash of the entered password
+			 * @return the entered password
 			 * @throws NullPointerException if password.length == 0
 			 * @throws IllegalArgumentException if the passwords do not match
 			 */
-			private String getPasswordHash() {
-				if (passwordField1.getPassword().length == 0 || passwordField2.getPassword().length == 0) {
-					throw new NullPointerException("Password not entered.");
-				}
-				
-				String passHash1 = generatePasswordHash(String.valueOf(passwordField1.getPassword()));
-				String passHash2 = generatePasswordHash(String.valueOf(passwordField2.getPassword()));
-				if (!passHash1.equals(passHash2)) {
-					throw new IllegalArgumentException("Passwords do not match.");
+			private char[] getPassword() {
+				char[] password1 = passwordField1.getPassword();
+				char[] password2 = passwordField2.getPassword();
+				try {
+					if (password1.length == 0 || password2.length == 0) {
+						throw new NullPointerException("Password not entered.");
+					}
+					if (!Arrays.equals(password1, password2)) {
+						throw new IllegalArgumentException("Passwords do not match.");
+					}
+					return password1.clone();
+				} finally {
+					Arrays.fill(password1, '\0');
+					Arrays.fill(password2, '\0');
 				}
-				
-				return passHash1;
 			}
 		}
 		
@@ -470,7 +591,7 @@ public class EncryptorPanel extends JPanel {
 						JOptionPane.PLAIN_MESSAGE
 				);
 				if (retVal == JOptionPane.OK_OPTION) {
-					passwordHash = passwordPanel.getPasswordHash();
+					password = passwordPanel.getPassword();
 					return true;
 				} else {
 					return false;
@@ -0,0 +1,210 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.prefs.Preferences;
+
+import static encryptor.ConstantsAndMethods.generatePasswordHash;
+
+/**
+ * Selects the {@linkplain CryptoEngine engine} that processes a file by the
+ * size of the file.
+ * <p>
+ * Files up to the heap threshold are processed by {@link CryptoEngine#HEAP},
+ * files from the pipeline threshold on by {@link CryptoEngine#PIPELINED} and
+ * all files in between by {@link CryptoEngine#STREAM}. Both thresholds are
+ * found by a short benchmark of all engines on files of increasing sizes,
+ * which is run once per machine and remembered in the user preferences. The
+ * thresholds are loaded when the first file is selected, unless the
+ * {@linkplain Warmup} has loaded them already, and the benchmark is run then
+ * in the default temporary directory if there are none yet. The
+ * benchmark is neither throttled nor counted in the {@linkplain Metrics}, so
+ * it does not take from the budget of files processed meanwhile. They can be
+ * overridden with the <tt>encryptor.heapThreshold</tt> and
+ * <tt>encryptor.pipelineThreshold</tt> system properties.
+ *
+ * @author Mario Bobic
+ */
+public class EngineSelector {
+
+	/** Heap threshold used until the benchmark is done */
+	private static final long DEFAULT_HEAP_THRESHOLD = 64 * 1024;
+	/** Pipeline threshold used until the benchmark is done */
+	private static final long DEFAULT_PIPELINE_THRESHOLD = 8 * 1024 * 1024;
+
+	/** Sizes of the files used in the benchmark, in ascending order */
+	private static final int[] BENCHMARK_SIZES = {
+			4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 2 * 1024 * 1024, 4 * 1024 * 1024, 8 * 1024 * 1024
+	};
+	/** Number of times each engine processes each file, the fastest time counts */
+	private static final int BENCHMARK_ROUNDS = 3;
+
+	/** Preference key of the heap threshold */
+	private static final String HEAP_PREFERENCE = "engine.heapThreshold";
+	/** Preference key of the pipeline threshold */
+	private static final String PIPELINE_PREFERENCE = "engine.pipelineThreshold";
+
+	/** Largest file processed by the heap engine */
+	private static volatile long heapThreshold = Long.getLong("encryptor.heapThreshold", DEFAULT_HEAP_THRESHOLD);
+	/** Smallest file processed by the pipelined engine */
+	private static volatile long pipelineThreshold = Long.getLong("encryptor.pipelineThreshold", DEFAULT_PIPELINE_THRESHOLD);
+	/** Indicates if the thresholds are calibrated or given by the system properties */
+	private static volatile boolean calibrated = System.getProperty("encryptor.heapThreshold") != null
+			&& System.getProperty("encryptor.pipelineThreshold") != null;
+
+	/**
+	 * Returns the engine that should process a file of the specified
+	 * <tt>size</tt>, calibrating the thresholds first if they are not yet.
+	 *
+	 * @param size size of the file
+	 * @return the engine for the file
+	 */
+	public static CryptoEngine select(long size) {
+		if (!calibrated) {
+			calibrate(null);
+		}
+		if (size <= heapThreshold) {
+			return CryptoEngine.HEAP;
+		} else if (size >= pipelineThreshold && CryptoEngine.PIPELINED.isAvailable()) {
+			return CryptoEngine.PIPELINED;
+		} else {
+			return CryptoEngine.STREAM;
+		}
+	}
+
+	/**
+	 * Calibrates the thresholds, loading them from the user preferences or
+	 * running the benchmark in the specified <tt>directory</tt> if they have
+	 * not been calibrated on this machine yet. The directory should be on the
+	 * device where files are usually written. Calibrating more than once has
+	 * no effect, and if the benchmark fails, the default thresholds are kept.
+	 *
+	 * @param directory directory of the benchmark files, null for the default
+	 *        temporary directory
+	 */
+	public static synchronized void calibrate(File directory) {
+		if (calibrated) {
+			return;
+		}
+
+		Preferences prefs = Preferences.userNodeForPackage(EngineSelector.class);
+		long heap = prefs.getLong(HEAP_PREFERENCE, -1);
+		long pipeline = prefs.getLong(PIPELINE_PREFERENCE, -1);
+		if (heap < 0 || pipeline < 0) {
+			long[] thresholds;
+			try {
+				thresholds = benchmark(directory);
+			} catch (IOException e) {
+				System.err.println("Can not calibrate the engines: " + e);
+				calibrated = true;
+				return;
+			}
+			heap = thresholds[0];
+			pipeline = thresholds[1];
+			prefs.putLong(HEAP_PREFERENCE, heap);
+			prefs.putLong(PIPELINE_PREFERENCE, pipeline);
+		}
+
+		if (System.getProperty("encryptor.heapThreshold") == null) {
+			heapThreshold = heap;
+		}
+		if (System.getProperty("encryptor.pipelineThreshold") == null) {
+			pipelineThreshold = pipeline;
+		}
+		calibrated = true;
+	}
+
+	/**
+	 * Encrypts temporary files of increasing sizes in the specified
+	 * <tt>directory</tt>, or in the default temporary directory if it is null
+	 * or can not be written to, with every engine and returns the heap and the pipeline
+	 * thresholds. The heap threshold is the
+	 * largest size up to which the heap engine is faster than streaming. The
+	 * pipeline threshold is the smallest size from which the pipelined engine
+	 * stays faster than streaming, or {@link Long#MAX_VALUE} if it never is.
+	 *
+	 * @param directory directory of the benchmark files, may be null
+	 * @return the heap and the pipeline thresholds
+	 * @throws IOException if the temporary files can not be written
+	 */
+	private static long[] benchmark(File directory) throws IOException {
+		Crypto crypto = new Crypto(generatePasswordHash("benchmark"), Crypto.ENCRYPT);
+		byte[] data = new byte[BENCHMARK_SIZES[BENCHMARK_SIZES.length - 1]];
+		new Random(0).nextBytes(data);
+
+		if (directory != null && (!directory.isDirectory() || !directory.canWrite())) {
+			directory = null;
+		}
+		/* The files are deleted when done, or on exit if the benchmark is cut short. */
+		File source = File.createTempFile(".encryptor", ".bench", directory);
+		source.deleteOnExit();
+		File dest = File.createTempFile(".encryptor", ".bench", directory);
+		dest.deleteOnExit();
+		Metrics.setUncounted(true);
+		try {
+			long heap = 0;
+			boolean heapFaster = true;
+			long pipeline = Long.MAX_VALUE;
+
+			/* Run every engine a few times first, so none is measured while still interpreted. */
+			Files.write(source.toPath(), data);
+			for (CryptoEngine engine : new CryptoEngine[] {CryptoEngine.HEAP, CryptoEngine.STREAM, CryptoEngine.PIPELINED}) {
+				if (engine.isAvailable()) {
+					time(engine, crypto, source, dest);
+				}
+			}
+
+			for (int size : BENCHMARK_SIZES) {
+				try (OutputStream out = Files.newOutputStream(source.toPath())) {
+					out.write(data, 0, size);
+				}
+
+				long heapNanos = time(CryptoEngine.HEAP, crypto, source, dest);
+				long streamNanos = time(CryptoEngine.STREAM, crypto, source, dest);
+				long pipelinedNanos = CryptoEngine.PIPELINED.isAvailable()
+						? time(CryptoEngine.PIPELINED, crypto, source, dest) : Long.MAX_VALUE;
+
+				heapFaster &= heapNanos < streamNanos;
+				if (heapFaster) {
+					heap = size;
+				}
+				if (pipelinedNanos < streamNanos) {
+					pipeline = Math.min(pipeline, size);
+				} else {
+					pipeline = Long.MAX_VALUE;
+				}
+			}
+
+			return new long[] {heap, pipeline};
+		} finally {
+			Metrics.setUncounted(false);
+			source.delete();
+			dest.delete();
+		}
+	}
+
+	/**
+	 * Returns the shortest time in which the specified <tt>engine</tt>
+	 * encrypts the <tt>source</tt> file, out of {@link #BENCHMARK_ROUNDS} runs.
+	 *
+	 * @param engine engine to be measured
+	 * @param crypto crypto used for encrypting
+	 * @param source file to be encrypted
+	 * @param dest file to be created
+	 * @return the shortest time in nanoseconds
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static long time(CryptoEngine engine, Crypto crypto, File source, File dest) throws IOException {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+			long start = System.nanoTime();
+			engine.execute(crypto, source, dest, (len) -> {});
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+}
@@ -0,0 +1,196 @@
+package encryptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A sort of pairs of strings by their keys that runs in constant memory. The
+ * pairs are collected into runs of {@value #RUN_PAIRS} pairs, and each run is
+ * sorted in memory and written to a temporary file. The runs are merged when
+ * the pairs are read back. Pairs with equal keys are read in the order they
+ * were added, so the last value added for a key is the last one read.
+ *
+ * @author Mario Bobic
+ */
+class ExternalSort implements Closeable {
+
+	/** Number of pairs sorted in memory at once */
+	private static final int RUN_PAIRS = 1 << 16;
+
+	/** Pairs of the run not yet written, a key and a value each */
+	private final List<String[]> pairs = new ArrayList<>();
+	/** Files of the runs written so far */
+	private final List<File> runs = new ArrayList<>();
+
+	/**
+	 * Adds a pair with the specified <tt>key</tt> and <tt>value</tt>.
+	 *
+	 * @param key key of the pair
+	 * @param value value of the pair, may be null
+	 * @throws IOException if a run can not be written
+	 */
+	public void add(String key, String value) throws IOException {
+		pairs.add(new String[] {key, value});
+		if (pairs.size() >= RUN_PAIRS) {
+			spill();
+		}
+	}
+
+	/**
+	 * Passes all pairs added to the <tt>consumer</tt> in the order of their
+	 * keys. The pairs are read only once.
+	 *
+	 * @param consumer consumer of the pairs
+	 * @throws IOException if a run can not be read or the consumer fails
+	 */
+	public void forEach(PairConsumer consumer) throws IOException {
+		if (runs.isEmpty()) {
+			pairs.sort(Comparator.comparing((String[] pair) -> pair[0]));
+			for (String[] pair : pairs) {
+				consumer.accept(pair[0], pair[1]);
+			}
+			pairs.clear();
+			return;
+		}
+		if (!pairs.isEmpty()) {
+			spill();
+		}
+
+		/* Equal keys are taken from the earlier run first, which keeps the order they were added in. */
+		PriorityQueue<Run> queue = new PriorityQueue<>(runs.size(),
+				Comparator.comparing((Run run) -> run.key).thenComparingInt((run) -> run.index));
+		List<Run> open = new ArrayList<>(runs.size());
+		try {
+			for (int i = 0; i < runs.size(); i++) {
+				Run run = new Run(runs.get(i), i);
+				open.add(run);
+				if (run.next()) {
+					queue.add(run);
+				}
+			}
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				consumer.accept(run.key, run.value);
+				if (run.next()) {
+					queue.add(run);
+				}
+			}
+		} finally {
+			for (Run run : open) {
+				run.in.close();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of the runs.
+	 */
+	@Override
+	public void close() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		pairs.clear();
+	}
+
+	/**
+	 * Sorts the pairs not yet written and writes them to a new run.
+	 *
+	 * @throws IOException if the run can not be written
+	 */
+	private void spill() throws IOException {
+		pairs.sort(Comparator.comparing((String[] pair) -> pair[0]));
+		File run = Files.createTempFile("encryptor", ".run").toFile();
+		runs.add(run);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+			for (String[] pair : pairs) {
+				out.writeUTF(pair[0]);
+				out.writeBoolean(pair[1] != null);
+				if (pair[1] != null) {
+					out.writeUTF(pair[1]);
+				}
+			}
+		}
+		pairs.clear();
+	}
+
+	/**
+	 * A consumer of the pairs of a sort, which may fail with an I/O error.
+	 *
+	 * @author Mario Bobic
+	 */
+	@FunctionalInterface
+	interface PairConsumer {
+
+		/**
+		 * Accepts a pair with the specified <tt>key</tt> and <tt>value</tt>.
+		 *
+		 * @param key key of the pair
+		 * @param value value of the pair, may be null
+		 * @throws IOException if an I/O error occurs
+		 */
+		void accept(String key, String value) throws IOException;
+
+	}
+
+	/**
+	 * A run being read while the runs are merged.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Run {
+
+		/** Input of the run */
+		private final DataInputStream in;
+		/** Index of the run, in the order the runs were written */
+		private final int index;
+		/** Key of the current pair */
+		private String key;
+		/** Value of the current pair, may be null */
+		private String value;
+
+		/**
+		 * Opens the run in the specified <tt>file</tt>.
+		 *
+		 * @param file file of the run
+		 * @param index index of the run
+		 * @throws IOException if the run can not be opened
+		 */
+		private Run(File file, int index) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			this.index = index;
+		}
+
+		/**
+		 * Reads the next pair of this run.
+		 *
+		 * @return true if a pair was read, false at the end of the run
+		 * @throws IOException if the run can not be read
+		 */
+		private boolean next() throws IOException {
+			try {
+				key = in.readUTF();
+			} catch (EOFException e) {
+				return false;
+			}
+			value = in.readBoolean() ? in.readUTF() : null;
+			return true;
+		}
+
+	}
+
+}
@@ -2,16 +2,18 @@ package encryptor;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 public class FileEncryptorFrame extends JFrame {
 	private static final long serialVersionUID = 1L;
 	
-	private EncryptorPanel encryptorPanel = new EncryptorPanel();
-	private DecryptorPanel decryptorPanel = new DecryptorPanel();
-	
-	/** A simple file chooser */
-	public static JFileChooser chooser = new JFileChooser();
+	/** A simple file chooser, created when first needed */
+	private static JFileChooser chooser;
 	
 	/**
 	 * Constructs and initializes this window with GUI components.
@@ -40,13 +42,50 @@ public class FileEncryptorFrame extends JFrame {
 		top.add(createMenuBar());
 
 		JTabbedPane tabs = new JTabbedPane();
-		tabs.add("Encryptor", encryptorPanel);
-		tabs.add("Decryptor", decryptorPanel);
-		tabs.setSelectedComponent(encryptorPanel);
+		tabs.add("Encryptor", new EncryptorPanel());
+		addLazyTab(tabs, "Decryptor", DecryptorPanel::new);
+		tabs.setSelectedIndex(0);
 		
 		cp.add(tabs);
 	}
 	
+	/**
+	 * Adds a tab whose component is created only when the tab is first
+	 * selected. Until then, the tab holds an empty placeholder.
+	 * 
+	 * @param tabs the tabbed pane to which the tab will be added
+	 * @param title title of the tab
+	 * @param factory creates the component of the tab
+	 */
+	private static void addLazyTab(JTabbedPane tabs, String title, Supplier<JComponent> factory) {
+		JPanel placeholder = new JPanel();
+		tabs.add(title, placeholder);
+		
+		tabs.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				if (tabs.getSelectedComponent() == placeholder) {
+					tabs.removeChangeListener(this);
+					tabs.setComponentAt(tabs.indexOfComponent(placeholder), factory.get());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Returns the file chooser shared by all panels, creating it on first use.
+	 * The file chooser is slow to create, so it is not created until a panel
+	 * needs it. This method must be called on the Event Dispatch Thread.
+	 * 
+	 * @return the file chooser shared by all panels
+	 */
+	public static JFileChooser getChooser() {
+		if (chooser == null) {
+			chooser = new JFileChooser();
+		}
+		return chooser;
+	}
+	
 	/**
 	 * Creates and returns the menu bar to be added to the GUI.
 	 * 
@@ -56,12 +95,15 @@ public class FileEncryptorFrame extends JFrame {
 		JMenuBar menuBar = new JMenuBar();
 		
 		JMenu fileMenu = new JMenu("File");
+		JMenu optionsMenu = new JMenu("Options");
 		JMenu helpMenu = new JMenu("Help");
 		
 		menuBar.add(fileMenu);
+		menuBar.add(optionsMenu);
 		menuBar.add(helpMenu);
 		
 		fileMenu.setMnemonic(KeyEvent.VK_F);
+		optionsMenu.setMnemonic(KeyEvent.VK_O);
 		helpMenu.setMnemonic(KeyEvent.VK_H);
 
 		JMenuItem exitItem =
@@ -71,6 +113,21 @@ public class FileEncryptorFrame extends JFrame {
 			System.exit(0);
 		});
 		
+		JMenuItem throttleItem =
+				createMenuItem(optionsMenu, "I/O limit...", KeyEvent.VK_L, null, "Limits the rate of reading and writing files");
+		throttleItem.addActionListener((e) -> {
+			showThrottle();
+		});
+		
+		JCheckBoxMenuItem directItem = new JCheckBoxMenuItem("Direct I/O", DirectIO.isEnabled());
+		directItem.setMnemonic(KeyEvent.VK_D);
+		directItem.setToolTipText("Bypasses the system cache when reading and writing files");
+		directItem.setEnabled(DirectIO.isSupported());
+		directItem.addActionListener((e) -> {
+			DirectIO.setEnabled(directItem.isSelected());
+		});
+		optionsMenu.add(directItem);
+		
 		JMenuItem aboutItem =
 				createMenuItem(helpMenu, "About File Encryptor", -1, null, "Shows information about this program");
 		aboutItem.addActionListener((e) -> {
@@ -110,6 +167,50 @@ public class FileEncryptorFrame extends JFrame {
 		return item;
 	}
 	
+	/**
+	 * Shows the dialog for changing the limits of the global
+	 * {@linkplain Throttle} while files are being processed.
+	 */
+	private void showThrottle() {
+		Throttle throttle = Throttle.GLOBAL;
+		
+		JPanel panel = new JPanel(new GridLayout(0, 2, 5, 3));
+		/* Bytes are shown exactly, a limit set through JMX may be below one kiB. */
+		String bytesText = Long.toString(throttle.getBytesPerSecond());
+		String operationsText = Long.toString(throttle.getOperationsPerSecond());
+		JTextField bytesTf = new JTextField(bytesText);
+		JTextField operationsTf = new JTextField(operationsText);
+		panel.add(new JLabel("Bytes per second:"));
+		panel.add(bytesTf);
+		panel.add(new JLabel("Operations per second:"));
+		panel.add(operationsTf);
+		panel.add(new JLabel("Enter 0 for no limit."));
+		
+		int retVal = JOptionPane.showConfirmDialog(this, panel, "I/O limit", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if (retVal != JOptionPane.OK_OPTION) {
+			return;
+		}
+		
+		try {
+			/* Only the limits changed by the user are set, the others may have changed meanwhile. */
+			String bytes = bytesTf.getText().trim();
+			String operations = operationsTf.getText().trim();
+			long bytesPerSecond = Long.parseLong(bytes);
+			long operationsPerSecond = Long.parseLong(operations);
+			if (bytesPerSecond < 0 || operationsPerSecond < 0) {
+				throw new IllegalArgumentException();
+			}
+			if (!bytes.equals(bytesText)) {
+				throttle.setBytesPerSecond(bytesPerSecond);
+			}
+			if (!operations.equals(operationsText)) {
+				throttle.setOperationsPerSecond(operationsPerSecond);
+			}
+		} catch (IllegalArgumentException e) {
+			ConstantsAndMethods.showError(this, "Limits must be non-negative whole numbers.");
+		}
+	}
+	
 	/**
 	 * Shows the help dialog when the user clicks on the help menu item.
 	 */
@@ -118,6 +219,19 @@ public class FileEncryptorFrame extends JFrame {
 	}
 	
 	public static void main(String[] args) {
+		launch((frame) -> {});
+	}
+	
+	/**
+	 * Starts the warm-up, sets the look and feel and shows a new frame on the
+	 * Event Dispatch Thread, as when the program is launched.
+	 * 
+	 * @param onShown called on the Event Dispatch Thread with the frame once it is shown
+	 */
+	static void launch(Consumer<FileEncryptorFrame> onShown) {
+		/* Load the crypto providers while the window is being built. */
+		Warmup.start();
+		
 		String syslaf = UIManager.getSystemLookAndFeelClassName();
 		try {
 			UIManager.setLookAndFeel(syslaf);
@@ -127,8 +241,12 @@ public class FileEncryptorFrame extends JFrame {
 			System.err.println("Falling back to the standard look and feel.");
 		}
 
+		Metrics.register();
+
 		SwingUtilities.invokeLater(() -> {
-			new FileEncryptorFrame().setVisible(true);
+			FileEncryptorFrame frame = new FileEncryptorFrame();
+			frame.setVisible(true);
+			onShown.accept(frame);
 		});
 	}
 
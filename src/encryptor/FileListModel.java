@@ -0,0 +1,203 @@
+package encryptor;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * A list model of files chosen by the user, along with their sizes.
+ * <p>
+ * Files are kept along with their sizes, taken from their attributes read
+ * once when the files are chosen. Sizes are kept in a plain array, and the
+ * total size of all files is kept up to date as files are added and removed,
+ * so no file is ever asked for its size twice. Files can be added and removed in bulk with
+ * a single change event, which keeps lists of hundreds of thousands of files
+ * responsive.
+ *
+ * @author Mario Bobic
+ */
+public class FileListModel extends AbstractListModel<File> {
+	private static final long serialVersionUID = 1L;
+
+	/** A file used for measuring list cells, so they are not measured one by one */
+	public static final File PROTOTYPE_FILE = new File(String.format("%064d", 0));
+
+	/** Initial capacity of the arrays */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Files in this model */
+	private File[] files = new File[INITIAL_CAPACITY];
+	/** Sizes of the files in this model */
+	private long[] sizes = new long[INITIAL_CAPACITY];
+	/** Number of files in this model */
+	private int size;
+	/** Total size of all files in this model */
+	private long totalSize;
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public File getElementAt(int index) {
+		checkIndex(index);
+		return files[index];
+	}
+
+	/**
+	 * Returns the size of the file at the specified <tt>index</tt>.
+	 *
+	 * @param index index of the file
+	 * @return the size of the file at the specified index
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	public long getFileSize(int index) {
+		checkIndex(index);
+		return sizes[index];
+	}
+
+	/**
+	 * Returns the total size of all files in this model.
+	 *
+	 * @return the total size of all files
+	 */
+	public long getTotalSize() {
+		return totalSize;
+	}
+
+	/**
+	 * Adds the specified <tt>files</tt> with their <tt>fileAttributes</tt> to
+	 * the end of this model.
+	 *
+	 * @param files files to be added
+	 * @param fileAttributes attributes of the files to be added
+	 * @throws IllegalArgumentException if the arrays differ in length
+	 */
+	public void addAll(File[] files, BasicFileAttributes[] fileAttributes) {
+		if (files.length != fileAttributes.length) {
+			throw new IllegalArgumentException("Expected " + files.length + " attributes, got " + fileAttributes.length);
+		}
+		if (files.length == 0) {
+			return;
+		}
+
+		int count = files.length;
+		ensureCapacity(size + count);
+		System.arraycopy(files, 0, this.files, size, count);
+		for (int i = 0; i < count; i++) {
+			long fileSize = fileAttributes[i].size();
+			sizes[size + i] = fileSize;
+			totalSize += fileSize;
+		}
+
+		int first = size;
+		size += count;
+		fireIntervalAdded(this, first, size - 1);
+	}
+
+	/**
+	 * Removes files at the specified <tt>indices</tt> from this model. The
+	 * indices must be sorted in ascending order, as returned by
+	 * {@linkplain javax.swing.JList#getSelectedIndices()}.
+	 *
+	 * @param indices indices of the files to be removed, in ascending order
+	 * @throws IndexOutOfBoundsException if an index is out of range
+	 */
+	public void removeAll(int[] indices) {
+		if (indices.length == 0) {
+			return;
+		}
+		checkIndex(indices[0]);
+		checkIndex(indices[indices.length - 1]);
+
+		/* Move each kept file once, to its final place. */
+		int first = indices[0];
+		int next = 0;
+		int kept = first;
+		for (int i = first; i < size; i++) {
+			if (next < indices.length && indices[next] == i) {
+				totalSize -= sizes[i];
+				next++;
+			} else {
+				files[kept] = files[i];
+				sizes[kept] = sizes[i];
+				kept++;
+			}
+		}
+
+		int oldSize = size;
+		Arrays.fill(files, kept, oldSize, null);
+		size = kept;
+
+		fireIntervalRemoved(this, first, oldSize - 1);
+		if (size > first) {
+			fireIntervalAdded(this, first, size - 1);
+		}
+	}
+
+	/**
+	 * Removes all files from this model.
+	 */
+	public void clear() {
+		if (size == 0) {
+			return;
+		}
+
+		int oldSize = size;
+		files = new File[INITIAL_CAPACITY];
+		sizes = new long[INITIAL_CAPACITY];
+		size = 0;
+		totalSize = 0L;
+		fireIntervalRemoved(this, 0, oldSize - 1);
+	}
+
+	/**
+	 * Returns a list of all files in this model.
+	 *
+	 * @return a list of all files in this model
+	 */
+	public List<File> toList() {
+		return Arrays.asList(Arrays.copyOf(files, size));
+	}
+
+	/**
+	 * Returns an array of sizes of all files in this model, in the order of
+	 * {@link #toList()}.
+	 *
+	 * @return an array of sizes of all files in this model
+	 */
+	public long[] toSizeArray() {
+		return Arrays.copyOf(sizes, size);
+	}
+
+	/**
+	 * Grows the arrays, if necessary, to hold at least the specified number
+	 * of files.
+	 *
+	 * @param capacity the desired minimum capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > files.length) {
+			int newCapacity = Math.max(capacity, files.length + (files.length >> 1));
+			files = Arrays.copyOf(files, newCapacity);
+			sizes = Arrays.copyOf(sizes, newCapacity);
+		}
+	}
+
+	/**
+	 * Checks if the specified <tt>index</tt> is in range.
+	 *
+	 * @param index index to be checked
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+}
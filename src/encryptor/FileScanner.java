@@ -0,0 +1,119 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+/**
+ * A working thread that reads the attributes of chosen files in parallel and
+ * adds the files to a {@linkplain FileListModel} in chunks, as their
+ * attributes arrive. Files that do not exist or are not regular files are
+ * left out.
+ * <p>
+ * The number of threads used for reading the attributes can be changed with
+ * the <tt>encryptor.scanThreads</tt> system property. Reading attributes is
+ * limited by latency rather than by bandwidth, especially on network shares,
+ * so it uses more threads than there are processors.
+ *
+ * @author Mario Bobic
+ */
+public class FileScanner extends SwingWorker<Void, Void> {
+
+	/** Number of files whose attributes are read by a single task */
+	private static final int CHUNK_SIZE = 256;
+	/** Number of threads used for reading the attributes */
+	private static final int THREADS = Math.max(1, Integer.getInteger("encryptor.scanThreads", 16));
+
+	/** Files to be scanned */
+	private final File[] files;
+	/** Model where the scanned files are added */
+	private final FileListModel model;
+	/** Called on the Event Dispatch Thread after each chunk is added */
+	private final Runnable onUpdate;
+	/** Called on the Event Dispatch Thread when the scan is finished, unless cancelled */
+	private final Runnable onDone;
+
+	/**
+	 * Constructs an instance of {@code FileScanner} with the specified arguments.
+	 *
+	 * @param files files to be scanned
+	 * @param model model where the scanned files are added
+	 * @param onUpdate called after each chunk of files is added to the model
+	 * @param onDone called when the scan is finished, unless cancelled
+	 */
+	public FileScanner(File[] files, FileListModel model, Runnable onUpdate, Runnable onDone) {
+		this.files = files;
+		this.model = model;
+		this.onUpdate = onUpdate;
+		this.onDone = onDone;
+	}
+
+	@Override
+	protected Void doInBackground() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			for (int start = 0; start < files.length; start += CHUNK_SIZE) {
+				int from = start;
+				int to = Math.min(start + CHUNK_SIZE, files.length);
+				pool.execute(() -> scan(from, to));
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the attributes of files in the specified range and adds them to
+	 * the model on the Event Dispatch Thread.
+	 *
+	 * @param from index of the first file, inclusive
+	 * @param to index of the last file, exclusive
+	 */
+	private void scan(int from, int to) {
+		File[] scanned = new File[to - from];
+		BasicFileAttributes[] attributes = new BasicFileAttributes[to - from];
+		int count = 0;
+
+		for (int i = from; i < to && !isCancelled(); i++) {
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(files[i].toPath(), BasicFileAttributes.class);
+				if (attrs.isRegularFile()) {
+					scanned[count] = files[i];
+					attributes[count] = attrs;
+					count++;
+				}
+			} catch (IOException e) {
+				// Leave out files that no longer exist or can not be read
+			}
+		}
+
+		/* Add the chunk in order with the call to done(), which is also invoked later. */
+		File[] chunk = Arrays.copyOf(scanned, count);
+		BasicFileAttributes[] chunkAttributes = Arrays.copyOf(attributes, count);
+		SwingUtilities.invokeLater(() -> {
+			if (!isCancelled()) {
+				model.addAll(chunk, chunkAttributes);
+				onUpdate.run();
+			}
+		});
+	}
+
+	@Override
+	protected void done() {
+		if (!isCancelled()) {
+			onDone.run();
+		}
+	}
+
+}
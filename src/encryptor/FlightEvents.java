@@ -0,0 +1,405 @@
+package encryptor;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom events of the Java Flight Recorder, so that slow files and chunks
+ * can be correlated with garbage collections, safepoints and disk stalls in
+ * the same recording.
+ * <p>
+ * The following events are emitted:
+ * <ul>
+ * <li><tt>encryptor.File</tt> for each file processed by
+ * {@link Crypto#execute(java.io.File, java.io.File, java.util.function.LongConsumer)},
+ * with its length, engine and mode,
+ * <li><tt>encryptor.Chunk</tt> for the read, cipher and write of a chunk of a
+ * file by the {@linkplain CryptoEngine engines}, sampled every
+ * <tt>encryptor.jfrChunkSampling</tt> chunks, 16 by default, and only when
+ * longer than the threshold, 10 ms by default,
+ * <li><tt>encryptor.KeyDerivation</tt> for each key derived from a password,
+ * <li><tt>encryptor.BatchTask</tt> for each file run by a batch worker, with
+ * the time spent waiting for its devices.
+ * </ul>
+ * The settings of the events are in the <tt>encryptor.jfc</tt> profile next
+ * to this class, which is used together with a profile of the Java runtime,
+ * i.e. <tt>-XX:StartFlightRecording=settings=default,settings=encryptor.jfc</tt>.
+ * <p>
+ * The event types are defined at runtime through <tt>jdk.jfr.EventFactory</tt>,
+ * so this class also runs on Java runtimes without the flight recorder, where
+ * no events are emitted. Events that are not enabled in any recording are
+ * not even created, so the events cost a single check per file when nothing
+ * is recorded.
+ *
+ * @author Mario Bobic
+ */
+public class FlightEvents {
+
+	/** Number of chunks of which one is timed */
+	private static final int CHUNK_SAMPLING = Math.max(1, Integer.getInteger("encryptor.jfrChunkSampling", 16));
+
+	/** Category of all events */
+	private static final String CATEGORY = "File Encryptor";
+
+	/** The <tt>newEvent()</tt> method of <tt>jdk.jfr.EventFactory</tt>, null if not available */
+	private static final MethodHandle NEW_EVENT;
+	/** The <tt>getEventType()</tt> method of <tt>jdk.jfr.EventFactory</tt> */
+	private static final MethodHandle GET_EVENT_TYPE;
+	/** The <tt>isEnabled()</tt> method of <tt>jdk.jfr.EventType</tt> */
+	private static final MethodHandle IS_ENABLED;
+	/** The <tt>begin()</tt> method of <tt>jdk.jfr.Event</tt> */
+	private static final MethodHandle BEGIN;
+	/** The <tt>end()</tt> method of <tt>jdk.jfr.Event</tt> */
+	private static final MethodHandle END;
+	/** The <tt>shouldCommit()</tt> method of <tt>jdk.jfr.Event</tt> */
+	private static final MethodHandle SHOULD_COMMIT;
+	/** The <tt>commit()</tt> method of <tt>jdk.jfr.Event</tt> */
+	private static final MethodHandle COMMIT;
+	/** The <tt>set(int, Object)</tt> method of <tt>jdk.jfr.Event</tt> */
+	private static final MethodHandle SET;
+
+	static {
+		MethodHandle newEvent = null, getEventType = null, isEnabled = null, begin = null, end = null,
+				shouldCommit = null, commit = null, set = null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventType = Class.forName("jdk.jfr.EventType");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			newEvent = lookup.findVirtual(factory, "newEvent", MethodType.methodType(event));
+			getEventType = lookup.findVirtual(factory, "getEventType", MethodType.methodType(eventType));
+			isEnabled = lookup.findVirtual(eventType, "isEnabled", MethodType.methodType(boolean.class));
+			begin = lookup.findVirtual(event, "begin", MethodType.methodType(void.class));
+			end = lookup.findVirtual(event, "end", MethodType.methodType(void.class));
+			shouldCommit = lookup.findVirtual(event, "shouldCommit", MethodType.methodType(boolean.class));
+			commit = lookup.findVirtual(event, "commit", MethodType.methodType(void.class));
+			set = lookup.findVirtual(event, "set", MethodType.methodType(void.class, int.class, Object.class));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			/* No flight recorder in this runtime, the events are never emitted. */
+			newEvent = null;
+		}
+		NEW_EVENT = newEvent;
+		GET_EVENT_TYPE = getEventType;
+		IS_ENABLED = isEnabled;
+		BEGIN = begin;
+		END = end;
+		SHOULD_COMMIT = shouldCommit;
+		COMMIT = commit;
+		SET = set;
+	}
+
+	/** Encryption or decryption of one file */
+	static final Type FILE = new Type("encryptor.File", "File", "Encryption or decryption of one file", null,
+			new Field(String.class, "path", "Path", false),
+			new Field(long.class, "bytes", "Bytes", true),
+			new Field(String.class, "engine", "Engine", false),
+			new Field(String.class, "mode", "Mode", false));
+
+	/** Read, cipher or write of one sampled chunk of a file */
+	static final Type CHUNK = new Type("encryptor.Chunk", "Chunk", "Read, cipher or write of a sampled chunk of a file", "10 ms",
+			new Field(String.class, "path", "Path", false),
+			new Field(String.class, "phase", "Phase", false),
+			new Field(long.class, "bytes", "Bytes", true));
+
+	/** Derivation of a key from a password */
+	static final Type KEY_DERIVATION = new Type("encryptor.KeyDerivation", "Key Derivation", "Derivation of a key from a password", null,
+			new Field(String.class, "algorithm", "Algorithm", false),
+			new Field(int.class, "iterations", "Iterations", false));
+
+	/** One file run by a batch worker */
+	static final Type BATCH_TASK = new Type("encryptor.BatchTask", "Batch Task", "One file run by a batch worker", null,
+			new Field(String.class, "path", "Path", false),
+			new Field(String.class, "devices", "Devices", false),
+			new Field(long.class, "waitMillis", "Device Wait (ms)", false));
+
+	/** Phase of a chunk in which the chunk is read */
+	static final String READ = "read";
+	/** Phase of a chunk in which the chunk is encrypted or decrypted */
+	static final String CIPHER = "cipher";
+	/** Phase of a chunk in which the result is written */
+	static final String WRITE = "write";
+
+	/**
+	 * Returns true if this Java runtime has a flight recorder that the
+	 * events can be emitted to.
+	 *
+	 * @return true if the events are supported
+	 */
+	public static boolean isSupported() {
+		return NEW_EVENT != null;
+	}
+
+	/**
+	 * Returns a timer of the chunks of the file with the specified
+	 * <tt>path</tt>.
+	 *
+	 * @param path path of the file
+	 * @return a timer of the chunks of the file
+	 */
+	static ChunkTimer chunks(Object path) {
+		return new ChunkTimer(path, CHUNK.isEnabled());
+	}
+
+	/**
+	 * Wraps a throwable thrown by a method handle of the flight recorder,
+	 * which only throws unchecked exceptions.
+	 *
+	 * @param t the throwable
+	 * @return the throwable as an unchecked exception
+	 */
+	private static RuntimeException unchecked(Throwable t) {
+		if (t instanceof RuntimeException) {
+			return (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		return new IllegalStateException(t);
+	}
+
+	/**
+	 * A field of an event type.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Field {
+		/** Type of the field */
+		final Class<?> type;
+		/** Name of the field */
+		final String name;
+		/** Label of the field */
+		final String label;
+		/** Indicates if the field is an amount of bytes */
+		final boolean bytes;
+
+		/**
+		 * Constructs a field with the specified arguments.
+		 *
+		 * @param type type of the field
+		 * @param name name of the field
+		 * @param label label of the field
+		 * @param bytes true if the field is an amount of bytes
+		 */
+		Field(Class<?> type, String name, String label, boolean bytes) {
+			this.type = type;
+			this.name = name;
+			this.label = label;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * A type of events, defined in the flight recorder when this class is
+	 * loaded.
+	 *
+	 * @author Mario Bobic
+	 */
+	static class Type {
+		/** The <tt>jdk.jfr.EventFactory</tt> of this type, null if not available */
+		private final Object factory;
+		/** The <tt>jdk.jfr.EventType</tt> of this type, null if not available */
+		private final Object eventType;
+
+		/**
+		 * Defines an event type with the specified arguments.
+		 *
+		 * @param name name of the type
+		 * @param label label of the type
+		 * @param description description of the type
+		 * @param threshold default threshold of the events, null for none
+		 * @param fields fields of the events
+		 */
+		Type(String name, String label, String description, String threshold, Field... fields) {
+			Object factory = null;
+			Object eventType = null;
+			if (NEW_EVENT != null) {
+				try {
+					List<Object> annotations = new ArrayList<>();
+					annotations.add(annotation("jdk.jfr.Name", name));
+					annotations.add(annotation("jdk.jfr.Label", label));
+					annotations.add(annotation("jdk.jfr.Description", description));
+					annotations.add(annotation("jdk.jfr.Category", new String[] {CATEGORY}));
+					annotations.add(annotation("jdk.jfr.StackTrace", false));
+					if (threshold != null) {
+						annotations.add(annotation("jdk.jfr.Threshold", threshold));
+					}
+
+					Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+					Constructor<?> descriptor = descriptorClass.getConstructor(Class.class, String.class, List.class);
+					List<Object> descriptors = new ArrayList<>();
+					for (Field field : fields) {
+						List<Object> fieldAnnotations = new ArrayList<>();
+						fieldAnnotations.add(annotation("jdk.jfr.Label", field.label));
+						if (field.bytes) {
+							fieldAnnotations.add(annotation("jdk.jfr.DataAmount", "BYTES"));
+						}
+						descriptors.add(descriptor.newInstance(field.type, field.name, fieldAnnotations));
+					}
+
+					factory = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class)
+							.invoke(null, annotations, descriptors);
+					eventType = GET_EVENT_TYPE.invoke(factory);
+				} catch (Throwable t) {
+					System.err.println("Can not define flight recorder event " + name + ": " + t);
+					factory = null;
+				}
+			}
+			this.factory = factory;
+			this.eventType = factory != null ? eventType : null;
+		}
+
+		/**
+		 * Returns a new <tt>jdk.jfr.AnnotationElement</tt> of the annotation
+		 * with the specified class name and value.
+		 *
+		 * @param className class name of the annotation
+		 * @param value value of the annotation
+		 * @return a new annotation element
+		 * @throws ReflectiveOperationException if the annotation is not available
+		 */
+		private static Object annotation(String className, Object value) throws ReflectiveOperationException {
+			Class<? extends Annotation> type = Class.forName(className).asSubclass(Annotation.class);
+			return Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class)
+					.newInstance(type, value);
+		}
+
+		/**
+		 * Returns true if events of this type are enabled in a running
+		 * recording.
+		 *
+		 * @return true if events of this type are recorded
+		 */
+		boolean isEnabled() {
+			if (eventType == null) {
+				return false;
+			}
+			try {
+				return (boolean) IS_ENABLED.invoke(eventType);
+			} catch (Throwable t) {
+				throw unchecked(t);
+			}
+		}
+
+		/**
+		 * Begins an event of this type, if this type is recorded.
+		 *
+		 * @return the begun event, or null if this type is not recorded
+		 */
+		Event begin() {
+			if (!isEnabled()) {
+				return null;
+			}
+			try {
+				Object event = NEW_EVENT.invoke(factory);
+				BEGIN.invoke(event);
+				return new Event(event);
+			} catch (Throwable t) {
+				throw unchecked(t);
+			}
+		}
+	}
+
+	/**
+	 * An event that has begun and is committed when it ends.
+	 *
+	 * @author Mario Bobic
+	 */
+	static class Event {
+		/** The <tt>jdk.jfr.Event</tt> */
+		private final Object event;
+
+		/**
+		 * Constructs a wrapper of the specified event.
+		 *
+		 * @param event the <tt>jdk.jfr.Event</tt>
+		 */
+		private Event(Object event) {
+			this.event = event;
+		}
+
+		/**
+		 * Ends this event and commits it with the specified <tt>values</tt>
+		 * of its fields, in the order of the fields, if it passes the
+		 * settings of the recording.
+		 *
+		 * @param values values of the fields
+		 */
+		void commit(Object... values) {
+			try {
+				END.invoke(event);
+				if ((boolean) SHOULD_COMMIT.invoke(event)) {
+					for (int i = 0; i < values.length; i++) {
+						SET.invoke(event, i, values[i]);
+					}
+					COMMIT.invoke(event);
+				}
+			} catch (Throwable t) {
+				throw unchecked(t);
+			}
+		}
+	}
+
+	/**
+	 * Times the phases of every {@value #CHUNK_SAMPLING}-th chunk of a file.
+	 * The other chunks and all chunks of files that are processed while
+	 * chunk events are not recorded cost only a counter and a check.
+	 *
+	 * @author Mario Bobic
+	 */
+	static class ChunkTimer {
+		/** Path of the file */
+		private final String path;
+		/** Indicates if chunk events are recorded */
+		private final boolean enabled;
+		/** Number of chunks processed */
+		private long chunks;
+		/** Event of the phase being timed, null if none */
+		private Event event;
+
+		/**
+		 * Constructs a timer of the chunks of the specified file.
+		 *
+		 * @param path path of the file
+		 * @param enabled true if chunk events are recorded
+		 */
+		private ChunkTimer(Object path, boolean enabled) {
+			this.path = String.valueOf(path);
+			this.enabled = enabled;
+		}
+
+		/**
+		 * Begins timing a phase of the current chunk, if the chunk is sampled.
+		 */
+		void begin() {
+			if (enabled && chunks % CHUNK_SAMPLING == 0) {
+				event = CHUNK.begin();
+			}
+		}
+
+		/**
+		 * Ends timing the phase begun last, if the chunk is sampled.
+		 *
+		 * @param phase the phase, i.e. {@link FlightEvents#READ}
+		 * @param bytes number of bytes of the phase
+		 */
+		void end(String phase, long bytes) {
+			if (event != null) {
+				event.commit(path, phase, bytes);
+				event = null;
+			}
+		}
+
+		/**
+		 * Moves on to the next chunk.
+		 */
+		void next() {
+			chunks++;
+		}
+	}
+
+}
@@ -0,0 +1,931 @@
+package encryptor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encryption and decryption of files in place, without writing a second copy.
+ * <p>
+ * Files are encrypted in place with {@link CipherMode#AES_CTR}, which keeps
+ * every byte at its position. The header can not be inserted in front of the
+ * data without moving all of it, so it takes the place of the first bytes of
+ * the file, and those bytes are encrypted and appended to the end:
+ * <pre>
+ * header | ciphertext of bytes [header length, length) | ciphertext of bytes [0, header length)
+ * </pre>
+ * Such files carry the {@link CryptoHeader#IN_PLACE} flag. They can be
+ * decrypted in place, or copied by {@link Crypto#execute(File, File)} like any
+ * other file.
+ * <p>
+ * Before a file is changed, an undo journal is written next to it. It holds
+ * the bytes the header replaces and, in two alternating slots, a copy of
+ * each batch of data about to be overwritten with a record of the batch, so
+ * the journal never grows beyond two batches of {@value #BATCH_SIZE} bytes. A
+ * batch is recorded only when its copy is durable, and the next batch is
+ * copied only when the data of the previous one is durable, so the data in
+ * front of the latest recorded batch has always been run through the cipher
+ * and the data behind it never has. If the operation is interrupted by an
+ * error or a crash, the data in front of the batch is run through the cipher
+ * again, which restores it, the batch is copied back from the journal, and
+ * the file is returned to its original state. Checksums of the copies and
+ * the records only tell a record that was not completely written from a
+ * damaged journal. Since that needs the key, a journal left by a crash is recovered the
+ * next time the file is opened with the password, by any operation that
+ * encrypts, decrypts, verifies or reads it.
+ *
+ * @author Mario Bobic
+ */
+public class InPlaceCrypto {
+
+	/** Smallest file processed in place, smaller files are cheaper to copy */
+	public static final long MIN_SIZE = BufferPool.SLAB_SIZE;
+
+	/** Number of bytes copied to the journal and overwritten at once */
+	private static final int BATCH_SIZE = 8 * BufferPool.SLAB_SIZE;
+	/** Length of a batch record: start, end, checksum of the copy and of the record */
+	private static final int RECORD_LENGTH = 24;
+	/** Suffix of the journal file */
+	static final String JOURNAL_SUFFIX = ".journal";
+	/** Magic bytes at the beginning of every journal */
+	private static final int JOURNAL_MAGIC = 0x46454E4A; // "FENJ"
+
+	/** Source of initialization vectors */
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/**
+	 * Returns true if the specified <tt>file</tt> was encrypted in place.
+	 *
+	 * @param file file to be checked
+	 * @return true if the file was encrypted in place
+	 * @throws IOException if the file can not be read or its header is damaged
+	 */
+	public static boolean isEncryptedInPlace(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			CryptoHeader header = readHeader(channel);
+			return header != null && header.isInPlace();
+		}
+	}
+
+	/**
+	 * Encrypts the specified <tt>file</tt> in place and renames it to the
+	 * <tt>target</tt>, replacing the target if it exists. An unfinished
+	 * operation left on the file by a crash is recovered first.
+	 *
+	 * @param file file to be encrypted
+	 * @param target new name of the file
+	 * @param password password of the file
+	 * @param keyDerivation parameters used for deriving the key
+	 * @param progress consumer of the number of bytes encrypted
+	 * @throws IOException if an I/O error occurs, in which case the file is
+	 *         left unchanged
+	 */
+	public static void encrypt(File file, File target, char[] password, KeyDerivation keyDerivation,
+			LongConsumer progress) throws IOException {
+		recover(file, password);
+
+		byte[] iv = new byte[Crypto.BLOCK_SIZE];
+		RANDOM.nextBytes(iv);
+		byte[] key = keyDerivation.deriveKey(password);
+		try {
+			byte[] header = CryptoHeader.of(CipherMode.AES_CTR, CryptoHeader.IN_PLACE, keyDerivation, iv, key).toByteArray();
+			Journal journal;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long length = channel.size();
+				if (length < header.length) {
+					throw new IOException("File is too small to be encrypted in place: " + file);
+				}
+				byte[] head = read(channel, 0, header.length);
+				journal = new Journal(target.getName(), length, header.length, length, header, head, new byte[0]);
+			}
+
+			process(file, target, journal, key, iv, progress, (channel) -> {
+				/* Move the encrypted head behind the data and put the header in its place. */
+				write(channel, ByteBuffer.wrap(crypt(key, iv, 0, journal.head)), journal.dataEnd);
+				write(channel, ByteBuffer.wrap(header), 0);
+			});
+		} finally {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/**
+	 * Decrypts the specified <tt>file</tt>, which was encrypted in place, in
+	 * place and renames it to the <tt>target</tt>, replacing the target if it
+	 * exists. An unfinished operation left on the file by a crash is
+	 * recovered first.
+	 *
+	 * @param file file to be decrypted
+	 * @param target new name of the file
+	 * @param password password of the file
+	 * @param progress consumer of the number of bytes decrypted
+	 * @throws WrongPasswordException if the password is wrong
+	 * @throws IOException if the file was not encrypted in place or an I/O
+	 *         error occurs, in which case the file is left unchanged
+	 */
+	public static void decrypt(File file, File target, char[] password, LongConsumer progress) throws IOException {
+		recover(file, password);
+
+		CryptoHeader header;
+		Journal journal;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			header = readHeader(channel);
+			if (header == null || !header.isInPlace()) {
+				throw new IOException("File was not encrypted in place: " + file);
+			}
+			byte[] headerBytes = header.toByteArray();
+			long length = channel.size();
+			long dataEnd = length - headerBytes.length;
+			if (dataEnd < headerBytes.length) {
+				throw new IOException("File is damaged: " + file);
+			}
+			byte[] tail = read(channel, dataEnd, headerBytes.length);
+			journal = new Journal(target.getName(), length, headerBytes.length, dataEnd, headerBytes, headerBytes, tail);
+		}
+
+		byte[] iv = header.getIv();
+		byte[] key = deriveKey(header, password);
+		try {
+			process(file, target, journal, key, iv, progress, (channel) -> {
+				/* Decrypt the head from behind the data into the place of the header. */
+				write(channel, ByteBuffer.wrap(crypt(key, iv, 0, journal.tail)), 0);
+				channel.truncate(journal.dataEnd);
+			});
+		} finally {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/**
+	 * Decrypts the <tt>sourcefile</tt>, which was encrypted in place, into the
+	 * <tt>destfile</tt>, leaving the source file unchanged. If the
+	 * <tt>destfile</tt> is null, the decrypted data is discarded, which only
+	 * verifies that the source file can be read with this password. The
+	 * plaintext is fed to the <tt>digest</tt> in order, if one is given.
+	 *
+	 * @param sourcefile file to be decrypted
+	 * @param destfile file to be created, may be null
+	 * @param password password of the file
+	 * @param digest digest of the plaintext, null if not computed
+	 * @param progress consumer of the number of bytes read
+	 * @throws WrongPasswordException if the password is wrong
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void decryptCopy(File sourcefile, File destfile, char[] password, Manifest.Digest digest,
+			LongConsumer progress) throws IOException {
+		try (
+				FileChannel in = FileChannel.open(sourcefile.toPath(), StandardOpenOption.READ);
+				BufferPool.Lease lease = BufferPool.GLOBAL.borrow(2);
+		) {
+			CryptoHeader header = readHeader(in);
+			int headerLength = header.toByteArray().length;
+			long dataEnd = in.size() - headerLength;
+			byte[] tail = read(in, dataEnd, headerLength);
+
+			byte[] iv = header.getIv();
+			byte[] key = deriveKey(header, password);
+			try (FileChannel out = destfile != null ? new FileOutputStream(destfile).getChannel() : null) {
+				ByteBuffer head = ByteBuffer.wrap(crypt(key, iv, 0, tail));
+				if (digest != null) {
+					digest.update(head.duplicate());
+				}
+				if (out != null) {
+					write(out, head, 0);
+				}
+
+				Cipher cipher = ctr(key, iv, headerLength);
+				ByteBuffer inBuffer = lease.get(0);
+				ByteBuffer outBuffer = lease.get(1);
+				for (long position = headerLength; position < dataEnd; ) {
+					checkInterrupted(sourcefile);
+					int len = (int) Math.min(BufferPool.SLAB_SIZE, dataEnd - position);
+					inBuffer.clear();
+					inBuffer.limit(len);
+					read(in, inBuffer, position);
+					Throttle.GLOBAL.acquire(len);
+					Metrics.GLOBAL.read(len);
+
+					outBuffer.clear();
+					cipher.update(inBuffer, outBuffer);
+					outBuffer.flip();
+					if (digest != null) {
+						digest.update(outBuffer.duplicate());
+					}
+					if (out != null) {
+						write(out, outBuffer, position);
+					}
+					progress.accept(len);
+					position += len;
+				}
+			} catch (GeneralSecurityException e) {
+				throw new InternalError(e);
+			} finally {
+				Arrays.fill(key, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Returns the specified <tt>file</tt> to its original state if an
+	 * operation on it has been interrupted by a crash, and removes the
+	 * journal. Does nothing if there is no journal.
+	 *
+	 * @param file file to be recovered
+	 * @param password password the interrupted operation was given
+	 * @return true if there was a journal, false otherwise
+	 * @throws WrongPasswordException if the password is wrong
+	 * @throws IOException if the file can not be recovered
+	 */
+	public static boolean recover(File file, char[] password) throws IOException {
+		File journalFile = journalOf(file);
+		if (!journalFile.exists()) {
+			return false;
+		}
+
+		Journal journal;
+		try {
+			journal = Journal.read(journalFile);
+		} catch (EOFException e) {
+			/* The journal was not complete, so the file was never touched. */
+			Files.delete(journalFile.toPath());
+			return true;
+		}
+
+		if (!file.exists()) {
+			/* The file was renamed after it had been processed. */
+			if (new File(file.getParentFile(), journal.target).exists()) {
+				Files.delete(journalFile.toPath());
+				return true;
+			}
+			throw new IOException("Can not recover " + file + ", the file is missing.");
+		}
+
+		CryptoHeader header = CryptoHeader.read(ByteBuffer.wrap(journal.header));
+		byte[] key = deriveKey(header, password);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			undo(channel, journalFile, journal, key, header.getIv());
+		} finally {
+			Arrays.fill(key, (byte) 0);
+		}
+		Files.delete(journalFile.toPath());
+		DurableOutput.forceDirectory(journalFile.getAbsoluteFile().getParentFile().toPath());
+		return true;
+	}
+
+	/**
+	 * Writes the <tt>journal</tt>, runs the data of the <tt>file</tt> through
+	 * the cipher, finishes the layout with the <tt>finish</tt> task and renames
+	 * the file to the <tt>target</tt>. If anything fails, the file is restored
+	 * from the journal.
+	 *
+	 * @param file file to be processed
+	 * @param target new name of the file
+	 * @param journal journal of the operation, without records
+	 * @param key key of the cipher
+	 * @param iv initialization vector of the cipher
+	 * @param progress consumer of the number of bytes processed
+	 * @param finish task that finishes the layout of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void process(File file, File target, Journal journal, byte[] key, byte[] iv,
+			LongConsumer progress, ChannelTask finish) throws IOException {
+		Path path = file.toPath();
+		File journalFile = journalOf(file);
+
+		try {
+			try (
+					FileChannel journalChannel = FileChannel.open(journalFile.toPath(),
+							StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+					FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			) {
+				/* The journal and its directory entry must be durable before the file is touched. */
+				byte[] fixed = journal.toByteArray();
+				write(journalChannel, ByteBuffer.wrap(fixed), 0);
+				write(journalChannel, ByteBuffer.allocate(2 * RECORD_LENGTH), fixed.length);
+				journalChannel.force(true);
+				DurableOutput.forceDirectory(journalFile.getAbsoluteFile().getParentFile().toPath());
+
+				transform(channel, journalChannel, fixed.length, file, key, iv, journal.dataStart, journal.dataEnd, progress);
+				finish.run(channel);
+				channel.force(true);
+			}
+		} catch (Throwable t) {
+			rollback(file, key, iv, t);
+			throw t;
+		}
+
+		/* The rename must be durable before the journal is gone, a crash in between is handled by recover. */
+		DurableOutput.move(path, target.toPath());
+		DurableOutput.forceDirectory(target.getAbsoluteFile().getParentFile().toPath());
+		Files.delete(journalFile.toPath());
+		DurableOutput.forceDirectory(journalFile.getAbsoluteFile().getParentFile().toPath());
+		Metrics.GLOBAL.fileProcessed(CryptoEngine.IN_PLACE);
+	}
+
+	/**
+	 * Runs the bytes of the <tt>channel</tt> in the specified range through
+	 * the cipher in place, one batch at a time. Each batch is copied to the
+	 * older slot of the journal and recorded before it is overwritten, and
+	 * forced to the storage device before the next one is copied, so the
+	 * journal always holds an intact copy of the latest recorded batch.
+	 *
+	 * @param channel channel of the file
+	 * @param journalChannel channel of the journal
+	 * @param recordsOffset position of the batch records in the journal,
+	 *        which are followed by the copies of the batches
+	 * @param file file being processed
+	 * @param key key of the cipher
+	 * @param iv initialization vector of the cipher
+	 * @param from start of the range, inclusive
+	 * @param to end of the range, exclusive
+	 * @param progress consumer of the number of bytes processed
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void transform(FileChannel channel, FileChannel journalChannel, long recordsOffset, File file,
+			byte[] key, byte[] iv, long from, long to, LongConsumer progress) throws IOException {
+		try (BufferPool.Lease lease = BufferPool.GLOBAL.borrow(2)) {
+			ByteBuffer inBuffer = lease.get(0);
+			ByteBuffer outBuffer = lease.get(1);
+			Cipher cipher = ctr(key, iv, from);
+
+			int slot = 0;
+			for (long batch = from; batch < to; batch += BATCH_SIZE) {
+				long batchEnd = Math.min(to, batch + BATCH_SIZE);
+
+				/* The older slot is overwritten, so a torn copy or record leaves the other one. */
+				long copyOffset = recordsOffset + 2 * RECORD_LENGTH + (long) slot * BATCH_SIZE;
+				int checksum = copy(channel, journalChannel, inBuffer, batch, batchEnd, copyOffset);
+				journalChannel.force(false);
+				write(journalChannel, record(batch, batchEnd, checksum), recordsOffset + slot * RECORD_LENGTH);
+				journalChannel.force(false);
+				slot ^= 1;
+
+				for (long position = batch; position < batchEnd; ) {
+					checkInterrupted(file);
+					int len = (int) Math.min(BufferPool.SLAB_SIZE, batchEnd - position);
+					inBuffer.clear();
+					inBuffer.limit(len);
+					read(channel, inBuffer, position);
+					Throttle.GLOBAL.acquire(len);
+					Metrics.GLOBAL.read(len);
+
+					outBuffer.clear();
+					cipher.update(inBuffer, outBuffer);
+					outBuffer.flip();
+					Throttle.GLOBAL.acquire(len);
+					write(channel, outBuffer, position);
+					Metrics.GLOBAL.written(len);
+					progress.accept(len);
+					position += len;
+				}
+				/* The batch must be durable before its copy is overwritten by the next one. */
+				channel.force(false);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	/**
+	 * Copies the bytes of the <tt>channel</tt> in the specified range to the
+	 * <tt>journalChannel</tt> at the specified <tt>offset</tt>, and returns the
+	 * CRC32 of the copy.
+	 *
+	 * @param channel channel to be read
+	 * @param journalChannel channel of the journal
+	 * @param buffer buffer used for copying
+	 * @param from start of the range, inclusive
+	 * @param to end of the range, exclusive
+	 * @param offset position of the copy in the journal
+	 * @return the checksum of the copy
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static int copy(FileChannel channel, FileChannel journalChannel, ByteBuffer buffer, long from, long to,
+			long offset) throws IOException {
+		CRC32 crc = new CRC32();
+		for (long position = from; position < to; ) {
+			int len = (int) Math.min(buffer.capacity(), to - position);
+			buffer.clear();
+			buffer.limit(len);
+			read(channel, buffer, position);
+			crc.update(buffer.duplicate());
+			write(journalChannel, buffer, offset + position - from);
+			position += len;
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Returns the journal record of a batch, which ends with its own
+	 * checksum so a record that was not completely written is recognized.
+	 *
+	 * @param from start of the batch, inclusive
+	 * @param to end of the batch, exclusive
+	 * @param checksum checksum of the copy of the batch
+	 * @return the record, ready for getting
+	 */
+	private static ByteBuffer record(long from, long to, int checksum) {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+		record.putLong(from).putLong(to).putInt(checksum);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Returns the file to its original state, using the journal on disk, and
+	 * removes the journal. The interrupted status of the current thread is
+	 * cleared for the duration, since an interrupted thread can not use file
+	 * channels. Failures are added to the specified <tt>cause</tt>, and the
+	 * journal is then kept for a later {@linkplain #recover(File, char[])
+	 * recovery}.
+	 *
+	 * @param file file to be restored
+	 * @param key key of the cipher
+	 * @param iv initialization vector of the cipher
+	 * @param cause exception that interrupted the operation
+	 */
+	private static void rollback(File file, byte[] key, byte[] iv, Throwable cause) {
+		boolean interrupted = Thread.interrupted();
+		File journalFile = journalOf(file);
+		try {
+			try {
+				Journal journal = Journal.read(journalFile);
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+					undo(channel, journalFile, journal, key, iv);
+				}
+			} catch (EOFException e) {
+				// The journal was not complete, so the file was never touched
+			}
+			Files.deleteIfExists(journalFile.toPath());
+		} catch (IOException e) {
+			cause.addSuppressed(e);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Runs the data that has been overwritten according to the
+	 * <tt>journal</tt> through the cipher again, copies the batch that was
+	 * being overwritten back from the journal, and restores the head and the
+	 * tail of the file.
+	 *
+	 * @param channel channel of the file
+	 * @param journalFile file of the journal
+	 * @param journal journal of the operation
+	 * @param key key of the cipher
+	 * @param iv initialization vector of the cipher
+	 * @throws IOException if the file can not be restored
+	 */
+	private static void undo(FileChannel channel, File journalFile, Journal journal, byte[] key, byte[] iv)
+			throws IOException {
+		try (
+				BufferPool.Lease lease = BufferPool.GLOBAL.borrow(2);
+				FileChannel journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ);
+		) {
+			ByteBuffer inBuffer = lease.get(0);
+			ByteBuffer outBuffer = lease.get(1);
+
+			/* The cipher is its own inverse in counter mode. */
+			Cipher cipher = ctr(key, iv, journal.dataStart);
+			for (long position = journal.dataStart; position < journal.done; ) {
+				int len = (int) Math.min(BufferPool.SLAB_SIZE, journal.done - position);
+				inBuffer.clear();
+				inBuffer.limit(len);
+				read(channel, inBuffer, position);
+				outBuffer.clear();
+				cipher.update(inBuffer, outBuffer);
+				outBuffer.flip();
+				write(channel, outBuffer, position);
+				position += len;
+			}
+
+			for (long position = journal.done; position < journal.copied; ) {
+				int len = (int) Math.min(BufferPool.SLAB_SIZE, journal.copied - position);
+				inBuffer.clear();
+				inBuffer.limit(len);
+				read(journalChannel, inBuffer, journal.copyOffset + position - journal.done);
+				write(channel, inBuffer, position);
+				position += len;
+			}
+		} catch (GeneralSecurityException e) {
+			throw new InternalError(e);
+		}
+
+		write(channel, ByteBuffer.wrap(journal.head), 0);
+		write(channel, ByteBuffer.wrap(journal.tail), journal.dataEnd);
+		channel.truncate(journal.originalLength);
+		channel.force(true);
+	}
+
+	/**
+	 * Returns a cipher in counter mode whose key stream starts at the
+	 * specified <tt>position</tt> of the plaintext.
+	 *
+	 * @param key key of the cipher
+	 * @param iv initialization vector of the cipher, the counter of position 0
+	 * @param position position in the plaintext
+	 * @return a cipher positioned at the specified position
+	 * @throws GeneralSecurityException if the cipher is not available
+	 */
+	static Cipher ctr(byte[] key, byte[] iv, long position) throws GeneralSecurityException {
+		Cipher cipher = CipherSelector.newCipher(CipherMode.AES_CTR);
+		ctr(cipher, key, iv, position);
+		return cipher;
+	}
+
+	/**
+	 * Initializes the specified <tt>cipher</tt> in counter mode, so that its
+	 * key stream starts at the specified <tt>position</tt> of the plaintext.
+	 * Reusing a cipher saves looking up its provider for every position.
+	 *
+	 * @param cipher cipher in counter mode
+	 * @param key key of the cipher
+	 * @param iv initialization vector of the cipher, the counter of position 0
+	 * @param position position in the plaintext
+	 * @throws GeneralSecurityException if the cipher can not be initialized
+	 */
+	static void ctr(Cipher cipher, byte[] key, byte[] iv, long position) throws GeneralSecurityException {
+		/* Add the number of the block to the counter, a 128-bit big-endian number. */
+		byte[] counter = iv.clone();
+		long carry = position / Crypto.BLOCK_SIZE;
+		for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+			long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+			counter[i] = (byte) sum;
+			carry = (carry >>> 8) + (sum >>> 8);
+		}
+
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(counter));
+		int skip = (int) (position % Crypto.BLOCK_SIZE);
+		if (skip > 0) {
+			cipher.update(new byte[skip]);
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts the specified <tt>bytes</tt>, which are found at the
+	 * specified <tt>position</tt> of the plaintext.
+	 *
+	 * @param key key of the cipher
+	 * @param iv initialization vector of the cipher
+	 * @param position position of the bytes in the plaintext
+	 * @param bytes bytes to be encrypted or decrypted
+	 * @return the encrypted or decrypted bytes
+	 */
+	private static byte[] crypt(byte[] key, byte[] iv, long position, byte[] bytes) {
+		try {
+			return ctr(key, iv, position).doFinal(bytes);
+		} catch (GeneralSecurityException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	/**
+	 * Derives the key of the file with the specified <tt>header</tt>.
+	 *
+	 * @param header header of the file
+	 * @param password password of the file
+	 * @return the derived key
+	 * @throws WrongPasswordException if the password is wrong
+	 */
+	static byte[] deriveKey(CryptoHeader header, char[] password) throws WrongPasswordException {
+		byte[] key = header.getKeyDerivation().deriveKey(password);
+		if (!header.matches(key)) {
+			Arrays.fill(key, (byte) 0);
+			throw new WrongPasswordException();
+		}
+		return key;
+	}
+
+	/**
+	 * Reads the header from the beginning of the <tt>channel</tt>.
+	 *
+	 * @param channel channel to be read
+	 * @return the header, or null if the file has no header
+	 * @throws IOException if an I/O error occurs or the header is damaged
+	 */
+	static CryptoHeader readHeader(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CryptoHeader.MAX_LENGTH, channel.size()));
+		read(channel, buffer, 0);
+		return CryptoHeader.read(buffer);
+	}
+
+	/**
+	 * Returns the journal file of the specified <tt>file</tt>.
+	 *
+	 * @param file file whose journal is to be returned
+	 * @return the journal file
+	 */
+	private static File journalOf(File file) {
+		return new File(file.getParentFile(), file.getName() + JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * Throws an {@linkplain InterruptedIOException} if the current thread is
+	 * interrupted.
+	 *
+	 * @param file file being processed
+	 * @throws InterruptedIOException if the current thread is interrupted
+	 */
+	static void checkInterrupted(File file) throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Interrupted while processing " + file);
+		}
+	}
+
+	/**
+	 * Reads the specified number of bytes from the <tt>channel</tt> at the
+	 * specified <tt>position</tt>.
+	 *
+	 * @param channel channel to be read
+	 * @param position position of the first byte
+	 * @param len number of bytes to be read
+	 * @return the bytes read
+	 * @throws IOException if an I/O error occurs or the file ends too early
+	 */
+	private static byte[] read(FileChannel channel, long position, int len) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(len);
+		read(channel, buffer, position);
+		return buffer.array();
+	}
+
+	/**
+	 * Fills the remaining space of the <tt>buffer</tt> from the
+	 * <tt>channel</tt> at the specified <tt>position</tt> and flips the buffer.
+	 *
+	 * @param channel channel to be read
+	 * @param buffer buffer to be filled
+	 * @param position position of the first byte
+	 * @throws IOException if an I/O error occurs or the file ends too early
+	 */
+	static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int len = channel.read(buffer, position);
+			if (len == -1) {
+				throw new EOFException("Unexpected end of file at " + position);
+			}
+			position += len;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Writes all remaining bytes of the <tt>buffer</tt> to the <tt>channel</tt>
+	 * at the specified <tt>position</tt>.
+	 *
+	 * @param channel channel to be written to
+	 * @param buffer buffer to be written
+	 * @param position position of the first byte
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * A task on a file channel that may fail with an I/O error.
+	 *
+	 * @author Mario Bobic
+	 */
+	@FunctionalInterface
+	private interface ChannelTask {
+
+		/**
+		 * Runs this task on the specified <tt>channel</tt>.
+		 *
+		 * @param channel channel of the file
+		 * @throws IOException if an I/O error occurs
+		 */
+		void run(FileChannel channel) throws IOException;
+
+	}
+
+	/**
+	 * The undo journal of an operation in place.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Journal {
+
+		/** Name the file is renamed to when the operation is done */
+		private final String target;
+		/** Length of the file before the operation */
+		private final long originalLength;
+		/** Start of the data run through the cipher in place */
+		private final int dataStart;
+		/** End of the data run through the cipher in place */
+		private final long dataEnd;
+		/** Header holding the parameters of the cipher */
+		private final byte[] header;
+		/** Original bytes in front of the data */
+		private final byte[] head;
+		/** Original bytes behind the data */
+		private final byte[] tail;
+		/** End of the data that has been run through the cipher, read from the records */
+		private long done;
+		/** End of the batch whose original bytes are copied in the journal, at least {@link #done} */
+		private long copied;
+		/** Position of the copy of the batch in the journal */
+		private long copyOffset;
+
+		/**
+		 * Constructs an instance of {@code Journal} with the specified arguments.
+		 *
+		 * @param target name the file is renamed to when the operation is done
+		 * @param originalLength length of the file before the operation
+		 * @param dataStart start of the data run through the cipher in place
+		 * @param dataEnd end of the data run through the cipher in place
+		 * @param header header holding the parameters of the cipher
+		 * @param head original bytes in front of the data
+		 * @param tail original bytes behind the data
+		 */
+		private Journal(String target, long originalLength, int dataStart, long dataEnd,
+				byte[] header, byte[] head, byte[] tail) {
+			this.target = target;
+			this.originalLength = originalLength;
+			this.dataStart = dataStart;
+			this.dataEnd = dataEnd;
+			this.header = header;
+			this.head = head;
+			this.tail = tail;
+			this.done = dataStart;
+			this.copied = dataStart;
+		}
+
+		/**
+		 * Returns the fixed part of this journal encoded, without records.
+		 *
+		 * @return the fixed part of this journal encoded
+		 */
+		private byte[] toByteArray() {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeInt(JOURNAL_MAGIC);
+				out.writeUTF(target);
+				out.writeLong(originalLength);
+				out.writeInt(dataStart);
+				out.writeLong(dataEnd);
+				writeBytes(out, header);
+				writeBytes(out, head);
+				writeBytes(out, tail);
+			} catch (IOException e) {
+				throw new InternalError(e);
+			}
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * Reads a journal from the specified <tt>file</tt>. Of the two batch
+		 * records, the complete one of the later batch is taken, whose batch
+		 * may have been partly overwritten and is copied back. If neither
+		 * record is complete, the file was never touched.
+		 *
+		 * @param file file of the journal
+		 * @return the journal
+		 * @throws EOFException if the fixed part of the journal is incomplete
+		 * @throws IOException if an I/O error occurs or the file is not a journal
+		 */
+		private static Journal read(File file) throws IOException {
+			Journal journal;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				if (in.readInt() != JOURNAL_MAGIC) {
+					throw new IOException("Not a journal: " + file);
+				}
+				journal = new Journal(in.readUTF(), in.readLong(), in.readInt(), in.readLong(),
+						readBytes(in), readBytes(in), readBytes(in));
+			}
+
+			long recordsOffset = journal.toByteArray().length;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer record = null;
+				int recordSlot = 0;
+				for (int slot = 0; slot < 2; slot++) {
+					ByteBuffer candidate = readRecord(channel, recordsOffset + slot * RECORD_LENGTH);
+					if (candidate != null && (record == null || candidate.getLong(0) > record.getLong(0))) {
+						record = candidate;
+						recordSlot = slot;
+					}
+				}
+				if (record == null) {
+					return journal;
+				}
+
+				long from = record.getLong(0);
+				long to = record.getLong(8);
+				long copyOffset = recordsOffset + 2 * RECORD_LENGTH + (long) recordSlot * BATCH_SIZE;
+				if (from < journal.dataStart || to < from || to > journal.dataEnd || to - from > BATCH_SIZE
+						|| checksum(channel, copyOffset, to - from) != record.getInt(16)) {
+					throw new IOException("Damaged journal: " + file);
+				}
+				journal.done = from;
+				journal.copied = to;
+				journal.copyOffset = copyOffset;
+			}
+			return journal;
+		}
+
+		/**
+		 * Reads the batch record at the specified <tt>position</tt> of the
+		 * journal, or returns null if it is incomplete or was never written.
+		 *
+		 * @param channel channel of the journal
+		 * @param position position of the record
+		 * @return the record, or null
+		 * @throws IOException if an I/O error occurs
+		 */
+		private static ByteBuffer readRecord(FileChannel channel, long position) throws IOException {
+			if (channel.size() < position + RECORD_LENGTH) {
+				return null;
+			}
+			ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+			InPlaceCrypto.read(channel, record, position);
+			CRC32 crc = new CRC32();
+			crc.update(record.array(), 0, RECORD_LENGTH - 4);
+			return (int) crc.getValue() == record.getInt(RECORD_LENGTH - 4) ? record : null;
+		}
+
+		/**
+		 * Returns the CRC32 of the specified number of bytes of the journal at
+		 * the specified <tt>position</tt>, or of the bytes up to its end if
+		 * there are fewer.
+		 *
+		 * @param channel channel of the journal
+		 * @param position position of the first byte
+		 * @param len number of bytes
+		 * @return the checksum of the bytes
+		 * @throws IOException if an I/O error occurs
+		 */
+		private static int checksum(FileChannel channel, long position, long len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			CRC32 crc = new CRC32();
+			long end = Math.min(position + len, channel.size());
+			while (position < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), end - position));
+				InPlaceCrypto.read(channel, buffer, position);
+				position += buffer.remaining();
+				crc.update(buffer);
+			}
+			return (int) crc.getValue();
+		}
+
+		/**
+		 * Writes the length of the specified <tt>bytes</tt> followed by the bytes.
+		 *
+		 * @param out stream to be written to
+		 * @param bytes bytes to be written
+		 * @throws IOException if an I/O error occurs
+		 */
+		private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		/**
+		 * Reads bytes written by {@link #writeBytes(DataOutputStream, byte[])}.
+		 *
+		 * @param in stream to be read from
+		 * @return the bytes read
+		 * @throws IOException if an I/O error occurs
+		 */
+		private static byte[] readBytes(DataInputStream in) throws IOException {
+			int len = in.readInt();
+			if (len < 0 || len > CryptoHeader.MAX_LENGTH) {
+				throw new IOException("Damaged journal.");
+			}
+			byte[] bytes = new byte[len];
+			in.readFully(bytes);
+			return bytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,316 @@
+package encryptor;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.prefs.Preferences;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Parameters of a password-based key derivation, along with the methods for
+ * deriving keys from passwords.
+ * <p>
+ * Keys are derived with PBKDF2. The number of iterations is calibrated on the
+ * first run so that a single derivation takes about
+ * <tt>encryptor.kdfTargetMillis</tt> milliseconds on this machine, and the
+ * result is remembered in the user preferences. The parameters are stored in
+ * the header of each encrypted file, so files can be decrypted on machines
+ * with different calibrations.
+ * <p>
+ * Derived keys are kept in a small in-memory cache, so a batch of files that
+ * share the same parameters derives its key only once. Keys are overwritten
+ * with zeros when they leave the cache.
+ *
+ * @author Mario Bobic
+ */
+public class KeyDerivation {
+
+	/** Id of the PBKDF2 with HMAC-SHA256 algorithm, as stored in file headers */
+	public static final int PBKDF2_SHA256 = 1;
+
+	/** Name of the PBKDF2 with HMAC-SHA256 algorithm */
+	private static final String PBKDF2_SHA256_NAME = "PBKDF2WithHmacSHA256";
+	/** Length of the derived keys in bits */
+	private static final int KEY_BITS = 128;
+	/** Length of the generated salts in bytes */
+	private static final int SALT_LENGTH = 16;
+
+	/** Fewest iterations ever used for new files, regardless of calibration */
+	private static final int MIN_ITERATIONS = 100_000;
+	/** Most iterations accepted from a file header */
+	private static final int MAX_ITERATIONS = 100_000_000;
+	/** Number of iterations used for measuring the speed of this machine */
+	private static final int CALIBRATION_ITERATIONS = 20_000;
+	/** Desired duration of a single derivation */
+	private static final long TARGET_MILLIS = Long.getLong("encryptor.kdfTargetMillis", 200);
+	/** Preference key of the calibrated number of iterations */
+	private static final String ITERATIONS_PREFERENCE = "kdf.pbkdf2.iterations";
+
+	/** Maximum number of keys kept in the cache */
+	private static final int CACHE_SIZE = Math.max(1, Integer.getInteger("encryptor.keyCacheSize", 16));
+	/** Cache of derived keys, mapped by a digest of their inputs */
+	private static final Map<ByteBuffer, CachedKey> CACHE = new LinkedHashMap<ByteBuffer, CachedKey>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CachedKey> eldest) {
+			if (size() > CACHE_SIZE) {
+				eldest.getValue().destroy();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/** Source of salts */
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/** Calibrated number of iterations, 0 until known */
+	private static int calibratedIterations;
+
+	/** Id of the algorithm */
+	private final int algorithm;
+	/** Salt of the derivation */
+	private final byte[] salt;
+	/** Number of iterations */
+	private final int iterations;
+
+	/**
+	 * Constructs an instance of {@code KeyDerivation} with the specified
+	 * parameters.
+	 *
+	 * @param algorithm id of the algorithm, i.e. {@link #PBKDF2_SHA256}
+	 * @param salt salt of the derivation
+	 * @param iterations number of iterations
+	 * @throws IllegalArgumentException if the parameters are not supported
+	 */
+	public KeyDerivation(int algorithm, byte[] salt, int iterations) {
+		if (algorithm != PBKDF2_SHA256) {
+			throw new IllegalArgumentException("Unsupported key derivation algorithm: " + algorithm);
+		}
+		if (iterations < 1 || iterations > MAX_ITERATIONS) {
+			throw new IllegalArgumentException("Unsupported number of iterations: " + iterations);
+		}
+		this.algorithm = algorithm;
+		this.salt = salt.clone();
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Returns new parameters with a random salt and the number of iterations
+	 * calibrated for this machine. The same parameters should be used for a
+	 * whole batch of files, so their key is derived only once.
+	 *
+	 * @return new key derivation parameters
+	 */
+	public static KeyDerivation newParameters() {
+		byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		return new KeyDerivation(PBKDF2_SHA256, salt, calibratedIterations());
+	}
+
+	/**
+	 * Returns the number of iterations calibrated for this machine, measuring
+	 * it on first use. The <tt>encryptor.kdfIterations</tt> system property
+	 * overrides the calibration, but never below {@value #MIN_ITERATIONS}.
+	 *
+	 * @return the calibrated number of iterations
+	 */
+	public static synchronized int calibratedIterations() {
+		if (calibratedIterations > 0) {
+			return calibratedIterations;
+		}
+
+		Integer override = Integer.getInteger("encryptor.kdfIterations");
+		if (override != null) {
+			if (override < MIN_ITERATIONS) {
+				System.err.println("Ignoring encryptor.kdfIterations=" + override + ", using the minimum of "
+						+ MIN_ITERATIONS + " iterations.");
+			}
+			calibratedIterations = Math.max(MIN_ITERATIONS, Math.min(override, MAX_ITERATIONS));
+			return calibratedIterations;
+		}
+
+		Preferences prefs = Preferences.userNodeForPackage(KeyDerivation.class);
+		int stored = prefs.getInt(ITERATIONS_PREFERENCE, 0);
+		if (stored >= MIN_ITERATIONS) {
+			calibratedIterations = stored;
+			return stored;
+		}
+
+		/* Measure twice, the first run includes loading the provider. */
+		char[] password = "calibration".toCharArray();
+		byte[] salt = new byte[SALT_LENGTH];
+		pbkdf2(password, salt, CALIBRATION_ITERATIONS);
+		long start = System.nanoTime();
+		pbkdf2(password, salt, CALIBRATION_ITERATIONS);
+		long nanos = Math.max(1, System.nanoTime() - start);
+
+		long iterations = CALIBRATION_ITERATIONS * TARGET_MILLIS * 1_000_000 / nanos;
+		calibratedIterations = (int) Math.max(MIN_ITERATIONS, Math.min(iterations, MAX_ITERATIONS));
+		prefs.putInt(ITERATIONS_PREFERENCE, calibratedIterations);
+		return calibratedIterations;
+	}
+
+	/**
+	 * Derives the key of the specified <tt>password</tt> with these
+	 * parameters, or returns it from the cache. The caller should overwrite
+	 * the returned array with zeros when done.
+	 *
+	 * @param password password whose key is to be derived
+	 * @return a copy of the derived key
+	 */
+	public byte[] deriveKey(char[] password) {
+		ByteBuffer id = cacheId(password);
+		CachedKey cached;
+		synchronized (CACHE) {
+			cached = CACHE.computeIfAbsent(id, (k) -> new CachedKey());
+		}
+		return cached.get(() -> {
+			FlightEvents.Event event = FlightEvents.KEY_DERIVATION.begin();
+			byte[] key = pbkdf2(password, salt, iterations);
+			if (event != null) {
+				event.commit(PBKDF2_SHA256_NAME, iterations);
+			}
+			return key;
+		});
+	}
+
+	/**
+	 * Removes all keys from the cache, overwriting them with zeros.
+	 */
+	public static void clearCache() {
+		synchronized (CACHE) {
+			for (CachedKey cached : CACHE.values()) {
+				cached.destroy();
+			}
+			CACHE.clear();
+		}
+	}
+
+	/**
+	 * Returns the id of the algorithm.
+	 *
+	 * @return the id of the algorithm
+	 */
+	public int getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Returns a copy of the salt.
+	 *
+	 * @return a copy of the salt
+	 */
+	public byte[] getSalt() {
+		return salt.clone();
+	}
+
+	/**
+	 * Returns the number of iterations.
+	 *
+	 * @return the number of iterations
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Returns a digest of the password and these parameters, identifying the
+	 * derived key in the cache without keeping the password.
+	 *
+	 * @param password password whose key is to be identified
+	 * @return the id of the derived key
+	 */
+	private ByteBuffer cacheId(char[] password) {
+		ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(encoded);
+			md.update(salt);
+			md.update(ByteBuffer.allocate(8).putInt(algorithm).putInt(iterations).array());
+			return ByteBuffer.wrap(md.digest());
+		} catch (GeneralSecurityException e) {
+			throw new InternalError("Algorithm unavailable (SHA-256)", e);
+		} finally {
+			if (encoded.hasArray()) {
+				Arrays.fill(encoded.array(), (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Derives a key from the specified <tt>password</tt> with PBKDF2.
+	 *
+	 * @param password password whose key is to be derived
+	 * @param salt salt of the derivation
+	 * @param iterations number of iterations
+	 * @return the derived key
+	 */
+	private static byte[] pbkdf2(char[] password, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_BITS);
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance(PBKDF2_SHA256_NAME);
+			return factory.generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new InternalError("Algorithm unavailable (" + PBKDF2_SHA256_NAME + ")", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/**
+	 * A key in the cache, derived by the first thread that asks for it while
+	 * other threads wait for it.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class CachedKey {
+
+		/** The derived key, null until derived */
+		private byte[] key;
+		/** Indicates if this key has left the cache */
+		private boolean destroyed;
+
+		/**
+		 * Returns a copy of this key, deriving it first if needed.
+		 *
+		 * @param derivation derives the key
+		 * @return a copy of the key
+		 */
+		private synchronized byte[] get(Supplier<byte[]> derivation) {
+			if (key == null) {
+				key = derivation.get();
+			}
+			byte[] copy = key.clone();
+			if (destroyed) {
+				/* Left the cache while being derived, do not keep it. */
+				Arrays.fill(key, (byte) 0);
+				key = null;
+			}
+			return copy;
+		}
+
+		/**
+		 * Overwrites this key with zeros.
+		 */
+		private synchronized void destroy() {
+			destroyed = true;
+			if (key != null) {
+				Arrays.fill(key, (byte) 0);
+				key = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,321 @@
+package encryptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static encryptor.ConstantsAndMethods.humanReadableByteCount;
+
+/**
+ * This class migrates files encrypted by the deprecated byte-shift method of
+ * {@link EncryptorDecryptor#encryptBytes(byte[], int, int)} to the format of
+ * the {@linkplain Crypto}.
+ * <p>
+ * Each file is migrated in a single pass: every slab read from the file is
+ * decoded in place, eight bytes at a time, by
+ * {@link EncryptorDecryptor#decryptBytes(ByteBuffer, int)} and encrypted
+ * straight into the output slab. The result replaces the original file
+ * through a {@linkplain DurableOutput durable output}, so a crash leaves
+ * either the legacy or the migrated file, never a mix of both. Before the
+ * original is replaced, the migrated file is decrypted and its SHA-256
+ * checksum compared with the one of the decoded data. Files are
+ * migrated in parallel by the {@linkplain BatchEngine}, so the migration is
+ * limited by the devices rather than by the processor.
+ * <p>
+ * Files of the byte-shift method have no header, so any file that does have a
+ * {@linkplain CryptoHeader} is already migrated and is skipped. Files that
+ * older versions encrypted with AES have no header either, and are told apart
+ * by their length, a multiple of the block size, and by the padding of their
+ * last block under the {@linkplain Crypto#legacyKey(char[]) legacy key}. They
+ * are skipped as well, as they are decrypted without a migration.
+ * <p>
+ * The migration can be run from the command line with the files or the
+ * directories to be migrated as arguments. Directories are searched for
+ * encrypted files recursively. The hash the files were encrypted with is
+ * given by the <tt>-hash</tt> option, or else is the hash code of the
+ * password, which is read from the console and used for the new encryption.
+ *
+ * @author Mario Bobic
+ */
+public class LegacyMigration {
+
+	/** Block size of the AES cipher */
+	private static final int BLOCK_SIZE = 16;
+
+	/**
+	 * Migrates the files given as arguments and exits with status 1 if any of
+	 * them fails.
+	 *
+	 * @param args optional <tt>-hash</tt> option and the files or directories
+	 *        to be migrated
+	 * @throws IOException if the password can not be read
+	 * @throws InterruptedException if interrupted while migrating
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Integer hash = null;
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-hash") && i + 1 < args.length) {
+				hash = Integer.valueOf(args[++i]);
+			} else {
+				Verifier.collect(new File(args[i]), files);
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("Usage: LegacyMigration [-hash <hash>] <file or directory>...");
+			System.exit(2);
+		}
+
+		char[] password = Verifier.readPassword();
+		int failed;
+		try {
+			int legacyHash = hash != null ? hash : new String(password).hashCode();
+			failed = migrate(files, legacyHash, password);
+		} finally {
+			Arrays.fill(password, '\0');
+			KeyDerivation.clearCache();
+		}
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Migrates the specified <tt>files</tt> in parallel, printing the result
+	 * of every file and the total throughput. Returns the number of files
+	 * that failed.
+	 *
+	 * @param files files to be migrated
+	 * @param hash hash the files were encrypted with
+	 * @param password password used for the new encryption
+	 * @return the number of files that failed
+	 * @throws InterruptedException if interrupted while migrating
+	 */
+	public static int migrate(List<File> files, int hash, char[] password) throws InterruptedException {
+		KeyDerivation keyDerivation = KeyDerivation.newParameters();
+		DurableOutput output = new DurableOutput();
+		Manifest manifest = new Manifest(Manifest.getAlgorithm());
+		AtomicInteger migrated = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		AtomicLong totalBytes = new AtomicLong();
+		long start = System.nanoTime();
+		byte[] legacyKey = Crypto.legacyKey(password);
+
+		try {
+			new BatchEngine().execute(files, File::length, (file) -> {
+				File temp = DurableOutput.tempFile(file);
+				try {
+					if (CryptoHeader.read(ByteBuffer.wrap(readStart(file))) != null) {
+						System.out.println("SKIP " + file + ": already migrated");
+						return;
+					}
+					if (isLegacyAes(file, legacyKey)) {
+						System.out.println("SKIP " + file + ": encrypted with AES, not migrated");
+						return;
+					}
+					Crypto crypto = new Crypto(password, keyDerivation, Crypto.ENCRYPT);
+					Manifest.Digest digest = manifest.newDigest();
+					crypto.setDigest(digest);
+					Manifest.Digest decoded = Manifest.Algorithm.SHA256.newDigest();
+					migrate(file, temp, hash, crypto, decoded, totalBytes::addAndGet);
+					verify(temp, password, decoded);
+					manifest.put(file, digest);
+				} catch (IOException e) {
+					temp.delete();
+					failed.incrementAndGet();
+					System.out.println("FAIL " + file + ": " + e.getMessage());
+					return;
+				}
+
+				/* The original is replaced only when the migrated file is durable. */
+				output.commit(temp, file).whenComplete((target, t) -> {
+					if (t != null) {
+						failed.incrementAndGet();
+						System.out.println("FAIL " + file + ": " + t.getMessage());
+					} else {
+						migrated.incrementAndGet();
+						System.out.println("MIGRATED " + file);
+					}
+				});
+			});
+		} finally {
+			output.close();
+			Arrays.fill(legacyKey, (byte) 0);
+		}
+
+		try {
+			manifest.write();
+		} catch (IOException e) {
+			System.err.println("Can not write the checksum manifest: " + e);
+		}
+
+		System.out.println("Migrated " + migrated + " files, " + failed + " failed, "
+				+ humanReadableByteCount(totalBytes.get()) + " at "
+				+ humanReadableByteCount((long) (totalBytes.get() * 1e9 / Math.max(1, System.nanoTime() - start))) + "/s");
+		return failed.get();
+	}
+
+	/**
+	 * Decodes the legacy <tt>sourcefile</tt> with the specified <tt>hash</tt>
+	 * and encrypts it with the <tt>crypto</tt> into the <tt>destfile</tt> in a
+	 * single pass, feeding the decoded data to the <tt>decoded</tt> digest and
+	 * reporting the number of bytes read to the <tt>progress</tt> consumer
+	 * after every read.
+	 *
+	 * @param sourcefile file encrypted by the byte-shift method
+	 * @param destfile file to be created
+	 * @param hash hash the source file was encrypted with
+	 * @param crypto crypto used for the new encryption
+	 * @param decoded digest of the decoded data, null if not computed
+	 * @param progress consumer of the number of bytes read
+	 * @throws InterruptedIOException if the current thread is interrupted
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void migrate(File sourcefile, File destfile, int hash, Crypto crypto, Manifest.Digest decoded,
+			LongConsumer progress) throws IOException {
+		try (
+				BufferPool.Lease lease = BufferPool.GLOBAL.borrow(2);
+				FileChannel in = new FileInputStream(sourcefile).getChannel();
+				FileChannel out = new FileOutputStream(destfile).getChannel();
+		) {
+			ByteBuffer inBuffer = lease.get(0);
+			ByteBuffer outBuffer = lease.get(1);
+			inBuffer.limit(CryptoEngine.READ_SIZE);
+
+			int len;
+			while ((len = in.read(inBuffer)) != -1) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Interrupted while migrating " + sourcefile);
+				}
+				Throttle.GLOBAL.acquire(len);
+				Metrics.GLOBAL.read(len);
+
+				inBuffer.flip();
+				EncryptorDecryptor.decryptBytes(inBuffer, hash);
+				if (decoded != null) {
+					decoded.update(inBuffer.duplicate());
+				}
+				crypto.update(inBuffer, outBuffer);
+				inBuffer.clear();
+				inBuffer.limit(CryptoEngine.READ_SIZE);
+				write(out, outBuffer);
+				progress.accept(len);
+			}
+			crypto.doFinal(outBuffer);
+			write(out, outBuffer);
+		}
+	}
+
+	/**
+	 * Decrypts the <tt>migrated</tt> file with the specified <tt>password</tt>
+	 * and compares the checksum of its plaintext with the <tt>decoded</tt>
+	 * digest of the data it was migrated from.
+	 *
+	 * @param migrated the migrated file
+	 * @param password password of the migrated file
+	 * @param decoded SHA-256 digest of the decoded data
+	 * @throws IOException if the file can not be decrypted or its plaintext
+	 *         differs from the decoded data
+	 */
+	private static void verify(File migrated, char[] password, Manifest.Digest decoded) throws IOException {
+		Manifest.Digest decrypted = Manifest.Algorithm.SHA256.newDigest();
+		Verifier.verify(migrated, password, decrypted, (len) -> {});
+		if (!decrypted.getValue().equals(decoded.getValue())) {
+			throw new IOException("Migrated file does not decrypt to the decoded data.");
+		}
+	}
+
+	/**
+	 * Returns true if the specified <tt>file</tt> was encrypted with AES by an
+	 * older version, with the <tt>legacyKey</tt> as both the key and the
+	 * initialization vector. Such a file is a whole number of blocks, and its
+	 * last block decrypts to a valid padding. The chance that the padding of
+	 * a byte-shift file of such a length is valid is below one in two hundred,
+	 * and such a file is skipped rather than migrated.
+	 *
+	 * @param file file to be checked
+	 * @param legacyKey key of files encrypted by older versions
+	 * @return true if the file was encrypted with AES
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static boolean isLegacyAes(File file, byte[] legacyKey) throws IOException {
+		ByteBuffer tail;
+		try (FileChannel in = new FileInputStream(file).getChannel()) {
+			long size = in.size();
+			if (size == 0 || size % BLOCK_SIZE != 0) {
+				return false;
+			}
+			tail = ByteBuffer.allocate((int) Math.min(size, 2 * BLOCK_SIZE));
+			long position = size - tail.capacity();
+			while (tail.hasRemaining() && in.read(tail, position + tail.position()) != -1) {
+				// read until full
+			}
+		}
+
+		/* The last block is chained to the one before it, or to the key if it is the first. */
+		byte[] bytes = tail.array();
+		byte[] iv = bytes.length > BLOCK_SIZE ? Arrays.copyOf(bytes, BLOCK_SIZE) : legacyKey;
+		try {
+			Cipher cipher = CipherSelector.newCipher(CipherMode.AES_CBC);
+			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(legacyKey, "AES"), new IvParameterSpec(iv));
+			cipher.doFinal(bytes, bytes.length - BLOCK_SIZE, BLOCK_SIZE);
+			return true;
+		} catch (BadPaddingException e) {
+			return false;
+		} catch (GeneralSecurityException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	/**
+	 * Returns up to the first {@link CryptoHeader#MAX_LENGTH} bytes of the
+	 * specified <tt>file</tt>.
+	 *
+	 * @param file file to be read
+	 * @return the first bytes of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static byte[] readStart(File file) throws IOException {
+		try (FileChannel in = new FileInputStream(file).getChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(in.size(), CryptoHeader.MAX_LENGTH));
+			while (buffer.hasRemaining() && in.read(buffer) != -1) {
+				// read until full
+			}
+			return Arrays.copyOf(buffer.array(), buffer.position());
+		}
+	}
+
+	/**
+	 * Writes all bytes from the specified <tt>buffer</tt> to the
+	 * <tt>channel</tt> and clears the buffer.
+	 *
+	 * @param channel channel to be written to
+	 * @param buffer buffer to be written, ready for putting
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		int len = buffer.remaining();
+		Throttle.GLOBAL.acquire(len);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		Metrics.GLOBAL.written(len);
+		buffer.clear();
+	}
+
+}
@@ -0,0 +1,542 @@
+package encryptor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * A manifest of checksums of the plaintext of encrypted files, kept in a
+ * sidecar file in the directory of the encrypted files.
+ * <p>
+ * The checksum of a file is computed by its {@linkplain Crypto} from the
+ * plaintext buffers that pass through it, so the data is not read a second
+ * time: after encryption the checksum is {@linkplain #put(File, Digest) put}
+ * into the manifest, and on decryption it is {@linkplain #expect(File)
+ * expected} and compared with the checksum of the decrypted data. The
+ * manifests of a batch are {@linkplain #write() written} once, when the
+ * batch is done. Every encrypted file written by a batch replaces its entry
+ * in the manifests of all algorithms, or removes it if its checksum was not
+ * computed, so no stale checksum is left behind. Each line of a manifest
+ * holds the checksum and the name of an encrypted file, separated by two
+ * spaces.
+ * <p>
+ * A manifest holds the checksums put into it in memory, and the manifests of
+ * the most recent {@value #MAX_LOADED} directories it expects checksums
+ * from. Batches of any number of files put their checksums into a
+ * {@linkplain ManifestLog} instead.
+ * <p>
+ * Checksums are not computed by default. The algorithm can be chosen with the
+ * <tt>encryptor.checksum</tt> system property, i.e.
+ * <tt>-Dencryptor.checksum=CRC32C</tt>, or with
+ * {@link #setAlgorithm(Algorithm)}. Existing manifests are always verified.
+ *
+ * @author Mario Bobic
+ */
+public class Manifest {
+
+	/** Suffix of manifest files */
+	public static final String FILE_SUFFIX = ".manifest";
+
+	/** Number of directories whose manifests are kept loaded */
+	private static final int MAX_LOADED = 64;
+
+	/**
+	 * Algorithms of the checksums.
+	 *
+	 * @author Mario Bobic
+	 */
+	public enum Algorithm {
+		/** CRC-32C, computed with the instructions of the processor since Java 9 */
+		CRC32C,
+		/** CRC-32, used instead of CRC-32C before Java 9 */
+		CRC32,
+		/** SHA-256, a cryptographic hash */
+		SHA256;
+
+		/**
+		 * Returns the name of the manifest file with checksums of this
+		 * algorithm.
+		 *
+		 * @return the name of the manifest file
+		 */
+		public String getFileName() {
+			return name().toLowerCase() + FILE_SUFFIX;
+		}
+
+		/**
+		 * Returns true if this algorithm is available in this Java runtime.
+		 *
+		 * @return true if this algorithm is available
+		 */
+		public boolean isAvailable() {
+			return this != CRC32C || CRC32C_UPDATE != null;
+		}
+
+		/**
+		 * Returns a new digest of this algorithm.
+		 *
+		 * @return a new digest
+		 * @throws UnsupportedOperationException if this algorithm is not available
+		 */
+		public Digest newDigest() {
+			switch (this) {
+			case CRC32C:
+				if (CRC32C_UPDATE == null) {
+					throw new UnsupportedOperationException("CRC-32C requires Java 9.");
+				}
+				return new ChecksumDigest(this, newCrc32c(), CRC32C_UPDATE);
+			case CRC32:
+				return new ChecksumDigest(this, new CRC32(), CRC32_UPDATE);
+			default:
+				try {
+					return new MessageDigestDigest(this, MessageDigest.getInstance("SHA-256"));
+				} catch (NoSuchAlgorithmException e) {
+					throw new InternalError(e);
+				}
+			}
+		}
+	}
+
+	/** The <tt>update(ByteBuffer)</tt> method of CRC-32C, null before Java 9 */
+	private static final MethodHandle CRC32C_UPDATE = findUpdate("java.util.zip.CRC32C");
+	/** The <tt>update(ByteBuffer)</tt> method of CRC-32 */
+	private static final MethodHandle CRC32_UPDATE = findUpdate("java.util.zip.CRC32");
+
+	/** Algorithm of checksums of newly encrypted files, null if not computed */
+	private static volatile Algorithm algorithm = algorithmOf(System.getProperty("encryptor.checksum"));
+
+	/** Algorithm of the checksums put into this manifest, null if only expecting */
+	private final Algorithm putAlgorithm;
+	/** Checksums put into this manifest, by directories and file names, null for removed entries */
+	private final Map<File, Map<String, String>> put = new LinkedHashMap<>();
+	/** Loaded manifests of the most recent directories, by directories, and then by the names of files */
+	private final Map<File, Map<String, Expected>> loaded = new LinkedHashMap<File, Map<String, Expected>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, Map<String, Expected>> eldest) {
+			return size() > MAX_LOADED;
+		}
+	};
+
+	/**
+	 * Constructs a manifest for a batch. Checksums put into it are computed
+	 * with the specified <tt>algorithm</tt>.
+	 *
+	 * @param algorithm algorithm of the checksums put, null if only expecting
+	 */
+	public Manifest(Algorithm algorithm) {
+		this.putAlgorithm = algorithm;
+	}
+
+	/**
+	 * Returns the algorithm of checksums of newly encrypted files, or null if
+	 * checksums are not computed.
+	 *
+	 * @return the algorithm of checksums, or null
+	 */
+	public static Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Sets the algorithm of checksums of newly encrypted files. CRC-32C falls
+	 * back to CRC-32 before Java 9.
+	 *
+	 * @param algorithm algorithm of checksums, null if not computed
+	 */
+	public static void setAlgorithm(Algorithm algorithm) {
+		if (algorithm != null && !algorithm.isAvailable()) {
+			System.err.println("Checksum " + algorithm + " is not available, using " + Algorithm.CRC32);
+			algorithm = Algorithm.CRC32;
+		}
+		Manifest.algorithm = algorithm;
+	}
+
+	/**
+	 * Returns a new digest of the algorithm of this manifest, or null if
+	 * checksums are not computed.
+	 *
+	 * @return a new digest, or null
+	 */
+	public Digest newDigest() {
+		return putAlgorithm != null ? putAlgorithm.newDigest() : null;
+	}
+
+	/**
+	 * Puts the checksum computed by the <tt>digest</tt> for the specified
+	 * encrypted <tt>file</tt> into this manifest. Must be called for every
+	 * encrypted file written, with a null digest if its checksum was not
+	 * computed, so its old entries are removed.
+	 *
+	 * @param file the encrypted file
+	 * @param digest digest of the plaintext of the file, null if not computed
+	 */
+	public synchronized void put(File file, Digest digest) {
+		File directory = file.getAbsoluteFile().getParentFile();
+		put.computeIfAbsent(directory, (dir) -> new LinkedHashMap<>())
+				.put(file.getName(), digest != null ? digest.getValue() : null);
+	}
+
+	/**
+	 * Returns a digest that expects the checksum of the specified encrypted
+	 * <tt>file</tt> from the manifest in its directory, or null if there is
+	 * none or its algorithm is not available.
+	 *
+	 * @param file the encrypted file
+	 * @return a digest that expects the checksum, or null
+	 * @throws IOException if the manifest can not be read
+	 */
+	public Digest expect(File file) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		Map<String, Expected> checksums;
+		synchronized (this) {
+			checksums = loaded.get(directory);
+			if (checksums == null) {
+				checksums = load(directory);
+				loaded.put(directory, checksums);
+			}
+		}
+
+		Expected expected = checksums.get(file.getName());
+		if (expected == null || !expected.algorithm.isAvailable()) {
+			return null;
+		}
+		Digest digest = expected.algorithm.newDigest();
+		digest.expected = expected.value;
+		return digest;
+	}
+
+	/**
+	 * Writes the checksums put into this manifest to the manifest files of
+	 * their directories, keeping the checksums of other files already there.
+	 * The entries of the files put are removed from the manifests of the
+	 * other algorithms, and from all manifests if their checksums were not
+	 * computed. Each manifest file is replaced atomically, and deleted if no
+	 * entries are left.
+	 *
+	 * @throws IOException if a manifest can not be written
+	 */
+	public synchronized void write() throws IOException {
+		for (Map.Entry<File, Map<String, String>> entry : put.entrySet()) {
+			for (Algorithm algorithm : Algorithm.values()) {
+				File manifestFile = new File(entry.getKey(), algorithm.getFileName());
+				boolean exists = manifestFile.exists();
+				if (!exists && algorithm != putAlgorithm) {
+					continue;
+				}
+
+				Map<String, String> checksums = new LinkedHashMap<>();
+				if (exists) {
+					readInto(manifestFile, checksums);
+				}
+				boolean changed = false;
+				for (Map.Entry<String, String> checksum : entry.getValue().entrySet()) {
+					if (algorithm == putAlgorithm && checksum.getValue() != null) {
+						checksums.put(checksum.getKey(), checksum.getValue());
+						changed = true;
+					} else if (checksums.remove(checksum.getKey()) != null) {
+						changed = true;
+					}
+				}
+				if (!changed) {
+					continue;
+				}
+				if (checksums.isEmpty()) {
+					Files.delete(manifestFile.toPath());
+					continue;
+				}
+
+				File temp = DurableOutput.tempFile(manifestFile);
+				try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+					for (Map.Entry<String, String> checksum : checksums.entrySet()) {
+						out.write(checksum.getValue() + "  " + checksum.getKey());
+						out.newLine();
+					}
+				}
+				DurableOutput.move(temp.toPath(), manifestFile.toPath());
+			}
+		}
+		put.clear();
+	}
+
+	/**
+	 * Loads the checksums of all manifests in the specified
+	 * <tt>directory</tt>, by file names.
+	 *
+	 * @param directory directory of the manifests
+	 * @return checksums of the files in the directory
+	 * @throws IOException if a manifest can not be read
+	 */
+	private static Map<String, Expected> load(File directory) throws IOException {
+		Map<String, Expected> checksums = new HashMap<>();
+		for (Algorithm algorithm : Algorithm.values()) {
+			File manifestFile = new File(directory, algorithm.getFileName());
+			if (!manifestFile.exists()) {
+				continue;
+			}
+			Map<String, String> values = new HashMap<>();
+			readInto(manifestFile, values);
+			for (Map.Entry<String, String> value : values.entrySet()) {
+				checksums.putIfAbsent(value.getKey(), new Expected(algorithm, value.getValue()));
+			}
+		}
+		return checksums;
+	}
+
+	/**
+	 * Reads the checksums of the specified <tt>manifestFile</tt> into the
+	 * map of <tt>checksums</tt> by file names.
+	 *
+	 * @param manifestFile the manifest file
+	 * @param checksums map of checksums by file names
+	 * @throws IOException if the manifest can not be read
+	 */
+	private static void readInto(File manifestFile, Map<String, String> checksums) throws IOException {
+		read(manifestFile, checksums::put);
+	}
+
+	/**
+	 * Passes the name and the checksum of every entry of the specified
+	 * <tt>manifestFile</tt> to the <tt>consumer</tt>, in the order of the
+	 * file. An entry repeated later replaces the earlier one.
+	 *
+	 * @param manifestFile the manifest file
+	 * @param consumer consumer of the names and the checksums
+	 * @throws IOException if the manifest can not be read or the consumer fails
+	 */
+	static void read(File manifestFile, ExternalSort.PairConsumer consumer) throws IOException {
+		try (BufferedReader in = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int separator = line.indexOf("  ");
+				if (separator > 0) {
+					consumer.accept(line.substring(separator + 2), line.substring(0, separator));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the algorithm with the specified <tt>name</tt>, or null if the
+	 * name is null or unknown.
+	 *
+	 * @param name name of the algorithm
+	 * @return the algorithm, or null
+	 */
+	private static Algorithm algorithmOf(String name) {
+		if (name == null) {
+			return null;
+		}
+		try {
+			Algorithm algorithm = Algorithm.valueOf(name);
+			return algorithm.isAvailable() ? algorithm : Algorithm.CRC32;
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown checksum: " + name);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a new CRC-32C checksum.
+	 *
+	 * @return a new CRC-32C checksum
+	 */
+	private static Checksum newCrc32c() {
+		try {
+			return (Checksum) Class.forName("java.util.zip.CRC32C").getConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	/**
+	 * Returns the <tt>update(ByteBuffer)</tt> method of the checksum class
+	 * with the specified name, or null if there is no such class.
+	 *
+	 * @param className name of the checksum class
+	 * @return the update method, or null
+	 */
+	private static MethodHandle findUpdate(String className) {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Class.forName(className), "update",
+					MethodType.methodType(void.class, ByteBuffer.class));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Computes the checksum of the plaintext of a single file.
+	 *
+	 * @author Mario Bobic
+	 */
+	public static abstract class Digest {
+		/** Algorithm of this digest */
+		private final Algorithm algorithm;
+		/** Expected checksum, null if not expected */
+		private String expected;
+
+		/**
+		 * Constructs a digest of the specified <tt>algorithm</tt>.
+		 *
+		 * @param algorithm algorithm of this digest
+		 */
+		Digest(Algorithm algorithm) {
+			this.algorithm = algorithm;
+		}
+
+		/**
+		 * Returns the algorithm of this digest.
+		 *
+		 * @return the algorithm of this digest
+		 */
+		public Algorithm getAlgorithm() {
+			return algorithm;
+		}
+
+		/**
+		 * Updates the checksum with the remaining bytes of the specified
+		 * <tt>buffer</tt>, consuming them.
+		 *
+		 * @param buffer buffer of plaintext
+		 */
+		public abstract void update(ByteBuffer buffer);
+
+		/**
+		 * Returns the checksum of all bytes updated so far, in hexadecimal.
+		 *
+		 * @return the checksum in hexadecimal
+		 */
+		public abstract String getValue();
+
+		/**
+		 * Compares the checksum with the expected one.
+		 *
+		 * @param file file the checksum was computed for
+		 * @throws ChecksumMismatchException if the checksum is not the expected one
+		 */
+		public void verify(File file) throws ChecksumMismatchException {
+			if (expected != null && !expected.equalsIgnoreCase(getValue())) {
+				throw new ChecksumMismatchException(file);
+			}
+		}
+	}
+
+	/**
+	 * A digest computed by a {@linkplain Checksum}.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class ChecksumDigest extends Digest {
+		/** The checksum */
+		private final Checksum checksum;
+		/** The <tt>update(ByteBuffer)</tt> method of the checksum */
+		private final MethodHandle update;
+
+		/**
+		 * Constructs a digest with the specified arguments.
+		 *
+		 * @param algorithm algorithm of the checksum
+		 * @param checksum the checksum
+		 * @param update the <tt>update(ByteBuffer)</tt> method of the checksum
+		 */
+		ChecksumDigest(Algorithm algorithm, Checksum checksum, MethodHandle update) {
+			super(algorithm);
+			this.checksum = checksum;
+			this.update = update;
+		}
+
+		@Override
+		public void update(ByteBuffer buffer) {
+			try {
+				update.invoke(checksum, buffer);
+			} catch (Throwable t) {
+				throw new InternalError(t);
+			}
+		}
+
+		@Override
+		public String getValue() {
+			return String.format("%08x", checksum.getValue());
+		}
+	}
+
+	/**
+	 * A digest computed by a {@linkplain MessageDigest}.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class MessageDigestDigest extends Digest {
+		/** The message digest */
+		private final MessageDigest digest;
+		/** The computed value, null until computed */
+		private String value;
+
+		/**
+		 * Constructs a digest with the specified arguments.
+		 *
+		 * @param algorithm algorithm of the message digest
+		 * @param digest the message digest
+		 */
+		MessageDigestDigest(Algorithm algorithm, MessageDigest digest) {
+			super(algorithm);
+			this.digest = digest;
+		}
+
+		@Override
+		public void update(ByteBuffer buffer) {
+			digest.update(buffer);
+		}
+
+		@Override
+		public String getValue() {
+			if (value == null) {
+				StringBuilder sb = new StringBuilder();
+				for (byte b : digest.digest()) {
+					sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+				}
+				value = sb.toString();
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * A checksum expected by a manifest.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Expected {
+		/** Algorithm of the checksum */
+		final Algorithm algorithm;
+		/** The checksum in hexadecimal */
+		final String value;
+
+		/**
+		 * Constructs an expected checksum with the specified arguments.
+		 *
+		 * @param algorithm algorithm of the checksum
+		 * @param value the checksum in hexadecimal
+		 */
+		Expected(Algorithm algorithm, String value) {
+			this.algorithm = algorithm;
+			this.value = value;
+		}
+	}
+
+}
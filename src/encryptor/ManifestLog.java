@@ -0,0 +1,236 @@
+package encryptor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Checksums of encrypted files for a batch of any number of files, which are
+ * written to the {@linkplain Manifest manifests} of their directories once,
+ * when the batch is done.
+ * <p>
+ * A {@linkplain Manifest} holds the checksums put into it in memory and
+ * rewrites every manifest it touches whole, which a batch of millions of files
+ * can not afford. The checksums put into a log are collected by an
+ * {@linkplain ExternalSort external sort} by their directories instead, and
+ * are merged with the entries already in the manifests of each directory by
+ * a second external sort by file names. Both run in constant memory, and
+ * every manifest is rewritten only once. The entries replace those already in
+ * the manifests like the entries of a {@linkplain Manifest}: a file's entry
+ * is kept only in the manifest of the algorithm it was put with, or removed
+ * from all manifests if its checksum was not computed.
+ * <p>
+ * A batch that does not end leaves the manifests as they were, and the
+ * entries of the files it encrypted are written by the next batch.
+ *
+ * @author Mario Bobic
+ */
+public class ManifestLog {
+
+	/** Separates the name of a file from its checksum in the sort by directories */
+	private static final char SEPARATOR = '\0';
+
+	/** Algorithm of the checksums put into this log, null if not computed */
+	private final Manifest.Algorithm algorithm;
+	/** Checksums put into this log, by directories */
+	private final ExternalSort directories = new ExternalSort();
+
+	/**
+	 * Constructs a log for a batch. Checksums put into it are computed with
+	 * the specified <tt>algorithm</tt>.
+	 *
+	 * @param algorithm algorithm of the checksums, null if not computed
+	 */
+	public ManifestLog(Manifest.Algorithm algorithm) {
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * Returns a new digest of the algorithm of this log, or null if checksums
+	 * are not computed.
+	 *
+	 * @return a new digest, or null
+	 */
+	public Manifest.Digest newDigest() {
+		return algorithm != null ? algorithm.newDigest() : null;
+	}
+
+	/**
+	 * Puts the checksum computed by the <tt>digest</tt> for the specified
+	 * encrypted <tt>file</tt> into this log. Must be called for every
+	 * encrypted file written, with a null digest if its checksum was not
+	 * computed, so its old entries are removed.
+	 *
+	 * @param file the encrypted file
+	 * @param digest digest of the plaintext of the file, null if not computed
+	 * @throws IOException if the log can not be written
+	 */
+	public synchronized void put(File file, Manifest.Digest digest) throws IOException {
+		String entry = digest != null ? digest.getAlgorithm().name() + " " + digest.getValue() : "";
+		directories.add(file.getAbsoluteFile().getParent(), file.getName() + SEPARATOR + entry);
+	}
+
+	/**
+	 * Writes the checksums put into this log to the manifest files of their
+	 * directories, and discards them from this log.
+	 *
+	 * @throws IOException if a manifest can not be written
+	 */
+	public synchronized void write() throws IOException {
+		DirectoryMerge[] merge = new DirectoryMerge[1];
+		try {
+			directories.forEach((directory, value) -> {
+				if (merge[0] != null && !merge[0].directory.getPath().equals(directory)) {
+					merge[0].write();
+					merge[0].close();
+					merge[0] = null;
+				}
+				if (merge[0] == null) {
+					merge[0] = new DirectoryMerge(new File(directory));
+				}
+				int separator = value.indexOf(SEPARATOR);
+				String entry = value.substring(separator + 1);
+				merge[0].sort.add(value.substring(0, separator), entry.isEmpty() ? null : entry);
+			});
+			if (merge[0] != null) {
+				merge[0].write();
+			}
+		} finally {
+			if (merge[0] != null) {
+				merge[0].close();
+			}
+			directories.close();
+		}
+	}
+
+	/**
+	 * The entries of the manifests of a directory, merged with the checksums
+	 * put into the log for the directory by an external sort by file names.
+	 * The values of the sort are the names of the algorithms and the
+	 * checksums, separated by a space, or null for removed entries.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class DirectoryMerge {
+
+		/** The directory */
+		private final File directory;
+		/** Entries by file names, the last one of a name is taken */
+		private final ExternalSort sort = new ExternalSort();
+
+		/**
+		 * Starts merging the manifests of the specified <tt>directory</tt>
+		 * by adding their entries to the sort, before any checksum put.
+		 *
+		 * @param directory the directory
+		 * @throws IOException if a manifest can not be read
+		 */
+		private DirectoryMerge(File directory) throws IOException {
+			this.directory = directory;
+			/* A file in several manifests is expected with the first algorithm, so it is added last. */
+			Manifest.Algorithm[] algorithms = Manifest.Algorithm.values();
+			for (int i = algorithms.length - 1; i >= 0; i--) {
+				String prefix = algorithms[i].name() + " ";
+				File manifestFile = new File(directory, algorithms[i].getFileName());
+				if (manifestFile.exists()) {
+					Manifest.read(manifestFile, (name, checksum) -> sort.add(name, prefix + checksum));
+				}
+			}
+		}
+
+		/**
+		 * Writes the merged entries to new manifest files, which replace the
+		 * old ones. Manifest files left without entries are deleted.
+		 *
+		 * @throws IOException if a manifest can not be written
+		 */
+		private void write() throws IOException {
+			Map<Manifest.Algorithm, BufferedWriter> writers = new EnumMap<>(Manifest.Algorithm.class);
+			try {
+				String[] last = new String[2];
+				sort.forEach((name, entry) -> {
+					if (last[0] != null && !last[0].equals(name)) {
+						writeEntry(writers, last[0], last[1]);
+					}
+					last[0] = name;
+					last[1] = entry;
+				});
+				if (last[0] != null) {
+					writeEntry(writers, last[0], last[1]);
+				}
+				for (BufferedWriter out : writers.values()) {
+					out.close();
+				}
+			} catch (IOException | RuntimeException e) {
+				for (Map.Entry<Manifest.Algorithm, BufferedWriter> writer : writers.entrySet()) {
+					try {
+						writer.getValue().close();
+					} catch (IOException suppressed) {
+						e.addSuppressed(suppressed);
+					}
+					DurableOutput.tempFile(manifestFile(writer.getKey())).delete();
+				}
+				throw e;
+			}
+
+			for (Manifest.Algorithm algorithm : Manifest.Algorithm.values()) {
+				File manifestFile = manifestFile(algorithm);
+				if (writers.containsKey(algorithm)) {
+					DurableOutput.move(DurableOutput.tempFile(manifestFile).toPath(), manifestFile.toPath());
+				} else {
+					Files.deleteIfExists(manifestFile.toPath());
+				}
+			}
+		}
+
+		/**
+		 * Writes the entry of the file with the specified <tt>name</tt> to
+		 * the new manifest of its algorithm, opening it the first time.
+		 *
+		 * @param writers writers of the new manifests by their algorithms
+		 * @param name name of the file
+		 * @param entry algorithm and checksum of the file, null if removed
+		 * @throws IOException if the manifest can not be written
+		 */
+		private void writeEntry(Map<Manifest.Algorithm, BufferedWriter> writers, String name, String entry)
+				throws IOException {
+			if (entry == null) {
+				return;
+			}
+			int separator = entry.indexOf(' ');
+			Manifest.Algorithm algorithm = Manifest.Algorithm.valueOf(entry.substring(0, separator));
+			BufferedWriter out = writers.get(algorithm);
+			if (out == null) {
+				File temp = DurableOutput.tempFile(manifestFile(algorithm));
+				out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8);
+				writers.put(algorithm, out);
+			}
+			out.write(entry.substring(separator + 1) + "  " + name);
+			out.newLine();
+		}
+
+		/**
+		 * Returns the manifest file of the specified <tt>algorithm</tt> in
+		 * the directory.
+		 *
+		 * @param algorithm algorithm of the manifest
+		 * @return the manifest file
+		 */
+		private File manifestFile(Manifest.Algorithm algorithm) {
+			return new File(directory, algorithm.getFileName());
+		}
+
+		/**
+		 * Deletes the temporary files of the sort.
+		 */
+		private void close() {
+			sort.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,231 @@
+package encryptor;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the work done by all crypto workers in this process.
+ * <p>
+ * The metrics are registered with the platform MBean server under the name
+ * {@value #OBJECT_NAME}, where they can be read and where the
+ * {@linkplain Throttle#GLOBAL global throttle} can be adjusted at runtime.
+ *
+ * @author Mario Bobic
+ */
+public class Metrics implements MetricsMXBean {
+
+	/** Name under which the metrics are registered with the MBean server */
+	public static final String OBJECT_NAME = "encryptor:type=Metrics";
+
+	/** The metrics of this process */
+	public static final Metrics GLOBAL = new Metrics();
+
+	/** Indicates if the I/O of the current thread is neither counted nor throttled */
+	private static final ThreadLocal<Boolean> UNCOUNTED = ThreadLocal.withInitial(() -> false);
+
+	/** Total number of bytes read */
+	private final LongAdder bytesRead = new LongAdder();
+	/** Total number of bytes written */
+	private final LongAdder bytesWritten = new LongAdder();
+	/** Total number of files processed */
+	private final LongAdder filesProcessed = new LongAdder();
+	/** Total number of output files made durable */
+	private final LongAdder filesSynced = new LongAdder();
+	/** Total number of groups in which output files were made durable */
+	private final LongAdder syncGroups = new LongAdder();
+	/** Total makespan of the scheduled batch groups, in bytes */
+	private final LongAdder scheduledMakespan = new LongAdder();
+	/** Total makespan the batch groups would have had in list order, in bytes */
+	private final LongAdder listOrderMakespan = new LongAdder();
+	/** Number of cancelled batches whose workers did not stop in time */
+	private final LongAdder workersAbandoned = new LongAdder();
+	/** Number of files processed by each engine */
+	private final Map<CryptoEngine, LongAdder> filesPerEngine = new EnumMap<>(CryptoEngine.class);
+
+	/**
+	 * Constructs an instance of {@code Metrics} with all counters at zero.
+	 */
+	public Metrics() {
+		for (CryptoEngine engine : CryptoEngine.values()) {
+			filesPerEngine.put(engine, new LongAdder());
+		}
+	}
+
+	/**
+	 * Registers the metrics of this process with the platform MBean server.
+	 * Registering more than once has no effect.
+	 */
+	public static synchronized void register() {
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name)) {
+				server.registerMBean(GLOBAL, name);
+			}
+		} catch (JMException e) {
+			System.err.println("Can not register metrics: " + e);
+		}
+	}
+
+	/**
+	 * Sets whether the I/O of the current thread is counted and
+	 * {@linkplain Throttle throttled}. Benchmarks are not, so they neither
+	 * inflate the counters nor take from the budget of the files processed
+	 * meanwhile.
+	 *
+	 * @param uncounted true if the I/O of the current thread is not counted
+	 */
+	static void setUncounted(boolean uncounted) {
+		UNCOUNTED.set(uncounted);
+	}
+
+	/**
+	 * Returns true if the I/O of the current thread is neither counted nor
+	 * throttled.
+	 *
+	 * @return true if the I/O of the current thread is not counted
+	 */
+	static boolean isUncounted() {
+		return UNCOUNTED.get();
+	}
+
+	/**
+	 * Records that the specified number of <tt>bytes</tt> have been read.
+	 *
+	 * @param bytes number of bytes read
+	 */
+	public void read(long bytes) {
+		if (!isUncounted()) {
+			bytesRead.add(bytes);
+		}
+	}
+
+	/**
+	 * Records that the specified number of <tt>bytes</tt> have been written.
+	 *
+	 * @param bytes number of bytes written
+	 */
+	public void written(long bytes) {
+		if (!isUncounted()) {
+			bytesWritten.add(bytes);
+		}
+	}
+
+	/**
+	 * Records that a file has been processed by the specified <tt>engine</tt>.
+	 *
+	 * @param engine engine that processed the file
+	 */
+	public void fileProcessed(CryptoEngine engine) {
+		filesProcessed.increment();
+		filesPerEngine.get(engine).increment();
+	}
+
+	/**
+	 * Records that a group of the specified number of output <tt>files</tt>
+	 * has been made durable.
+	 *
+	 * @param files number of files in the group
+	 */
+	public void synced(int files) {
+		filesSynced.add(files);
+		syncGroups.increment();
+	}
+
+	/**
+	 * Records the makespan of a scheduled batch group and the makespan it
+	 * would have had if its files were executed in list order.
+	 *
+	 * @param scheduled makespan of the scheduled group, in bytes
+	 * @param listOrder makespan of the group in list order, in bytes
+	 */
+	public void scheduled(long scheduled, long listOrder) {
+		scheduledMakespan.add(scheduled);
+		listOrderMakespan.add(listOrder);
+	}
+
+	/**
+	 * Records that the workers of a cancelled batch did not stop in time and
+	 * have been abandoned.
+	 */
+	public void workersAbandoned() {
+		workersAbandoned.increment();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getFilesProcessed() {
+		return filesProcessed.sum();
+	}
+
+	@Override
+	public Map<String, Long> getFilesPerEngine() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (Map.Entry<CryptoEngine, LongAdder> entry : filesPerEngine.entrySet()) {
+			counts.put(entry.getKey().name(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	@Override
+	public long getFilesSynced() {
+		return filesSynced.sum();
+	}
+
+	@Override
+	public long getSyncGroups() {
+		return syncGroups.sum();
+	}
+
+	@Override
+	public long getScheduledMakespan() {
+		return scheduledMakespan.sum();
+	}
+
+	@Override
+	public long getListOrderMakespan() {
+		return listOrderMakespan.sum();
+	}
+
+	@Override
+	public long getWorkersAbandoned() {
+		return workersAbandoned.sum();
+	}
+
+	@Override
+	public long getThrottleBytesPerSecond() {
+		return Throttle.GLOBAL.getBytesPerSecond();
+	}
+
+	@Override
+	public void setThrottleBytesPerSecond(long bytesPerSecond) {
+		Throttle.GLOBAL.setBytesPerSecond(bytesPerSecond);
+	}
+
+	@Override
+	public long getThrottleOperationsPerSecond() {
+		return Throttle.GLOBAL.getOperationsPerSecond();
+	}
+
+	@Override
+	public void setThrottleOperationsPerSecond(long operationsPerSecond) {
+		Throttle.GLOBAL.setOperationsPerSecond(operationsPerSecond);
+	}
+
+}
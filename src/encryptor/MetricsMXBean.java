@@ -0,0 +1,112 @@
+package encryptor;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@linkplain Metrics}, exposed through JMX so the
+ * crypto workers can be monitored and throttled while they are running.
+ *
+ * @author Mario Bobic
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * Returns the total number of bytes read by the crypto workers.
+	 *
+	 * @return the total number of bytes read
+	 */
+	long getBytesRead();
+
+	/**
+	 * Returns the total number of bytes written by the crypto workers.
+	 *
+	 * @return the total number of bytes written
+	 */
+	long getBytesWritten();
+
+	/**
+	 * Returns the total number of files processed by the crypto workers.
+	 *
+	 * @return the total number of files processed
+	 */
+	long getFilesProcessed();
+
+	/**
+	 * Returns the number of files processed by each {@linkplain CryptoEngine
+	 * engine}, mapped by the names of the engines.
+	 *
+	 * @return the number of files processed by each engine
+	 */
+	Map<String, Long> getFilesPerEngine();
+
+	/**
+	 * Returns the total number of output files made durable by the
+	 * {@linkplain DurableOutput}.
+	 *
+	 * @return the total number of files made durable
+	 */
+	long getFilesSynced();
+
+	/**
+	 * Returns the total number of groups in which output files were made
+	 * durable. Files per group tells how well the synchronization is shared.
+	 *
+	 * @return the total number of groups
+	 */
+	long getSyncGroups();
+
+	/**
+	 * Returns the total makespan of all batch groups as scheduled by the
+	 * {@linkplain BatchScheduler}, in bytes of the largest worker's share.
+	 *
+	 * @return the total scheduled makespan
+	 */
+	long getScheduledMakespan();
+
+	/**
+	 * Returns the total makespan all batch groups would have had if their
+	 * files were executed in list order, to be compared with the
+	 * {@linkplain #getScheduledMakespan() scheduled makespan}.
+	 *
+	 * @return the total makespan in list order
+	 */
+	long getListOrderMakespan();
+
+	/**
+	 * Returns the number of cancelled batches whose workers did not stop in
+	 * time and have been abandoned while still running.
+	 *
+	 * @return the number of batches with abandoned workers
+	 */
+	long getWorkersAbandoned();
+
+	/**
+	 * Returns the maximum number of bytes per second, 0 if unlimited.
+	 *
+	 * @return the maximum number of bytes per second
+	 */
+	long getThrottleBytesPerSecond();
+
+	/**
+	 * Sets the maximum number of bytes per second. A value of 0 removes the limit.
+	 *
+	 * @param bytesPerSecond maximum number of bytes per second
+	 */
+	void setThrottleBytesPerSecond(long bytesPerSecond);
+
+	/**
+	 * Returns the maximum number of I/O operations per second, 0 if unlimited.
+	 *
+	 * @return the maximum number of I/O operations per second
+	 */
+	long getThrottleOperationsPerSecond();
+
+	/**
+	 * Sets the maximum number of I/O operations per second. A value of 0
+	 * removes the limit.
+	 *
+	 * @param operationsPerSecond maximum number of I/O operations per second
+	 */
+	void setThrottleOperationsPerSecond(long operationsPerSecond);
+
+}
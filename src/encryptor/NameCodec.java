@@ -0,0 +1,225 @@
+package encryptor;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes file names into names that are safe on every file system, and
+ * decodes them back.
+ * <p>
+ * A name is encoded as its UTF-8 bytes in the URL and filename safe
+ * {@linkplain java.util.Base64 Base64} alphabet of RFC 4648, without padding,
+ * so the encoded name never contains a <tt>/</tt>. The decoder also accepts
+ * the standard alphabet with padding and names encoded with the platform
+ * charset, which older versions produced.
+ * <p>
+ * Names are converted directly between strings and reused per-thread
+ * buffers, so encoding or decoding a name allocates little more than the
+ * resulting string.
+ *
+ * @author Mario Bobic
+ */
+public class NameCodec {
+
+	/** The URL and filename safe alphabet */
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	/** Values of the characters of both alphabets, -1 for other characters */
+	private static final byte[] VALUES = new byte[128];
+
+	static {
+		Arrays.fill(VALUES, (byte) -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			VALUES[ALPHABET[i]] = (byte) i;
+		}
+		VALUES['+'] = 62;
+		VALUES['/'] = 63;
+	}
+
+	/** Buffers of the current thread */
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+	/**
+	 * Encodes the specified file <tt>name</tt>.
+	 *
+	 * @param name name to be encoded
+	 * @return the encoded name
+	 */
+	public static String encode(String name) {
+		Buffers buffers = BUFFERS.get();
+		byte[] bytes = buffers.bytes(3 * name.length());
+		int len = utf8(name, bytes);
+
+		char[] chars = buffers.chars((len * 4 + 2) / 3);
+		int c = 0;
+		int i = 0;
+		for (; i <= len - 3; i += 3) {
+			int bits = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+			chars[c++] = ALPHABET[bits >>> 18];
+			chars[c++] = ALPHABET[(bits >>> 12) & 0x3F];
+			chars[c++] = ALPHABET[(bits >>> 6) & 0x3F];
+			chars[c++] = ALPHABET[bits & 0x3F];
+		}
+		if (i < len) {
+			int bits = (bytes[i] & 0xFF) << 16 | (i + 1 < len ? (bytes[i + 1] & 0xFF) << 8 : 0);
+			chars[c++] = ALPHABET[bits >>> 18];
+			chars[c++] = ALPHABET[(bits >>> 12) & 0x3F];
+			if (i + 1 < len) {
+				chars[c++] = ALPHABET[(bits >>> 6) & 0x3F];
+			}
+		}
+		return new String(chars, 0, c);
+	}
+
+	/**
+	 * Decodes the specified encoded file <tt>name</tt>.
+	 *
+	 * @param name name to be decoded
+	 * @return the decoded name
+	 * @throws IllegalArgumentException if the name is not validly encoded
+	 */
+	public static String decode(String name) {
+		int length = name.length();
+		while (length > 0 && name.charAt(length - 1) == '=') {
+			length--;
+		}
+		if (length % 4 == 1) {
+			throw new IllegalArgumentException("Invalid encoded name length: " + name);
+		}
+
+		Buffers buffers = BUFFERS.get();
+		byte[] bytes = buffers.bytes(length * 3 / 4);
+		int len = 0;
+		int bits = 0;
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			char ch = name.charAt(i);
+			int value = ch < VALUES.length ? VALUES[ch] : -1;
+			if (value < 0) {
+				throw new IllegalArgumentException("Illegal character '" + ch + "' in encoded name: " + name);
+			}
+			bits = bits << 6 | value;
+			if (++count == 4) {
+				bytes[len++] = (byte) (bits >>> 16);
+				bytes[len++] = (byte) (bits >>> 8);
+				bytes[len++] = (byte) bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+		if (count == 3) {
+			bytes[len++] = (byte) (bits >>> 10);
+			bytes[len++] = (byte) (bits >>> 2);
+		} else if (count == 2) {
+			bytes[len++] = (byte) (bits >>> 4);
+		}
+
+		return buffers.decode(bytes, len);
+	}
+
+	/**
+	 * Encodes the specified <tt>name</tt> into its UTF-8 bytes and returns
+	 * their number. Unpaired surrogates are encoded as <tt>?</tt>.
+	 *
+	 * @param name name to be encoded
+	 * @param bytes array of at least three bytes per character
+	 * @return the number of bytes
+	 */
+	private static int utf8(String name, byte[] bytes) {
+		int len = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			if (ch < 0x80) {
+				bytes[len++] = (byte) ch;
+			} else if (ch < 0x800) {
+				bytes[len++] = (byte) (0xC0 | ch >> 6);
+				bytes[len++] = (byte) (0x80 | ch & 0x3F);
+			} else if (Character.isHighSurrogate(ch) && i + 1 < name.length() && Character.isLowSurrogate(name.charAt(i + 1))) {
+				int cp = Character.toCodePoint(ch, name.charAt(++i));
+				bytes[len++] = (byte) (0xF0 | cp >> 18);
+				bytes[len++] = (byte) (0x80 | cp >> 12 & 0x3F);
+				bytes[len++] = (byte) (0x80 | cp >> 6 & 0x3F);
+				bytes[len++] = (byte) (0x80 | cp & 0x3F);
+			} else if (Character.isSurrogate(ch)) {
+				bytes[len++] = '?';
+			} else {
+				bytes[len++] = (byte) (0xE0 | ch >> 12);
+				bytes[len++] = (byte) (0x80 | ch >> 6 & 0x3F);
+				bytes[len++] = (byte) (0x80 | ch & 0x3F);
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Buffers reused by a single thread.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Buffers {
+		/** Strict UTF-8 decoder */
+		private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		/** Byte buffer */
+		private byte[] bytes = new byte[256];
+		/** Char buffer */
+		private char[] chars = new char[256];
+
+		/**
+		 * Returns the byte buffer, grown to at least the specified <tt>size</tt>.
+		 *
+		 * @param size minimum size of the buffer
+		 * @return the byte buffer
+		 */
+		byte[] bytes(int size) {
+			if (bytes.length < size) {
+				bytes = new byte[Math.max(size, 2 * bytes.length)];
+			}
+			return bytes;
+		}
+
+		/**
+		 * Returns the char buffer, grown to at least the specified <tt>size</tt>.
+		 *
+		 * @param size minimum size of the buffer
+		 * @return the char buffer
+		 */
+		char[] chars(int size) {
+			if (chars.length < size) {
+				chars = new char[Math.max(size, 2 * chars.length)];
+			}
+			return chars;
+		}
+
+		/**
+		 * Decodes the first <tt>len</tt> bytes of the specified array as
+		 * UTF-8, or with the platform charset if they are not valid UTF-8.
+		 *
+		 * @param bytes bytes to be decoded
+		 * @param len number of bytes
+		 * @return the decoded string
+		 */
+		String decode(byte[] bytes, int len) {
+			CharBuffer out = CharBuffer.wrap(chars(len));
+			decoder.reset();
+			try {
+				CoderResult result = decoder.decode(ByteBuffer.wrap(bytes, 0, len), out, true);
+				if (result.isError()) {
+					result.throwException();
+				}
+				decoder.flush(out);
+			} catch (CharacterCodingException e) {
+				return new String(bytes, 0, len, Charset.defaultCharset());
+			}
+			return new String(chars, 0, out.position());
+		}
+	}
+
+}
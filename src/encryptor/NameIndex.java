@@ -0,0 +1,273 @@
+package encryptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static encryptor.ConstantsAndMethods.FILE_EXTENSION;
+
+/**
+ * An encrypted index of the names of the files in a directory whose names
+ * were encrypted, mapping the original names to the encrypted ones.
+ * <p>
+ * Without the index, finding a file by its original name means decoding the
+ * name of every file in the directory. The index is decrypted once and then
+ * answers {@linkplain #lookup(String) lookups} and {@linkplain #names()
+ * listings} from memory. It is kept in the file {@value #FILE_NAME} of the
+ * directory, encrypted with the {@linkplain Crypto} like any other file. When
+ * the <tt>encryptor.nameIndex</tt> system property is set, it is updated by
+ * the {@linkplain EncryptorPanel} when names are encrypted, and by the
+ * {@linkplain DecryptorPanel} when encrypted files are deleted after they
+ * are decrypted.
+ * <p>
+ * The index can be queried from the command line with the directory and
+ * optionally the original name as arguments. Without a name, all original
+ * names are listed. The <tt>-rebuild</tt> option builds the index from the
+ * names of the encrypted files first.
+ *
+ * @author Mario Bobic
+ */
+public class NameIndex {
+
+	/** Name of the index file */
+	public static final String FILE_NAME = ".names.index";
+
+	/** Magic number at the beginning of the decrypted index */
+	private static final int MAGIC = 0x46454E58; // "FENX"
+
+	/** Indicates if indexes are updated when names are encrypted or decrypted */
+	private static volatile boolean enabled = Boolean.getBoolean("encryptor.nameIndex");
+
+	/** The directory of this index */
+	private final File directory;
+	/** Encrypted names by the original names */
+	private final Map<String, String> names;
+	/** Indicates if this index has been changed since it was loaded */
+	private boolean changed;
+
+	/**
+	 * Constructs an index of the specified <tt>directory</tt> with the
+	 * specified <tt>names</tt>.
+	 *
+	 * @param directory the directory
+	 * @param names encrypted names by the original names
+	 */
+	private NameIndex(File directory, Map<String, String> names) {
+		this.directory = directory;
+		this.names = names;
+	}
+
+	/**
+	 * Looks up or lists the names of a directory, see the class description.
+	 *
+	 * @param args optional <tt>-rebuild</tt> option, the directory and
+	 *        optionally the original name
+	 * @throws IOException if the index can not be read or written
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean rebuild = args.length > 0 && args[0].equals("-rebuild");
+		int first = rebuild ? 1 : 0;
+		if (args.length - first < 1 || args.length - first > 2) {
+			System.err.println("Usage: NameIndex [-rebuild] <directory> [name]");
+			System.exit(2);
+		}
+
+		File directory = new File(args[first]);
+		char[] password = Verifier.readPassword();
+		try {
+			NameIndex index;
+			if (rebuild) {
+				index = rebuild(directory);
+				index.save(password, KeyDerivation.newParameters());
+			} else {
+				index = load(directory, password);
+			}
+
+			if (args.length - first == 2) {
+				String encrypted = index.lookup(args[first + 1]);
+				System.out.println(encrypted != null ? encrypted : "Not found: " + args[first + 1]);
+			} else {
+				for (String name : index.names()) {
+					System.out.println(name + " -> " + index.lookup(name));
+				}
+			}
+		} finally {
+			Arrays.fill(password, '\0');
+			KeyDerivation.clearCache();
+		}
+	}
+
+	/**
+	 * Returns true if indexes are updated when names are encrypted or decrypted.
+	 *
+	 * @return true if name indexes are enabled
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables updating indexes when names are encrypted or decrypted.
+	 *
+	 * @param enabled true if indexes should be updated
+	 */
+	public static void setEnabled(boolean enabled) {
+		NameIndex.enabled = enabled;
+	}
+
+	/**
+	 * Loads and decrypts the index of the specified <tt>directory</tt>, or
+	 * returns an empty index if the directory has none.
+	 *
+	 * @param directory the directory
+	 * @param password password of the index
+	 * @return the index of the directory
+	 * @throws WrongPasswordException if the password is wrong
+	 * @throws IOException if the index can not be read or is damaged
+	 */
+	public static NameIndex load(File directory, char[] password) throws IOException {
+		File file = new File(directory, FILE_NAME);
+		if (!file.exists()) {
+			return new NameIndex(directory, new HashMap<>());
+		}
+
+		byte[] encrypted = Files.readAllBytes(file.toPath());
+		ByteBuffer decrypted = ByteBuffer.allocate(encrypted.length + 2 * Crypto.BLOCK_SIZE);
+		new Crypto(password, null, Crypto.DECRYPT).doFinal(ByteBuffer.wrap(encrypted), decrypted);
+
+		try (DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(decrypted.array(), 0, decrypted.position()))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Name index of " + directory + " is damaged.");
+			}
+			int size = in.readInt();
+			Map<String, String> names = new HashMap<>(size * 4 / 3 + 1);
+			for (int i = 0; i < size; i++) {
+				names.put(in.readUTF(), in.readUTF());
+			}
+			return new NameIndex(directory, names);
+		}
+	}
+
+	/**
+	 * Builds the index of the specified <tt>directory</tt> by decoding the
+	 * names of all encrypted files in it. Files whose names are not encoded
+	 * are left out.
+	 *
+	 * @param directory the directory
+	 * @return the index of the directory
+	 */
+	public static NameIndex rebuild(File directory) {
+		Map<String, String> names = new HashMap<>();
+		String[] files = directory.list();
+		if (files != null) {
+			for (String file : files) {
+				if (!file.endsWith(FILE_EXTENSION)) {
+					continue;
+				}
+				String encoded = file.substring(0, file.length() - FILE_EXTENSION.length());
+				try {
+					names.put(NameCodec.decode(encoded), file);
+				} catch (IllegalArgumentException e) {
+					// name is not encoded
+				}
+			}
+		}
+		NameIndex index = new NameIndex(directory, names);
+		index.changed = true;
+		return index;
+	}
+
+	/**
+	 * Returns the name of the encrypted file of the file with the specified
+	 * <tt>original</tt> name, or null if it is not in this index.
+	 *
+	 * @param original the original name
+	 * @return the name of the encrypted file, or null
+	 */
+	public synchronized String lookup(String original) {
+		return names.get(original);
+	}
+
+	/**
+	 * Returns the sorted original names of all files in this index.
+	 *
+	 * @return the original names
+	 */
+	public synchronized List<String> names() {
+		List<String> list = new ArrayList<>(names.keySet());
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Maps the <tt>original</tt> name to the name of its encrypted file.
+	 *
+	 * @param original the original name
+	 * @param encrypted name of the encrypted file
+	 */
+	public synchronized void put(String original, String encrypted) {
+		changed |= !encrypted.equals(names.put(original, encrypted));
+	}
+
+	/**
+	 * Removes the file with the specified <tt>original</tt> name from this
+	 * index.
+	 *
+	 * @param original the original name
+	 */
+	public synchronized void remove(String original) {
+		changed |= names.remove(original) != null;
+	}
+
+	/**
+	 * Encrypts this index and replaces the index file of its directory
+	 * atomically, if the index has been changed.
+	 *
+	 * @param password password of the index
+	 * @param keyDerivation parameters used for deriving the key
+	 * @throws IOException if the index can not be written
+	 */
+	public synchronized void save(char[] password, KeyDerivation keyDerivation) throws IOException {
+		if (!changed) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(MAGIC);
+			out.writeInt(names.size());
+			for (Map.Entry<String, String> entry : names.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+		}
+
+		ByteBuffer encrypted = ByteBuffer.allocate(bytes.size() + CryptoHeader.MAX_LENGTH + 2 * Crypto.BLOCK_SIZE);
+		new Crypto(password, keyDerivation, Crypto.ENCRYPT).doFinal(ByteBuffer.wrap(bytes.toByteArray()), encrypted);
+
+		File file = new File(directory, FILE_NAME);
+		File temp = DurableOutput.tempFile(file);
+		Files.write(temp.toPath(), Arrays.copyOf(encrypted.array(), encrypted.position()));
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		changed = false;
+	}
+
+}
@@ -0,0 +1,134 @@
+package encryptor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A list of paths that is read lazily from a file or the standard input, one
+ * path at a time, so a list of any length is read in constant memory. The
+ * paths are separated either by new lines, where a carriage return before a
+ * new line is ignored, or by NUL characters, as written by
+ * <tt>find -print0</tt>, which also allows new lines in the paths. Empty
+ * entries are skipped.
+ *
+ * @author Mario Bobic
+ */
+public class PathList implements Iterator<File>, Closeable {
+
+	/** Name of the list that stands for the standard input */
+	public static final String STDIN = "-";
+
+	/** Input of the list */
+	private final InputStream in;
+	/** Character that separates the paths */
+	private final int delimiter;
+	/** Bytes of the path being read */
+	private final ByteArrayOutputStream entry = new ByteArrayOutputStream();
+
+	/** Next path, null if not read yet */
+	private File next;
+	/** True if the end of the list has been reached */
+	private boolean ended;
+
+	/**
+	 * Constructs a list of paths read from the specified input stream.
+	 *
+	 * @param in input of the list
+	 * @param nul true if the paths are separated by NUL characters instead of new lines
+	 */
+	public PathList(InputStream in, boolean nul) {
+		this.in = new BufferedInputStream(in);
+		this.delimiter = nul ? '\0' : '\n';
+	}
+
+	/**
+	 * Opens the list of paths in the specified file, or on the standard input
+	 * if the name is {@value #STDIN}. The standard input is not closed when
+	 * the list is closed.
+	 *
+	 * @param name name of the file, or {@value #STDIN}
+	 * @param nul true if the paths are separated by NUL characters instead of new lines
+	 * @return the list of paths
+	 * @throws IOException if the file can not be opened
+	 */
+	public static PathList open(String name, boolean nul) throws IOException {
+		if (name.equals(STDIN)) {
+			return new PathList(new FilterInputStream(System.in) {
+				@Override
+				public void close() {
+					// The standard input stays open
+				}
+			}, nul);
+		}
+		return new PathList(new FileInputStream(name), nul);
+	}
+
+	/**
+	 * Reads the next entry of the list, including an empty one, and returns
+	 * it as a string. This is also used to read a password that precedes the
+	 * paths on the standard input.
+	 *
+	 * @return the next entry, or null at the end of the list
+	 * @throws IOException if the list can not be read
+	 */
+	public String readEntry() throws IOException {
+		entry.reset();
+		int b;
+		while ((b = in.read()) != -1 && b != delimiter) {
+			entry.write(b);
+		}
+		if (b == -1 && entry.size() == 0) {
+			return null;
+		}
+
+		String value = entry.toString(Charset.defaultCharset().name());
+		if (delimiter == '\n' && value.endsWith("\r")) {
+			value = value.substring(0, value.length() - 1);
+		}
+		return value;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && !ended) {
+			String value;
+			try {
+				value = readEntry();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (value == null) {
+				ended = true;
+			} else if (!value.isEmpty()) {
+				next = new File(value);
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public File next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		File file = next;
+		next = null;
+		return file;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
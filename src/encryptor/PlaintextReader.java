@@ -0,0 +1,424 @@
+package encryptor;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access to the plaintext of an encrypted file, without decrypting
+ * the file from its beginning.
+ * <p>
+ * The key is derived and the layout of the file is read once, when the
+ * reader is opened. Every layout can then be read at any position:
+ * <ul>
+ * <li>files in counter mode, including files {@linkplain InPlaceCrypto
+ * encrypted in place}, by starting the key stream at the position,
+ * <li>{@linkplain SparseCrypto sparse} files by looking the position up in
+ * their table of extents,
+ * <li>files in cipher block chaining mode, including files of older versions
+ * without a header, by decrypting from the block at the position with the
+ * previous block of ciphertext as the initialization vector.
+ * </ul>
+ * A reader keeps no file open between reads, so it can be kept for as long
+ * as the file does not change.
+ *
+ * @author Mario Bobic
+ */
+public class PlaintextReader {
+
+	/** The encrypted file */
+	private final File file;
+	/** Length of the encrypted file when the reader was opened */
+	private final long fileLength;
+	/** Modification time of the encrypted file when the reader was opened */
+	private final long lastModified;
+
+	/** Cipher mode of the file */
+	private final CipherMode mode;
+	/** Key of the file */
+	private final byte[] key;
+	/** Initialization vector of the file */
+	private final byte[] iv;
+	/** Position of the ciphertext in the encrypted file */
+	private final long dataStart;
+	/** Length of the plaintext */
+	private final long length;
+	/** Decrypted bytes that the header of a file encrypted in place replaces, null for other files */
+	private final byte[] head;
+	/** Table of a sparse file, null for other files */
+	private final SparseCrypto.Table table;
+	/** Positions of the extents of a sparse file in its key stream, null for other files */
+	private final long[] streamPositions;
+
+	/** Cipher reused for every read */
+	private Cipher cipher;
+
+	/**
+	 * Constructs a reader with the specified arguments.
+	 *
+	 * @param file the encrypted file
+	 * @param fileLength length of the encrypted file
+	 * @param mode cipher mode of the file
+	 * @param key key of the file
+	 * @param iv initialization vector of the file
+	 * @param dataStart position of the ciphertext in the encrypted file
+	 * @param length length of the plaintext
+	 * @param head decrypted head of a file encrypted in place, may be null
+	 * @param table table of a sparse file, may be null
+	 */
+	private PlaintextReader(File file, long fileLength, CipherMode mode, byte[] key, byte[] iv, long dataStart,
+			long length, byte[] head, SparseCrypto.Table table) {
+		this.file = file;
+		this.fileLength = fileLength;
+		this.lastModified = file.lastModified();
+		this.mode = mode;
+		this.key = key;
+		this.iv = iv;
+		this.dataStart = dataStart;
+		this.length = length;
+		this.head = head;
+		this.table = table;
+
+		if (table != null) {
+			/* Each extent starts in the key stream where the previous one ended. */
+			streamPositions = new long[table.extents.length / 2];
+			for (int i = 1; i < streamPositions.length; i++) {
+				streamPositions[i] = streamPositions[i - 1] + table.extents[2 * i - 1];
+			}
+		} else {
+			streamPositions = null;
+		}
+	}
+
+	/**
+	 * Opens a reader of the plaintext of the specified encrypted <tt>file</tt>.
+	 * A file torn by a crash during an in-place operation is recovered first.
+	 *
+	 * @param file the encrypted file
+	 * @param password password of the file
+	 * @return a reader of the plaintext
+	 * @throws WrongPasswordException if the password is wrong
+	 * @throws IOException if the file can not be read or is damaged
+	 */
+	public static PlaintextReader open(File file, char[] password) throws IOException {
+		InPlaceCrypto.recover(file, password);
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = in.size();
+			CryptoHeader header = InPlaceCrypto.readHeader(in);
+			if (header == null) {
+				/* Encrypted by an older version, before headers were written. */
+				byte[] key = Crypto.legacyKey(password);
+				long length = cbcLength(file, in, key, key.clone(), 0, size);
+				return new PlaintextReader(file, size, CipherMode.AES_CBC, key, key.clone(), 0, length, null, null);
+			}
+
+			int headerLength = header.toByteArray().length;
+			byte[] iv = header.getIv();
+			byte[] key = InPlaceCrypto.deriveKey(header, password);
+			if (header.isInPlace()) {
+				long dataEnd = size - headerLength;
+				if (dataEnd < headerLength) {
+					throw new IOException("File is damaged: " + file);
+				}
+				ByteBuffer tail = ByteBuffer.allocate(headerLength);
+				InPlaceCrypto.read(in, tail, dataEnd);
+				byte[] head = InPlaceCrypto.ctr(key, iv, 0).doFinal(tail.array());
+				return new PlaintextReader(file, size, CipherMode.AES_CTR, key, iv, 0, dataEnd, head, null);
+			} else if (header.isSparse()) {
+				SparseCrypto.Table table = SparseCrypto.Table.read(file, in, headerLength, key, iv);
+				return new PlaintextReader(file, size, CipherMode.AES_CTR, key, iv, headerLength, table.length, null, table);
+			} else if (header.getMode() == CipherMode.AES_CTR) {
+				return new PlaintextReader(file, size, CipherMode.AES_CTR, key, iv, headerLength, size - headerLength, null, null);
+			} else {
+				long length = cbcLength(file, in, key, iv, headerLength, size);
+				return new PlaintextReader(file, size, CipherMode.AES_CBC, key, iv, headerLength, length, null, null);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	/**
+	 * Returns the encrypted file of this reader.
+	 *
+	 * @return the encrypted file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the length of the plaintext.
+	 *
+	 * @return the length of the plaintext
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Returns true if the encrypted file has not changed since this reader
+	 * was opened, judging by its length and modification time.
+	 *
+	 * @return true if this reader is still current
+	 */
+	public boolean isCurrent() {
+		return file.length() == fileLength && file.lastModified() == lastModified;
+	}
+
+	/**
+	 * Returns a string identifying the version of the encrypted file this
+	 * reader was opened on.
+	 *
+	 * @return the identity of the file version
+	 */
+	String version() {
+		return file.getPath() + '\0' + fileLength + '\0' + lastModified;
+	}
+
+	/**
+	 * Reads up to <tt>len</tt> bytes of the plaintext, starting at the
+	 * specified <tt>position</tt>, into the array <tt>b</tt> at the offset
+	 * <tt>off</tt>. At least one byte is read unless the position is at or
+	 * beyond the end of the plaintext.
+	 *
+	 * @param position position in the plaintext
+	 * @param b array that receives the plaintext
+	 * @param off offset in the array
+	 * @param len maximum number of bytes to be read
+	 * @return the number of bytes read, or -1 at the end of the plaintext
+	 * @throws IOException if an I/O error occurs or the file is damaged
+	 */
+	public synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+		if (position < 0 || off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (position >= length) {
+			return -1;
+		}
+		len = (int) Math.min(len, length - position);
+		if (len == 0) {
+			return 0;
+		}
+
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (head != null) {
+				return readInPlace(in, position, b, off, len);
+			} else if (table != null) {
+				return readSparse(in, position, b, off, len);
+			} else if (mode == CipherMode.AES_CTR) {
+				return readCtr(in, dataStart + position, position, b, off, len);
+			} else {
+				return readCbc(in, position, b, off, len);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	/**
+	 * Reads the plaintext of a file encrypted in place, whose header takes
+	 * the place of the first bytes of the file.
+	 *
+	 * @param in channel of the file
+	 * @param position position in the plaintext
+	 * @param b array that receives the plaintext
+	 * @param off offset in the array
+	 * @param len maximum number of bytes to be read
+	 * @return the number of bytes read
+	 * @throws IOException if an I/O error occurs
+	 * @throws GeneralSecurityException if the cipher fails
+	 */
+	private int readInPlace(FileChannel in, long position, byte[] b, int off, int len)
+			throws IOException, GeneralSecurityException {
+		if (position < head.length) {
+			int n = (int) Math.min(len, head.length - position);
+			System.arraycopy(head, (int) position, b, off, n);
+			return n;
+		}
+		return readCtr(in, position, position, b, off, len);
+	}
+
+	/**
+	 * Reads the plaintext of a sparse file, where the gaps between the
+	 * extents are zeros and the extents follow each other in the ciphertext.
+	 *
+	 * @param in channel of the file
+	 * @param position position in the plaintext
+	 * @param b array that receives the plaintext
+	 * @param off offset in the array
+	 * @param len maximum number of bytes to be read
+	 * @return the number of bytes read
+	 * @throws IOException if an I/O error occurs
+	 * @throws GeneralSecurityException if the cipher fails
+	 */
+	private int readSparse(FileChannel in, long position, byte[] b, int off, int len)
+			throws IOException, GeneralSecurityException {
+		long[] extents = table.extents;
+		/* Find the last extent that starts at or before the position. */
+		int low = 0;
+		int high = extents.length / 2 - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (extents[2 * mid] <= position) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		int extent = high;
+
+		if (extent < 0 || position >= extents[2 * extent] + extents[2 * extent + 1]) {
+			long next = extent + 1 < extents.length / 2 ? extents[2 * (extent + 1)] : length;
+			int n = (int) Math.min(len, next - position);
+			Arrays.fill(b, off, off + n, (byte) 0);
+			return n;
+		}
+		long inExtent = position - extents[2 * extent];
+		long stream = streamPositions[extent] + inExtent;
+		int n = (int) Math.min(len, extents[2 * extent + 1] - inExtent);
+		return readCtr(in, table.dataStart + stream, stream, b, off, n);
+	}
+
+	/**
+	 * Reads and decrypts <tt>len</tt> bytes of ciphertext in counter mode,
+	 * found at the position <tt>source</tt> of the file and at the position
+	 * <tt>stream</tt> of the key stream.
+	 *
+	 * @param in channel of the file
+	 * @param source position of the ciphertext in the file
+	 * @param stream position of the ciphertext in the key stream
+	 * @param b array that receives the plaintext
+	 * @param off offset in the array
+	 * @param len number of bytes to be read
+	 * @return the number of bytes read
+	 * @throws IOException if an I/O error occurs
+	 * @throws GeneralSecurityException if the cipher fails
+	 */
+	private int readCtr(FileChannel in, long source, long stream, byte[] b, int off, int len)
+			throws IOException, GeneralSecurityException {
+		readFully(in, ByteBuffer.wrap(b, off, len), source);
+		if (cipher == null) {
+			cipher = CipherSelector.newCipher(CipherMode.AES_CTR);
+		}
+		InPlaceCrypto.ctr(cipher, key, iv, stream);
+		cipher.update(b, off, len, b, off);
+		return len;
+	}
+
+	/**
+	 * Reads the plaintext of a file in cipher block chaining mode, decrypting
+	 * whole blocks from the block at the position.
+	 *
+	 * @param in channel of the file
+	 * @param position position in the plaintext
+	 * @param b array that receives the plaintext
+	 * @param off offset in the array
+	 * @param len maximum number of bytes to be read
+	 * @return the number of bytes read
+	 * @throws IOException if an I/O error occurs
+	 * @throws GeneralSecurityException if the cipher fails
+	 */
+	private int readCbc(FileChannel in, long position, byte[] b, int off, int len)
+			throws IOException, GeneralSecurityException {
+		long firstBlock = position / Crypto.BLOCK_SIZE;
+		long endBlock = (position + len + Crypto.BLOCK_SIZE - 1) / Crypto.BLOCK_SIZE;
+		int skip = (int) (position % Crypto.BLOCK_SIZE);
+
+		/* The previous block of ciphertext is the initialization vector of the first block. */
+		long from = dataStart + (firstBlock - 1) * Crypto.BLOCK_SIZE;
+		ByteBuffer ciphertext = ByteBuffer.allocate((int) (endBlock - firstBlock + 1) * Crypto.BLOCK_SIZE);
+		if (firstBlock == 0) {
+			ciphertext.put(iv);
+			from += Crypto.BLOCK_SIZE;
+		}
+		readFully(in, ciphertext, from);
+
+		if (cipher == null) {
+			cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		}
+		byte[] bytes = ciphertext.array();
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+				new IvParameterSpec(bytes, 0, Crypto.BLOCK_SIZE));
+		byte[] plaintext = cipher.doFinal(bytes, Crypto.BLOCK_SIZE, bytes.length - Crypto.BLOCK_SIZE);
+		System.arraycopy(plaintext, skip, b, off, len);
+		return len;
+	}
+
+	/**
+	 * Returns the length of the plaintext of a file in cipher block chaining
+	 * mode, which is the length of the ciphertext without the padding of its
+	 * last block.
+	 *
+	 * @param file the encrypted file
+	 * @param in channel of the file
+	 * @param key key of the file
+	 * @param iv initialization vector of the file
+	 * @param dataStart position of the ciphertext in the file
+	 * @param size length of the file
+	 * @return the length of the plaintext
+	 * @throws IOException if the file can not be read or is damaged
+	 * @throws GeneralSecurityException if the cipher is not available
+	 */
+	private static long cbcLength(File file, FileChannel in, byte[] key, byte[] iv, long dataStart, long size)
+			throws IOException, GeneralSecurityException {
+		long ciphertextLength = size - dataStart;
+		if (ciphertextLength <= 0 || ciphertextLength % Crypto.BLOCK_SIZE != 0) {
+			throw new IOException("Data is damaged and can not be decrypted.");
+		}
+
+		ByteBuffer last = ByteBuffer.allocate(2 * Crypto.BLOCK_SIZE);
+		if (ciphertextLength == Crypto.BLOCK_SIZE) {
+			last.put(iv);
+		}
+		readFully(in, last, size - last.remaining());
+
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+				new IvParameterSpec(last.array(), 0, Crypto.BLOCK_SIZE));
+		byte[] block = cipher.doFinal(last.array(), Crypto.BLOCK_SIZE, Crypto.BLOCK_SIZE);
+		int padding = block[Crypto.BLOCK_SIZE - 1];
+		if (padding < 1 || padding > Crypto.BLOCK_SIZE) {
+			throw new IOException("Data is damaged and can not be decrypted.");
+		}
+		for (int i = Crypto.BLOCK_SIZE - padding; i < Crypto.BLOCK_SIZE; i++) {
+			if (block[i] != padding) {
+				throw new IOException("Data is damaged and can not be decrypted.");
+			}
+		}
+		return ciphertextLength - padding;
+	}
+
+	/**
+	 * Fills the remaining space of the <tt>buffer</tt> from the
+	 * <tt>channel</tt> at the specified <tt>position</tt>, and records the
+	 * bytes read.
+	 *
+	 * @param channel channel to be read
+	 * @param buffer buffer to be filled
+	 * @param position position of the first byte
+	 * @throws IOException if an I/O error occurs or the file ends too early
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int len = buffer.remaining();
+		Throttle.GLOBAL.acquire(len);
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n == -1) {
+				throw new EOFException("Unexpected end of file at " + position);
+			}
+			position += n;
+		}
+		Metrics.GLOBAL.read(len);
+	}
+
+}
@@ -0,0 +1,84 @@
+package encryptor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * A destination of the bytes encrypted or decrypted by
+ * {@link Crypto#execute(Source, Sink, java.util.function.LongConsumer)}.
+ * The output is complete when the sink is {@linkplain #close() closed}, and
+ * a sink that is {@linkplain #abort() aborted} instead leaves no partial
+ * output behind where it can. Sinks of files and streams are created by the
+ * factory methods of this interface, and the {@linkplain StripedSink} spreads
+ * one output across several directories.
+ * <p>
+ * In-memory output is written with a sink of a
+ * {@linkplain java.io.ByteArrayOutputStream}.
+ *
+ * @author Mario Bobic
+ */
+public interface Sink extends Closeable {
+
+	/**
+	 * Writes all remaining bytes of the specified <tt>buffer</tt>.
+	 *
+	 * @param buffer buffer to be written
+	 * @throws IOException if an I/O error occurs
+	 */
+	void write(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Completes the output and closes this sink.
+	 *
+	 * @throws IOException if the output can not be completed
+	 */
+	@Override
+	void close() throws IOException;
+
+	/**
+	 * Closes this sink without completing the output, discarding what has
+	 * been written where possible. Errors are not reported, as the output is
+	 * abandoned anyway.
+	 */
+	void abort();
+
+	/**
+	 * Returns the name of this sink, used in messages.
+	 *
+	 * @return the name of this sink
+	 */
+	String getName();
+
+	/**
+	 * Returns a sink that writes the specified <tt>file</tt>. The bytes are
+	 * written to a {@linkplain DurableOutput#tempFile(File) temporary file},
+	 * which is renamed to the target when the sink is closed and deleted
+	 * when it is aborted.
+	 *
+	 * @param file file to be written
+	 * @return a sink of the file
+	 * @throws IOException if the file can not be created
+	 */
+	static Sink of(File file) throws IOException {
+		File temp = DurableOutput.tempFile(file);
+		return new ChannelSink(new FileOutputStream(temp).getChannel(), file.toString(), temp, file);
+	}
+
+	/**
+	 * Returns a sink that writes the specified <tt>stream</tt>, which is
+	 * closed when the sink is closed or aborted.
+	 *
+	 * @param stream stream to be written
+	 * @param name name of the stream, used in messages
+	 * @return a sink of the stream
+	 */
+	static Sink of(OutputStream stream, String name) {
+		return new ChannelSink(Channels.newChannel(stream), name, null, null);
+	}
+
+}
@@ -0,0 +1,75 @@
+package encryptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * A sequence of bytes to be encrypted or decrypted by
+ * {@link Crypto#execute(Source, Sink, java.util.function.LongConsumer)}.
+ * Sources of files, arrays and streams are created by the factory methods of
+ * this interface, and a file written across several directories is read by
+ * the {@linkplain StripedSource}.
+ *
+ * @author Mario Bobic
+ */
+public interface Source extends Closeable {
+
+	/**
+	 * Reads bytes into the remaining space of the specified <tt>buffer</tt>.
+	 * At least one byte is read unless the buffer is full or the end of the
+	 * source is reached.
+	 *
+	 * @param buffer buffer to be read into
+	 * @return the number of bytes read, or -1 at the end of the source
+	 * @throws IOException if an I/O error occurs
+	 */
+	int read(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Returns the name of this source, used in messages.
+	 *
+	 * @return the name of this source
+	 */
+	String getName();
+
+	/**
+	 * Returns a source that reads the specified <tt>file</tt>.
+	 *
+	 * @param file file to be read
+	 * @return a source of the file
+	 * @throws IOException if the file can not be opened
+	 */
+	static Source of(File file) throws IOException {
+		return new ChannelSource(new FileInputStream(file).getChannel(), file.toString());
+	}
+
+	/**
+	 * Returns a source that reads the specified <tt>bytes</tt>. The array is
+	 * not copied.
+	 *
+	 * @param bytes bytes to be read
+	 * @return a source of the array
+	 */
+	static Source of(byte[] bytes) {
+		return new ChannelSource(Channels.newChannel(new ByteArrayInputStream(bytes)), "memory");
+	}
+
+	/**
+	 * Returns a source that reads the specified <tt>stream</tt>, which is
+	 * closed when the source is closed.
+	 *
+	 * @param stream stream to be read
+	 * @param name name of the stream, used in messages
+	 * @return a source of the stream
+	 */
+	static Source of(InputStream stream, String name) {
+		return new ChannelSource(Channels.newChannel(stream), name);
+	}
+
+}
@@ -0,0 +1,534 @@
+package encryptor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+import javax.crypto.Cipher;
+
+/**
+ * Encryption and decryption of files that are mostly holes or runs of zeros,
+ * such as disk images and database files, in a container that stores only
+ * the extents of data.
+ * <p>
+ * The file is read in blocks of {@value #ZERO_BLOCK_SIZE} bytes, and blocks
+ * that are all zeros are left out of the ciphertext. The remaining data is
+ * encrypted with {@link CipherMode#AES_CTR} as a single stream, followed by
+ * the encrypted table of extents and the length of the table:
+ * <pre>
+ * header | ciphertext of the extents | ciphertext of the table | table length (8 bytes)
+ * </pre>
+ * The table holds the length of the file and the offset and length of every
+ * extent, in ascending order:
+ * <pre>
+ * length   8 bytes  length of the file
+ * count    4 bytes  number of extents
+ * extents  8 bytes offset and 8 bytes length of each extent
+ * </pre>
+ * Such files carry the {@link CryptoHeader#SPARSE} flag. When they are
+ * decrypted, only the extents are written and the gaps between them are
+ * left as holes, so both the reading and the writing scale with the amount
+ * of data rather than with the length of the file.
+ * <p>
+ * Holes can not be found without reading them, since there is no way to seek
+ * to data from Java, but the operating system reads them without touching the
+ * disk. Files are encrypted into this container by {@link Crypto#execute(File,
+ * File)} when the <tt>encryptor.sparse</tt> system property is set, and
+ * decrypted by it whenever the header carries the flag.
+ *
+ * @author Mario Bobic
+ */
+public class SparseCrypto {
+
+	/** Size of the blocks checked for zeros, holes are made of whole blocks */
+	private static final int ZERO_BLOCK_SIZE = 4096;
+	/** Length of the table without the extents */
+	private static final int TABLE_START = 8 + 4;
+	/** Length of an extent in the table */
+	private static final int EXTENT_LENGTH = 8 + 8;
+	/** Length of the trailer holding the length of the table */
+	private static final int TRAILER_LENGTH = 8;
+
+	/** Zeros fed to the digest for the holes */
+	private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(64 * 1024).asReadOnlyBuffer();
+
+	/** Source of initialization vectors */
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/** Indicates if files are encrypted into this container */
+	private static volatile boolean enabled = Boolean.getBoolean("encryptor.sparse");
+
+	/**
+	 * Returns true if files are encrypted into this container.
+	 *
+	 * @return true if sparse encryption is enabled
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables encrypting files into this container.
+	 *
+	 * @param enabled true if files should be encrypted into this container
+	 */
+	public static void setEnabled(boolean enabled) {
+		SparseCrypto.enabled = enabled;
+	}
+
+	/**
+	 * Returns true if the specified <tt>file</tt> is stored in this container.
+	 *
+	 * @param file file to be checked
+	 * @return true if the file is sparse
+	 * @throws IOException if the file can not be read or its header is damaged
+	 */
+	public static boolean isSparse(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			CryptoHeader header = InPlaceCrypto.readHeader(channel);
+			return header != null && header.isSparse();
+		}
+	}
+
+	/**
+	 * Encrypts the <tt>sourcefile</tt> into the <tt>destfile</tt>, leaving
+	 * out the blocks of zeros.
+	 *
+	 * @param sourcefile file to be encrypted
+	 * @param destfile file to be created
+	 * @param password password of the file
+	 * @param keyDerivation parameters used for deriving the key
+	 * @param digest digest of the plaintext, may be null
+	 * @param progress consumer of the number of bytes read
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void encrypt(File sourcefile, File destfile, char[] password, KeyDerivation keyDerivation,
+			Manifest.Digest digest, LongConsumer progress) throws IOException {
+		byte[] iv = new byte[Crypto.BLOCK_SIZE];
+		RANDOM.nextBytes(iv);
+		byte[] key = keyDerivation.deriveKey(password);
+		try (
+				BufferPool.Lease lease = BufferPool.GLOBAL.borrow(2);
+				FileChannel in = FileChannel.open(sourcefile.toPath(), StandardOpenOption.READ);
+				FileChannel out = new FileOutputStream(destfile).getChannel();
+		) {
+			byte[] header = CryptoHeader.of(CipherMode.AES_CTR, CryptoHeader.SPARSE, keyDerivation, iv, key).toByteArray();
+			write(out, ByteBuffer.wrap(header));
+			Cipher cipher = InPlaceCrypto.ctr(key, iv, 0);
+
+			Extents extents = new Extents();
+			ByteBuffer inBuffer = lease.get(0);
+			ByteBuffer outBuffer = lease.get(1);
+			long position = 0;
+			while (true) {
+				InPlaceCrypto.checkInterrupted(sourcefile);
+				inBuffer.clear();
+				int len = fill(in, inBuffer);
+				if (len == 0) {
+					break;
+				}
+				Throttle.GLOBAL.acquire(len);
+				Metrics.GLOBAL.read(len);
+				if (digest != null) {
+					digest.update(inBuffer.duplicate());
+				}
+
+				/* Encrypt the runs of data blocks and skip the blocks of zeros. */
+				outBuffer.clear();
+				int run = -1;
+				for (int block = 0; block < len; block += ZERO_BLOCK_SIZE) {
+					boolean zero = isZero(inBuffer, block, Math.min(block + ZERO_BLOCK_SIZE, len));
+					if (!zero && run < 0) {
+						run = block;
+					} else if (zero && run >= 0) {
+						encrypt(cipher, inBuffer, run, block, outBuffer);
+						extents.add(position + run, block - run);
+						run = -1;
+					}
+				}
+				if (run >= 0) {
+					encrypt(cipher, inBuffer, run, len, outBuffer);
+					extents.add(position + run, len - run);
+				}
+				outBuffer.flip();
+				write(out, outBuffer);
+
+				position += len;
+				progress.accept(len);
+			}
+
+			ByteBuffer table = extents.toTable(position);
+			int tableLength = table.remaining();
+			ByteBuffer encrypted = ByteBuffer.allocate(tableLength + TRAILER_LENGTH);
+			cipher.doFinal(table, encrypted);
+			encrypted.putLong(tableLength);
+			encrypted.flip();
+			write(out, encrypted);
+		} catch (GeneralSecurityException e) {
+			throw new InternalError(e);
+		} finally {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/**
+	 * Decrypts the <tt>sourcefile</tt>, which is stored in this container,
+	 * into the <tt>destfile</tt>, leaving the gaps between the extents as
+	 * holes. If the <tt>destfile</tt> is null, the decrypted data is discarded,
+	 * which only verifies that the source file can be read with this password.
+	 *
+	 * @param sourcefile file to be decrypted
+	 * @param destfile file to be created, may be null
+	 * @param password password of the file
+	 * @param digest digest of the plaintext, may be null
+	 * @param progress consumer of the number of bytes read
+	 * @throws WrongPasswordException if the password is wrong
+	 * @throws IOException if an I/O error occurs or the file is damaged
+	 */
+	static void decrypt(File sourcefile, File destfile, char[] password, Manifest.Digest digest,
+			LongConsumer progress) throws IOException {
+		try (
+				BufferPool.Lease lease = BufferPool.GLOBAL.borrow(2);
+				FileChannel in = FileChannel.open(sourcefile.toPath(), StandardOpenOption.READ);
+		) {
+			CryptoHeader header = InPlaceCrypto.readHeader(in);
+			if (header == null || !header.isSparse()) {
+				throw new IOException("File is not sparse: " + sourcefile);
+			}
+			int headerLength = header.toByteArray().length;
+
+			byte[] iv = header.getIv();
+			byte[] key = InPlaceCrypto.deriveKey(header, password);
+			Table table;
+			try {
+				table = Table.read(sourcefile, in, headerLength, key, iv);
+				decrypt(sourcefile, in, table, InPlaceCrypto.ctr(key, iv, 0), destfile, digest, progress, lease);
+			} catch (GeneralSecurityException e) {
+				throw new InternalError(e);
+			} finally {
+				Arrays.fill(key, (byte) 0);
+			}
+			long rest = in.size() - table.dataLength;
+			if (rest > 0) {
+				progress.accept(rest);
+			}
+		}
+	}
+
+	/**
+	 * Decrypts the extents listed in the <tt>table</tt> into the
+	 * <tt>destfile</tt>.
+	 *
+	 * @param sourcefile file being decrypted
+	 * @param in channel of the source file
+	 * @param table table of the file
+	 * @param cipher cipher positioned at the first extent
+	 * @param destfile file to be created, may be null
+	 * @param digest digest of the plaintext, may be null
+	 * @param progress consumer of the number of bytes read
+	 * @param lease two buffers for reading and decrypting
+	 * @throws IOException if an I/O error occurs
+	 * @throws GeneralSecurityException if the cipher fails
+	 */
+	private static void decrypt(File sourcefile, FileChannel in, Table table, Cipher cipher, File destfile,
+			Manifest.Digest digest, LongConsumer progress, BufferPool.Lease lease)
+			throws IOException, GeneralSecurityException {
+		try (RandomAccessFile file = destfile != null ? new RandomAccessFile(destfile, "rw") : null) {
+			FileChannel out = null;
+			if (file != null) {
+				file.setLength(0);
+				out = file.getChannel();
+			}
+
+			ByteBuffer inBuffer = lease.get(0);
+			ByteBuffer outBuffer = lease.get(1);
+			long source = table.dataStart;
+			long end = 0;
+			for (int i = 0; i < table.extents.length; i += 2) {
+				long offset = table.extents[i];
+				long extentLength = table.extents[i + 1];
+				zeros(digest, offset - end);
+
+				for (long position = offset; position < offset + extentLength; ) {
+					InPlaceCrypto.checkInterrupted(sourcefile);
+					int len = (int) Math.min(BufferPool.SLAB_SIZE, offset + extentLength - position);
+					inBuffer.clear();
+					inBuffer.limit(len);
+					InPlaceCrypto.read(in, inBuffer, source);
+					Throttle.GLOBAL.acquire(len);
+					Metrics.GLOBAL.read(len);
+
+					outBuffer.clear();
+					cipher.update(inBuffer, outBuffer);
+					outBuffer.flip();
+					if (digest != null) {
+						digest.update(outBuffer.duplicate());
+					}
+					if (out != null) {
+						Throttle.GLOBAL.acquire(len);
+						InPlaceCrypto.write(out, outBuffer, position);
+						Metrics.GLOBAL.written(len);
+					}
+					progress.accept(len);
+					source += len;
+					position += len;
+				}
+				end = offset + extentLength;
+			}
+			zeros(digest, table.length - end);
+
+			/* Extending the file leaves a hole after the last extent. */
+			if (file != null) {
+				file.setLength(table.length);
+			}
+		}
+	}
+
+	/**
+	 * Encrypts the bytes of the <tt>input</tt> buffer between <tt>from</tt>
+	 * inclusive and <tt>to</tt> exclusive into the <tt>output</tt> buffer.
+	 *
+	 * @param cipher the cipher
+	 * @param input the input buffer
+	 * @param from index of the first byte
+	 * @param to index after the last byte
+	 * @param output the output buffer
+	 * @throws GeneralSecurityException if the cipher fails
+	 */
+	private static void encrypt(Cipher cipher, ByteBuffer input, int from, int to, ByteBuffer output)
+			throws GeneralSecurityException {
+		ByteBuffer run = input.duplicate();
+		run.limit(to).position(from);
+		cipher.update(run, output);
+	}
+
+	/**
+	 * Reads from the <tt>channel</tt> until the <tt>buffer</tt> is full or the
+	 * file ends, and flips the buffer.
+	 *
+	 * @param channel channel to be read
+	 * @param buffer buffer to be filled
+	 * @return the number of bytes read, zero at the end of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static int fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+			// keep reading
+		}
+		buffer.flip();
+		return buffer.remaining();
+	}
+
+	/**
+	 * Writes all remaining bytes of the <tt>buffer</tt> to the end of the
+	 * <tt>channel</tt>.
+	 *
+	 * @param channel channel to be written to
+	 * @param buffer buffer to be written
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		int len = buffer.remaining();
+		Throttle.GLOBAL.acquire(len);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		Metrics.GLOBAL.written(len);
+	}
+
+	/**
+	 * Returns true if the bytes of the <tt>buffer</tt> between <tt>from</tt>
+	 * inclusive and <tt>to</tt> exclusive are all zeros. The bytes are checked
+	 * eight at a time.
+	 *
+	 * @param buffer buffer to be checked
+	 * @param from index of the first byte
+	 * @param to index after the last byte
+	 * @return true if all bytes are zeros
+	 */
+	private static boolean isZero(ByteBuffer buffer, int from, int to) {
+		int i = from;
+		for (; i <= to - Long.BYTES; i += Long.BYTES) {
+			if (buffer.getLong(i) != 0) {
+				return false;
+			}
+		}
+		for (; i < to; i++) {
+			if (buffer.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Feeds the specified number of zeros of a hole to the <tt>digest</tt>.
+	 *
+	 * @param digest digest of the plaintext, may be null
+	 * @param count number of zeros
+	 */
+	private static void zeros(Manifest.Digest digest, long count) {
+		if (digest == null) {
+			return;
+		}
+		while (count > 0) {
+			ByteBuffer zeros = ZEROS.duplicate();
+			zeros.limit((int) Math.min(count, zeros.capacity()));
+			count -= zeros.remaining();
+			digest.update(zeros);
+		}
+	}
+
+	/**
+	 * The decrypted table of a file stored in this container.
+	 *
+	 * @author Mario Bobic
+	 */
+	static class Table {
+
+		/** Length of the file */
+		final long length;
+		/** Offsets and lengths of the extents, in pairs and ascending order */
+		final long[] extents;
+		/** Position of the first extent in the encrypted file */
+		final long dataStart;
+		/** Total length of the extents */
+		final long dataLength;
+
+		/**
+		 * Constructs a table with the specified arguments.
+		 *
+		 * @param length length of the file
+		 * @param extents offsets and lengths of the extents
+		 * @param dataStart position of the first extent in the encrypted file
+		 * @param dataLength total length of the extents
+		 */
+		private Table(long length, long[] extents, long dataStart, long dataLength) {
+			this.length = length;
+			this.extents = extents;
+			this.dataStart = dataStart;
+			this.dataLength = dataLength;
+		}
+
+		/**
+		 * Reads and decrypts the table of the <tt>sourcefile</tt>, whose header
+		 * has already been read.
+		 *
+		 * @param sourcefile file stored in this container
+		 * @param in channel of the file
+		 * @param headerLength length of the header of the file
+		 * @param key key of the file
+		 * @param iv initialization vector of the file
+		 * @return the table of the file
+		 * @throws IOException if an I/O error occurs or the file is damaged
+		 * @throws GeneralSecurityException if the cipher fails
+		 */
+		static Table read(File sourcefile, FileChannel in, int headerLength, byte[] key, byte[] iv)
+				throws IOException, GeneralSecurityException {
+			/* The length of the table is in the trailer at the end of the file. */
+			ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+			long size = in.size();
+			if (size < headerLength + TABLE_START + TRAILER_LENGTH) {
+				throw new IOException("File is damaged: " + sourcefile);
+			}
+			InPlaceCrypto.read(in, trailer, size - TRAILER_LENGTH);
+			long tableLength = trailer.getLong();
+			long dataLength = size - TRAILER_LENGTH - tableLength - headerLength;
+			if (tableLength < TABLE_START || tableLength > Integer.MAX_VALUE
+					|| (tableLength - TABLE_START) % EXTENT_LENGTH != 0 || dataLength < 0) {
+				throw new IOException("File is damaged: " + sourcefile);
+			}
+
+			ByteBuffer encrypted = ByteBuffer.allocate((int) tableLength);
+			InPlaceCrypto.read(in, encrypted, headerLength + dataLength);
+			ByteBuffer table = ByteBuffer.allocate((int) tableLength);
+			InPlaceCrypto.ctr(key, iv, dataLength).doFinal(encrypted, table);
+			table.flip();
+
+			long length = table.getLong();
+			int count = table.getInt();
+			if (count != table.remaining() / EXTENT_LENGTH || length < 0) {
+				throw new IOException("File is damaged: " + sourcefile);
+			}
+			long[] extents = new long[2 * count];
+			long end = 0;
+			long total = 0;
+			for (int i = 0; i < extents.length; i += 2) {
+				long offset = table.getLong();
+				long extentLength = table.getLong();
+				if (offset < end || extentLength <= 0 || offset + extentLength > length) {
+					throw new IOException("File is damaged: " + sourcefile);
+				}
+				extents[i] = offset;
+				extents[i + 1] = extentLength;
+				end = offset + extentLength;
+				total += extentLength;
+			}
+			if (total != dataLength) {
+				throw new IOException("File is damaged: " + sourcefile);
+			}
+			return new Table(length, extents, headerLength, dataLength);
+		}
+
+	}
+
+	/**
+	 * The extents of data of a file, in ascending order.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Extents {
+
+		/** Offsets and lengths of the extents, in pairs */
+		private long[] extents = new long[64];
+		/** Number of used elements of the array */
+		private int size;
+
+		/**
+		 * Adds an extent after all others, merging it with the last one if
+		 * they are adjacent.
+		 *
+		 * @param offset offset of the extent in the file
+		 * @param length length of the extent
+		 */
+		private void add(long offset, long length) {
+			if (size > 0 && extents[size - 2] + extents[size - 1] == offset) {
+				extents[size - 1] += length;
+				return;
+			}
+			if (size == extents.length) {
+				extents = Arrays.copyOf(extents, 2 * size);
+			}
+			extents[size++] = offset;
+			extents[size++] = length;
+		}
+
+		/**
+		 * Returns the table of these extents, ready to be encrypted.
+		 *
+		 * @param length length of the file
+		 * @return the table
+		 */
+		private ByteBuffer toTable(long length) {
+			int count = size / 2;
+			ByteBuffer table = ByteBuffer.allocate(TABLE_START + count * EXTENT_LENGTH);
+			table.putLong(length);
+			table.putInt(count);
+			for (int i = 0; i < size; i++) {
+				table.putLong(extents[i]);
+			}
+			table.flip();
+			return table;
+		}
+
+	}
+
+}
@@ -0,0 +1,618 @@
+package encryptor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongConsumer;
+
+/**
+ * Encryption of a file into parts of limited size, for media that can not
+ * hold the whole file and so that the parts can be handled independently.
+ * <p>
+ * Every part is an ordinary encrypted file of one range of the plaintext,
+ * which can be decrypted on its own, and no part file is larger than the
+ * given part size. The parts are listed in a small text manifest named after
+ * the file with the {@value #MANIFEST_SUFFIX} suffix. Its first line holds
+ * the length and the name of the file, and each following line holds the
+ * SHA-256 checksum of the ciphertext, the offset and the length of the
+ * plaintext, the length of the ciphertext and the name of one part, separated
+ * by two spaces.
+ * <p>
+ * The parts are encrypted and written in parallel, one by each worker. They
+ * are joined in parallel as well, each worker decrypting its part straight to
+ * its offset in the output with positional writes. Before anything is
+ * decrypted, every part is checked to exist, to have the length from the
+ * manifest and to match the password. The checksum of each part is computed
+ * while it is being decrypted, and the first part that fails stops all
+ * workers and no output is left behind. The parts can also be
+ * {@linkplain #verify(File) verified} without the password.
+ *
+ * @author Mario Bobic
+ */
+public class SplitCrypto {
+
+	/** Suffix of the manifest of a split file */
+	public static final String MANIFEST_SUFFIX = ".split";
+
+	/** Separator of the fields of the manifest */
+	private static final String SEPARATOR = "  ";
+
+	/**
+	 * Splits a file into encrypted parts, joins the parts or verifies them.
+	 *
+	 * @param args <tt>-split file directory partMiB</tt>, <tt>-join manifest
+	 *        file</tt> or <tt>-verify manifest</tt>
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void main(String[] args) throws IOException {
+		long start = System.nanoTime();
+		if (args.length == 4 && args[0].equals("-split")) {
+			char[] password = Verifier.readPassword();
+			File manifest = split(new File(args[1]), new File(args[2]), Long.parseLong(args[3]) * 1024 * 1024,
+					password, KeyDerivation.newParameters(), (len) -> {});
+			System.out.println("Split " + args[1] + " into " + readParts(manifest).size() + " parts listed in "
+					+ manifest + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		} else if (args.length == 3 && args[0].equals("-join")) {
+			char[] password = Verifier.readPassword();
+			join(new File(args[1]), new File(args[2]), password, (len) -> {});
+			System.out.println("Joined " + args[2] + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		} else if (args.length == 2 && args[0].equals("-verify")) {
+			List<File> damaged = verify(new File(args[1]));
+			for (File part : damaged) {
+				System.out.println("Missing or damaged: " + part);
+			}
+			System.out.println(damaged.isEmpty() ? "All parts are intact." : damaged.size() + " parts are missing or damaged.");
+			System.exit(damaged.isEmpty() ? 0 : 1);
+		} else {
+			System.err.println("Usage: SplitCrypto -split <file> <directory> <part MiB> | -join <manifest> <file> | -verify <manifest>");
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Encrypts the <tt>sourcefile</tt> into parts of at most
+	 * <tt>partSize</tt> bytes in the specified <tt>directory</tt>, and writes
+	 * their manifest. The <tt>progress</tt> consumer is given the number of
+	 * bytes read by every worker. If any part fails, all parts are deleted.
+	 *
+	 * @param sourcefile file to be encrypted
+	 * @param directory directory of the parts and the manifest
+	 * @param partSize maximum length of a part file
+	 * @param password password used for encrypting
+	 * @param keyDerivation parameters used for deriving the key
+	 * @param progress consumer of the number of bytes read
+	 * @return the manifest of the parts
+	 * @throws IllegalArgumentException if the part size can not hold a header
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static File split(File sourcefile, File directory, long partSize, char[] password, KeyDerivation keyDerivation,
+			LongConsumer progress) throws IOException {
+		/* Leave room for the header and the padding, in case the preferred mode pads. */
+		long plainSize = partSize - CryptoHeader.MAX_LENGTH - Crypto.BLOCK_SIZE;
+		if (plainSize <= 0) {
+			throw new IllegalArgumentException("Part size must be greater than " + (partSize - plainSize));
+		}
+
+		String name = sourcefile.getName();
+		long length = sourcefile.length();
+		int count = (int) Math.max(1, (length + plainSize - 1) / plainSize);
+		List<Part> parts = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			long offset = i * plainSize;
+			File file = new File(directory, name + ".part" + (i + 1) + "of" + count);
+			parts.add(new Part(file, offset, Math.min(plainSize, length - offset)));
+		}
+
+		LongConsumer sharedProgress = synchronizedProgress(progress);
+		File manifest = new File(directory, name + MANIFEST_SUFFIX);
+		try (FileChannel in = FileChannel.open(sourcefile.toPath())) {
+			List<Callable<Void>> tasks = new ArrayList<>(count);
+			for (Part part : parts) {
+				tasks.add(() -> {
+					Manifest.Digest digest = Manifest.Algorithm.SHA256.newDigest();
+					Crypto crypto = new Crypto(password, keyDerivation, Crypto.ENCRYPT);
+					crypto.execute(new RangeSource(in, part.offset, part.length, sourcefile.toString()),
+							new DigestSink(Sink.of(part.file), digest), sharedProgress);
+					part.checksum = digest.getValue();
+					part.size = part.file.length();
+					return null;
+				});
+			}
+			runParallel(tasks);
+			writeManifest(manifest, name, length, parts);
+		} catch (IOException | RuntimeException e) {
+			for (Part part : parts) {
+				part.file.delete();
+			}
+			throw e;
+		}
+		return manifest;
+	}
+
+	/**
+	 * Decrypts the parts listed in the specified <tt>manifest</tt> into the
+	 * <tt>destfile</tt>. The <tt>progress</tt> consumer is given the number of
+	 * bytes read by every worker. The output is written to a temporary file,
+	 * which is renamed to the destination file only if all parts succeed.
+	 *
+	 * @param manifest manifest of the parts
+	 * @param destfile file to be created
+	 * @param password password used for decrypting
+	 * @param progress consumer of the number of bytes read
+	 * @throws WrongPasswordException if the password does not match a part
+	 * @throws ChecksumMismatchException if a part has been tampered with
+	 * @throws IOException if a part is missing or any other I/O error occurs
+	 */
+	public static void join(File manifest, File destfile, char[] password, LongConsumer progress) throws IOException {
+		List<Part> parts = readParts(manifest);
+		List<File> missing = new ArrayList<>();
+		for (Part part : parts) {
+			if (part.file.length() != part.size) {
+				missing.add(part.file);
+			}
+		}
+		if (!missing.isEmpty()) {
+			throw new IOException("Parts are missing or damaged: " + missing);
+		}
+		for (Part part : parts) {
+			try (FileChannel channel = FileChannel.open(part.file.toPath())) {
+				CryptoHeader header = InPlaceCrypto.readHeader(channel);
+				if (header == null) {
+					throw new IOException("Part " + part.file + " is damaged.");
+				}
+				/* The key is cached, so the workers do not derive it again. */
+				InPlaceCrypto.deriveKey(header, password);
+			}
+		}
+
+		LongConsumer sharedProgress = synchronizedProgress(progress);
+		File temp = DurableOutput.tempFile(destfile);
+		try {
+			try (FileChannel out = FileChannel.open(temp.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				List<Callable<Void>> tasks = new ArrayList<>(parts.size());
+				for (Part part : parts) {
+					tasks.add(() -> {
+						Manifest.Digest digest = Manifest.Algorithm.SHA256.newDigest();
+						PositionalSink sink = new PositionalSink(out, part.offset, temp.toString());
+						Crypto crypto = new Crypto(password, null, Crypto.DECRYPT);
+						crypto.execute(new DigestSource(Source.of(part.file), digest), sink, sharedProgress);
+						if (!digest.getValue().equalsIgnoreCase(part.checksum)) {
+							throw new ChecksumMismatchException(part.file);
+						}
+						if (sink.position - part.offset != part.length) {
+							throw new IOException("Part " + part.file + " is damaged.");
+						}
+						return null;
+					});
+				}
+				runParallel(tasks);
+			}
+			DurableOutput.move(temp.toPath(), destfile.toPath());
+		} catch (IOException | RuntimeException e) {
+			temp.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Compares the checksums of the parts listed in the specified
+	 * <tt>manifest</tt> with the manifest, without decrypting them. The parts
+	 * are read in parallel.
+	 *
+	 * @param manifest manifest of the parts
+	 * @return parts that are missing or damaged, empty if all are intact
+	 * @throws IOException if the manifest can not be read or an I/O error occurs
+	 */
+	public static List<File> verify(File manifest) throws IOException {
+		List<Part> parts = readParts(manifest);
+		List<File> damaged = Collections.synchronizedList(new ArrayList<>());
+		List<Callable<Void>> tasks = new ArrayList<>(parts.size());
+		for (Part part : parts) {
+			tasks.add(() -> {
+				if (part.file.length() != part.size) {
+					damaged.add(part.file);
+					return null;
+				}
+				Manifest.Digest digest = Manifest.Algorithm.SHA256.newDigest();
+				try (
+						BufferPool.Lease lease = BufferPool.GLOBAL.borrow(1);
+						Source source = new DigestSource(Source.of(part.file), digest);
+				) {
+					ByteBuffer buffer = lease.get(0);
+					while (source.read(buffer) != -1) {
+						InPlaceCrypto.checkInterrupted(part.file);
+						Throttle.GLOBAL.acquire(buffer.position());
+						Metrics.GLOBAL.read(buffer.position());
+						buffer.clear();
+					}
+				}
+				if (!digest.getValue().equalsIgnoreCase(part.checksum)) {
+					damaged.add(part.file);
+				}
+				return null;
+			});
+		}
+		runParallel(tasks);
+		Collections.sort(damaged);
+		return damaged;
+	}
+
+	/**
+	 * Runs the specified <tt>tasks</tt> on a pool of workers, one for each
+	 * processor, and waits until all of them are done. The first task that
+	 * fails stops all others.
+	 *
+	 * @param tasks tasks to be run
+	 * @throws IOException if a task fails or the current thread is interrupted
+	 */
+	private static void runParallel(List<Callable<Void>> tasks) throws IOException {
+		int parallelism = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(parallelism, BatchEngine.WORKERS);
+		try {
+			/* Take the tasks as they complete, so the first failure is seen at once. */
+			CompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+			for (Callable<Void> task : tasks) {
+				completion.submit(task);
+			}
+			pool.shutdown();
+			for (int i = 0; i < tasks.size(); i++) {
+				completion.take().get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the parts.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			pool.shutdownNow();
+			BatchEngine.awaitWorkers(Collections.singletonList(pool));
+		}
+	}
+
+	/**
+	 * Returns a consumer that passes the progress of all workers to the
+	 * specified <tt>progress</tt> consumer, one at a time.
+	 *
+	 * @param progress consumer of the number of bytes read
+	 * @return a consumer that can be used by all workers
+	 */
+	private static LongConsumer synchronizedProgress(LongConsumer progress) {
+		return (len) -> {
+			synchronized (progress) {
+				progress.accept(len);
+			}
+		};
+	}
+
+	/**
+	 * Writes the manifest of the specified <tt>parts</tt> to a temporary file
+	 * and renames it to the <tt>manifest</tt>.
+	 *
+	 * @param manifest the manifest file
+	 * @param name name of the split file
+	 * @param length length of the split file
+	 * @param parts parts of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void writeManifest(File manifest, String name, long length, List<Part> parts) throws IOException {
+		File temp = DurableOutput.tempFile(manifest);
+		try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(length + SEPARATOR + name);
+			writer.newLine();
+			for (Part part : parts) {
+				writer.write(part.checksum + SEPARATOR + part.offset + SEPARATOR + part.length + SEPARATOR + part.size
+						+ SEPARATOR + part.file.getName());
+				writer.newLine();
+			}
+		}
+		DurableOutput.move(temp.toPath(), manifest.toPath());
+	}
+
+	/**
+	 * Reads the parts listed in the specified <tt>manifest</tt>. The parts
+	 * are expected in the directory of the manifest, and they must cover the
+	 * plaintext without gaps.
+	 *
+	 * @param manifest the manifest file
+	 * @return the parts, in order
+	 * @throws IOException if the manifest can not be read or is damaged
+	 */
+	private static List<Part> readParts(File manifest) throws IOException {
+		File directory = manifest.getAbsoluteFile().getParentFile();
+		List<Part> parts = new ArrayList<>();
+		long length;
+		try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			if (line == null) {
+				throw new IOException("Manifest " + manifest + " is empty.");
+			}
+			length = Long.parseLong(line.split(SEPARATOR, 2)[0]);
+
+			long offset = 0;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(SEPARATOR, 5);
+				if (fields.length != 5) {
+					throw new IOException("Manifest " + manifest + " is damaged.");
+				}
+				Part part = new Part(new File(directory, fields[4]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+				part.size = Long.parseLong(fields[3]);
+				part.checksum = fields[0];
+				if (part.offset != offset || part.length < 0) {
+					throw new IOException("Manifest " + manifest + " is damaged.");
+				}
+				offset += part.length;
+				parts.add(part);
+			}
+			if (offset != length) {
+				throw new IOException("Manifest " + manifest + " is damaged.");
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Manifest " + manifest + " is damaged.", e);
+		}
+		return parts;
+	}
+
+	/**
+	 * A part of a split file.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Part {
+		/** The part file */
+		final File file;
+		/** Offset of the plaintext of the part */
+		final long offset;
+		/** Length of the plaintext of the part */
+		final long length;
+		/** Length of the part file */
+		long size;
+		/** Checksum of the part file */
+		String checksum;
+
+		/**
+		 * Constructs a part with the specified arguments.
+		 *
+		 * @param file the part file
+		 * @param offset offset of the plaintext of the part
+		 * @param length length of the plaintext of the part
+		 */
+		Part(File file, long offset, long length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A {@linkplain Source} of a range of a file channel, read by positional
+	 * reads so that one channel can be shared by all workers. The channel is
+	 * not closed with the source.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class RangeSource implements Source {
+		/** Channel to be read */
+		private final FileChannel channel;
+		/** End of the range */
+		private final long end;
+		/** Name of the file */
+		private final String name;
+		/** Position of the next read */
+		private long position;
+
+		/**
+		 * Constructs a source of the specified range of the <tt>channel</tt>.
+		 *
+		 * @param channel channel to be read
+		 * @param offset start of the range
+		 * @param length length of the range
+		 * @param name name of the file
+		 */
+		RangeSource(FileChannel channel, long offset, long length, String name) {
+			this.channel = channel;
+			this.position = offset;
+			this.end = offset + length;
+			this.name = name;
+		}
+
+		@Override
+		public int read(ByteBuffer buffer) throws IOException {
+			if (position == end) {
+				return -1;
+			}
+			int limit = buffer.limit();
+			if (buffer.remaining() > end - position) {
+				buffer.limit(buffer.position() + (int) (end - position));
+			}
+			int len;
+			try {
+				len = channel.read(buffer, position);
+			} finally {
+				buffer.limit(limit);
+			}
+			if (len == -1) {
+				throw new EOFException(name + " has been truncated.");
+			}
+			position += len;
+			return len;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * A {@linkplain Source} that updates a digest with the bytes read from
+	 * another source.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class DigestSource implements Source {
+		/** Source to be read */
+		private final Source source;
+		/** Digest of the bytes read */
+		private final Manifest.Digest digest;
+
+		/**
+		 * Constructs a source that digests the specified <tt>source</tt>.
+		 *
+		 * @param source source to be read
+		 * @param digest digest of the bytes read
+		 */
+		DigestSource(Source source, Manifest.Digest digest) {
+			this.source = source;
+			this.digest = digest;
+		}
+
+		@Override
+		public int read(ByteBuffer buffer) throws IOException {
+			int start = buffer.position();
+			int len = source.read(buffer);
+			if (len > 0) {
+				ByteBuffer read = buffer.duplicate();
+				read.limit(start + len);
+				read.position(start);
+				digest.update(read);
+			}
+			return len;
+		}
+
+		@Override
+		public String getName() {
+			return source.getName();
+		}
+
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+	}
+
+	/**
+	 * A {@linkplain Sink} that updates a digest with the bytes written to
+	 * another sink.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class DigestSink implements Sink {
+		/** Sink to be written */
+		private final Sink sink;
+		/** Digest of the bytes written */
+		private final Manifest.Digest digest;
+
+		/**
+		 * Constructs a sink that digests the bytes written to the specified
+		 * <tt>sink</tt>.
+		 *
+		 * @param sink sink to be written
+		 * @param digest digest of the bytes written
+		 */
+		DigestSink(Sink sink, Manifest.Digest digest) {
+			this.sink = sink;
+			this.digest = digest;
+		}
+
+		@Override
+		public void write(ByteBuffer buffer) throws IOException {
+			digest.update(buffer.duplicate());
+			sink.write(buffer);
+		}
+
+		@Override
+		public void close() throws IOException {
+			sink.close();
+		}
+
+		@Override
+		public void abort() {
+			sink.abort();
+		}
+
+		@Override
+		public String getName() {
+			return sink.getName();
+		}
+	}
+
+	/**
+	 * A {@linkplain Sink} that writes to a file channel from an offset with
+	 * positional writes, so that one channel can be shared by all workers.
+	 * The channel is not closed with the sink.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class PositionalSink implements Sink {
+		/** Channel to be written */
+		private final FileChannel channel;
+		/** Name of the file */
+		private final String name;
+		/** Position of the next write */
+		long position;
+
+		/**
+		 * Constructs a sink that writes to the <tt>channel</tt> from the
+		 * specified <tt>offset</tt>.
+		 *
+		 * @param channel channel to be written
+		 * @param offset position of the first write
+		 * @param name name of the file
+		 */
+		PositionalSink(FileChannel channel, long offset, String name) {
+			this.channel = channel;
+			this.position = offset;
+			this.name = name;
+		}
+
+		@Override
+		public void write(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void abort() {
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+package encryptor;
+
+import java.awt.GraphicsEnvironment;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * A test of the startup budget of the {@linkplain FileEncryptorFrame}. The
+ * frame is launched the same way as by its <tt>main</tt> method, and the time
+ * until it is shown is compared with the budget, given by the
+ * <tt>encryptor.startupBudgetMillis</tt> system property, 1000 ms by default.
+ * The warm-up must not hold up the frame, so it runs while the frame is being
+ * built.
+ * <p>
+ * The test exits with status 0 if the frame is shown within the budget, 1 if
+ * it is not and 2 if there is no display to show it on.
+ *
+ * @author Mario Bobic
+ */
+public class StartupBudgetTest {
+
+	/** Maximum time in milliseconds from launch until the frame is shown */
+	private static final long BUDGET_MILLIS = Long.getLong("encryptor.startupBudgetMillis", 1000);
+
+	/**
+	 * Runs the test, see the class description.
+	 *
+	 * @param args not used
+	 */
+	public static void main(String[] args) {
+		if (GraphicsEnvironment.isHeadless()) {
+			System.err.println("No display, the startup budget can not be tested.");
+			System.exit(2);
+		}
+
+		long start = System.nanoTime();
+		FileEncryptorFrame.launch((frame) -> {
+			/* The frame is painted before the next event, so painting is part of the test. */
+			SwingUtilities.invokeLater(() -> {
+				long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				frame.dispose();
+				if (millis > BUDGET_MILLIS) {
+					System.out.println("FAIL: shown in " + millis + " ms, budget is " + BUDGET_MILLIS + " ms");
+					System.exit(1);
+				}
+				System.out.println("OK: shown in " + millis + " ms, budget is " + BUDGET_MILLIS + " ms");
+				System.exit(0);
+			});
+		});
+	}
+
+}
@@ -0,0 +1,220 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static encryptor.ConstantsAndMethods.FILE_EXTENSION;
+import static encryptor.ConstantsAndMethods.humanReadableByteCount;
+
+/**
+ * A command line tool that encrypts or decrypts a batch of files whose paths
+ * are read from a {@linkplain PathList}, a file or the standard input, so a
+ * batch of millions of files runs in constant memory. The paths are taken
+ * from the list only as the workers of the {@linkplain BatchEngine} are ready
+ * for them, and as the total size of the batch is not known in advance, the
+ * progress is printed as the number of bytes and files done so far.
+ * <p>
+ * Each file is processed into a temporary file that is moved to its target
+ * when complete, the encrypted file next to the original with the
+ * {@value ConstantsAndMethods#FILE_EXTENSION} extension, and the decrypted
+ * file next to the encrypted one without it. The checksums of the encrypted
+ * files are put into a {@linkplain ManifestLog}, which replaces their
+ * entries in the checksum {@linkplain Manifest manifests} once the batch is
+ * done, in constant memory. Decrypted files are checked against the
+ * manifests of their directories, which are loaded whole, a few directories
+ * at a time.
+ * <p>
+ * If the paths are read from the standard input and there is no console, the
+ * first entry of the standard input is the password.
+ *
+ * @author Mario Bobic
+ */
+public class StreamedBatch {
+
+	/** Interval of the progress reports in milliseconds */
+	private static final long REPORT_MILLIS = Math.max(1, Long.getLong("encryptor.reportMillis", 2000));
+
+	/** Password of the files */
+	private final char[] password;
+	/** Key derivation parameters of the encrypted files */
+	private final KeyDerivation keyDerivation = KeyDerivation.newParameters();
+	/** True if the files are encrypted, false if decrypted */
+	private final boolean mode;
+
+	/** Number of bytes of the files read so far */
+	private final LongAdder bytes = new LongAdder();
+	/** Number of files done so far */
+	private final LongAdder files = new LongAdder();
+	/** Number of files that failed */
+	private final LongAdder failed = new LongAdder();
+	/** Checksums of the encrypted files, written when the batch is done */
+	private final ManifestLog manifestLog = new ManifestLog(Manifest.getAlgorithm());
+	/** Checksums expected of the decrypted files */
+	private final Manifest manifest = new Manifest(null);
+
+	/**
+	 * Constructs a batch that processes files with the specified
+	 * <tt>password</tt>.
+	 *
+	 * @param password password of the files
+	 * @param mode true to encrypt the files, false to decrypt them
+	 */
+	public StreamedBatch(char[] password, boolean mode) {
+		this.password = password;
+		this.mode = mode;
+	}
+
+	/**
+	 * Encrypts or decrypts the files of a path list.
+	 *
+	 * @param args <tt>-encrypt</tt> or <tt>-decrypt</tt>, optionally
+	 *        <tt>-0</tt> for a NUL separated list, and the list file or
+	 *        {@value PathList#STDIN} for the standard input
+	 * @throws IOException if the list can not be read
+	 * @throws InterruptedException if interrupted while processing
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		boolean nul = args.length == 3 && args[1].equals("-0");
+		if (args.length != (nul ? 3 : 2) || !args[0].equals("-encrypt") && !args[0].equals("-decrypt")) {
+			System.err.println("Usage: StreamedBatch -encrypt|-decrypt [-0] <list file or ->");
+			System.exit(2);
+		}
+		boolean mode = args[0].equals("-encrypt") ? Crypto.ENCRYPT : Crypto.DECRYPT;
+		String name = args[args.length - 1];
+
+		try (PathList paths = PathList.open(name, nul)) {
+			char[] password;
+			if (name.equals(PathList.STDIN) && System.console() == null) {
+				/* The password is read from the same stream, a buffered reader would take the paths as well. */
+				String line = paths.readEntry();
+				if (line == null) {
+					throw new IOException("No password entered.");
+				}
+				password = line.toCharArray();
+			} else {
+				password = Verifier.readPassword();
+			}
+
+			boolean ok = new StreamedBatch(password, mode).execute(paths);
+			System.exit(ok ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Processes all files of the specified <tt>paths</tt> and prints the
+	 * progress periodically while processing.
+	 *
+	 * @param paths paths of the files to be processed
+	 * @return true if all files were processed, false if any failed
+	 * @throws IOException if the list can not be read
+	 * @throws InterruptedException if interrupted while processing
+	 */
+	public boolean execute(PathList paths) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		Thread reporter = new Thread(() -> {
+			try {
+				while (true) {
+					Thread.sleep(REPORT_MILLIS);
+					report(start);
+				}
+			} catch (InterruptedException e) {
+				// Stopped at the end of the batch
+			}
+		}, "Batch progress");
+		reporter.setDaemon(true);
+		reporter.start();
+
+		try {
+			new BatchEngine().execute(paths, this::process);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			reporter.interrupt();
+			writeManifest();
+		}
+
+		report(start);
+		return failed.sum() == 0;
+	}
+
+	/**
+	 * Encrypts or decrypts the specified <tt>file</tt> into its target.
+	 *
+	 * @param file file to be processed
+	 */
+	private void process(File file) {
+		File target = getTarget(file);
+		if (target == null) {
+			failed.increment();
+			System.err.println("Can not decrypt " + file + ": not an encrypted file");
+			return;
+		}
+
+		File tempFile = DurableOutput.tempFile(target);
+		try {
+			Crypto crypto = new Crypto(password, mode == Crypto.ENCRYPT ? keyDerivation : null, mode);
+			Manifest.Digest digest = mode == Crypto.ENCRYPT ? manifestLog.newDigest() : manifest.expect(file);
+			crypto.setDigest(digest);
+			crypto.execute(file, tempFile, bytes::add);
+			if (mode == Crypto.DECRYPT && digest != null) {
+				digest.verify(file);
+			}
+			DurableOutput.move(tempFile.toPath(), target.toPath());
+			files.increment();
+			if (mode == Crypto.ENCRYPT) {
+				manifestLog.put(target, digest);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			failed.increment();
+			System.err.println("Can not " + (mode == Crypto.ENCRYPT ? "encrypt " : "decrypt ") + file + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the checksums of the encrypted files to the manifests.
+	 */
+	private void writeManifest() {
+		try {
+			manifestLog.write();
+		} catch (IOException e) {
+			System.err.println("Can not write the checksum manifest: " + e);
+		}
+	}
+
+	/**
+	 * Returns the file that the specified <tt>file</tt> is processed into, or
+	 * null if a file to be decrypted does not have the encrypted extension.
+	 *
+	 * @param file file to be processed
+	 * @return the target of the file, or null
+	 */
+	private File getTarget(File file) {
+		String name = file.getName();
+		if (mode == Crypto.ENCRYPT) {
+			return new File(file.getParentFile(), name + FILE_EXTENSION);
+		}
+		if (!name.endsWith(FILE_EXTENSION) || name.length() == FILE_EXTENSION.length()) {
+			return null;
+		}
+		return new File(file.getParentFile(), name.substring(0, name.length() - FILE_EXTENSION.length()));
+	}
+
+	/**
+	 * Prints the number of bytes and files processed since the specified
+	 * <tt>start</tt> and the throughput.
+	 *
+	 * @param start start of the batch in nanoseconds
+	 */
+	private void report(long start) {
+		long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		long done = bytes.sum();
+		System.out.println(files.sum() + " files, " + humanReadableByteCount(done) + " in " + millis + " ms, "
+				+ humanReadableByteCount(done * 1000 / millis) + "/s" + (failed.sum() > 0 ? ", " + failed.sum() + " failed" : ""));
+	}
+
+}
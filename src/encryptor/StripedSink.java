@@ -0,0 +1,353 @@
+package encryptor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A {@linkplain Sink} that spreads one output across several directories,
+ * usually on different disks, so that writing the output uses the bandwidth
+ * of all of them. The output is cut into stripes of {@value #STRIPE_SIZE}
+ * bytes, which are written in turns to the stripe files of the directories,
+ * each by its own thread. The stripe file of the <tt>i</tt>-th of <tt>n</tt>
+ * directories is named <tt>name.stripe</tt><i>i</i><tt>of</tt><i>n</i>,
+ * counting from 1, and the output is read back by a {@linkplain StripedSource}
+ * given the same name and directories in the same order. Each stripe file
+ * starts with the 8 bytes long length of the whole output, so a stripe file
+ * that is truncated or belongs to another output is recognized.
+ * <p>
+ * The two buffers of each directory are borrowed from the
+ * {@linkplain BufferPool#GLOBAL buffer pool} for as long as the sink is open.
+ * The stripe files are written under temporary names and renamed when the
+ * sink is closed. The sink is also a command line tool that encrypts a file
+ * into stripes.
+ *
+ * @author Mario Bobic
+ */
+public class StripedSink implements Sink {
+
+	/** Number of bytes of a stripe */
+	public static final int STRIPE_SIZE = BufferPool.SLAB_SIZE;
+	/** Number of bytes of the header of a stripe file */
+	static final int HEADER_LENGTH = 8;
+
+	/** Name of the output */
+	private final String name;
+	/** Writers of the stripe files, one for each directory */
+	private final Writer[] writers;
+	/** Buffers of the writers, two for each directory */
+	private final BufferPool.Lease lease;
+
+	/** Stripe being filled, null if none */
+	private ByteBuffer stripe;
+	/** Number of stripes handed to the writers */
+	private long stripes;
+	/** Number of bytes written */
+	private long length;
+
+	/**
+	 * Constructs a sink that writes the output of the specified <tt>name</tt>
+	 * across the specified <tt>directories</tt>.
+	 *
+	 * @param name name of the output
+	 * @param directories directories of the stripe files
+	 * @throws IllegalArgumentException if there are more directories than
+	 *         the buffer pool can lend buffers for
+	 * @throws IOException if a stripe file can not be created
+	 */
+	public StripedSink(String name, File... directories) throws IOException {
+		if (directories.length == 0) {
+			throw new IllegalArgumentException("At least one directory must be given.");
+		}
+		this.name = name;
+		this.writers = new Writer[directories.length];
+		/* The lease is held while streaming borrows its own slabs, which must still fit in the pool. */
+		if (2 * directories.length + CryptoEngine.STREAM_SLABS > BufferPool.GLOBAL.capacity()) {
+			throw new IllegalArgumentException("Buffer pool is too small for " + directories.length + " directories.");
+		}
+		this.lease = BufferPool.GLOBAL.borrow(2 * directories.length);
+		try {
+			for (int i = 0; i < directories.length; i++) {
+				File target = stripeFile(name, directories, i);
+				writers[i] = new Writer(DurableOutput.tempFile(target), target, lease.get(2 * i), lease.get(2 * i + 1));
+			}
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+		for (Writer writer : writers) {
+			writer.start();
+		}
+	}
+
+	/**
+	 * Encrypts a file into stripes named after it in the specified
+	 * directories.
+	 *
+	 * @param args the file followed by the directories
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: StripedSink <file> <directories>");
+			System.exit(2);
+		}
+		File file = new File(args[0]);
+		File[] directories = new File[args.length - 1];
+		for (int i = 1; i < args.length; i++) {
+			directories[i - 1] = new File(args[i]);
+		}
+
+		char[] password = Verifier.readPassword();
+		Crypto crypto = new Crypto(password, KeyDerivation.newParameters(), Crypto.ENCRYPT);
+		crypto.execute(Source.of(file), new StripedSink(file.getName() + ".crypt", directories), (len) -> {});
+	}
+
+	/**
+	 * Returns the stripe file of the output of the specified <tt>name</tt> in
+	 * the <tt>index</tt>-th of the <tt>directories</tt>.
+	 *
+	 * @param name name of the output
+	 * @param directories directories of the stripe files
+	 * @param index index of the directory
+	 * @return the stripe file
+	 */
+	static File stripeFile(String name, File[] directories, int index) {
+		return new File(directories[index], name + ".stripe" + (index + 1) + "of" + directories.length);
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (stripe == null) {
+				stripe = writers[(int) (stripes % writers.length)].take();
+			}
+			int len = Math.min(buffer.remaining(), stripe.remaining());
+			ByteBuffer part = buffer.duplicate();
+			part.limit(part.position() + len);
+			stripe.put(part);
+			buffer.position(buffer.position() + len);
+			length += len;
+			if (!stripe.hasRemaining()) {
+				hand();
+			}
+		}
+	}
+
+	/**
+	 * Hands the stripe being filled to its writer.
+	 *
+	 * @throws IOException if the writer has failed
+	 */
+	private void hand() throws IOException {
+		stripe.flip();
+		writers[(int) (stripes % writers.length)].put(stripe);
+		stripe = null;
+		stripes++;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (stripe != null && stripe.position() > 0) {
+				hand();
+			}
+			for (Writer writer : writers) {
+				writer.put(Writer.END);
+			}
+			for (Writer writer : writers) {
+				writer.finish(length);
+			}
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+		lease.close();
+		for (Writer writer : writers) {
+			DurableOutput.move(writer.temp.toPath(), writer.target.toPath());
+		}
+	}
+
+	@Override
+	public void abort() {
+		for (Writer writer : writers) {
+			if (writer != null) {
+				writer.discard();
+			}
+		}
+		lease.close();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * A thread that writes the stripes of one directory to its stripe file.
+	 * The stripes are filled by the sink in two buffers taken in turns, so the
+	 * next stripe is filled while the previous one is being written.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Writer extends Thread {
+
+		/** Marks the end of the output in the queue of filled stripes */
+		private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+		/** Temporary stripe file */
+		private final File temp;
+		/** Stripe file the temporary file is renamed to */
+		private final File target;
+		/** Channel of the temporary file */
+		private final FileChannel out;
+		/** Buffers ready to be filled */
+		private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(2);
+		/** Filled stripes, followed by {@link #END} */
+		private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(3);
+		/** Error that stopped the writing, null if none */
+		private volatile IOException error;
+
+		/**
+		 * Constructs a writer of the specified stripe file.
+		 *
+		 * @param temp temporary stripe file
+		 * @param target stripe file the temporary file is renamed to
+		 * @param first first buffer of the stripes
+		 * @param second second buffer of the stripes
+		 * @throws IOException if the temporary file can not be created
+		 */
+		private Writer(File temp, File target, ByteBuffer first, ByteBuffer second) throws IOException {
+			super("Stripe writer " + target.getName());
+			setDaemon(true);
+			this.temp = temp;
+			this.target = target;
+			this.out = new FileOutputStream(temp).getChannel();
+			this.out.position(HEADER_LENGTH);
+			empty.add(first);
+			empty.add(second);
+		}
+
+		@Override
+		public void run() {
+			try {
+				ByteBuffer stripe;
+				while ((stripe = filled.take()) != END) {
+					/* After an error the stripes are only recycled, so the sink is never blocked. */
+					if (error == null) {
+						try {
+							while (stripe.hasRemaining()) {
+								out.write(stripe);
+							}
+						} catch (IOException e) {
+							error = e;
+						}
+					}
+					stripe.clear();
+					empty.add(stripe);
+				}
+			} catch (InterruptedException e) {
+				// Stopped by the sink
+			}
+		}
+
+		/**
+		 * Returns an empty buffer for the next stripe of this writer, waiting
+		 * until the writer is done with one.
+		 *
+		 * @return an empty buffer
+		 * @throws IOException if the writer has failed or the current thread is interrupted
+		 */
+		private ByteBuffer take() throws IOException {
+			checkError();
+			try {
+				return empty.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing " + target);
+			}
+		}
+
+		/**
+		 * Hands a filled stripe to this writer.
+		 *
+		 * @param stripe filled stripe, or {@link #END}
+		 * @throws IOException if the writer has failed or the current thread is interrupted
+		 */
+		private void put(ByteBuffer stripe) throws IOException {
+			checkError();
+			try {
+				filled.put(stripe);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing " + target);
+			}
+		}
+
+		/**
+		 * Waits until this writer has written all stripes, writes the header
+		 * and closes the stripe file.
+		 *
+		 * @param length length of the whole output
+		 * @throws IOException if the writer has failed or the current thread is interrupted
+		 */
+		private void finish(long length) throws IOException {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing " + target);
+			}
+			checkError();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putLong(0, length);
+			while (header.hasRemaining()) {
+				out.write(header, header.position());
+			}
+			out.close();
+		}
+
+		/**
+		 * Stops this writer, waits until it is no longer writing and deletes
+		 * the temporary stripe file, preserving the interrupted status of the
+		 * current thread.
+		 */
+		private void discard() {
+			interrupt();
+			boolean interrupted = false;
+			while (isAlive()) {
+				try {
+					join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			try {
+				out.close();
+			} catch (IOException e) {
+				// The output is abandoned
+			}
+			temp.delete();
+		}
+
+		/**
+		 * Throws the error that stopped this writer, if any.
+		 *
+		 * @throws IOException if the writer has failed
+		 */
+		private void checkError() throws IOException {
+			if (error != null) {
+				throw error;
+			}
+		}
+
+	}
+
+}
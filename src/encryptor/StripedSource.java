@@ -0,0 +1,340 @@
+package encryptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A {@linkplain Source} that reassembles an output written by a
+ * {@linkplain StripedSink}. Each stripe file is read ahead by its own thread,
+ * so reading uses the bandwidth of all directories, and the stripes are
+ * returned in turns in their original order. The lengths of the stripe files
+ * are checked against the length of the output in their headers when the
+ * source is opened, so a truncated or missing stripe file is reported before
+ * anything is read.
+ * <p>
+ * The two buffers of each stripe file are borrowed from the
+ * {@linkplain BufferPool#GLOBAL buffer pool} until the source is closed. The
+ * source is also a command line tool that decrypts a striped file.
+ *
+ * @author Mario Bobic
+ */
+public class StripedSource implements Source {
+
+	/** Name of the output */
+	private final String name;
+	/** Readers of the stripe files, one for each directory */
+	private final Reader[] readers;
+	/** Buffers of the readers, two for each directory */
+	private final BufferPool.Lease lease;
+
+	/** Stripe being read, null if none */
+	private ByteBuffer stripe;
+	/** Number of stripes taken from the readers */
+	private long stripes;
+	/** True if the end of the output has been reached */
+	private boolean ended;
+
+	/**
+	 * Constructs a source that reads the output of the specified <tt>name</tt>
+	 * from the specified <tt>directories</tt>, which must be given in the
+	 * same order as they were to the sink.
+	 *
+	 * @param name name of the output
+	 * @param directories directories of the stripe files
+	 * @throws IllegalArgumentException if there are more directories than
+	 *         the buffer pool can lend buffers for
+	 * @throws IOException if a stripe file is missing or has a wrong length
+	 */
+	public StripedSource(String name, File... directories) throws IOException {
+		if (directories.length == 0) {
+			throw new IllegalArgumentException("At least one directory must be given.");
+		}
+		this.name = name;
+		this.readers = new Reader[directories.length];
+		/* The lease is held while streaming borrows its own slabs, which must still fit in the pool. */
+		if (2 * directories.length + CryptoEngine.STREAM_SLABS > BufferPool.GLOBAL.capacity()) {
+			throw new IllegalArgumentException("Buffer pool is too small for " + directories.length + " directories.");
+		}
+		this.lease = BufferPool.GLOBAL.borrow(2 * directories.length);
+
+		try {
+			long length = -1;
+			for (int i = 0; i < directories.length; i++) {
+				File file = StripedSink.stripeFile(name, directories, i);
+				if (!file.isFile()) {
+					throw new IOException("Stripe file " + file + " is missing.");
+				}
+				readers[i] = new Reader(file, lease.get(2 * i), lease.get(2 * i + 1));
+				long stripeLength = readers[i].readHeader();
+				if (length != -1 && stripeLength != length) {
+					throw new IOException("Stripe file " + file + " belongs to another output.");
+				}
+				length = stripeLength;
+			}
+			for (int i = 0; i < directories.length; i++) {
+				long expected = StripedSink.HEADER_LENGTH + stripeLength(length, directories.length, i);
+				if (readers[i].file.length() != expected) {
+					throw new IOException("Stripe file " + readers[i].file + " has " + readers[i].file.length()
+							+ " bytes, expected " + expected + ".");
+				}
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		for (Reader reader : readers) {
+			reader.start();
+		}
+	}
+
+	/**
+	 * Decrypts a striped file into the specified file.
+	 *
+	 * @param args name of the striped file, the output file and the directories
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: StripedSource <name> <output file> <directories>");
+			System.exit(2);
+		}
+		File file = new File(args[1]);
+		File[] directories = new File[args.length - 2];
+		for (int i = 2; i < args.length; i++) {
+			directories[i - 2] = new File(args[i]);
+		}
+
+		char[] password = Verifier.readPassword();
+		Crypto crypto = new Crypto(password, null, Crypto.DECRYPT);
+		crypto.execute(new StripedSource(args[0], directories), Sink.of(file), (len) -> {});
+	}
+
+	/**
+	 * Returns the length of the stripes in the <tt>index</tt>-th of
+	 * <tt>count</tt> stripe files of an output of the specified
+	 * <tt>length</tt>.
+	 *
+	 * @param length length of the output
+	 * @param count number of stripe files
+	 * @param index index of the stripe file
+	 * @return the length of the stripes in the stripe file
+	 */
+	private static long stripeLength(long length, int count, int index) {
+		long full = length / StripedSink.STRIPE_SIZE;
+		long rest = length % StripedSink.STRIPE_SIZE;
+		long stripes = full / count + (index < full % count ? 1 : 0);
+		return stripes * StripedSink.STRIPE_SIZE + (index == full % count ? rest : 0);
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		if (!buffer.hasRemaining()) {
+			return 0;
+		}
+		if (stripe == null && !ended) {
+			stripe = readers[(int) (stripes % readers.length)].take();
+			if (stripe == null) {
+				ended = true;
+			}
+		}
+		if (ended) {
+			return -1;
+		}
+
+		int len = Math.min(buffer.remaining(), stripe.remaining());
+		ByteBuffer part = stripe.duplicate();
+		part.limit(part.position() + len);
+		buffer.put(part);
+		stripe.position(stripe.position() + len);
+		if (!stripe.hasRemaining()) {
+			readers[(int) (stripes % readers.length)].recycle(stripe);
+			stripe = null;
+			stripes++;
+		}
+		return len;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException error = null;
+		for (Reader reader : readers) {
+			if (reader == null) {
+				continue;
+			}
+			try {
+				reader.stopReading();
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				} else {
+					error.addSuppressed(e);
+				}
+			}
+		}
+		/* The buffers are returned only once no reader is filling them. */
+		lease.close();
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * A thread that reads the stripes of one stripe file ahead into two
+	 * buffers taken in turns, so the next stripe is read while the previous
+	 * one is being processed.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Reader extends Thread {
+
+		/** Marks the end of the stripe file in the queue of filled stripes */
+		private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+		/** Stripe file */
+		private final File file;
+		/** Channel of the stripe file */
+		private final FileChannel in;
+		/** Buffers ready to be filled */
+		private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(2);
+		/** Filled stripes, followed by {@link #END} */
+		private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(3);
+		/** Error that stopped the reading, null if none */
+		private volatile IOException error;
+
+		/**
+		 * Constructs a reader of the specified stripe file.
+		 *
+		 * @param file stripe file
+		 * @param first first buffer of the stripes
+		 * @param second second buffer of the stripes
+		 * @throws IOException if the file can not be opened
+		 */
+		private Reader(File file, ByteBuffer first, ByteBuffer second) throws IOException {
+			super("Stripe reader " + file.getName());
+			setDaemon(true);
+			this.file = file;
+			this.in = new FileInputStream(file).getChannel();
+			empty.add(first);
+			empty.add(second);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					ByteBuffer stripe = empty.take();
+					stripe.clear();
+					int len = 0;
+					while (stripe.hasRemaining() && len != -1) {
+						len = in.read(stripe);
+					}
+					stripe.flip();
+					if (stripe.hasRemaining()) {
+						filled.put(stripe);
+					}
+					if (len == -1) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				// Stopped by the source
+			} finally {
+				filled.offer(END);
+			}
+		}
+
+		/**
+		 * Reads the header of the stripe file and leaves the channel at the
+		 * first stripe.
+		 *
+		 * @return the length of the whole output
+		 * @throws IOException if the header can not be read
+		 */
+		private long readHeader() throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(StripedSink.HEADER_LENGTH);
+			while (header.hasRemaining()) {
+				if (in.read(header) == -1) {
+					throw new IOException("Stripe file " + file + " is damaged.");
+				}
+			}
+			long length = header.getLong(0);
+			if (length < 0) {
+				throw new IOException("Stripe file " + file + " is damaged.");
+			}
+			return length;
+		}
+
+		/**
+		 * Returns the next filled stripe, waiting until it is read, or null
+		 * at the end of the stripe file.
+		 *
+		 * @return the next filled stripe, or null at the end
+		 * @throws IOException if reading failed or the current thread is interrupted
+		 */
+		private ByteBuffer take() throws IOException {
+			ByteBuffer stripe;
+			try {
+				stripe = filled.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading " + file);
+			}
+			if (stripe == END) {
+				/* Keep the end marked for the caller of the next take. */
+				filled.offer(END);
+				if (error != null) {
+					throw error;
+				}
+				return null;
+			}
+			return stripe;
+		}
+
+		/**
+		 * Hands a processed stripe back to this reader to be filled again.
+		 *
+		 * @param stripe processed stripe
+		 */
+		private void recycle(ByteBuffer stripe) {
+			empty.add(stripe);
+		}
+
+		/**
+		 * Stops this reader, waits until it is no longer reading and closes
+		 * the stripe file, preserving the interrupted status of the current
+		 * thread.
+		 *
+		 * @throws IOException if the stripe file can not be closed
+		 */
+		private void stopReading() throws IOException {
+			interrupt();
+			boolean interrupted = false;
+			while (isAlive()) {
+				try {
+					join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			in.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,135 @@
+package encryptor;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that limits the rate of I/O of all crypto workers.
+ * <p>
+ * The throttle limits the number of bytes per second and, optionally, the
+ * number of I/O operations per second. Both limits are shared by all threads
+ * and may be changed at any time. A limit of 0 means unlimited. Unused
+ * capacity is saved for at most one second, so short bursts are allowed.
+ *
+ * @author Mario Bobic
+ */
+public class Throttle {
+
+	/** The throttle shared by all crypto workers */
+	public static final Throttle GLOBAL = new Throttle();
+
+	/** Longest time of unused capacity that can be saved for bursts */
+	private static final long MAX_BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** Maximum number of bytes per second, 0 if unlimited */
+	private volatile long bytesPerSecond;
+	/** Maximum number of I/O operations per second, 0 if unlimited */
+	private volatile long operationsPerSecond;
+
+	/** Time when the byte bucket will have capacity for the next operation */
+	private long nextByteNanos = System.nanoTime();
+	/** Time when the operation bucket will have capacity for the next operation */
+	private long nextOperationNanos = System.nanoTime();
+
+	/**
+	 * Blocks until a single I/O operation of the specified number of
+	 * <tt>bytes</tt> is allowed by this throttle. Threads whose I/O is
+	 * {@linkplain Metrics#isUncounted() not counted} are not throttled.
+	 *
+	 * @param bytes number of bytes to be read or written
+	 * @throws InterruptedIOException if the current thread is interrupted
+	 *         while waiting
+	 */
+	public void acquire(int bytes) throws InterruptedIOException {
+		long byteRate = bytesPerSecond;
+		long operationRate = operationsPerSecond;
+		if (byteRate == 0 && operationRate == 0 || Metrics.isUncounted()) {
+			return;
+		}
+
+		long waitNanos = reserve(bytes, byteRate, operationRate);
+		if (waitNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled.");
+			}
+		}
+	}
+
+	/**
+	 * Reserves capacity for an operation of the specified number of
+	 * <tt>bytes</tt> and returns the time the caller must wait for it.
+	 *
+	 * @param bytes number of bytes to be read or written
+	 * @param byteRate maximum number of bytes per second, 0 if unlimited
+	 * @param operationRate maximum number of operations per second, 0 if unlimited
+	 * @return the time to wait, in nanoseconds
+	 */
+	private synchronized long reserve(int bytes, long byteRate, long operationRate) {
+		long now = System.nanoTime();
+		long wait = 0L;
+
+		if (byteRate > 0) {
+			nextByteNanos = Math.max(nextByteNanos, now - MAX_BURST_NANOS);
+			wait = Math.max(wait, nextByteNanos - now);
+			nextByteNanos += bytes * TimeUnit.SECONDS.toNanos(1) / byteRate;
+		}
+		if (operationRate > 0) {
+			nextOperationNanos = Math.max(nextOperationNanos, now - MAX_BURST_NANOS);
+			wait = Math.max(wait, nextOperationNanos - now);
+			nextOperationNanos += TimeUnit.SECONDS.toNanos(1) / operationRate;
+		}
+
+		return wait;
+	}
+
+	/**
+	 * Returns the maximum number of bytes per second, 0 if unlimited.
+	 *
+	 * @return the maximum number of bytes per second
+	 */
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Sets the maximum number of bytes per second. A value of 0 removes the limit.
+	 *
+	 * @param bytesPerSecond maximum number of bytes per second
+	 * @throws IllegalArgumentException if <tt>bytesPerSecond</tt> is negative
+	 */
+	public synchronized void setBytesPerSecond(long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException("Rate must not be negative: " + bytesPerSecond);
+		}
+		this.bytesPerSecond = bytesPerSecond;
+		nextByteNanos = System.nanoTime();
+	}
+
+	/**
+	 * Returns the maximum number of I/O operations per second, 0 if unlimited.
+	 *
+	 * @return the maximum number of I/O operations per second
+	 */
+	public long getOperationsPerSecond() {
+		return operationsPerSecond;
+	}
+
+	/**
+	 * Sets the maximum number of I/O operations per second. A value of 0
+	 * removes the limit.
+	 *
+	 * @param operationsPerSecond maximum number of I/O operations per second
+	 * @throws IllegalArgumentException if <tt>operationsPerSecond</tt> is negative
+	 */
+	public synchronized void setOperationsPerSecond(long operationsPerSecond) {
+		if (operationsPerSecond < 0) {
+			throw new IllegalArgumentException("Rate must not be negative: " + operationsPerSecond);
+		}
+		this.operationsPerSecond = operationsPerSecond;
+		nextOperationNanos = System.nanoTime();
+	}
+
+}
@@ -0,0 +1,248 @@
+package encryptor;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import static encryptor.ConstantsAndMethods.FILE_EXTENSION;
+import static encryptor.ConstantsAndMethods.humanReadableByteCount;
+
+/**
+ * This class verifies that encrypted files can be restored, without writing
+ * the decrypted data anywhere.
+ * <p>
+ * Every file is streamed through the decryption path and the decrypted data
+ * is discarded. A file passes if it can be read to the end, its header
+ * matches the password, its padding is intact and its plaintext matches the
+ * checksum in its {@linkplain Manifest manifest}, if it has one. Files are
+ * verified in parallel by the {@linkplain BatchEngine}, so a whole backup is
+ * verified at the speed its devices can be read.
+ * <p>
+ * The formats carry no message authentication code, so without a manifest,
+ * data damaged inside a file encrypted with {@link CipherMode#AES_CTR} is not
+ * detected, only damage that makes the file unreadable or changes its length.
+ * <p>
+ * The verifier can be run from the command line with the files or the
+ * directories to be verified as arguments. Directories are searched for
+ * encrypted files recursively. The password is read from the console.
+ *
+ * @author Mario Bobic
+ */
+public class Verifier {
+
+	/**
+	 * Verifies the files given as arguments and exits with status 1 if any of
+	 * them fails.
+	 *
+	 * @param args files or directories to be verified
+	 * @throws IOException if the password can not be read
+	 * @throws InterruptedException if interrupted while verifying
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 0) {
+			System.err.println("Usage: Verifier <file or directory>...");
+			System.exit(2);
+		}
+
+		List<File> files = new ArrayList<>();
+		for (String arg : args) {
+			collect(new File(arg), files);
+		}
+
+		char[] password = readPassword();
+		int failed;
+		try {
+			failed = verify(files, password);
+		} finally {
+			Arrays.fill(password, '\0');
+			KeyDerivation.clearCache();
+		}
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Verifies the specified <tt>files</tt> in parallel, printing the result
+	 * of every file and the total throughput. Returns the number of files
+	 * that failed.
+	 *
+	 * @param files files to be verified
+	 * @param password password of the files
+	 * @return the number of files that failed
+	 * @throws InterruptedException if interrupted while verifying
+	 */
+	public static int verify(List<File> files, char[] password) throws InterruptedException {
+		AtomicInteger failed = new AtomicInteger();
+		AtomicLong totalBytes = new AtomicLong();
+		long start = System.nanoTime();
+		Manifest manifest = new Manifest(null);
+
+		new BatchEngine().execute(files, File::length, (file) -> {
+			long fileStart = System.nanoTime();
+			AtomicLong bytes = new AtomicLong();
+			try {
+				verify(file, password, manifest.expect(file), bytes::addAndGet);
+				System.out.println("PASS " + file + " (" + throughput(bytes.get(), System.nanoTime() - fileStart) + ")");
+			} catch (IOException e) {
+				failed.incrementAndGet();
+				System.out.println("FAIL " + file + ": " + e.getMessage());
+			}
+			totalBytes.addAndGet(bytes.get());
+		});
+
+		System.out.println("Verified " + files.size() + " files, " + failed + " failed, "
+				+ humanReadableByteCount(totalBytes.get()) + " at " + throughput(totalBytes.get(), System.nanoTime() - start));
+		return failed.get();
+	}
+
+	/**
+	 * Verifies that the specified <tt>file</tt> can be decrypted with the
+	 * specified <tt>password</tt>, reporting the number of bytes read to the
+	 * <tt>progress</tt> consumer after every read. Nothing is written.
+	 *
+	 * @param file file to be verified
+	 * @param password password of the file
+	 * @param progress consumer of the number of bytes read
+	 * @throws WrongPasswordException if the password is wrong
+	 * @throws InterruptedIOException if the current thread is interrupted
+	 * @throws IOException if the file is damaged or can not be read
+	 */
+	public static void verify(File file, char[] password, LongConsumer progress) throws IOException {
+		verify(file, password, null, progress);
+	}
+
+	/**
+	 * Verifies that the specified <tt>file</tt> can be decrypted with the
+	 * specified <tt>password</tt> and that its plaintext matches the checksum
+	 * expected by the <tt>digest</tt>, reporting the number of bytes read to
+	 * the <tt>progress</tt> consumer after every read. Nothing is written,
+	 * except that a file torn by a crash during an in-place operation is
+	 * recovered first.
+	 *
+	 * @param file file to be verified
+	 * @param password password of the file
+	 * @param digest digest expecting the checksum of the plaintext, may be null
+	 * @param progress consumer of the number of bytes read
+	 * @throws WrongPasswordException if the password is wrong
+	 * @throws ChecksumMismatchException if the checksum does not match
+	 * @throws InterruptedIOException if the current thread is interrupted
+	 * @throws IOException if the file is damaged or can not be read
+	 */
+	public static void verify(File file, char[] password, Manifest.Digest digest, LongConsumer progress) throws IOException {
+		InPlaceCrypto.recover(file, password);
+		if (InPlaceCrypto.isEncryptedInPlace(file)) {
+			InPlaceCrypto.decryptCopy(file, null, password, digest, progress);
+			if (digest != null) {
+				digest.verify(file);
+			}
+			return;
+		}
+		if (SparseCrypto.isSparse(file)) {
+			SparseCrypto.decrypt(file, null, password, digest, progress);
+			if (digest != null) {
+				digest.verify(file);
+			}
+			return;
+		}
+
+		Crypto crypto = new Crypto(password, null, Crypto.DECRYPT);
+		crypto.setDigest(digest);
+		try (
+				BufferPool.Lease lease = BufferPool.GLOBAL.borrow(2);
+				FileChannel in = new FileInputStream(file).getChannel();
+		) {
+			ByteBuffer inBuffer = lease.get(0);
+			ByteBuffer outBuffer = lease.get(1);
+			inBuffer.limit(CryptoEngine.READ_SIZE);
+
+			int len;
+			while ((len = in.read(inBuffer)) != -1) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Interrupted while verifying " + file);
+				}
+				Throttle.GLOBAL.acquire(len);
+				Metrics.GLOBAL.read(len);
+
+				inBuffer.flip();
+				crypto.update(inBuffer, outBuffer);
+				inBuffer.clear();
+				inBuffer.limit(CryptoEngine.READ_SIZE);
+				/* The decrypted data is discarded. */
+				outBuffer.clear();
+				progress.accept(len);
+			}
+			crypto.doFinal(outBuffer);
+		}
+		if (digest != null) {
+			digest.verify(file);
+		}
+	}
+
+	/**
+	 * Adds the specified <tt>file</tt> to the list of <tt>files</tt>, or all
+	 * encrypted files under it if it is a directory.
+	 *
+	 * @param file file or directory
+	 * @param files list of collected files
+	 */
+	static void collect(File file, List<File> files) {
+		File[] children = file.listFiles();
+		if (children == null) {
+			files.add(file);
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory() || child.getName().endsWith(FILE_EXTENSION)) {
+				collect(child, files);
+			}
+		}
+	}
+
+	/**
+	 * Reads the password from the console, or from the standard input if
+	 * there is no console.
+	 *
+	 * @return the password
+	 * @throws IOException if the password can not be read
+	 */
+	static char[] readPassword() throws IOException {
+		Console console = System.console();
+		if (console != null) {
+			char[] password = console.readPassword("Password: ");
+			if (password == null) {
+				throw new IOException("No password entered.");
+			}
+			return password;
+		}
+
+		String line = new BufferedReader(new InputStreamReader(System.in)).readLine();
+		if (line == null) {
+			throw new IOException("No password entered.");
+		}
+		return line.toCharArray();
+	}
+
+	/**
+	 * Returns the human readable throughput of the specified number of
+	 * <tt>bytes</tt> processed in the specified number of <tt>nanos</tt>.
+	 *
+	 * @param bytes number of bytes processed
+	 * @param nanos time in nanoseconds
+	 * @return human readable throughput
+	 */
+	private static String throughput(long bytes, long nanos) {
+		return humanReadableByteCount((long) (bytes * 1e9 / Math.max(1, nanos))) + "/s";
+	}
+
+}
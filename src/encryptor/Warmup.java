@@ -0,0 +1,75 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static encryptor.ConstantsAndMethods.generatePasswordHash;
+
+/**
+ * Warms up the cryptographic machinery on a background thread at launch.
+ * <p>
+ * The first use of a cipher or a message digest loads and verifies the
+ * security providers, and the first megabytes processed run in the
+ * interpreter. Doing this while the user is still choosing files keeps the
+ * first encryption or decryption from paying for it. The iterations of the
+ * {@linkplain KeyDerivation key derivation} are calibrated here as well, if
+ * they have not been calibrated before, and so are the thresholds of the
+ * {@linkplain EngineSelector engine selector}, in the home directory of the
+ * user, and the choice of the {@linkplain CipherSelector cipher}.
+ *
+ * @author Mario Bobic
+ */
+public class Warmup {
+
+	/** Number of slabs processed by each crypto during the warm-up */
+	private static final int ROUNDS = 16;
+
+	/**
+	 * Starts the warm-up on a low priority daemon thread and returns
+	 * immediately.
+	 */
+	public static void start() {
+		Thread thread = new Thread(Warmup::run, "Crypto warm-up");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Loads the message digest and the cipher, runs both cipher modes through
+	 * the same code path used for files and calibrates the key derivation, the
+	 * cipher and the engine selector.
+	 */
+	private static void run() {
+		KeyDerivation.calibratedIterations();
+		CipherSelector.calibrate();
+
+		String hash = generatePasswordHash("warm-up");
+		Crypto encryptor = new Crypto(hash, Crypto.ENCRYPT);
+		Crypto decryptor = new Crypto(hash, Crypto.DECRYPT);
+
+		try (BufferPool.Lease lease = BufferPool.GLOBAL.borrow(2)) {
+			ByteBuffer plain = lease.get(0);
+			ByteBuffer cipher = lease.get(1);
+			int len = BufferPool.SLAB_SIZE / 2;
+
+			for (int i = 0; i < ROUNDS; i++) {
+				plain.clear();
+				plain.limit(len);
+				cipher.clear();
+				encryptor.update(plain, cipher);
+
+				cipher.flip();
+				plain.clear();
+				decryptor.update(cipher, plain);
+			}
+		} catch (IOException e) {
+			return;
+		}
+
+		/* Benchmark where the user's files are likely to be, not in a temporary file system. */
+		EngineSelector.calibrate(new File(System.getProperty("user.home")));
+	}
+
+}
@@ -0,0 +1,445 @@
+package encryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static encryptor.ConstantsAndMethods.FILE_EXTENSION;
+import static encryptor.ConstantsAndMethods.humanReadableByteCount;
+
+/**
+ * A daemon that encrypts the files dropped into a watched directory tree as
+ * they arrive.
+ * <p>
+ * The directories are watched by a {@linkplain WatchService}. A file that is
+ * created or modified becomes pending, and is considered complete once no
+ * event has arrived for it during the debounce time and its size and
+ * modification time have not changed meanwhile, so files that are still
+ * being written are not encrypted halfway. Completed files are gathered into
+ * batches, which are encrypted in parallel by the {@linkplain BatchEngine} on
+ * a separate thread while new events keep being received. If the watch
+ * service loses events, the whole tree is scanned again.
+ * <p>
+ * Every file is encrypted to <tt>name.crypt</tt> next to it, the way the
+ * {@linkplain EncryptorPanel} does it, through a {@linkplain DurableOutput
+ * durable output} and with a {@linkplain Manifest checksum manifest} when
+ * these are enabled. A file is encrypted again only if it is newer than its
+ * encrypted file. With the <tt>-delete</tt> option the original files are
+ * deleted, and large ones are encrypted in place.
+ * <p>
+ * The debounce time and the largest batch can be set with the
+ * <tt>encryptor.watchDebounceMillis</tt> and
+ * <tt>encryptor.watchBatchSize</tt> system properties.
+ *
+ * @author Mario Bobic
+ */
+public class WatchDaemon {
+
+	/** Time without events after which a file is considered complete */
+	private static final long DEBOUNCE_MILLIS = Math.max(1, Long.getLong("encryptor.watchDebounceMillis", 1000));
+	/** Maximum number of files in a batch */
+	private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("encryptor.watchBatchSize", 4096));
+
+	/** Root of the watched directory tree */
+	private final Path root;
+	/** Password the files are encrypted with */
+	private final char[] password;
+	/** Indicates if the original files are deleted */
+	private final boolean deleteFiles;
+	/** Parameters used for deriving the key of every file */
+	private final KeyDerivation keyDerivation = KeyDerivation.newParameters();
+
+	/** The watch service */
+	private final WatchService watcher;
+	/** Watched directories by their watch keys */
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	/** Files that are not yet complete, by their paths */
+	private final Map<Path, Pending> pending = new HashMap<>();
+	/** Files in batches that are not yet done */
+	private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+	/** Thread that encrypts the batches one after another */
+	private final ExecutorService encryptor = Executors.newSingleThreadExecutor((r) -> new Thread(r, "Watch encryptor"));
+
+	/**
+	 * Watches the directory given as an argument and encrypts files dropped
+	 * into it until the process is stopped.
+	 *
+	 * @param args optional <tt>-delete</tt> option and the directory to watch
+	 * @throws IOException if the directory can not be watched
+	 * @throws InterruptedException if interrupted while watching
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		boolean deleteFiles = args.length == 2 && args[0].equals("-delete");
+		if (args.length != (deleteFiles ? 2 : 1)) {
+			System.err.println("Usage: WatchDaemon [-delete] <directory>");
+			System.exit(2);
+		}
+
+		char[] password = Verifier.readPassword();
+		new WatchDaemon(Paths.get(args[args.length - 1]), password, deleteFiles).run();
+	}
+
+	/**
+	 * Constructs a daemon that watches the directory tree under the
+	 * specified <tt>root</tt>. The password array is not copied, so it must
+	 * not be cleared while the daemon runs.
+	 *
+	 * @param root root of the watched directory tree
+	 * @param password password the files are encrypted with
+	 * @param deleteFiles true if the original files should be deleted
+	 * @throws IOException if the watch service can not be created
+	 */
+	public WatchDaemon(Path root, char[] password, boolean deleteFiles) throws IOException {
+		this.root = root.toAbsolutePath();
+		this.password = password;
+		this.deleteFiles = deleteFiles;
+		this.watcher = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Watches the directory tree and encrypts completed files, until the
+	 * current thread is interrupted. Files already in the tree are encrypted
+	 * first.
+	 *
+	 * @throws IOException if the directory tree can not be watched
+	 * @throws InterruptedException if the current thread is interrupted
+	 */
+	public void run() throws IOException, InterruptedException {
+		System.out.println("Watching " + root);
+		try {
+			scan(root);
+			while (true) {
+				WatchKey key = watcher.poll(DEBOUNCE_MILLIS / 4 + 1, TimeUnit.MILLISECONDS);
+				boolean overflow = false;
+				/* Drain all queued keys before checking the pending files. */
+				while (key != null) {
+					overflow |= process(key);
+					key = watcher.poll();
+				}
+				if (overflow) {
+					System.out.println("Events were lost, scanning " + root + " again");
+					scan(root);
+				}
+				dispatch();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// closed, stop watching
+		} finally {
+			watcher.close();
+			encryptor.shutdownNow();
+			encryptor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	/**
+	 * Handles the events of the specified watch <tt>key</tt> and resets it.
+	 * Returns true if events have been lost.
+	 *
+	 * @param key the watch key
+	 * @return true if events have been lost
+	 * @throws IOException if a new directory can not be watched
+	 */
+	private boolean process(WatchKey key) throws IOException {
+		Path directory = directories.get(key);
+		boolean overflow = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				overflow = true;
+				continue;
+			}
+			if (directory == null) {
+				continue;
+			}
+
+			Path path = directory.resolve((Path) event.context());
+			if (Files.isDirectory(path)) {
+				/* Files may have been created before the directory was watched. */
+				scan(path);
+			} else {
+				offer(path);
+			}
+		}
+		if (!key.reset()) {
+			directories.remove(key);
+		}
+		return overflow;
+	}
+
+	/**
+	 * Watches all directories under the specified <tt>start</tt> directory
+	 * that are not watched yet, and offers all files under it.
+	 *
+	 * @param start directory to be scanned
+	 * @throws IOException if a directory can not be watched
+	 */
+	private void scan(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				directories.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				offer(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Marks the specified <tt>file</tt> as pending if it should be encrypted,
+	 * or restarts its debounce time if it already is pending.
+	 *
+	 * @param file file that has been created or modified
+	 */
+	private void offer(Path file) {
+		String name = file.getFileName().toString();
+		if (name.endsWith(FILE_EXTENSION) || name.endsWith(DurableOutput.TEMP_SUFFIX)
+				|| name.endsWith(InPlaceCrypto.JOURNAL_SUFFIX) || name.endsWith(Manifest.FILE_SUFFIX)
+				|| name.equals(NameIndex.FILE_NAME)) {
+			return;
+		}
+
+		Pending entry = pending.get(file);
+		if (entry == null) {
+			pending.put(file, new Pending(file.toFile()));
+		} else {
+			entry.lastEvent = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Submits the pending files that are complete in batches to the
+	 * encrypting thread.
+	 */
+	private void dispatch() {
+		long now = System.nanoTime();
+		long debounceNanos = TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS);
+		List<File> batch = new ArrayList<>();
+
+		for (Iterator<Pending> it = pending.values().iterator(); it.hasNext(); ) {
+			Pending entry = it.next();
+			if (now - entry.lastEvent < debounceNanos || inFlight.contains(entry.file.toPath())) {
+				continue;
+			}
+			if (!entry.isUnchanged()) {
+				/* Still being written, wait for another debounce time. */
+				entry.lastEvent = now;
+				continue;
+			}
+
+			it.remove();
+			if (!entry.file.isFile() || isEncrypted(entry.file)) {
+				continue;
+			}
+			inFlight.add(entry.file.toPath());
+			batch.add(entry.file);
+			if (batch.size() == BATCH_SIZE) {
+				submit(batch);
+				batch = new ArrayList<>();
+			}
+		}
+
+		if (!batch.isEmpty()) {
+			submit(batch);
+		}
+	}
+
+	/**
+	 * Submits the specified <tt>batch</tt> of files to the encrypting thread.
+	 *
+	 * @param batch files to be encrypted
+	 */
+	private void submit(List<File> batch) {
+		encryptor.execute(() -> {
+			try {
+				encrypt(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				for (File file : batch) {
+					inFlight.remove(file.toPath());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Encrypts the specified <tt>batch</tt> of files in parallel and prints
+	 * the throughput.
+	 *
+	 * @param batch files to be encrypted
+	 * @throws InterruptedException if interrupted while encrypting
+	 */
+	private void encrypt(List<File> batch) throws InterruptedException {
+		long start = System.nanoTime();
+		AtomicLong bytes = new AtomicLong();
+		DurableOutput output = DurableOutput.isEnabled() ? new DurableOutput() : null;
+		Manifest manifest = new Manifest(Manifest.getAlgorithm());
+
+		try {
+			new BatchEngine().execute(batch, File::length, (file) -> {
+				try {
+					encrypt(file, output, manifest);
+					bytes.addAndGet(file.length());
+				} catch (IOException e) {
+					System.err.println("Can not encrypt " + file + ": " + e.getMessage());
+				}
+			});
+		} finally {
+			if (output != null) {
+				output.close();
+			}
+			try {
+				manifest.write();
+			} catch (IOException e) {
+				System.err.println("Can not write the checksum manifest: " + e);
+			}
+		}
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		System.out.println("Encrypted " + batch.size() + " files, " + humanReadableByteCount(bytes.get())
+				+ " in " + millis + " ms");
+	}
+
+	/**
+	 * Encrypts the specified <tt>file</tt> to its encrypted file.
+	 *
+	 * @param file file to be encrypted
+	 * @param output durable output of the batch, null if not durable
+	 * @param manifest checksum manifest of the batch
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void encrypt(File file, DurableOutput output, Manifest manifest) throws IOException {
+		File outputFile = new File(file.getParentFile(), file.getName() + FILE_EXTENSION);
+		/* A file left half encrypted in place by a crash is restored first. */
+		if (InPlaceCrypto.recover(file, password)) {
+			System.out.println("Recovered " + file + " from an interrupted operation");
+		}
+
+		if (deleteFiles && file.length() >= InPlaceCrypto.MIN_SIZE) {
+			InPlaceCrypto.encrypt(file, outputFile, password, keyDerivation, (len) -> {});
+			manifest.put(outputFile, null);
+			return;
+		}
+
+		File tempFile = DurableOutput.tempFile(outputFile);
+		Crypto crypto = new Crypto(password, keyDerivation, Crypto.ENCRYPT);
+		Manifest.Digest digest = manifest.newDigest();
+		crypto.setDigest(digest);
+		try {
+			crypto.execute(file, tempFile);
+			if (output == null) {
+				DurableOutput.move(tempFile.toPath(), outputFile.toPath());
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		manifest.put(outputFile, digest);
+
+		if (output != null) {
+			output.commit(tempFile, outputFile).thenRun(() -> {
+				if (deleteFiles) {
+					file.delete();
+				}
+			});
+		} else if (deleteFiles) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Returns true if the specified <tt>file</tt> has an encrypted file that
+	 * is not older than the file itself.
+	 *
+	 * @param file file to be checked
+	 * @return true if the file is already encrypted
+	 */
+	private static boolean isEncrypted(File file) {
+		File outputFile = new File(file.getParentFile(), file.getName() + FILE_EXTENSION);
+		return outputFile.lastModified() >= file.lastModified();
+	}
+
+	/**
+	 * Stops the daemon, making {@link #run()} return.
+	 *
+	 * @throws IOException if the watch service can not be closed
+	 */
+	public void stop() throws IOException {
+		watcher.close();
+	}
+
+	/**
+	 * A file that is not yet complete.
+	 *
+	 * @author Mario Bobic
+	 */
+	private static class Pending {
+		/** The file */
+		final File file;
+		/** Time in nanoseconds of the last event of the file */
+		long lastEvent = System.nanoTime();
+		/** Size of the file when last checked */
+		long size;
+		/** Modification time of the file when last checked */
+		long modified;
+
+		/**
+		 * Constructs a pending file and records its size and modification time.
+		 *
+		 * @param file the file
+		 */
+		Pending(File file) {
+			this.file = file;
+			this.size = file.length();
+			this.modified = file.lastModified();
+		}
+
+		/**
+		 * Returns true if the size and the modification time of the file have
+		 * not changed since they were last checked, and records them.
+		 *
+		 * @return true if the file has not changed
+		 */
+		boolean isUnchanged() {
+			long newSize = file.length();
+			long newModified = file.lastModified();
+			boolean unchanged = newSize == size && newModified == modified;
+			size = newSize;
+			modified = newModified;
+			return unchanged;
+		}
+	}
+
+}
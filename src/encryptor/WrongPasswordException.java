@@ -0,0 +1,25 @@
+package encryptor;
+
+import java.io.IOException;
+
+/**
+ * Signals that a file can not be decrypted because the password does not
+ * match the check value in its {@linkplain CryptoHeader header}. Nothing has
+ * been decrypted when this exception is thrown.
+ *
+ * @author Mario Bobic
+ */
+public class WrongPasswordException extends IOException {
+
+	/** Serialization version */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructs an instance of {@code WrongPasswordException} with the
+	 * default message.
+	 */
+	public WrongPasswordException() {
+		super("Wrong password.");
+	}
+
+}